@@ -0,0 +1,322 @@
+package fdesj;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+/**
+ * Bounded cache of the results of {@link Event#affect(Object, Time)}.
+ *
+ * As affecting with equal arguments must return equal results, the
+ * changes of an event can be remembered and reused whenever the event
+ * affects an equal state at an equal time again. Events are wrapped
+ * using {@link #memoizing(Event)}; all events wrapped by the same
+ * cache share its capacity, the least recently used results are
+ * evicted first.
+ *
+ * This only pays off when states implement equals and hashCode
+ * cheaply, and when affecting is expensive compared to that. The
+ * cache may be used by multiple threads at once; an event affecting
+ * concurrently in multiple threads may be evaluated more than once.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class AffectCache<State> {
+  /**
+   * Key of a cached result.
+   */
+  private static final class Key {
+    /**
+     * The wrapped event.
+     */
+    private final Event<?> event;
+
+
+    /**
+     * State affected.
+     */
+    private final Object state;
+
+
+    /**
+     * Time of the effect.
+     */
+    private final Time at;
+
+
+    /**
+     * Precomputed hash code.
+     */
+    private final int hash;
+
+
+    /**
+     * Construct a key.
+     *
+     * @param event The wrapped event.
+     * @param state State affected.
+     * @param at Time of the effect.
+     */
+    Key(final Event<?> event, final Object state, final Time at) {
+      this.event = event;
+      this.state = state;
+      this.at = at;
+      this.hash = (event.hashCode() * 31 + Objects.hashCode(state)) * 31
+        + Objects.hashCode(at);
+    }
+
+
+    /**
+     * Keys are equal if event, state and time are equal.
+     *
+     * @param object Object to check for equality to this.
+     * @return True if object is an equal key.
+     */
+    @Override
+    public boolean equals(final Object object) {
+      if (object == this) {
+        return true;
+      }
+      if (! (object instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) object;
+      return hash == other.hash
+        && event.equals(other.event)
+        && Objects.equals(state, other.state)
+        && Objects.equals(at, other.at);
+    }
+
+
+    /**
+     * Get the precomputed hash code.
+     *
+     * @return Hash code based on event, state and time.
+     */
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+
+  /**
+   * Event affecting through the cache.
+   */
+  private static final class MemoizingEvent<State> implements Event<State> {
+    /**
+     * Cache holding the results.
+     */
+    private final AffectCache<State> cache;
+
+
+    /**
+     * The wrapped event.
+     */
+    private final Event<State> event;
+
+
+    /**
+     * Construct a memoizing event.
+     *
+     * @param cache Cache holding the results.
+     * @param event The wrapped event.
+     */
+    MemoizingEvent(final AffectCache<State> cache,
+                   final Event<State> event) {
+      this.cache = cache;
+      this.event = event;
+    }
+
+
+    @Override
+    public Changes<State> affect(final State state, final Time at) {
+      return cache.affect(event, state, at);
+    }
+
+
+    /**
+     * Memoizing events are equal if they wrap equal events using the
+     * same cache.
+     *
+     * @param object Object to check for equality to this.
+     * @return True if object is an equal memoizing event.
+     */
+    @Override
+    public boolean equals(final Object object) {
+      if (object == this) {
+        return true;
+      }
+      if (! (object instanceof MemoizingEvent)) {
+        return false;
+      }
+      final MemoizingEvent<?> other = (MemoizingEvent<?>) object;
+      return cache == other.cache && event.equals(other.event);
+    }
+
+
+    /**
+     * Compute the hash code from the wrapped event.
+     *
+     * @return Hash code of the wrapped event.
+     */
+    @Override
+    public int hashCode() {
+      return event.hashCode();
+    }
+  }
+
+
+  /**
+   * Cached results, least recently used first.
+   */
+  private final LinkedHashMap<Key, Changes<State>> results;
+
+
+  /**
+   * Number of affects answered from the cache.
+   */
+  private long hits;
+
+
+  /**
+   * Number of affects evaluated by the wrapped events.
+   */
+  private long misses;
+
+
+  /**
+   * Number of results evicted from the cache.
+   */
+  private long evictions;
+
+
+  /**
+   * Construct an empty cache.
+   *
+   * @param capacity Maximum number of cached results.
+   * @throws IllegalArgumentException When the capacity is not
+   * positive.
+   */
+  public AffectCache(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.results = new LinkedHashMap<Key, Changes<State>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+
+        @Override
+        protected boolean removeEldestEntry(
+          final Map.Entry<Key, Changes<State>> eldest) {
+          if (size() > capacity) {
+            ++evictions;
+            return true;
+          }
+          return false;
+        }
+      };
+  }
+
+
+  /**
+   * Wrap an event so that its results are cached.
+   *
+   * @param event Event to wrap.
+   * @return Event with equal results, using this cache.
+   * @throws NullPointerException When the event is null.
+   */
+  public Event<State> memoizing(final Event<State> event) {
+    return new MemoizingEvent<State>(
+      this, Objects.requireNonNull(event, "event must not be null"));
+  }
+
+
+  /**
+   * Affect using the cached result, or evaluate and cache it.
+   *
+   * @param event The wrapped event.
+   * @param state State to affect.
+   * @param at Time of the effect.
+   * @return Changes of the event.
+   */
+  private Changes<State> affect(final Event<State> event,
+                                final State state,
+                                final Time at) {
+    final Key key = new Key(event, state, at);
+    synchronized (this) {
+      final Changes<State> cached = results.get(key);
+      if (cached != null || results.containsKey(key)) {
+        ++hits;
+        return cached;
+      }
+      ++misses;
+    }
+    final Changes<State> changes = event.affect(state, at);
+    synchronized (this) {
+      results.put(key, changes);
+    }
+    return changes;
+  }
+
+
+  /**
+   * Get the number of currently cached results.
+   *
+   * @return Number of cached results.
+   */
+  public synchronized int size() {
+    return results.size();
+  }
+
+
+  /**
+   * Get the number of affects answered from the cache.
+   *
+   * @return Number of hits.
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+
+  /**
+   * Get the number of affects evaluated by the wrapped events.
+   *
+   * @return Number of misses.
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+
+  /**
+   * Get the number of results evicted to stay within the capacity.
+   *
+   * @return Number of evictions.
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+
+  /**
+   * Get the fraction of affects answered from the cache.
+   *
+   * @return Hit ratio between 0 and 1, 0 if nothing was affected yet.
+   */
+  public synchronized double getHitRatio() {
+    final long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+
+  /**
+   * Remove all cached results, keeping the counts.
+   */
+  public synchronized void clear() {
+    results.clear();
+  }
+}
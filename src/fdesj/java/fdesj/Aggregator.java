@@ -0,0 +1,25 @@
+package fdesj;
+
+
+/**
+ * Consumer of the outputs of independent runs, as they finish: the
+ * replications of a {@link ReplicationRunner} or the branches of a
+ * {@link ForkRunner}.
+ *
+ * Outputs are passed one at a time from a single thread, in the order
+ * in which the runs finish, so implementations need not be
+ * thread-safe.
+ *
+ * @param <Result> Type of the output of a run.
+ */
+public interface Aggregator<Result> {
+  /**
+   * Take the output of a finished run into account.
+   *
+   * @param key Key of the run: the seed of the replication for a
+   * {@link ReplicationRunner}, the index of the branch in the list of
+   * branches for a {@link ForkRunner}.
+   * @param result Output of the run.
+   */
+  void accept(long key, Result result);
+}
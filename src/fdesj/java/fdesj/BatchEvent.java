@@ -0,0 +1,43 @@
+package fdesj;
+
+
+import java.util.List;
+
+
+/**
+ * An event which can describe the effect of all occurrences of its
+ * class at the same time at once.
+ *
+ * The {@link TimestepSimulator} groups the occurrences of each
+ * timestep whose events implement this interface by the class of
+ * their events, and calls {@link #affectAll(Object, Time, List)} once
+ * per group instead of {@link #affect(Object, Time)} once per
+ * occurrence. A model can thus process many homogeneous events, such
+ * as per node ticks, in a single tight loop over their data. Other
+ * engines keep calling {@link #affect(Object, Time)}.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface BatchEvent<State> extends Event<State> {
+  /**
+   * Describe how the given occurrences together affect the
+   * simulation.
+   *
+   * Called on the event of the first of the occurrences. The result
+   * must be equal to {@linkplain Changes#merge(Iterable) merging} the
+   * results of {@link #affect(Object, Time)} of each of them, in the
+   * given order. Calling this function multiple times with equal
+   * arguments must return equal results.
+   *
+   * @param state Simulation state.
+   * @param at Time at which the events have their effect.
+   * @param occurrences Occurrences at that time, all with events of
+   * the class of this event, in the order in which the engine got
+   * them; not to be modified.
+   * @return Description of the combined changes to the simulation
+   * induced by the events.
+   */
+  Changes<State> affectAll(State state,
+                           Time at,
+                           List<Occurrence<State>> occurrences);
+}
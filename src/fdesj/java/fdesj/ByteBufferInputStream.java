@@ -0,0 +1,61 @@
+package fdesj;
+
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Input stream reading from a byte buffer, used to decode from
+ * memory-mapped files.
+ */
+/* package-private */ final class ByteBufferInputStream
+  extends InputStream {
+  /**
+   * Buffer to read from.
+   */
+  private final ByteBuffer buffer;
+
+
+  /**
+   * Construct reading from the given buffer.
+   *
+   * @param buffer Buffer to read from, from its position to its limit.
+   */
+  /* package-private */ ByteBufferInputStream(final ByteBuffer buffer) {
+    this.buffer = buffer;
+  }
+
+
+  /**
+   * Read a single byte.
+   *
+   * @return The byte, or -1 at the end of the buffer.
+   */
+  @Override
+  public int read() {
+    return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+  }
+
+
+  /**
+   * Read bytes into an array.
+   *
+   * @param bytes Array to read into.
+   * @param offset Index of the first byte to read into.
+   * @param length Maximum number of bytes to read.
+   * @return Number of bytes read, or -1 at the end of the buffer.
+   */
+  @Override
+  public int read(final byte[] bytes, final int offset, final int length) {
+    if (length == 0) {
+      return 0;
+    }
+    if (! buffer.hasRemaining()) {
+      return -1;
+    }
+    final int count = Math.min(length, buffer.remaining());
+    buffer.get(bytes, offset, count);
+    return count;
+  }
+}
@@ -0,0 +1,596 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+
+/**
+ * Occurrences stored in a persistent calendar queue.
+ *
+ * Occurrences are put into buckets ("days") of a fixed width, based
+ * on {@link Time#absoluteValue}, with the buckets wrapping around
+ * after a "year". Each bucket is an immutable array sorted by time,
+ * and the buckets are held in a {@link PersistentArray}. Deriving a
+ * new collection thus copies a single (usually small) bucket and the
+ * path to it, everything else is shared with the original.
+ *
+ * When the number of occurrences grows beyond twice or shrinks below
+ * half the number of buckets, the queue is rebuilt with a new number of
+ * buckets and a bucket width estimated from the spacing of the
+ * earliest occurrences. For roughly uniformly distributed times this
+ * makes the hold operation ({@link #withoutNextOccurrence()} followed
+ * by {@link #withNew(Iterable)}) take O(1) amortized time. Note that
+ * the amortization only holds as long as each collection is derived
+ * from at most once.
+ *
+ * Occurrences at the same time are returned in the order in which
+ * they were added.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class CalendarQueueOccurrences<State>
+  implements SizedOccurrences<State> {
+  /**
+   * Smallest number of buckets, never shrink below this.
+   */
+  private static final int MINIMUM_BUCKETS = 32;
+
+
+  /**
+   * Number of earliest occurrences used to estimate the bucket width.
+   */
+  private static final int SAMPLE_SIZE = 25;
+
+
+  /**
+   * Bucket used for empty buckets, which are stored as null.
+   */
+  private static final Occurrence<?>[] EMPTY_BUCKET = new Occurrence<?>[0];
+
+
+  /**
+   * The buckets, with null denoting an empty bucket.
+   *
+   * The number of buckets is always a power of two.
+   */
+  private final PersistentArray buckets;
+
+
+  /**
+   * Width of each bucket, at least 1.
+   */
+  private final long bucketWidth;
+
+
+  /**
+   * Number of occurrences.
+   */
+  private final int size;
+
+
+  /**
+   * The next occurrence, always the first in its bucket.
+   */
+  private final Occurrence<State> next;
+
+
+  /**
+   * Construct an empty collection of occurrences.
+   */
+  public CalendarQueueOccurrences() {
+    this(new PersistentArray(MINIMUM_BUCKETS), 1, 0, null);
+  }
+
+
+  /**
+   * Construct from the given parts.
+   *
+   * @param buckets The buckets.
+   * @param bucketWidth Width of each bucket.
+   * @param size Number of occurrences.
+   * @param next Next occurrence.
+   */
+  private CalendarQueueOccurrences(final PersistentArray buckets,
+                                   final long bucketWidth,
+                                   final int size,
+                                   final Occurrence<State> next) {
+    this.buckets = buckets;
+    this.bucketWidth = bucketWidth;
+    this.size = size;
+    this.next = next;
+  }
+
+
+  /**
+   * Get the day (bucket number without wrapping) of a time.
+   *
+   * Divides, rounding towards negative infinity.
+   *
+   * @param time Time to compute the day of.
+   * @param width Width of a bucket, positive.
+   * @return Day of the time.
+   */
+  private static long dayOf(final Time time, final long width) {
+    final long quotient = time.absoluteValue / width;
+    return (time.absoluteValue % width < 0) ? quotient - 1 : quotient;
+  }
+
+
+  /**
+   * Get the index of the bucket for a day.
+   *
+   * @param day Day to get the bucket index of.
+   * @param count Number of buckets, a power of two.
+   * @return Index of the bucket.
+   */
+  private static int indexOf(final long day, final int count) {
+    return (int) (day & (count - 1));
+  }
+
+
+  /**
+   * Get the bucket with the given index.
+   *
+   * @param buckets The buckets.
+   * @param index Index of the bucket.
+   * @return The bucket, never null.
+   */
+  @SuppressWarnings("unchecked")
+  private static <State> Occurrence<State>[] bucket(
+    final PersistentArray buckets,
+    final int index) {
+    final Object bucket = buckets.get(index);
+    return (Occurrence<State>[])
+      (bucket == null ? EMPTY_BUCKET : bucket);
+  }
+
+
+  /**
+   * Get the buckets with the bucket at the given index replaced.
+   *
+   * @param buckets The buckets.
+   * @param index Index of the bucket.
+   * @param bucket New bucket.
+   * @return New buckets with the bucket replaced.
+   */
+  private static PersistentArray replaced(final PersistentArray buckets,
+                                          final int index,
+                                          final Object[] bucket) {
+    return buckets.with(index, bucket.length == 0 ? null : bucket);
+  }
+
+
+  /**
+   * Find the position of the first occurrence in a bucket which is
+   * later than the given time.
+   *
+   * @param bucket Bucket to search.
+   * @param time Time to search for.
+   * @return Index of the first occurrence later than time, or the
+   * length of the bucket if there is none.
+   */
+  private static int indexAfter(final Occurrence<?>[] bucket,
+                                final Time time) {
+    int low = 0;
+    int high = bucket.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (bucket[middle].time.compareTo(time) <= 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+
+  /**
+   * Find the position of the first occurrence in a bucket which is
+   * not earlier than the given time.
+   *
+   * @param bucket Bucket to search.
+   * @param time Time to search for.
+   * @return Index of the first occurrence at or after time, or the
+   * length of the bucket if there is none.
+   */
+  private static int indexAt(final Occurrence<?>[] bucket,
+                             final Time time) {
+    int low = 0;
+    int high = bucket.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      if (bucket[middle].time.compareTo(time) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+
+  /**
+   * Find the earliest occurrence in buckets with the layout of this
+   * calendar queue, given that no occurrence is earlier than the
+   * given time.
+   *
+   * Scans at most one year of buckets starting at the day of the
+   * given time, falling back to comparing the first occurrence of
+   * every bucket if none of them holds an occurrence of the scanned
+   * year.
+   *
+   * @param buckets The buckets.
+   * @param from Time no occurrence is earlier than.
+   * @return Earliest occurrence, or null if there is none.
+   */
+  private Occurrence<State> earliestIn(final PersistentArray buckets,
+                                       final Time from) {
+    final long firstDay = dayOf(from, bucketWidth);
+    for (int offset = 0; offset < buckets.length(); ++offset) {
+      final long day = firstDay + offset;
+      final Occurrence<State>[] bucket =
+        bucket(buckets, indexOf(day, buckets.length()));
+      if (bucket.length > 0 && dayOf(bucket[0].time, bucketWidth) == day) {
+        return bucket[0];
+      }
+    }
+    Occurrence<State> earliest = null;
+    for (int index = 0; index < buckets.length(); ++index) {
+      final Occurrence<State>[] bucket = bucket(buckets, index);
+      if (bucket.length > 0
+          && (earliest == null
+              || bucket[0].time.compareTo(earliest.time) < 0)) {
+        earliest = bucket[0];
+      }
+    }
+    return earliest;
+  }
+
+
+  /**
+   * Get the index of the bucket of this calendar queue which holds
+   * the given time.
+   *
+   * @param time Time whose bucket index to get.
+   * @return Index of the bucket.
+   */
+  private int indexOf(final Time time) {
+    return indexOf(dayOf(time, bucketWidth), buckets.length());
+  }
+
+
+  /**
+   * Get the number of occurrences.
+   *
+   * @return Number of occurrences in this collection.
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+
+  /**
+   * Get the next occurrence in constant time.
+   *
+   * @return Next (earliest) occurrence, or null if there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    return next;
+  }
+
+
+  /**
+   * Get the occurrences at the given time from the bucket of that
+   * time.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Unmodifiable collection of the occurrences at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    final Occurrence<State>[] bucket = bucket(buckets, indexOf(time));
+    return Collections.unmodifiableList(
+      Arrays.asList(bucket).subList(indexAt(bucket, time),
+                                    indexAfter(bucket, time)));
+  }
+
+
+  /**
+   * Add the given occurrences, each to its bucket.
+   *
+   * If the queue would need to grow, it is rebuilt with the new
+   * occurrences right away.
+   *
+   * @param occurrences Occurrences to add.
+   * @return New Occurrences containing this object's and the given
+   * occurrences.
+   * @throws NullPointerException When any occurrence is null.
+   */
+  @Override
+  public CalendarQueueOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> occurrences) {
+    final List<Occurrence<State>> added =
+      new ArrayList<Occurrence<State>>();
+    for (final Occurrence<State> occurrence : occurrences) {
+      added.add(Objects.requireNonNull(occurrence,
+                                       "occurrence must not be null"));
+    }
+    if (added.isEmpty()) {
+      return this;
+    }
+    if (size + added.size() > 2 * buckets.length()) {
+      final List<Occurrence<State>> all =
+        new ArrayList<Occurrence<State>>(size + added.size());
+      for (final Occurrence<State> occurrence : this) {
+        all.add(occurrence);
+      }
+      all.addAll(added);
+      return rebuilt(all);
+    }
+    PersistentArray newBuckets = buckets;
+    Occurrence<State> newNext = next;
+    for (final Occurrence<State> occurrence : added) {
+      final int index = indexOf(occurrence.time);
+      final Occurrence<State>[] bucket =
+        bucket(newBuckets, index);
+      final int position = indexAfter(bucket, occurrence.time);
+      final Occurrence<?>[] inserted =
+        new Occurrence<?>[bucket.length + 1];
+      System.arraycopy(bucket, 0, inserted, 0, position);
+      inserted[position] = occurrence;
+      System.arraycopy(bucket, position,
+                       inserted, position + 1, bucket.length - position);
+      newBuckets = replaced(newBuckets, index, inserted);
+      if (newNext == null
+          || occurrence.time.compareTo(newNext.time) < 0) {
+        newNext = occurrence;
+      }
+    }
+    return new CalendarQueueOccurrences<State>(newBuckets, bucketWidth,
+                                               size + added.size(),
+                                               newNext);
+  }
+
+
+  /**
+   * Remove the given occurrences, each from its bucket.
+   *
+   * Each given occurrence removes at most one equal occurrence from
+   * the collection.
+   *
+   * @param occurrences Occurrences to remove.
+   * @return New Occurrences without the given occurrences.
+   */
+  @Override
+  public CalendarQueueOccurrences<State> without(
+    final Iterable<Occurrence<State>> occurrences) {
+    PersistentArray newBuckets = buckets;
+    int newSize = size;
+    boolean nextRemoved = false;
+    for (final Occurrence<State> occurrence : occurrences) {
+      final int index = indexOf(occurrence.time);
+      final Occurrence<State>[] bucket =
+        bucket(newBuckets, index);
+      final int end = indexAfter(bucket, occurrence.time);
+      for (int position = indexAt(bucket, occurrence.time);
+           position < end;
+           ++position) {
+        if (bucket[position].equals(occurrence)) {
+          final Occurrence<?>[] removed =
+            new Occurrence<?>[bucket.length - 1];
+          System.arraycopy(bucket, 0, removed, 0, position);
+          System.arraycopy(bucket, position + 1,
+                           removed, position,
+                           bucket.length - position - 1);
+          newBuckets = replaced(newBuckets, index, removed);
+          nextRemoved = nextRemoved || position == 0;
+          --newSize;
+          break;
+        }
+      }
+    }
+    if (newSize == size) {
+      return this;
+    }
+    return new CalendarQueueOccurrences<State>(
+      newBuckets, bucketWidth, newSize,
+      nextRemoved ? earliestIn(newBuckets, next.time) : next)
+      .resizedIfNecessary();
+  }
+
+
+  /**
+   * Remove the next occurrence from the front of its bucket.
+   *
+   * @return Occurrences without the next occurrence, or this object
+   * if it is empty.
+   */
+  @Override
+  public CalendarQueueOccurrences<State> withoutNextOccurrence() {
+    if (next == null) {
+      return this;
+    }
+    final int index = indexOf(next.time);
+    final Occurrence<State>[] bucket = bucket(buckets, index);
+    assert bucket[0] == next;
+    final PersistentArray newBuckets =
+      replaced(buckets, index,
+               Arrays.copyOfRange(bucket, 1, bucket.length));
+    return new CalendarQueueOccurrences<State>(
+      newBuckets, bucketWidth, size - 1,
+      earliestIn(newBuckets, next.time))
+      .resizedIfNecessary();
+  }
+
+
+  /**
+   * Rebuild if the number of occurrences dropped below half the
+   * number of buckets.
+   *
+   * @return A rebuilt calendar queue, or this object if no rebuild is
+   * necessary.
+   */
+  private CalendarQueueOccurrences<State> resizedIfNecessary() {
+    if (size >= buckets.length() / 2 || buckets.length() == MINIMUM_BUCKETS) {
+      return this;
+    }
+    final List<Occurrence<State>> all =
+      new ArrayList<Occurrence<State>>(size);
+    for (final Occurrence<State> occurrence : this) {
+      all.add(occurrence);
+    }
+    return rebuilt(all);
+  }
+
+
+  /**
+   * Estimate a bucket width from the spacing of the earliest
+   * occurrences.
+   *
+   * Uses three times the average separation of the earliest
+   * occurrences, ignoring separations that are larger than twice the
+   * average, as suggested by Brown for calendar queues.
+   *
+   * @param occurrences Occurrences to estimate the width for.
+   * @return Estimated bucket width, at least 1.
+   */
+  private long estimatedWidth(
+    final List<Occurrence<State>> occurrences) {
+    final PriorityQueue<Long> earliest =
+      new PriorityQueue<Long>(SAMPLE_SIZE + 1,
+                              Collections.<Long>reverseOrder());
+    for (final Occurrence<State> occurrence : occurrences) {
+      earliest.add(occurrence.time.absoluteValue);
+      if (earliest.size() > SAMPLE_SIZE) {
+        earliest.poll();
+      }
+    }
+    if (earliest.size() < 2) {
+      return bucketWidth;
+    }
+    final long[] times = new long[earliest.size()];
+    for (int i = times.length - 1; i >= 0; --i) {
+      times[i] = earliest.poll();
+    }
+    final double average = (double) (times[times.length - 1] - times[0])
+      / (times.length - 1);
+    double sum = 0;
+    int count = 0;
+    for (int i = 1; i < times.length; ++i) {
+      final long separation = times[i] - times[i - 1];
+      if (separation <= 2 * average) {
+        sum += separation;
+        ++count;
+      }
+    }
+    final double width = count == 0 ? 0 : 3 * sum / count;
+    return Math.max(1, (long) Math.ceil(width));
+  }
+
+
+  /**
+   * Build a calendar queue holding the given occurrences.
+   *
+   * The number of buckets is chosen such that there are between one
+   * and two occurrences per bucket, the bucket width is estimated
+   * anew.
+   *
+   * @param occurrences Occurrences to put into the new queue, with
+   * occurrences at the same time in the order they were added.
+   * @return New calendar queue with the given occurrences.
+   */
+  private CalendarQueueOccurrences<State> rebuilt(
+    final List<Occurrence<State>> occurrences) {
+    int newBucketCount = MINIMUM_BUCKETS;
+    while (newBucketCount < occurrences.size()) {
+      newBucketCount *= 2;
+    }
+    final long newWidth = estimatedWidth(occurrences);
+    final List<List<Occurrence<State>>> lists =
+      new ArrayList<List<Occurrence<State>>>(newBucketCount);
+    for (int i = 0; i < newBucketCount; ++i) {
+      lists.add(null);
+    }
+    Occurrence<State> newNext = null;
+    for (final Occurrence<State> occurrence : occurrences) {
+      final int index =
+        indexOf(dayOf(occurrence.time, newWidth), newBucketCount);
+      List<Occurrence<State>> bucket = lists.get(index);
+      if (bucket == null) {
+        bucket = new ArrayList<Occurrence<State>>();
+        lists.set(index, bucket);
+      }
+      bucket.add(occurrence);
+      if (newNext == null
+          || occurrence.time.compareTo(newNext.time) < 0) {
+        newNext = occurrence;
+      }
+    }
+    // The sort is stable, so occurrences at the same time keep the
+    // order in which they were added.
+    final OccurrenceByTimeComparator<State> comparator =
+      new OccurrenceByTimeComparator<State>();
+    final Object[] sorted = new Object[newBucketCount];
+    for (int i = 0; i < newBucketCount; ++i) {
+      final List<Occurrence<State>> bucket = lists.get(i);
+      if (bucket != null) {
+        Collections.sort(bucket, comparator);
+        sorted[i] = bucket.toArray(EMPTY_BUCKET);
+      }
+    }
+    return new CalendarQueueOccurrences<State>(
+      PersistentArray.of(sorted), newWidth, occurrences.size(), newNext);
+  }
+
+
+  /**
+   * Iterate over all occurrences, bucket by bucket.
+   *
+   * @return Iterator over all occurrences, not supporting removal.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    return new Iterator<Occurrence<State>>() {
+      private int index = 0;
+
+      private Occurrence<State>[] bucket = bucket(buckets, 0);
+
+      private int position = 0;
+
+      @Override
+      public boolean hasNext() {
+        while (position == bucket.length && index + 1 < buckets.length()) {
+          ++index;
+          bucket = bucket(buckets, index);
+          position = 0;
+        }
+        return position < bucket.length;
+      }
+
+      @Override
+      public Occurrence<State> next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return bucket[position++];
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException(
+          "occurrences are immutable");
+      }
+    };
+  }
+}
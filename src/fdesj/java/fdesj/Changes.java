@@ -1,6 +1,10 @@
 package fdesj;
 
 
+import java.util.ArrayList;
+import java.util.List;
+
+
 /**
  * Sum of the changes which can be induced by an event.
  */
@@ -29,4 +33,47 @@ public final class Changes<State> {
     this.toState = toState;
     this.toOccurrences = toOccurrences;
   }
+
+
+  /**
+   * Merge changes applied one after the other into one.
+   *
+   * The state changes and the occurrences changes are combined into a
+   * {@link StateChangesSequence} and an {@link
+   * OccurrencesChangesSequence}, respectively. Applying the merged
+   * changes has the same effect as applying the given ones in order,
+   * as the state changes do not depend on the occurrences and vice
+   * versa. Changes which are null, as well as null parts of changes,
+   * are skipped.
+   *
+   * @param changes Changes in order of application.
+   * @param <State> Type used to represent the simulation state.
+   * @return Merged changes, with null parts if there are no changes
+   * of that kind.
+   */
+  public static <State> Changes<State> merge(
+    final Iterable<Changes<State>> changes) {
+    final List<StateChanges<State>> toStates =
+      new ArrayList<StateChanges<State>>();
+    final List<OccurrencesChanges<State>> toOccurrences =
+      new ArrayList<OccurrencesChanges<State>>();
+    for (final Changes<State> change : changes) {
+      if (change == null) {
+        continue;
+      }
+      if (change.toState != null) {
+        toStates.add(change.toState);
+      }
+      if (change.toOccurrences != null) {
+        toOccurrences.add(change.toOccurrences);
+      }
+    }
+    return new Changes<State>(
+      toStates.size() <= 1
+      ? (toStates.isEmpty() ? null : toStates.get(0))
+      : new StateChangesSequence<State>(toStates),
+      toOccurrences.size() <= 1
+      ? (toOccurrences.isEmpty() ? null : toOccurrences.get(0))
+      : new OccurrencesChangesSequence<State>(toOccurrences));
+  }
 }
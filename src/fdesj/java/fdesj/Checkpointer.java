@@ -0,0 +1,436 @@
+package fdesj;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+
+/**
+ * Writer of checkpoints of a running simulation, from which it can be
+ * restored after a crash.
+ *
+ * Checkpoints are appended as records to a file, written through a
+ * memory-mapped {@link FileChannel}. States and events are encoded
+ * by pluggable {@link Codec}s. As states and occurrences are
+ * immutable, unchanged parts are recognized by identity: a state is
+ * only encoded if it is not the one of the previous checkpoint, and
+ * only occurrences which were added since the previous checkpoint are
+ * encoded, while removed ones are referred to by number. An event
+ * is only encoded once as long as any pending occurrence refers to
+ * it. The amount of data written for the occurrences is thus
+ * proportional to what changed, although finding the changes takes a
+ * pass over the pending occurrences. States have no such structural
+ * delta: a changed state is encoded as a whole, so for a large state
+ * which changes between most checkpoints each checkpoint costs about
+ * the size of the state.
+ *
+ * The file always starts with a full checkpoint, followed by the
+ * changes since. Once the changes written since the full checkpoint
+ * outgrow it, the next checkpoint is written as a full one into a new
+ * file which then atomically replaces the old one, so the file stays
+ * within about twice the size of a full checkpoint.
+ *
+ * A record only becomes valid once it has been written completely,
+ * so a crash while writing loses at most the last checkpoint.
+ *
+ * Restoring replays the records of the file, which gives the pending
+ * occurrences of the last checkpoint; the order of occurrences at
+ * equal times may differ from the one before checkpointing, though.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class Checkpointer<State> implements Closeable {
+  /**
+   * Size of the length preceding each record.
+   */
+  private static final int HEADER = 4;
+
+
+  /**
+   * Event reference marking an event encoded in place.
+   */
+  private static final int ENCODED = -1;
+
+
+  /**
+   * Numbers of checkpointed occurrences, as a list to cope with an
+   * occurrence which is pending multiple times.
+   */
+  private static final class Numbers {
+    /**
+     * Number of an occurrence.
+     */
+    final int number;
+
+
+    /**
+     * Further numbers of the same occurrence, may be null.
+     */
+    final Numbers rest;
+
+
+    /**
+     * Construct by prepending a number.
+     *
+     * @param number Number to prepend.
+     * @param rest Numbers to prepend to, may be null.
+     */
+    Numbers(final int number, final Numbers rest) {
+      this.number = number;
+      this.rest = rest;
+    }
+  }
+
+
+  /**
+   * The checkpoint file.
+   */
+  private final Path file;
+
+
+  /**
+   * File a full checkpoint is written to before it replaces the
+   * checkpoint file.
+   */
+  private final Path compacting;
+
+
+  /**
+   * Channel of the checkpoint file.
+   */
+  private FileChannel channel;
+
+
+  /**
+   * Codec of states.
+   */
+  private final Codec<State> states;
+
+
+  /**
+   * Codec of events.
+   */
+  private final Codec<Event<State>> events;
+
+
+  /**
+   * Numbers of the occurrences pending at the last checkpoint.
+   */
+  private Map<Occurrence<State>, Numbers> numbers =
+    new IdentityHashMap<Occurrence<State>, Numbers>();
+
+
+  /**
+   * Number of the next added occurrence.
+   */
+  private int nextNumber;
+
+
+  /**
+   * State of the last checkpoint.
+   */
+  private State lastState;
+
+
+  /**
+   * Whether a checkpoint has been written yet.
+   */
+  private boolean written;
+
+
+  /**
+   * Position at which the next record is written.
+   */
+  private long position;
+
+
+  /**
+   * Size of the full checkpoint at the start of the file.
+   */
+  private long fullBytes;
+
+
+  /**
+   * Number of bytes written to all files so far.
+   */
+  private long writtenBytes;
+
+
+  /**
+   * Construct writing checkpoints to the given file, replacing it.
+   *
+   * A sibling file with the suffix ".compacting" is used while
+   * writing full checkpoints.
+   *
+   * @param file File to write checkpoints to.
+   * @param states Codec of states.
+   * @param events Codec of events.
+   * @throws IOException When the file cannot be opened.
+   */
+  public Checkpointer(final Path file,
+                      final Codec<State> states,
+                      final Codec<Event<State>> events)
+    throws IOException {
+    this.states = Objects.requireNonNull(states, "states must not be null");
+    this.events = Objects.requireNonNull(events, "events must not be null");
+    this.file = file;
+    this.compacting = file.resolveSibling(file.getFileName() + ".compacting");
+    this.channel = FileChannel.open(file,
+                                    StandardOpenOption.CREATE,
+                                    StandardOpenOption.READ,
+                                    StandardOpenOption.WRITE,
+                                    StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+
+  /**
+   * Get the number of bytes written so far, including those of
+   * checkpoints which have since been compacted.
+   *
+   * @return Number of written bytes.
+   */
+  public long getWrittenBytes() {
+    return writtenBytes;
+  }
+
+
+  /**
+   * Write a checkpoint of a simulator.
+   *
+   * @param simulator Simulator to checkpoint.
+   * @throws IOException When writing fails.
+   */
+  public void checkpoint(final Simulator<State> simulator)
+    throws IOException {
+    checkpoint(simulator.getState(), simulator.getOccurrences(),
+               simulator.getTime());
+  }
+
+
+  /**
+   * Write a checkpoint.
+   *
+   * @param state Current simulation state.
+   * @param occurrences Currently pending occurrences.
+   * @param time Current time.
+   * @throws IOException When writing fails.
+   */
+  public void checkpoint(final State state,
+                         final Occurrences<State> occurrences,
+                         final Time time) throws IOException {
+    final boolean full = !written || position - fullBytes > fullBytes;
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream output = new DataOutputStream(bytes);
+    output.writeLong(time.absoluteValue);
+    if (!full && state == lastState) {
+      output.writeBoolean(false);
+    } else {
+      output.writeBoolean(true);
+      states.encode(state, output);
+    }
+    final Map<Occurrence<State>, Numbers> current =
+      new IdentityHashMap<Occurrence<State>, Numbers>();
+    final Map<Event<State>, Integer> pendingEvents =
+      new IdentityHashMap<Event<State>, Integer>();
+    final List<Occurrence<State>> added = new ArrayList<Occurrence<State>>();
+    // Copied, so that a failing checkpoint leaves this unchanged.
+    final Map<Occurrence<State>, Numbers> previousNumbers =
+      new IdentityHashMap<Occurrence<State>, Numbers>(
+        full ? Collections.<Occurrence<State>, Numbers>emptyMap() : numbers);
+    for (final Occurrence<State> occurrence : occurrences) {
+      final Numbers previous = previousNumbers.get(occurrence);
+      if (previous == null) {
+        added.add(occurrence);
+        continue;
+      }
+      if (previous.rest == null) {
+        previousNumbers.remove(occurrence);
+      } else {
+        previousNumbers.put(occurrence, previous.rest);
+      }
+      current.put(occurrence,
+                  new Numbers(previous.number, current.get(occurrence)));
+      pendingEvents.put(occurrence.event, previous.number);
+    }
+    final List<Integer> removed = new ArrayList<Integer>();
+    for (final Numbers remaining : previousNumbers.values()) {
+      for (Numbers link = remaining; link != null; link = link.rest) {
+        removed.add(link.number);
+      }
+    }
+    output.writeInt(removed.size());
+    for (final int number : removed) {
+      output.writeInt(number);
+    }
+    output.writeInt(added.size());
+    int number = full ? 0 : nextNumber;
+    for (final Occurrence<State> occurrence : added) {
+      output.writeLong(occurrence.time.absoluteValue);
+      final Integer event = pendingEvents.get(occurrence.event);
+      if (event == null) {
+        output.writeInt(ENCODED);
+        events.encode(occurrence.event, output);
+        pendingEvents.put(occurrence.event, number);
+      } else {
+        output.writeInt(event);
+      }
+      current.put(occurrence, new Numbers(number, current.get(occurrence)));
+      ++number;
+    }
+    output.flush();
+    final byte[] record = bytes.toByteArray();
+    if (full) {
+      compact(record);
+    } else {
+      write(channel, position, record);
+      position += HEADER + record.length;
+    }
+    writtenBytes += HEADER + record.length;
+    nextNumber = number;
+    numbers = current;
+    lastState = state;
+    written = true;
+  }
+
+
+  /**
+   * Write a record to a file.
+   *
+   * The length of the record is written last, so an incompletely
+   * written record is never read.
+   *
+   * @param to Channel of the file.
+   * @param at Position at which to write the record.
+   * @param record Encoded record.
+   * @throws IOException When writing fails.
+   */
+  private static void write(final FileChannel to,
+                            final long at,
+                            final byte[] record) throws IOException {
+    final MappedByteBuffer mapped = to.map(
+      FileChannel.MapMode.READ_WRITE, at, HEADER + record.length);
+    mapped.position(HEADER);
+    mapped.put(record);
+    mapped.force();
+    mapped.putInt(0, record.length);
+    mapped.force();
+  }
+
+
+  /**
+   * Replace the file with one holding just the given full checkpoint.
+   *
+   * The new file is written completely before it atomically replaces
+   * the old one, so a crash leaves either of them.
+   *
+   * @param record Encoded full checkpoint.
+   * @throws IOException When writing or replacing fails.
+   */
+  private void compact(final byte[] record) throws IOException {
+    final FileChannel compacted = FileChannel.open(
+      compacting,
+      StandardOpenOption.CREATE,
+      StandardOpenOption.READ,
+      StandardOpenOption.WRITE,
+      StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      write(compacted, 0, record);
+      Files.move(compacting, file, StandardCopyOption.ATOMIC_MOVE);
+    } catch (final IOException e) {
+      compacted.close();
+      throw e;
+    }
+    channel.close();
+    channel = compacted;
+    position = HEADER + record.length;
+    fullBytes = position;
+  }
+
+
+  /**
+   * Close the file.
+   *
+   * @throws IOException When closing fails.
+   */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+
+  /**
+   * Restore a simulator from the last complete checkpoint in a file.
+   *
+   * @param file File the checkpoints were written to.
+   * @param states Codec of states.
+   * @param events Codec of events.
+   * @param empty Empty occurrences, to hold the restored ones.
+   * @param <State> Type used to represent the simulation state.
+   * @return Simulator continuing from the last checkpoint.
+   * @throws IOException When reading fails, or the file contains no
+   * complete checkpoint.
+   */
+  public static <State> Simulator<State> restore(
+    final Path file,
+    final Codec<State> states,
+    final Codec<Event<State>> events,
+    final Occurrences<State> empty) throws IOException {
+    final TreeMap<Integer, Occurrence<State>> pending =
+      new TreeMap<Integer, Occurrence<State>>();
+    int nextNumber = 0;
+    State state = null;
+    long time = 0;
+    boolean restored = false;
+    try (FileChannel channel =
+         FileChannel.open(file, StandardOpenOption.READ)) {
+      long at = 0;
+      while (channel.size() - at >= HEADER) {
+        final int length = channel.map(
+          FileChannel.MapMode.READ_ONLY, at, HEADER).getInt();
+        if (length <= 0 || length > channel.size() - at - HEADER) {
+          break;
+        }
+        final DataInputStream input = new DataInputStream(
+          new ByteBufferInputStream(channel.map(
+            FileChannel.MapMode.READ_ONLY, at + HEADER, length)));
+        at += HEADER + length;
+        time = input.readLong();
+        if (input.readBoolean()) {
+          state = states.decode(input);
+        }
+        for (int removed = input.readInt(); removed > 0; --removed) {
+          pending.remove(input.readInt());
+        }
+        for (int added = input.readInt(); added > 0; --added) {
+          final Time occurring = Time.of(input.readLong());
+          final int event = input.readInt();
+          pending.put(nextNumber++, new Occurrence<State>(
+                        occurring, event == ENCODED
+                        ? events.decode(input) : pending.get(event).event));
+        }
+        restored = true;
+      }
+    }
+    if (! restored) {
+      throw new IOException("no complete checkpoint in " + file);
+    }
+    return new Simulator<State>(
+      state, empty.withNew(pending.values()), Time.of(time));
+  }
+}
@@ -0,0 +1,36 @@
+package fdesj;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+/**
+ * Binary encoding of values, used to write them to and read them from
+ * files.
+ *
+ * Decoding what was encoded must give an equal value.
+ *
+ * @param <Value> Type of the encoded values.
+ */
+public interface Codec<Value> {
+  /**
+   * Encode a value.
+   *
+   * @param value Value to encode.
+   * @param output Output to write the encoded value to.
+   * @throws IOException When writing fails.
+   */
+  void encode(Value value, DataOutput output) throws IOException;
+
+
+  /**
+   * Decode a value.
+   *
+   * @param input Input to read the encoded value from.
+   * @return Decoded value.
+   * @throws IOException When reading fails.
+   */
+  Value decode(DataInput input) throws IOException;
+}
@@ -0,0 +1,437 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Engine running a simulation conservatively in parallel, using the
+ * lookahead between its logical processes.
+ *
+ * The simulation is partitioned into logical processes, each with a
+ * state and occurrences of its own; a {@link Partitioning} assigns
+ * each occurrence to a process. A {@link Lookahead} declares for each
+ * channel between two processes the minimum delay of occurrences
+ * sent over it.
+ *
+ * Processes run in windows separated by barriers (instead of
+ * exchanging null messages). At the start of each window every
+ * process gets a safe bound: the earliest time any other process
+ * could still send it an occurrence, which is the earliest pending
+ * occurrence of that process plus the minimum delay of the channel
+ * between them. All processes then process their occurrences earlier
+ * than their bound in parallel, without ever having to roll back.
+ * Occurrences added for other processes are delivered at the next
+ * barrier, in order of the sending process, so the result does not
+ * depend on the number of threads.
+ *
+ * Events may only remove occurrences of their own process, and must
+ * not add occurrences for other processes earlier than allowed by the
+ * lookahead. Changes which are null, as well as null parts of
+ * changes, are treated as "no changes". A conservative simulator
+ * must not be used by multiple threads at once.
+ *
+ * @param <State> Type used to represent the state of a logical
+ * process.
+ */
+public final class ConservativeSimulator<State> {
+  /**
+   * Marks a missing channel in the minimum delays.
+   */
+  private static final long NO_CHANNEL = -1;
+
+
+  /**
+   * A logical process.
+   *
+   * Only accessed by a single thread during a window, and only by the
+   * simulator's thread between windows.
+   */
+  private static final class LogicalProcess<State>
+    implements Callable<Void> {
+    /**
+     * Index of this process.
+     */
+    final int index;
+
+
+    /**
+     * Assignment of occurrences to processes.
+     */
+    final Partitioning<State> partitioning;
+
+
+    /**
+     * Minimum delays of the channels from this process, by receiving
+     * process index.
+     */
+    final long[] delays;
+
+
+    /**
+     * Occurrences added for other processes during the window.
+     */
+    final List<Occurrence<State>> sent = new ArrayList<Occurrence<State>>();
+
+
+    /**
+     * Current state.
+     */
+    State state;
+
+
+    /**
+     * Current pending occurrences.
+     */
+    Occurrences<State> occurrences;
+
+
+    /**
+     * Absolute value of the time of the last processed occurrence.
+     */
+    long time;
+
+
+    /**
+     * Number of processed occurrences.
+     */
+    long processed;
+
+
+    /**
+     * Only occurrences earlier than this are processed in a window.
+     */
+    long bound;
+
+
+    /**
+     * Construct a logical process.
+     *
+     * @param index Index of the process.
+     * @param partitioning Assignment of occurrences to processes.
+     * @param delays Minimum delays of the channels from the process.
+     * @param state Initial state.
+     * @param occurrences Initial occurrences.
+     * @param time Initial time.
+     */
+    LogicalProcess(final int index,
+                   final Partitioning<State> partitioning,
+                   final long[] delays,
+                   final State state,
+                   final Occurrences<State> occurrences,
+                   final long time) {
+      this.index = index;
+      this.partitioning = partitioning;
+      this.delays = delays;
+      this.state = state;
+      this.occurrences = occurrences;
+      this.time = time;
+    }
+
+
+    /**
+     * Get the time of the earliest pending occurrence.
+     *
+     * @return Earliest time, or Long.MAX_VALUE if there is none.
+     */
+    long earliestTime() {
+      final Occurrence<State> next = occurrences.nextOccurrence();
+      return next == null ? Long.MAX_VALUE : next.time.absoluteValue;
+    }
+
+
+    /**
+     * Run a window: process all occurrences earlier than the bound.
+     *
+     * @return Nothing.
+     * @throws IllegalStateException When an occurrence is earlier than
+     * the current time, when occurrences are sent earlier than allowed
+     * by the lookahead, or when changes replace the occurrences instead
+     * of deriving them.
+     */
+    @Override
+    public Void call() {
+      while (true) {
+        final Occurrence<State> next = occurrences.nextOccurrence();
+        if (next == null || next.time.absoluteValue >= bound) {
+          return null;
+        }
+        if (next.time.absoluteValue < time) {
+          throw new IllegalStateException(
+            "occurrence at " + next.time.absoluteValue
+            + " is earlier than the current time " + time);
+        }
+        time = next.time.absoluteValue;
+        final Changes<State> changes = next.event.affect(state, next.time);
+        occurrences = occurrences.withoutNextOccurrence();
+        ++processed;
+        if (changes == null) {
+          continue;
+        }
+        if (changes.toState != null) {
+          state = changes.toState.applyTo(state);
+        }
+        if (changes.toOccurrences != null) {
+          final Occurrences<State> changed = changes.toOccurrences.applyTo(
+            new ProcessOccurrences<State>(occurrences, partitioning, index));
+          if (! (changed instanceof ProcessOccurrences)) {
+            throw new IllegalStateException(
+              "occurrences changes must derive from the given occurrences");
+          }
+          final ProcessOccurrences<State> view =
+            (ProcessOccurrences<State>) changed;
+          occurrences = view.local();
+          for (final Occurrence<State> occurrence : view.outgoing()) {
+            final long delay = delays[partitioning.processOf(occurrence)];
+            if (delay == NO_CHANNEL
+                || occurrence.time.absoluteValue - time < delay) {
+              throw new IllegalStateException(
+                "occurrence at " + occurrence.time.absoluteValue
+                + " sent at " + time + " violates the lookahead");
+            }
+            sent.add(occurrence);
+          }
+        }
+      }
+    }
+  }
+
+
+  /**
+   * The logical processes.
+   */
+  private final List<LogicalProcess<State>> processes;
+
+
+  /**
+   * Executor running the processes.
+   */
+  private final ExecutorService executor;
+
+
+  /**
+   * Assignment of occurrences to processes.
+   */
+  private final Partitioning<State> partitioning;
+
+
+  /**
+   * Current time.
+   */
+  private Time time;
+
+
+  /**
+   * Number of windows run so far.
+   */
+  private long windows;
+
+
+  /**
+   * Construct a conservative simulator starting at the given time.
+   *
+   * @param states Initial states of the logical processes, one for
+   * each process.
+   * @param empty Empty occurrences, used to hold the occurrences of
+   * each process.
+   * @param occurrences Initially pending occurrences of all
+   * processes, none of them earlier than the given time.
+   * @param partitioning Assignment of occurrences to processes.
+   * @param lookahead Minimum delays of the channels between the
+   * processes.
+   * @param time Time at which the simulation starts.
+   * @param executor Executor running the processes.
+   * @throws NullPointerException When any argument but the states is
+   * null.
+   * @throws IllegalArgumentException When a minimum delay is not
+   * positive.
+   */
+  public ConservativeSimulator(final List<State> states,
+                               final Occurrences<State> empty,
+                               final Iterable<Occurrence<State>> occurrences,
+                               final Partitioning<State> partitioning,
+                               final Lookahead lookahead,
+                               final Time time,
+                               final ExecutorService executor) {
+    Objects.requireNonNull(empty, "empty must not be null");
+    Objects.requireNonNull(lookahead, "lookahead must not be null");
+    this.partitioning = Objects.requireNonNull(
+      partitioning, "partitioning must not be null");
+    this.executor = Objects.requireNonNull(executor,
+                                           "executor must not be null");
+    this.time = Objects.requireNonNull(time, "time must not be null");
+    final List<List<Occurrence<State>>> initial =
+      new ArrayList<List<Occurrence<State>>>();
+    for (int i = 0; i < states.size(); ++i) {
+      initial.add(new ArrayList<Occurrence<State>>());
+    }
+    for (final Occurrence<State> occurrence : occurrences) {
+      initial.get(partitioning.processOf(occurrence)).add(occurrence);
+    }
+    this.processes = new ArrayList<LogicalProcess<State>>();
+    for (int i = 0; i < states.size(); ++i) {
+      final long[] delays = new long[states.size()];
+      for (int j = 0; j < states.size(); ++j) {
+        final Time.Duration delay =
+          i == j ? null : lookahead.minimumDelay(i, j);
+        if (delay == null) {
+          delays[j] = NO_CHANNEL;
+        } else if (delay.differenceValue <= 0) {
+          throw new IllegalArgumentException(
+            "minimum delay from " + i + " to " + j + " must be positive");
+        } else {
+          delays[j] = delay.differenceValue;
+        }
+      }
+      processes.add(new LogicalProcess<State>(
+                      i, partitioning, delays, states.get(i),
+                      empty.withNew(initial.get(i)), time.absoluteValue));
+    }
+  }
+
+
+  /**
+   * Get the states of the logical processes.
+   *
+   * @return Unmodifiable list of the states, by process index.
+   */
+  public List<State> getStates() {
+    final List<State> states = new ArrayList<State>(processes.size());
+    for (final LogicalProcess<State> process : processes) {
+      states.add(process.state);
+    }
+    return Collections.unmodifiableList(states);
+  }
+
+
+  /**
+   * Get the time the simulation has been run until.
+   *
+   * @return Current time.
+   */
+  public Time getTime() {
+    return time;
+  }
+
+
+  /**
+   * Get the number of occurrences processed so far.
+   *
+   * @return Number of processed occurrences.
+   */
+  public long getProcessedCount() {
+    long count = 0;
+    for (final LogicalProcess<State> process : processes) {
+      count += process.processed;
+    }
+    return count;
+  }
+
+
+  /**
+   * Get the number of windows run so far.
+   *
+   * @return Number of windows.
+   */
+  public long getWindowCount() {
+    return windows;
+  }
+
+
+  /**
+   * Deliver the occurrences sent during the last window.
+   *
+   * Must only be called between windows.
+   */
+  private void deliver() {
+    final List<List<Occurrence<State>>> received =
+      new ArrayList<List<Occurrence<State>>>();
+    for (int i = 0; i < processes.size(); ++i) {
+      received.add(new ArrayList<Occurrence<State>>());
+    }
+    for (final LogicalProcess<State> process : processes) {
+      for (final Occurrence<State> occurrence : process.sent) {
+        received.get(partitioning.processOf(occurrence)).add(occurrence);
+      }
+      process.sent.clear();
+    }
+    for (int i = 0; i < processes.size(); ++i) {
+      if (! received.get(i).isEmpty()) {
+        final LogicalProcess<State> process = processes.get(i);
+        process.occurrences = process.occurrences.withNew(received.get(i));
+      }
+    }
+  }
+
+
+  /**
+   * Compute the safe bounds of all processes for the next window.
+   *
+   * Must only be called between windows.
+   *
+   * @param end Absolute value of the time until which to run.
+   * @return Whether any process has occurrences to process.
+   */
+  private boolean computeBounds(final long end) {
+    final long[] earliest = new long[processes.size()];
+    boolean anything = false;
+    for (int i = 0; i < processes.size(); ++i) {
+      earliest[i] = processes.get(i).earliestTime();
+      anything |= earliest[i] <= end;
+    }
+    for (int j = 0; j < processes.size(); ++j) {
+      // One past the end, so that occurrences at the end are processed.
+      long bound = end == Long.MAX_VALUE ? end : end + 1;
+      for (int i = 0; i < processes.size(); ++i) {
+        final long delay = processes.get(i).delays[j];
+        if (delay != NO_CHANNEL && earliest[i] < bound - delay) {
+          bound = earliest[i] + delay;
+        }
+      }
+      processes.get(j).bound = bound;
+    }
+    return anything;
+  }
+
+
+  /**
+   * Process all occurrences up to (and including) the given time,
+   * then advance the current time to the given time.
+   *
+   * @param end Time until which to run.
+   * @throws InterruptedException When interrupted while waiting for
+   * a window to finish.
+   * @throws IllegalStateException When an event violates the rules
+   * described for this class.
+   */
+  public void runUntil(final Time end) throws InterruptedException {
+    while (computeBounds(end.absoluteValue)) {
+      for (final Future<Void> window : executor.invokeAll(processes)) {
+        try {
+          window.get();
+        } catch (final ExecutionException exception) {
+          final Throwable cause = exception.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+      deliver();
+      ++windows;
+    }
+    if (end.absoluteValue > time.absoluteValue) {
+      time = end;
+    }
+  }
+}
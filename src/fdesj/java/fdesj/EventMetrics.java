@@ -0,0 +1,277 @@
+package fdesj;
+
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Instrumentation collecting metrics of the event loop.
+ *
+ * Collects the number of processed occurrences, from which together
+ * with the simulated and the elapsed wall clock time the event rate
+ * and the ratio of simulated to wall clock time follow, the number
+ * of pending occurrences (if the occurrences are {@link
+ * SizedOccurrences}), as well as {@link LatencyHistogram}s of {@link
+ * Event#affect(Object, Time)} per event class and of applying
+ * changes. All metrics are collected without locking, and may be
+ * read while an engine runs.
+ *
+ * Wall clock time is measured from the construction or the last
+ * {@link #reset()}, simulated time from the first processed
+ * occurrence after that.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class EventMetrics<State> implements Instrumentation<State> {
+  /**
+   * Marks that no simulated time has been seen yet.
+   */
+  private static final long NONE = Long.MIN_VALUE;
+
+
+  /**
+   * Latencies of affect, by event class.
+   */
+  private final ConcurrentMap<Class<?>, LatencyHistogram> affectLatencies =
+    new ConcurrentHashMap<Class<?>, LatencyHistogram>();
+
+
+  /**
+   * Latencies of applying state changes.
+   */
+  private volatile LatencyHistogram stateLatency;
+
+
+  /**
+   * Latencies of applying occurrences changes.
+   */
+  private volatile LatencyHistogram occurrencesLatency;
+
+
+  /**
+   * Number of processed occurrences.
+   */
+  private final AtomicLong processed = new AtomicLong();
+
+
+  /**
+   * Wall clock time at which collecting started.
+   */
+  private volatile long startNanos;
+
+
+  /**
+   * Simulated time of the first processed occurrence, or NONE.
+   */
+  private final AtomicLong firstTime = new AtomicLong(NONE);
+
+
+  /**
+   * Latest simulated time of the processed occurrences, or NONE.
+   */
+  private final AtomicLong latestTime = new AtomicLong(NONE);
+
+
+  /**
+   * Number of pending occurrences, -1 if unknown.
+   */
+  private volatile int pending = -1;
+
+
+  /**
+   * Construct collecting from now on.
+   */
+  public EventMetrics() {
+    reset();
+  }
+
+
+  /**
+   * Discard all metrics collected so far and start collecting anew.
+   *
+   * Recordings concurrent to resetting may get lost.
+   */
+  public void reset() {
+    affectLatencies.clear();
+    stateLatency = new LatencyHistogram();
+    occurrencesLatency = new LatencyHistogram();
+    processed.set(0);
+    firstTime.set(NONE);
+    latestTime.set(NONE);
+    pending = -1;
+    startNanos = System.nanoTime();
+  }
+
+
+  /**
+   * Take a timestamp.
+   *
+   * @return Current value of {@link System#nanoTime()}.
+   */
+  @Override
+  public long start() {
+    return System.nanoTime();
+  }
+
+
+  /**
+   * Record the latency of affect for the class of the event.
+   *
+   * @param event The event.
+   * @param start Timestamp from before the call.
+   */
+  @Override
+  public void affected(final Event<State> event, final long start) {
+    final long nanos = System.nanoTime() - start;
+    final Class<?> type = event.getClass();
+    LatencyHistogram histogram = affectLatencies.get(type);
+    if (histogram == null) {
+      final LatencyHistogram created = new LatencyHistogram();
+      histogram = affectLatencies.putIfAbsent(type, created);
+      if (histogram == null) {
+        histogram = created;
+      }
+    }
+    histogram.record(nanos);
+  }
+
+
+  /**
+   * Record the latency of applying state changes.
+   *
+   * @param start Timestamp from before the call.
+   */
+  @Override
+  public void appliedToState(final long start) {
+    stateLatency.record(System.nanoTime() - start);
+  }
+
+
+  /**
+   * Record the latency of applying occurrences changes.
+   *
+   * @param start Timestamp from before the call.
+   */
+  @Override
+  public void appliedToOccurrences(final long start) {
+    occurrencesLatency.record(System.nanoTime() - start);
+  }
+
+
+  /**
+   * Count processed occurrences and record the simulated time and the
+   * number of pending occurrences.
+   *
+   * @param time Current simulation time.
+   * @param count Number of processed occurrences.
+   * @param occurrences Pending occurrences afterwards.
+   */
+  @Override
+  public void processed(final Time time,
+                        final int count,
+                        final Occurrences<State> occurrences) {
+    processed.addAndGet(count);
+    final long value = time.absoluteValue;
+    firstTime.compareAndSet(NONE, value);
+    long latest = latestTime.get();
+    while (value > latest && ! latestTime.compareAndSet(latest, value)) {
+      latest = latestTime.get();
+    }
+    if (occurrences instanceof SizedOccurrences) {
+      pending = ((SizedOccurrences<State>) occurrences).size();
+    }
+  }
+
+
+  /**
+   * Get the number of processed occurrences.
+   *
+   * @return Number of processed occurrences.
+   */
+  public long getProcessedCount() {
+    return processed.get();
+  }
+
+
+  /**
+   * Get the number of pending occurrences, as of the last processed
+   * occurrence.
+   *
+   * @return Number of pending occurrences, -1 if unknown.
+   */
+  public int getPendingCount() {
+    return pending;
+  }
+
+
+  /**
+   * Get the elapsed wall clock time.
+   *
+   * @return Wall clock time since collecting started, in seconds.
+   */
+  public double getElapsedSeconds() {
+    return Math.max(1, System.nanoTime() - startNanos) / 1e9;
+  }
+
+
+  /**
+   * Get the rate of processed occurrences.
+   *
+   * @return Processed occurrences per wall clock second.
+   */
+  public double getEventsPerSecond() {
+    return getProcessedCount() / getElapsedSeconds();
+  }
+
+
+  /**
+   * Get the ratio of simulated to wall clock time.
+   *
+   * @return Simulated time units per wall clock second, 0 if nothing
+   * has been processed.
+   */
+  public double getSimulatedPerWallSecond() {
+    final long first = firstTime.get();
+    if (first == NONE) {
+      return 0;
+    }
+    return (latestTime.get() - first) / getElapsedSeconds();
+  }
+
+
+  /**
+   * Get the latencies of affect, by event class.
+   *
+   * @return Unmodifiable snapshot of the histogram of each event
+   * class; the histograms themselves keep being recorded into.
+   */
+  public Map<Class<?>, LatencyHistogram> getAffectLatencies() {
+    return Collections.unmodifiableMap(
+      new HashMap<Class<?>, LatencyHistogram>(affectLatencies));
+  }
+
+
+  /**
+   * Get the latencies of applying state changes.
+   *
+   * @return Histogram of the latencies.
+   */
+  public LatencyHistogram getStateLatency() {
+    return stateLatency;
+  }
+
+
+  /**
+   * Get the latencies of applying occurrences changes.
+   *
+   * @return Histogram of the latencies.
+   */
+  public LatencyHistogram getOccurrencesLatency() {
+    return occurrencesLatency;
+  }
+}
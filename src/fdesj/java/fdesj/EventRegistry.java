@@ -0,0 +1,178 @@
+package fdesj;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+/**
+ * Registry of event types with fixed-size binary encodings, used to
+ * store occurrences as packed records in {@link PackedOccurrences}.
+ *
+ * Each event class is registered with a {@link Codec} which always
+ * writes the same number of bytes, and is identified by the index of
+ * its registration. Equal events must have equal encodings, and
+ * decoding must give an equal event. Registering is thread-safe, and
+ * looking up may happen concurrently to registering.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class EventRegistry<State> {
+  /**
+   * Registration of an event class.
+   *
+   * @param <State> Type used to represent the simulation state.
+   * @param <Type> The event class.
+   */
+  /* package-private */ static final class Entry<
+    State, Type extends Event<State>> {
+    /**
+     * Index of the registration.
+     */
+    final int id;
+
+
+    /**
+     * Size of the encoding, in bytes.
+     */
+    final int size;
+
+
+    /**
+     * The event class.
+     */
+    private final Class<Type> type;
+
+
+    /**
+     * Codec of the events.
+     */
+    private final Codec<Type> codec;
+
+
+    /**
+     * Construct a registration.
+     *
+     * @param id Index of the registration.
+     * @param size Size of the encoding, in bytes.
+     * @param type The event class.
+     * @param codec Codec of the events.
+     */
+    Entry(final int id,
+          final int size,
+          final Class<Type> type,
+          final Codec<Type> codec) {
+      this.id = id;
+      this.size = size;
+      this.type = type;
+      this.codec = codec;
+    }
+
+
+    /**
+     * Encode an event of the class.
+     *
+     * @param event Event to encode.
+     * @param output Output to write the encoding to.
+     * @throws IOException When writing fails.
+     */
+    void encode(final Event<State> event, final DataOutput output)
+      throws IOException {
+      codec.encode(type.cast(event), output);
+    }
+
+
+    /**
+     * Decode an event of the class.
+     *
+     * @param input Input to read the encoding from.
+     * @return Decoded event.
+     * @throws IOException When reading fails.
+     */
+    Event<State> decode(final DataInput input) throws IOException {
+      return codec.decode(input);
+    }
+  }
+
+
+  /**
+   * Registrations by event class.
+   */
+  private final ConcurrentMap<Class<?>, Entry<State, ?>> byType =
+    new ConcurrentHashMap<Class<?>, Entry<State, ?>>();
+
+
+  /**
+   * Registrations by index, replaced when registering.
+   */
+  private volatile Entry<?, ?>[] byId = new Entry<?, ?>[0];
+
+
+  /**
+   * Register an event class.
+   *
+   * @param type The event class; events of subclasses have to be
+   * registered separately.
+   * @param size Number of bytes the codec always writes.
+   * @param codec Codec of the events.
+   * @param <Type> The event class.
+   * @throws NullPointerException When type or codec is null.
+   * @throws IllegalArgumentException When the class is already
+   * registered or the size is negative.
+   */
+  public synchronized <Type extends Event<State>> void register(
+    final Class<Type> type,
+    final int size,
+    final Codec<Type> codec) {
+    Objects.requireNonNull(type, "type must not be null");
+    Objects.requireNonNull(codec, "codec must not be null");
+    if (size < 0) {
+      throw new IllegalArgumentException("size must not be negative");
+    }
+    if (byType.containsKey(type)) {
+      throw new IllegalArgumentException(
+        type.getName() + " is already registered");
+    }
+    final Entry<State, Type> entry =
+      new Entry<State, Type>(byId.length, size, type, codec);
+    final Entry<?, ?>[] grown = Arrays.copyOf(byId, byId.length + 1);
+    grown[entry.id] = entry;
+    byId = grown;
+    byType.put(type, entry);
+  }
+
+
+  /**
+   * Get the registration of the class of an event.
+   *
+   * @param event The event.
+   * @return Registration of its class.
+   * @throws IllegalArgumentException When the class is not
+   * registered.
+   */
+  /* package-private */ Entry<State, ?> entryOf(final Event<State> event) {
+    final Entry<State, ?> entry = byType.get(event.getClass());
+    if (entry == null) {
+      throw new IllegalArgumentException(
+        event.getClass().getName() + " is not registered");
+    }
+    return entry;
+  }
+
+
+  /**
+   * Get the registration with the given index.
+   *
+   * @param id Index of the registration.
+   * @return The registration.
+   */
+  @SuppressWarnings("unchecked")
+  /* package-private */ Entry<State, ?> entryOf(final int id) {
+    return (Entry<State, ?>) byId[id];
+  }
+}
@@ -0,0 +1,108 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Runner of branches forked from a common {@link Snapshot},
+ * concurrently.
+ *
+ * Each branch is forked from the snapshot by its own changes and run
+ * by its own {@link Simulator} until a given end, on the given
+ * executor. Unlike {@link ReplicationRunner}, the common prefix of all
+ * branches, such as a warm-up period, is only simulated once, before
+ * taking the snapshot. The final snapshots of the branches are
+ * streamed into an {@link Aggregator} as the branches finish, with the
+ * index of the branch in place of the seed.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class ForkRunner<State> {
+  /**
+   * Snapshot the branches are forked from.
+   */
+  private final Snapshot<State> origin;
+
+
+  /**
+   * Time until which each branch runs.
+   */
+  private final Time end;
+
+
+  /**
+   * Executor running the branches.
+   */
+  private final Executor executor;
+
+
+  /**
+   * Construct a runner.
+   *
+   * @param origin Snapshot the branches are forked from.
+   * @param end Time until which each branch runs.
+   * @param executor Executor running the branches.
+   * @throws NullPointerException When any argument is null.
+   */
+  public ForkRunner(final Snapshot<State> origin,
+                    final Time end,
+                    final Executor executor) {
+    this.origin = Objects.requireNonNull(origin, "origin must not be null");
+    this.end = Objects.requireNonNull(end, "end must not be null");
+    this.executor = Objects.requireNonNull(executor,
+                                           "executor must not be null");
+  }
+
+
+  /**
+   * Run a single branch.
+   *
+   * @param changes Changes distinguishing the branch.
+   * @return Final snapshot of the branch.
+   */
+  private Snapshot<State> branch(final Changes<State> changes) {
+    final Simulator<State> simulator = origin.fork(changes).resume();
+    simulator.runUntil(end);
+    return simulator.snapshot();
+  }
+
+
+  /**
+   * Fork a branch for each of the given changes and run them, passing
+   * their final snapshots to the aggregator as they finish.
+   *
+   * When a branch fails, the remaining ones are cancelled and the
+   * failure is rethrown.
+   *
+   * @param branches Changes distinguishing each branch from the
+   * snapshot, null for an unchanged branch.
+   * @param aggregator Aggregator taking the final snapshots, indexed by
+   * the position of the branch, called from the calling thread only.
+   * @return Throughput, in branches per second.
+   * @throws InterruptedException When interrupted while waiting for
+   * branches to finish.
+   * @throws IllegalStateException When a branch fails with a checked
+   * exception.
+   */
+  public double run(final List<Changes<State>> branches,
+                    final Aggregator<? super Snapshot<State>> aggregator)
+    throws InterruptedException {
+    Objects.requireNonNull(aggregator, "aggregator must not be null");
+    final List<Callable<Snapshot<State>>> tasks =
+      new ArrayList<Callable<Snapshot<State>>>(branches.size());
+    for (final Changes<State> changes : branches) {
+      tasks.add(new Callable<Snapshot<State>>() {
+          @Override
+          public Snapshot<State> call() {
+            return branch(changes);
+          }
+        });
+    }
+    return TaskStreamer.stream(executor, tasks, 0, aggregator);
+  }
+}
@@ -0,0 +1,31 @@
+package fdesj;
+
+
+/**
+ * Model of a rare event for importance splitting, see {@link
+ * RestartSimulator}.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface ImportanceModel<State> {
+  /**
+   * Get the importance of a state, that is how close it is to the
+   * rare event.
+   *
+   * @param state State to judge.
+   * @return Importance of the state, larger when closer to the rare
+   * event.
+   */
+  double importanceOf(State state);
+
+
+  /**
+   * Give a state an independent source of randomness, so that clones
+   * of a simulation do not follow the same trajectory.
+   *
+   * @param state State to resample, which must not be modified.
+   * @param seed Seed of the new source of randomness.
+   * @return State equal to the given one apart from its randomness.
+   */
+  State resample(State state, long seed);
+}
@@ -0,0 +1,404 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+
+/**
+ * Occurrences indexed by their events, to find and remove them
+ * without searching.
+ *
+ * Wraps other occurrences, which keep the order, and additionally
+ * maintains a persistent hash index from each event to its pending
+ * occurrences. Adding and removing occurrences thus additionally
+ * takes O(log32 n) time per occurrence, but checking whether an
+ * occurrence is pending and finding the pending occurrences of an
+ * event take O(log32 n) time, instead of a pass over all
+ * occurrences. Only occurrences which are actually pending are passed
+ * on to the wrapped occurrences when removing. Removing still takes
+ * the time the wrapped occurrences need for it, which is linear for
+ * {@link LeftistHeapOccurrences}; wrapping {@link
+ * TombstoneOccurrences} instead gives removal in amortized O(log32 n)
+ * time, at the cost of a second persistent map, as those keep their
+ * own counts of the pending occurrences.
+ *
+ * The {@link OccurrencesChanges} returned by {@link
+ * #removingEvent(Event)} and {@link #removingEvents(Iterable)} use the
+ * index when applied to indexed occurrences, and fall back to a pass
+ * over the occurrences otherwise.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class IndexedOccurrences<State>
+  implements Occurrences<State> {
+  /**
+   * Pending occurrences of an event, as a persistent map from each
+   * occurrence to its number, which is never modified.
+   */
+  private static final class Pending<State> {
+    /**
+     * Number of each pending occurrence, none of them zero.
+     */
+    final PersistentMap<Occurrence<State>, Integer> counts;
+
+
+    /**
+     * Construct from the given counts.
+     *
+     * @param counts Number of each pending occurrence.
+     */
+    Pending(final PersistentMap<Occurrence<State>, Integer> counts) {
+      this.counts = counts;
+    }
+
+
+    /**
+     * Get the pending occurrences with one more occurrence equal to
+     * the given one.
+     *
+     * @param pending Pending occurrences, may be null if there are
+     * none.
+     * @param added Occurrence to add.
+     * @param <State> Type used to represent the simulation state.
+     * @return Pending occurrences with the occurrence.
+     */
+    static <State> Pending<State> plus(final Pending<State> pending,
+                                       final Occurrence<State> added) {
+      if (pending == null) {
+        return new Pending<State>(
+          new PersistentMap<Occurrence<State>, Integer>().with(added, 1));
+      }
+      final Integer count = pending.counts.get(added);
+      return new Pending<State>(
+        pending.counts.with(added, count == null ? 1 : count + 1));
+    }
+
+
+    /**
+     * Get the pending occurrences without one occurrence equal to the
+     * given one.
+     *
+     * @param removed Occurrence to remove.
+     * @return Pending occurrences without the occurrence, null if
+     * there are none left, or this object if there is no equal
+     * occurrence.
+     */
+    Pending<State> without(final Occurrence<State> removed) {
+      final Integer count = counts.get(removed);
+      if (count == null) {
+        return this;
+      }
+      if (count > 1) {
+        return new Pending<State>(counts.with(removed, count - 1));
+      }
+      return counts.size() == 1
+        ? null : new Pending<State>(counts.without(removed));
+    }
+  }
+
+
+  /**
+   * The wrapped occurrences.
+   */
+  private final Occurrences<State> occurrences;
+
+
+  /**
+   * Pending occurrences of each event.
+   */
+  private final PersistentMap<Event<State>, Pending<State>> index;
+
+
+  /**
+   * Construct wrapping the given occurrences.
+   *
+   * Indexing the wrapped occurrences takes a pass over them.
+   *
+   * @param occurrences Occurrences to wrap.
+   * @throws NullPointerException When occurrences is null.
+   */
+  public IndexedOccurrences(final Occurrences<State> occurrences) {
+    this(Objects.requireNonNull(occurrences,
+                                "occurrences must not be null"),
+         added(new PersistentMap<Event<State>, Pending<State>>(),
+               occurrences));
+  }
+
+
+  /**
+   * Construct from the given parts.
+   *
+   * @param occurrences The wrapped occurrences.
+   * @param index Pending occurrences of each event.
+   */
+  private IndexedOccurrences(
+    final Occurrences<State> occurrences,
+    final PersistentMap<Event<State>, Pending<State>> index) {
+    this.occurrences = occurrences;
+    this.index = index;
+  }
+
+
+  /**
+   * Add occurrences to an index.
+   *
+   * @param index Index to add to.
+   * @param added Occurrences to add.
+   * @param <State> Type used to represent the simulation state.
+   * @return Index with the occurrences added.
+   */
+  private static <State> PersistentMap<Event<State>, Pending<State>> added(
+    PersistentMap<Event<State>, Pending<State>> index,
+    final Iterable<Occurrence<State>> added) {
+    for (final Occurrence<State> occurrence : added) {
+      index = index.with(occurrence.event, Pending.plus(
+                           index.get(occurrence.event), occurrence));
+    }
+    return index;
+  }
+
+
+  /**
+   * Remove an occurrence from an index.
+   *
+   * @param index Index to remove from.
+   * @param removed Occurrence to remove.
+   * @param <State> Type used to represent the simulation state.
+   * @return Index without the occurrence, or the given index if the
+   * occurrence is not pending.
+   */
+  private static <State> PersistentMap<Event<State>, Pending<State>> removed(
+    final PersistentMap<Event<State>, Pending<State>> index,
+    final Occurrence<State> removed) {
+    final Pending<State> pending = index.get(removed.event);
+    if (pending == null) {
+      return index;
+    }
+    final Pending<State> remaining = pending.without(removed);
+    if (remaining == pending) {
+      return index;
+    }
+    return remaining == null
+      ? index.without(removed.event)
+      : index.with(removed.event, remaining);
+  }
+
+
+  /**
+   * Check whether an occurrence is pending.
+   *
+   * @param occurrence Occurrence to look up.
+   * @return True if an equal occurrence is pending.
+   */
+  public boolean contains(final Occurrence<State> occurrence) {
+    final Pending<State> pending = index.get(occurrence.event);
+    return pending != null && pending.counts.containsKey(occurrence);
+  }
+
+
+  /**
+   * Get the pending occurrences of an event.
+   *
+   * @param event Event to look up.
+   * @return Unmodifiable collection of the pending occurrences of the
+   * event, in unspecified order.
+   */
+  public Collection<Occurrence<State>> occurrencesOf(
+    final Event<State> event) {
+    final List<Occurrence<State>> found =
+      new ArrayList<Occurrence<State>>();
+    final Pending<State> pending = index.get(event);
+    if (pending != null) {
+      for (final Map.Entry<Occurrence<State>, Integer> entry
+             : pending.counts) {
+        for (int i = 0; i < entry.getValue(); ++i) {
+          found.add(entry.getKey());
+        }
+      }
+    }
+    return Collections.unmodifiableList(found);
+  }
+
+
+  /**
+   * Get the next occurrence, as the wrapped occurrences do.
+   *
+   * @return Next (earliest) occurrence, or null if there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    return occurrences.nextOccurrence();
+  }
+
+
+  /**
+   * Get the occurrences at the given time, as the wrapped
+   * occurrences do.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Collection of the occurrences at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    return occurrences.at(time);
+  }
+
+
+  /**
+   * Add the given occurrences, indexing them.
+   *
+   * @param added Occurrences to add.
+   * @return New Occurrences containing this object's and the given
+   * occurrences.
+   * @throws NullPointerException When any occurrence is null.
+   */
+  @Override
+  public IndexedOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> added) {
+    final List<Occurrence<State>> list = new ArrayList<Occurrence<State>>();
+    for (final Occurrence<State> occurrence : added) {
+      list.add(Objects.requireNonNull(occurrence,
+                                      "occurrence must not be null"));
+    }
+    if (list.isEmpty()) {
+      return this;
+    }
+    return new IndexedOccurrences<State>(occurrences.withNew(list),
+                                         added(index, list));
+  }
+
+
+  /**
+   * Remove the given occurrences, passing only those which are
+   * pending on to the wrapped occurrences.
+   *
+   * @param removed Occurrences to remove.
+   * @return New Occurrences without the given occurrences.
+   */
+  @Override
+  public IndexedOccurrences<State> without(
+    final Iterable<Occurrence<State>> removed) {
+    PersistentMap<Event<State>, Pending<State>> remaining = index;
+    final List<Occurrence<State>> pending =
+      new ArrayList<Occurrence<State>>();
+    for (final Occurrence<State> occurrence : removed) {
+      final PersistentMap<Event<State>, Pending<State>> without =
+        removed(remaining, occurrence);
+      if (without != remaining) {
+        pending.add(occurrence);
+        remaining = without;
+      }
+    }
+    if (pending.isEmpty()) {
+      return this;
+    }
+    return new IndexedOccurrences<State>(occurrences.without(pending),
+                                         remaining);
+  }
+
+
+  /**
+   * Remove all pending occurrences of an event.
+   *
+   * @param event Event whose occurrences to remove.
+   * @return New Occurrences without the occurrences of the event.
+   */
+  public IndexedOccurrences<State> withoutEvent(final Event<State> event) {
+    final Collection<Occurrence<State>> removed = occurrencesOf(event);
+    if (removed.isEmpty()) {
+      return this;
+    }
+    return new IndexedOccurrences<State>(occurrences.without(removed),
+                                         index.without(event));
+  }
+
+
+  /**
+   * Remove the next occurrence.
+   *
+   * @return Occurrences without the next occurrence, or this object
+   * if it is empty.
+   */
+  @Override
+  public IndexedOccurrences<State> withoutNextOccurrence() {
+    final Occurrence<State> next = occurrences.nextOccurrence();
+    if (next == null) {
+      return this;
+    }
+    return new IndexedOccurrences<State>(
+      occurrences.withoutNextOccurrence(), removed(index, next));
+  }
+
+
+  /**
+   * Iterate over all occurrences, as the wrapped occurrences do.
+   *
+   * @return Iterator over all occurrences, not supporting removal.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    return occurrences.iterator();
+  }
+
+
+  /**
+   * Get changes removing all pending occurrences of an event.
+   *
+   * @param event Event whose occurrences to remove.
+   * @param <State> Type used to represent the simulation state.
+   * @return Changes removing the occurrences of the event.
+   */
+  public static <State> OccurrencesChanges<State> removingEvent(
+    final Event<State> event) {
+    return removingEvents(Collections.singletonList(
+                            Objects.requireNonNull(
+                              event, "event must not be null")));
+  }
+
+
+  /**
+   * Get changes removing all pending occurrences of the given events.
+   *
+   * @param events Events whose occurrences to remove.
+   * @param <State> Type used to represent the simulation state.
+   * @return Changes removing the occurrences of the events.
+   */
+  public static <State> OccurrencesChanges<State> removingEvents(
+    final Iterable<Event<State>> events) {
+    Objects.requireNonNull(events, "events must not be null");
+    return new OccurrencesChanges<State>() {
+      @Override
+      public Occurrences<State> applyTo(
+        final Occurrences<State> occurrences) {
+        if (occurrences instanceof IndexedOccurrences) {
+          IndexedOccurrences<State> indexed =
+            (IndexedOccurrences<State>) occurrences;
+          for (final Event<State> event : events) {
+            indexed = indexed.withoutEvent(event);
+          }
+          return indexed;
+        }
+        final Set<Event<State>> removed = new HashSet<Event<State>>();
+        for (final Event<State> event : events) {
+          removed.add(event);
+        }
+        final List<Occurrence<State>> found =
+          new ArrayList<Occurrence<State>>();
+        for (final Occurrence<State> occurrence : occurrences) {
+          if (removed.contains(occurrence.event)) {
+            found.add(occurrence);
+          }
+        }
+        return occurrences.without(found);
+      }
+    };
+  }
+}
@@ -0,0 +1,64 @@
+package fdesj;
+
+
+/**
+ * Hooks through which an engine reports what it does, to collect
+ * metrics.
+ *
+ * Hooks are called around {@link Event#affect(Object, Time)}, {@link
+ * StateChanges#applyTo(Object)} and {@link
+ * OccurrencesChanges#applyTo(Occurrences)}: the engine gets a start
+ * timestamp from {@link #start()} before the call and passes it to
+ * the matching hook afterwards. Taking timestamps is thus up to the
+ * implementation, so that {@link NoInstrumentation} does not take
+ * any, and its empty hooks can be eliminated by the JIT entirely.
+ *
+ * Engines evaluating events in parallel call {@link #start()} and
+ * {@link #affected(Event, long)} from multiple threads at once.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface Instrumentation<State> {
+  /**
+   * Get a start timestamp for measuring a call.
+   *
+   * @return Timestamp, in nanoseconds of {@link System#nanoTime()} or
+   * meaningless if not measuring.
+   */
+  long start();
+
+
+  /**
+   * Called after an event described its changes.
+   *
+   * @param event The event.
+   * @param start Timestamp from before the call.
+   */
+  void affected(Event<State> event, long start);
+
+
+  /**
+   * Called after state changes have been applied.
+   *
+   * @param start Timestamp from before the call.
+   */
+  void appliedToState(long start);
+
+
+  /**
+   * Called after occurrences changes have been applied.
+   *
+   * @param start Timestamp from before the call.
+   */
+  void appliedToOccurrences(long start);
+
+
+  /**
+   * Called after occurrences have been processed completely.
+   *
+   * @param time Current simulation time.
+   * @param count Number of processed occurrences.
+   * @param pending Pending occurrences afterwards.
+   */
+  void processed(Time time, int count, Occurrences<State> pending);
+}
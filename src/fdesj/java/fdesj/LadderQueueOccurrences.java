@@ -0,0 +1,911 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+
+/**
+ * Occurrences stored in a persistent ladder queue.
+ *
+ * A ladder queue (Tang, Goh and Thng) has three tiers:
+ *
+ * <ul>
+ * <li>The "top", an unsorted list of far future occurrences, which
+ * are all after a time called the ladder end.</li>
+ * <li>The "ladder", a few rungs of buckets, each rung subdividing a
+ * single bucket of the rung above it. Buckets are unsorted.</li>
+ * <li>The "bottom", a short sorted array holding the earliest
+ * occurrences.</li>
+ * </ul>
+ *
+ * Occurrences are only sorted once their bucket reaches the bottom,
+ * and a bucket which is too large to sort cheaply is spread over a
+ * new, finer rung instead. Likewise, a bottom which grew too large
+ * is moved into a new rung. The bucket widths of each rung are derived
+ * from the occurrences actually put into it, so unlike a calendar
+ * queue the ladder adapts to skewed distributions of times, for
+ * example mixtures of very short and very long delays.
+ *
+ * All parts are immutable: the top and the buckets are persistent
+ * linked lists, the rungs hold their buckets in a {@link
+ * PersistentArray}, and removing the next occurrence from the bottom
+ * just advances an offset into a shared array.
+ *
+ * Occurrences at the same time are returned in the order in which
+ * they were added.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class LadderQueueOccurrences<State>
+  implements SizedOccurrences<State> {
+  /**
+   * Buckets with more occurrences than this are spread over a new
+   * rung instead of being sorted into the bottom.
+   */
+  private static final int THRESHOLD = 50;
+
+
+  /**
+   * Maximum number of rungs.
+   */
+  private static final int MAXIMUM_RUNGS = 8;
+
+
+  /**
+   * Bottom used when the bottom is empty.
+   */
+  private static final Occurrence<?>[] EMPTY_BOTTOM = new Occurrence<?>[0];
+
+
+  /**
+   * Element of an immutable singly linked list of occurrences.
+   *
+   * Lists are built by prepending, so they hold the most recently
+   * added occurrence first.
+   */
+  private static final class Link<State> {
+    /**
+     * The occurrence.
+     */
+    final Occurrence<State> occurrence;
+
+
+    /**
+     * Rest of the list, null at the end.
+     */
+    final Link<State> next;
+
+
+    /**
+     * Construct by prepending an occurrence to a list.
+     *
+     * @param occurrence Occurrence to prepend.
+     * @param next List to prepend to, may be null.
+     */
+    Link(final Occurrence<State> occurrence, final Link<State> next) {
+      this.occurrence = occurrence;
+      this.next = next;
+    }
+  }
+
+
+  /**
+   * A rung of the ladder, never modified after construction.
+   *
+   * Bucket i holds the occurrences from the interval
+   * [start + i * width, start + (i + 1) * width). All buckets before
+   * the current bucket are empty. The last bucket starts at or before
+   * {@link Long#MAX_VALUE}, but may extend beyond it.
+   */
+  private static final class Rung {
+    /**
+     * Start time of the first bucket.
+     */
+    final long start;
+
+
+    /**
+     * Width of each bucket, at least 1.
+     */
+    final long width;
+
+
+    /**
+     * Index of the current bucket.
+     */
+    final int current;
+
+
+    /**
+     * The buckets, each a list of links, null for empty buckets.
+     */
+    final PersistentArray buckets;
+
+
+    /**
+     * Construct with the given values.
+     *
+     * @param start Start time of the first bucket.
+     * @param width Width of each bucket.
+     * @param current Index of the current bucket.
+     * @param buckets The buckets.
+     */
+    Rung(final long start,
+         final long width,
+         final int current,
+         final PersistentArray buckets) {
+      this.start = start;
+      this.width = width;
+      this.current = current;
+      this.buckets = buckets;
+    }
+
+
+    /**
+     * Check whether the rung has buckets left.
+     *
+     * @return True if the current bucket is one of the buckets.
+     */
+    boolean hasCurrent() {
+      return current < buckets.length();
+    }
+
+
+    /**
+     * Get the start time of the current bucket.
+     *
+     * Occurrences at or after this time (but before the current
+     * bucket of the rung above) belong into this rung.
+     *
+     * @return Start time of the current bucket, only meaningful if
+     * the rung {@linkplain #hasCurrent() has buckets left}.
+     */
+    long currentStart() {
+      return start + current * width;
+    }
+
+
+    /**
+     * Check whether the given time belongs into this rung, provided
+     * it does not belong into the top or a coarser rung.
+     *
+     * @param time Absolute time.
+     * @return True if the time is not before the current bucket.
+     */
+    boolean holds(final long time) {
+      return hasCurrent() && time >= currentStart();
+    }
+
+
+    /**
+     * Get the last time covered by the buckets.
+     *
+     * @return Last time of the last bucket, at most
+     * {@link Long#MAX_VALUE}.
+     */
+    long last() {
+      return lastOf(start + (buckets.length() - 1) * width, width);
+    }
+
+
+    /**
+     * Get the index of the bucket holding the given time.
+     *
+     * @param time Absolute time, not before the start of the rung.
+     * @return Index of the bucket.
+     */
+    int indexOf(final long time) {
+      return (int) divideUnsigned(time - start, width);
+    }
+  }
+
+
+  /**
+   * The top, occurrences after the ladder end.
+   */
+  private final Link<State> top;
+
+
+  /**
+   * Number of occurrences in the top.
+   */
+  private final int topCount;
+
+
+  /**
+   * All occurrences after this time are in the top, all others are in
+   * the ladder or the bottom.
+   *
+   * This is the last time instead of the first time of the top, so
+   * that a ladder reaching up to {@link Long#MAX_VALUE} is
+   * representable.
+   */
+  private final long ladderEnd;
+
+
+  /**
+   * The rungs, starting with the coarsest one.
+   */
+  private final Rung[] rungs;
+
+
+  /**
+   * The bottom, sorted by time, starting at the bottom offset.
+   */
+  private final Occurrence<State>[] bottom;
+
+
+  /**
+   * Index of the next occurrence in the bottom.
+   */
+  private final int bottomOffset;
+
+
+  /**
+   * Number of occurrences.
+   */
+  private final int size;
+
+
+  /**
+   * Construct an empty collection of occurrences.
+   */
+  @SuppressWarnings("unchecked")
+  public LadderQueueOccurrences() {
+    this(null, 0, Long.MIN_VALUE, new Rung[0],
+         (Occurrence<State>[]) EMPTY_BOTTOM, 0, 0);
+  }
+
+
+  /**
+   * Construct from the given parts.
+   *
+   * @param top The top.
+   * @param topCount Number of occurrences in the top.
+   * @param ladderEnd Latest time not belonging into the top.
+   * @param rungs The rungs, not copied.
+   * @param bottom The bottom.
+   * @param bottomOffset Index of the next occurrence in the bottom.
+   * @param size Number of occurrences.
+   */
+  private LadderQueueOccurrences(final Link<State> top,
+                                 final int topCount,
+                                 final long ladderEnd,
+                                 final Rung[] rungs,
+                                 final Occurrence<State>[] bottom,
+                                 final int bottomOffset,
+                                 final int size) {
+    this.top = top;
+    this.topCount = topCount;
+    this.ladderEnd = ladderEnd;
+    this.rungs = rungs;
+    this.bottom = bottom;
+    this.bottomOffset = bottomOffset;
+    this.size = size;
+  }
+
+
+  /**
+   * Divide an unsigned value, rounding down.
+   *
+   * Time spans are unsigned, since the span between two times may
+   * exceed {@link Long#MAX_VALUE}.
+   *
+   * @param dividend Dividend, unsigned.
+   * @param divisor Divisor, positive.
+   * @return Largest value not greater than the exact quotient,
+   * unsigned.
+   */
+  private static long divideUnsigned(final long dividend,
+                                     final long divisor) {
+    if (dividend >= 0) {
+      return dividend / divisor;
+    }
+    final long quotient = ((dividend >>> 1) / divisor) << 1;
+    final long remainder = dividend - quotient * divisor;
+    return (remainder ^ Long.MIN_VALUE) >= (divisor ^ Long.MIN_VALUE)
+      ? quotient + 1 : quotient;
+  }
+
+
+  /**
+   * Divide an unsigned value, rounding up.
+   *
+   * @param dividend Dividend, unsigned.
+   * @param divisor Divisor, positive.
+   * @return Smallest value not less than the exact quotient,
+   * unsigned.
+   */
+  private static long divideRoundingUp(final long dividend,
+                                       final long divisor) {
+    final long quotient = divideUnsigned(dividend, divisor);
+    return dividend == quotient * divisor ? quotient : quotient + 1;
+  }
+
+
+  /**
+   * Get the last time of a bucket.
+   *
+   * @param first First time of the bucket.
+   * @param width Width of the bucket, positive.
+   * @return Last time of the bucket, at most {@link Long#MAX_VALUE}.
+   */
+  private static long lastOf(final long first, final long width) {
+    return first > Long.MAX_VALUE - (width - 1)
+      ? Long.MAX_VALUE : first + (width - 1);
+  }
+
+
+  /**
+   * Get the occurrences of a list in the order they were added.
+   *
+   * @param list List of links, may be null.
+   * @return New list with the occurrences, oldest first.
+   */
+  private static <State> List<Occurrence<State>> oldestFirst(
+    final Link<State> list) {
+    final List<Occurrence<State>> occurrences =
+      new ArrayList<Occurrence<State>>();
+    for (Link<State> link = list; link != null; link = link.next) {
+      occurrences.add(link.occurrence);
+    }
+    Collections.reverse(occurrences);
+    return occurrences;
+  }
+
+
+  /**
+   * Get a list without the first occurrence equal to the given one.
+   *
+   * Only the links before the removed one are copied.
+   *
+   * @param list List to remove from, may be null.
+   * @param occurrence Occurrence to remove.
+   * @return List without the occurrence, or the given list if it
+   * holds no equal occurrence.
+   */
+  private static <State> Link<State> removedFrom(
+    final Link<State> list,
+    final Occurrence<State> occurrence) {
+    final List<Occurrence<State>> before =
+      new ArrayList<Occurrence<State>>();
+    for (Link<State> link = list; link != null; link = link.next) {
+      if (link.occurrence.equals(occurrence)) {
+        Link<State> result = link.next;
+        for (int i = before.size() - 1; i >= 0; --i) {
+          result = new Link<State>(before.get(i), result);
+        }
+        return result;
+      }
+      before.add(link.occurrence);
+    }
+    return list;
+  }
+
+
+  /**
+   * Find the position of the first occurrence in the bottom which is
+   * not earlier (or, if inclusive, later) than the given time.
+   *
+   * @param bottom The bottom, sorted by time.
+   * @param from Index from which on to search.
+   * @param time Time to search for.
+   * @param inclusive Whether to skip occurrences at the given time.
+   * @return Found position, or the length of the bottom.
+   */
+  private static int search(final Occurrence<?>[] bottom,
+                            final int from,
+                            final long time,
+                            final boolean inclusive) {
+    int low = from;
+    int high = bottom.length;
+    while (low < high) {
+      final int middle = (low + high) >>> 1;
+      final long middleTime = bottom[middle].time.absoluteValue;
+      if (middleTime < time || (inclusive && middleTime == time)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+
+  /**
+   * Working copy of a ladder queue, used to apply several changes
+   * before constructing a new (immutable) ladder queue.
+   */
+  private static final class Draft<State> {
+    /**
+     * The top.
+     */
+    Link<State> top;
+
+
+    /**
+     * Number of occurrences in the top.
+     */
+    int topCount;
+
+
+    /**
+     * Latest time not belonging into the top.
+     */
+    long ladderEnd;
+
+
+    /**
+     * The rungs, a private copy.
+     */
+    Rung[] rungs;
+
+
+    /**
+     * Number of rungs in use.
+     */
+    int rungCount;
+
+
+    /**
+     * The bottom, shared and thus never modified.
+     */
+    Occurrence<State>[] bottom;
+
+
+    /**
+     * Index of the next occurrence in the bottom.
+     */
+    int bottomOffset;
+
+
+    /**
+     * Number of occurrences.
+     */
+    int size;
+
+
+    /**
+     * Construct as a copy of the given ladder queue.
+     *
+     * @param queue Queue to copy.
+     */
+    Draft(final LadderQueueOccurrences<State> queue) {
+      top = queue.top;
+      topCount = queue.topCount;
+      ladderEnd = queue.ladderEnd;
+      rungs = Arrays.copyOf(queue.rungs, MAXIMUM_RUNGS);
+      rungCount = queue.rungs.length;
+      bottom = queue.bottom;
+      bottomOffset = queue.bottomOffset;
+      size = queue.size;
+    }
+
+
+    /**
+     * Add an occurrence to the tier its time belongs to.
+     *
+     * @param occurrence Occurrence to add.
+     */
+    void add(final Occurrence<State> occurrence) {
+      final long time = occurrence.time.absoluteValue;
+      ++size;
+      if (time > ladderEnd) {
+        top = new Link<State>(occurrence, top);
+        ++topCount;
+        return;
+      }
+      for (int i = 0; i < rungCount; ++i) {
+        final Rung rung = rungs[i];
+        if (rung.holds(time)) {
+          final int index = rung.indexOf(time);
+          @SuppressWarnings("unchecked")
+          final Link<State> bucket = (Link<State>) rung.buckets.get(index);
+          rungs[i] = new Rung(rung.start, rung.width, rung.current,
+                              rung.buckets.with(
+                                index, new Link<State>(occurrence, bucket)));
+          return;
+        }
+      }
+      final int position = search(bottom, bottomOffset, time, true);
+      final Occurrence<State>[] inserted =
+        newBottom(bottom.length - bottomOffset + 1);
+      System.arraycopy(bottom, bottomOffset,
+                       inserted, 0, position - bottomOffset);
+      inserted[position - bottomOffset] = occurrence;
+      System.arraycopy(bottom, position,
+                       inserted, position - bottomOffset + 1,
+                       bottom.length - position);
+      bottom = inserted;
+      bottomOffset = 0;
+      if (rungCount < MAXIMUM_RUNGS) {
+        bottomToRung();
+      }
+    }
+
+
+    /**
+     * Move the occurrences of the bottom which are later than the next
+     * occurrence into a new, finest rung if there are too many of
+     * them.
+     *
+     * Keeps insertions into the bottom cheap when many occurrences
+     * are added before the current bucket of the finest rung.
+     */
+    void bottomToRung() {
+      final int laterStart = search(
+        bottom, bottomOffset, bottom[bottomOffset].time.absoluteValue,
+        true);
+      final int laterCount = bottom.length - laterStart;
+      if (laterCount <= THRESHOLD) {
+        return;
+      }
+      long last = ladderEnd;
+      for (int i = rungCount - 1; i >= 0; --i) {
+        if (rungs[i].hasCurrent()) {
+          last = rungs[i].currentStart() - 1;
+          break;
+        }
+      }
+      rungs[rungCount++] =
+        rungOf(Arrays.asList(bottom).subList(laterStart, bottom.length),
+               bottom[laterStart].time.absoluteValue, last);
+      bottom = Arrays.copyOfRange(bottom, bottomOffset, laterStart);
+      bottomOffset = 0;
+    }
+
+
+    /**
+     * Remove an occurrence equal to the given one from the tier its
+     * time belongs to.
+     *
+     * @param occurrence Occurrence to remove.
+     */
+    void remove(final Occurrence<State> occurrence) {
+      final long time = occurrence.time.absoluteValue;
+      if (time > ladderEnd) {
+        final Link<State> removed = removedFrom(top, occurrence);
+        if (removed != top) {
+          top = removed;
+          --topCount;
+          --size;
+        }
+        return;
+      }
+      for (int i = 0; i < rungCount; ++i) {
+        final Rung rung = rungs[i];
+        if (rung.holds(time)) {
+          final int index = rung.indexOf(time);
+          @SuppressWarnings("unchecked")
+          final Link<State> bucket = (Link<State>) rung.buckets.get(index);
+          final Link<State> removed = removedFrom(bucket, occurrence);
+          if (removed != bucket) {
+            rungs[i] = new Rung(rung.start, rung.width, rung.current,
+                                rung.buckets.with(index, removed));
+            --size;
+          }
+          return;
+        }
+      }
+      final int end = search(bottom, bottomOffset, time, true);
+      for (int position = search(bottom, bottomOffset, time, false);
+           position < end;
+           ++position) {
+        if (bottom[position].equals(occurrence)) {
+          final Occurrence<State>[] removed =
+            newBottom(bottom.length - bottomOffset - 1);
+          System.arraycopy(bottom, bottomOffset,
+                           removed, 0, position - bottomOffset);
+          System.arraycopy(bottom, position + 1,
+                           removed, position - bottomOffset,
+                           bottom.length - position - 1);
+          bottom = removed;
+          bottomOffset = 0;
+          --size;
+          return;
+        }
+      }
+    }
+
+
+    /**
+     * Make sure that the next occurrence is in the bottom.
+     *
+     * Moves the top into a new rung when the ladder is empty, and
+     * moves the first non empty bucket of the finest rung either into
+     * the bottom or into a new, finer rung.
+     */
+    void normalize() {
+      while (bottomOffset == bottom.length && size > 0) {
+        if (rungCount == 0) {
+          topToRung();
+          continue;
+        }
+        final Rung rung = rungs[rungCount - 1];
+        int index = rung.current;
+        while (index < rung.buckets.length()
+               && rung.buckets.get(index) == null) {
+          ++index;
+        }
+        if (index == rung.buckets.length()) {
+          rungs[--rungCount] = null;
+          continue;
+        }
+        @SuppressWarnings("unchecked")
+        final List<Occurrence<State>> occurrences =
+          oldestFirst((Link<State>) rung.buckets.get(index));
+        rungs[rungCount - 1] = new Rung(rung.start, rung.width, index + 1,
+                                        rung.buckets.with(index, null));
+        if (occurrences.size() > THRESHOLD
+            && rung.width > 1
+            && rungCount < MAXIMUM_RUNGS) {
+          final long first = rung.start + index * rung.width;
+          rungs[rungCount++] =
+            rungOf(occurrences, first, lastOf(first, rung.width));
+        } else {
+          final Occurrence<State>[] sorted = occurrences.toArray(
+            LadderQueueOccurrences.<State>newBottom(occurrences.size()));
+          Arrays.sort(sorted, new OccurrenceByTimeComparator<State>());
+          bottom = sorted;
+          bottomOffset = 0;
+        }
+      }
+      if (size == 0) {
+        top = null;
+        topCount = 0;
+        ladderEnd = Long.MIN_VALUE;
+        Arrays.fill(rungs, null);
+        rungCount = 0;
+      }
+    }
+
+
+    /**
+     * Move all occurrences of the top into a new rung, with about one
+     * occurrence per bucket.
+     */
+    void topToRung() {
+      final List<Occurrence<State>> occurrences = oldestFirst(top);
+      long minimum = Long.MAX_VALUE;
+      long maximum = Long.MIN_VALUE;
+      for (final Occurrence<State> occurrence : occurrences) {
+        minimum = Math.min(minimum, occurrence.time.absoluteValue);
+        maximum = Math.max(maximum, occurrence.time.absoluteValue);
+      }
+      final Rung rung = rungOf(occurrences, minimum, maximum);
+      rungs[rungCount++] = rung;
+      top = null;
+      topCount = 0;
+      ladderEnd = rung.last();
+    }
+
+
+    /**
+     * Construct a rung holding the given occurrences, with about one
+     * occurrence per bucket.
+     *
+     * The span from start to last is computed unsigned. It does not
+     * overflow: either start is later than some other occurrence or
+     * the ladder end, so not {@link Long#MIN_VALUE}, or the span is
+     * that of a single bucket.
+     *
+     * @param occurrences Occurrences to put into the rung, oldest
+     * first.
+     * @param start First time the rung has to cover.
+     * @param last Last time the rung has to cover.
+     * @return New rung.
+     */
+    Rung rungOf(final List<Occurrence<State>> occurrences,
+                final long start,
+                final long last) {
+      final long span = last - start + 1;
+      long width = divideRoundingUp(span, occurrences.size());
+      if (width < 0) {
+        width = Long.MAX_VALUE;
+      }
+      final int count = (int) divideRoundingUp(span, width);
+      final Rung rung = new Rung(start, width, 0, null);
+      final Object[] buckets = new Object[count];
+      for (final Occurrence<State> occurrence : occurrences) {
+        final int index = rung.indexOf(occurrence.time.absoluteValue);
+        @SuppressWarnings("unchecked")
+        final Link<State> bucket = (Link<State>) buckets[index];
+        buckets[index] = new Link<State>(occurrence, bucket);
+      }
+      return new Rung(start, width, 0, PersistentArray.of(buckets));
+    }
+
+
+    /**
+     * Construct a ladder queue from this draft.
+     *
+     * @return New ladder queue.
+     */
+    LadderQueueOccurrences<State> build() {
+      normalize();
+      return new LadderQueueOccurrences<State>(
+        top, topCount, ladderEnd, Arrays.copyOf(rungs, rungCount),
+        bottom, bottomOffset, size);
+    }
+  }
+
+
+  /**
+   * Create a new array to be used as bottom.
+   *
+   * @param length Length of the array.
+   * @return New array.
+   */
+  @SuppressWarnings("unchecked")
+  private static <State> Occurrence<State>[] newBottom(final int length) {
+    return (Occurrence<State>[]) new Occurrence<?>[length];
+  }
+
+
+  /**
+   * Get the number of occurrences.
+   *
+   * @return Number of occurrences in this collection.
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+
+  /**
+   * Get the next occurrence in constant time.
+   *
+   * @return Next (earliest) occurrence, or null if there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    return bottomOffset < bottom.length ? bottom[bottomOffset] : null;
+  }
+
+
+  /**
+   * Get the occurrences at the given time from the tier the time
+   * belongs to.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Unmodifiable collection of the occurrences at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    final long value = time.absoluteValue;
+    Link<State> list = null;
+    if (value > ladderEnd) {
+      list = top;
+    } else {
+      for (final Rung rung : rungs) {
+        if (rung.holds(value)) {
+          @SuppressWarnings("unchecked")
+          final Link<State> bucket =
+            (Link<State>) rung.buckets.get(rung.indexOf(value));
+          list = bucket;
+          break;
+        }
+      }
+      if (list == null) {
+        return Collections.unmodifiableList(
+          Arrays.asList(bottom).subList(
+            search(bottom, bottomOffset, value, false),
+            search(bottom, bottomOffset, value, true)));
+      }
+    }
+    final List<Occurrence<State>> found =
+      new ArrayList<Occurrence<State>>();
+    for (final Occurrence<State> occurrence : oldestFirst(list)) {
+      if (occurrence.time.absoluteValue == value) {
+        found.add(occurrence);
+      }
+    }
+    return Collections.unmodifiableList(found);
+  }
+
+
+  /**
+   * Add the given occurrences.
+   *
+   * Occurrences for the top or a rung are prepended to the top or
+   * their bucket in constant time, only occurrences earlier than the
+   * current bucket of the finest rung need to be inserted into the
+   * (short) sorted bottom.
+   *
+   * @param occurrences Occurrences to add.
+   * @return New Occurrences containing this object's and the given
+   * occurrences.
+   * @throws NullPointerException When any occurrence is null.
+   */
+  @Override
+  public LadderQueueOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> occurrences) {
+    final Draft<State> draft = new Draft<State>(this);
+    for (final Occurrence<State> occurrence : occurrences) {
+      draft.add(Objects.requireNonNull(occurrence,
+                                       "occurrence must not be null"));
+    }
+    return draft.size == size ? this : draft.build();
+  }
+
+
+  /**
+   * Remove the given occurrences.
+   *
+   * Each given occurrence removes at most one equal occurrence from
+   * the collection. Only the list of the top or bucket the time of
+   * the occurrence belongs to is searched.
+   *
+   * @param occurrences Occurrences to remove.
+   * @return New Occurrences without the given occurrences.
+   */
+  @Override
+  public LadderQueueOccurrences<State> without(
+    final Iterable<Occurrence<State>> occurrences) {
+    final Draft<State> draft = new Draft<State>(this);
+    for (final Occurrence<State> occurrence : occurrences) {
+      draft.remove(occurrence);
+    }
+    return draft.size == size ? this : draft.build();
+  }
+
+
+  /**
+   * Remove the next occurrence.
+   *
+   * Usually just advances the offset into the bottom, when the bottom
+   * becomes empty it is refilled from the ladder.
+   *
+   * @return Occurrences without the next occurrence, or this object
+   * if it is empty.
+   */
+  @Override
+  public LadderQueueOccurrences<State> withoutNextOccurrence() {
+    if (bottomOffset == bottom.length) {
+      return this;
+    }
+    if (bottomOffset + 1 < bottom.length) {
+      return new LadderQueueOccurrences<State>(top, topCount, ladderEnd,
+                                               rungs, bottom,
+                                               bottomOffset + 1,
+                                               size - 1);
+    }
+    final Draft<State> draft = new Draft<State>(this);
+    ++draft.bottomOffset;
+    --draft.size;
+    return draft.build();
+  }
+
+
+  /**
+   * Iterate over all occurrences, in unspecified order.
+   *
+   * @return Iterator over a snapshot of all occurrences, not
+   * supporting removal.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    final List<Occurrence<State>> all =
+      new ArrayList<Occurrence<State>>(size);
+    all.addAll(oldestFirst(top));
+    for (final Rung rung : rungs) {
+      for (int index = rung.current;
+           index < rung.buckets.length();
+           ++index) {
+        @SuppressWarnings("unchecked")
+        final Link<State> bucket = (Link<State>) rung.buckets.get(index);
+        all.addAll(oldestFirst(bucket));
+      }
+    }
+    all.addAll(Arrays.asList(bottom).subList(bottomOffset,
+                                             bottom.length));
+    return Collections.unmodifiableList(all).iterator();
+  }
+}
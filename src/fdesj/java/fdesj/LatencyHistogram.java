@@ -0,0 +1,192 @@
+package fdesj;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram of latencies, which can be recorded into by many threads
+ * at once without locking.
+ *
+ * Latencies are counted in logarithmic buckets, four per power of
+ * two, so percentiles are accurate to 25%. Recording increments
+ * counters in one of several stripes, chosen by the recording thread,
+ * so that threads rarely contend on the same counters. Reading sums
+ * up all stripes, and may miss concurrent recordings.
+ */
+public final class LatencyHistogram {
+  /**
+   * Number of buckets per power of two, as a number of bits.
+   */
+  private static final int SUB_BITS = 2;
+
+
+  /**
+   * Number of buckets.
+   */
+  private static final int BUCKETS = (Long.SIZE - SUB_BITS) << SUB_BITS;
+
+
+  /**
+   * Index of the sum of all latencies within a stripe.
+   */
+  private static final int SUM = BUCKETS;
+
+
+  /**
+   * Distance between stripes, with padding so that the counters of
+   * different stripes do not share cache lines.
+   */
+  private static final int STRIDE = BUCKETS + 1 + 16;
+
+
+  /**
+   * Mask selecting a stripe from a thread id.
+   */
+  private final int mask;
+
+
+  /**
+   * Counters of all stripes.
+   */
+  private final AtomicLongArray counters;
+
+
+  /**
+   * Construct an empty histogram, with a stripe per processor.
+   */
+  public LatencyHistogram() {
+    final int processors = Runtime.getRuntime().availableProcessors();
+    final int stripes =
+      Math.min(64, Integer.highestOneBit(Math.max(1, processors - 1)) << 1);
+    this.mask = stripes - 1;
+    this.counters = new AtomicLongArray(stripes * STRIDE);
+  }
+
+
+  /**
+   * Get the bucket of a latency.
+   *
+   * @param nanos Latency, in nanoseconds.
+   * @return Index of the bucket.
+   */
+  /* package-private */ static int bucketOf(final long nanos) {
+    if (nanos < (1L << SUB_BITS)) {
+      return (int) Math.max(0, nanos);
+    }
+    final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(nanos);
+    final int sub = (int) (nanos >>> (exponent - SUB_BITS))
+      & ((1 << SUB_BITS) - 1);
+    return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+  }
+
+
+  /**
+   * Get the largest latency of a bucket.
+   *
+   * @param bucket Index of the bucket.
+   * @return Largest latency counted in the bucket, in nanoseconds.
+   */
+  /* package-private */ static long upperBoundOf(final int bucket) {
+    if (bucket < (1 << SUB_BITS)) {
+      return bucket;
+    }
+    final int shift = (bucket >>> SUB_BITS) - 1;
+    final long lower =
+      ((long) ((1 << SUB_BITS) + (bucket & ((1 << SUB_BITS) - 1))))
+      << shift;
+    return lower + (1L << shift) - 1;
+  }
+
+
+  /**
+   * Record a latency.
+   *
+   * @param nanos Latency, in nanoseconds; negative ones count as 0.
+   */
+  public void record(final long nanos) {
+    final int stripe =
+      ((int) Thread.currentThread().getId() & mask) * STRIDE;
+    counters.getAndIncrement(stripe + bucketOf(nanos));
+    counters.getAndAdd(stripe + SUM, Math.max(0, nanos));
+  }
+
+
+  /**
+   * Sum up the counts of all stripes.
+   *
+   * @return Count of each bucket.
+   */
+  private long[] counts() {
+    final long[] counts = new long[BUCKETS];
+    for (int stripe = 0; stripe < counters.length(); stripe += STRIDE) {
+      for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+        counts[bucket] += counters.get(stripe + bucket);
+      }
+    }
+    return counts;
+  }
+
+
+  /**
+   * Get the number of recorded latencies.
+   *
+   * @return Number of recorded latencies.
+   */
+  public long getCount() {
+    long count = 0;
+    for (final long bucket : counts()) {
+      count += bucket;
+    }
+    return count;
+  }
+
+
+  /**
+   * Get the mean of the recorded latencies.
+   *
+   * @return Mean latency in nanoseconds, 0 if there are none.
+   */
+  public double getMeanNanos() {
+    long sum = 0;
+    for (int stripe = 0; stripe < counters.length(); stripe += STRIDE) {
+      sum += counters.get(stripe + SUM);
+    }
+    final long count = getCount();
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+
+  /**
+   * Get a percentile of the recorded latencies.
+   *
+   * @param percentile Percentile to get, between 0 and 100.
+   * @return Upper bound of the bucket containing the percentile, in
+   * nanoseconds, 0 if there are no recorded latencies.
+   * @throws IllegalArgumentException When the percentile is not
+   * between 0 and 100.
+   */
+  public long getPercentileNanos(final double percentile) {
+    if (! (percentile >= 0 && percentile <= 100)) {
+      throw new IllegalArgumentException(
+        "percentile must be between 0 and 100");
+    }
+    final long[] counts = counts();
+    long count = 0;
+    for (final long bucket : counts) {
+      count += bucket;
+    }
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+      seen += counts[bucket];
+      if (seen >= rank) {
+        return upperBoundOf(bucket);
+      }
+    }
+    return upperBoundOf(BUCKETS - 1);
+  }
+}
@@ -0,0 +1,401 @@
+package fdesj;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+
+/**
+ * Occurrences stored in a persistent leftist heap.
+ *
+ * The heap is never modified, deriving a new collection only copies
+ * the nodes on the paths that are actually touched and shares all
+ * other nodes with the original. Adding a single occurrence and
+ * removing the next occurrence both take O(log n) time, getting the
+ * next occurrence takes constant time.
+ *
+ * Occurrences are ordered using an {@link OccurrenceByTimeComparator}.
+ * The order of occurrences at the same time is unspecified, but
+ * deterministic: equal sequences of operations lead to equal orders.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class LeftistHeapOccurrences<State>
+  implements SizedOccurrences<State> {
+  /**
+   * A node of the heap, which is never modified after construction.
+   */
+  private static final class Node<State> {
+    /**
+     * The occurrence stored in this node.
+     */
+    final Occurrence<State> occurrence;
+
+
+    /**
+     * Left subtree, with a rank at least that of the right subtree.
+     */
+    final Node<State> left;
+
+
+    /**
+     * Right subtree.
+     */
+    final Node<State> right;
+
+
+    /**
+     * Length of the right spine of this node.
+     */
+    final int rank;
+
+
+    /**
+     * Construct a node, swapping the subtrees if necessary to keep
+     * the leftist property.
+     *
+     * @param occurrence Occurrence to store.
+     * @param one One subtree, may be null.
+     * @param two Other subtree, may be null.
+     */
+    Node(final Occurrence<State> occurrence,
+         final Node<State> one,
+         final Node<State> two) {
+      this.occurrence = occurrence;
+      if (rankOf(one) >= rankOf(two)) {
+        this.left = one;
+        this.right = two;
+      } else {
+        this.left = two;
+        this.right = one;
+      }
+      this.rank = rankOf(this.right) + 1;
+    }
+  }
+
+
+  /**
+   * Comparator used to order the occurrences.
+   */
+  private final Comparator<Occurrence<State>> comparator;
+
+
+  /**
+   * Root of the heap, null if there are no occurrences.
+   */
+  private final Node<State> root;
+
+
+  /**
+   * Number of occurrences in the heap.
+   */
+  private final int size;
+
+
+  /**
+   * Construct an empty collection of occurrences.
+   */
+  public LeftistHeapOccurrences() {
+    this(new OccurrenceByTimeComparator<State>(), null, 0);
+  }
+
+
+  /**
+   * Construct from the given heap.
+   *
+   * @param comparator Comparator used to order occurrences.
+   * @param root Root of the heap.
+   * @param size Number of occurrences in the heap.
+   */
+  private LeftistHeapOccurrences(
+    final Comparator<Occurrence<State>> comparator,
+    final Node<State> root,
+    final int size) {
+    this.comparator = comparator;
+    this.root = root;
+    this.size = size;
+  }
+
+
+  /**
+   * Get the rank of a possibly empty heap.
+   *
+   * @param node Root of the heap, may be null.
+   * @return Rank of the heap, 0 for the empty heap.
+   */
+  private static int rankOf(final Node<?> node) {
+    return node == null ? 0 : node.rank;
+  }
+
+
+  /**
+   * Merge two heaps.
+   *
+   * Only descends along the right spines, thus the recursion depth
+   * is bounded by O(log n).
+   *
+   * @param one Root of one heap, may be null.
+   * @param two Root of the other heap, may be null.
+   * @return Root of the merged heap.
+   */
+  private Node<State> merge(final Node<State> one,
+                            final Node<State> two) {
+    if (one == null) {
+      return two;
+    }
+    if (two == null) {
+      return one;
+    }
+    if (comparator.compare(one.occurrence, two.occurrence) <= 0) {
+      return new Node<State>(one.occurrence,
+                             one.left,
+                             merge(one.right, two));
+    } else {
+      return new Node<State>(two.occurrence,
+                             two.left,
+                             merge(two.right, one));
+    }
+  }
+
+
+  /**
+   * Get the number of occurrences.
+   *
+   * @return Number of occurrences in this collection.
+   */
+  @Override
+  public int size() {
+    return size;
+  }
+
+
+  /**
+   * Get the next occurrence in constant time.
+   *
+   * @return Next (earliest) occurrence, or null if there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    return root == null ? null : root.occurrence;
+  }
+
+
+  /**
+   * Collect the occurrences at the given time.
+   *
+   * Subtrees whose root is later than the given time are skipped, so
+   * this only visits occurrences which are not later than the given
+   * time.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Unmodifiable collection of the occurrences at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    final List<Occurrence<State>> found =
+      new ArrayList<Occurrence<State>>();
+    final ArrayDeque<Node<State>> pending = new ArrayDeque<Node<State>>();
+    if (root != null) {
+      pending.push(root);
+    }
+    while (! pending.isEmpty()) {
+      final Node<State> node = pending.pop();
+      final int order = node.occurrence.time.compareTo(time);
+      if (order > 0) {
+        continue;
+      }
+      if (order == 0) {
+        found.add(node.occurrence);
+      }
+      if (node.right != null) {
+        pending.push(node.right);
+      }
+      if (node.left != null) {
+        pending.push(node.left);
+      }
+    }
+    return Collections.unmodifiableList(found);
+  }
+
+
+  /**
+   * Add the given occurrences.
+   *
+   * The new occurrences are first combined into a heap of their own
+   * in linear time, which is then merged with this heap. Adding m
+   * occurrences thus takes O(m + log n) time.
+   *
+   * @param occurrences Occurrences to add.
+   * @return New Occurrences containing this object's and the given
+   * occurrences.
+   * @throws NullPointerException When any occurrence is null.
+   */
+  @Override
+  public LeftistHeapOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> occurrences) {
+    final ArrayDeque<Node<State>> heaps = new ArrayDeque<Node<State>>();
+    for (final Occurrence<State> occurrence : occurrences) {
+      heaps.add(new Node<State>(
+                  Objects.requireNonNull(occurrence,
+                                         "occurrence must not be null"),
+                  null, null));
+    }
+    if (heaps.isEmpty()) {
+      return this;
+    }
+    final int added = heaps.size();
+    while (heaps.size() > 1) {
+      heaps.add(merge(heaps.poll(), heaps.poll()));
+    }
+    return new LeftistHeapOccurrences<State>(comparator,
+                                             merge(root, heaps.poll()),
+                                             size + added);
+  }
+
+
+  /**
+   * Remove the given occurrences.
+   *
+   * Each given occurrence removes at most one equal occurrence from
+   * the collection. Only subtrees which may contain a removed
+   * occurrence are visited, and only the paths leading to removed
+   * occurrences are copied.
+   *
+   * @param occurrences Occurrences to remove.
+   * @return New Occurrences without the given occurrences.
+   */
+  @Override
+  public LeftistHeapOccurrences<State> without(
+    final Iterable<Occurrence<State>> occurrences) {
+    final Map<Occurrence<State>, Integer> remaining =
+      new HashMap<Occurrence<State>, Integer>();
+    Time latest = null;
+    for (final Occurrence<State> occurrence : occurrences) {
+      final Integer count = remaining.get(occurrence);
+      remaining.put(occurrence, count == null ? 1 : count + 1);
+      if (latest == null || occurrence.time.compareTo(latest) > 0) {
+        latest = occurrence.time;
+      }
+    }
+    if (remaining.isEmpty() || root == null) {
+      return this;
+    }
+    // Iterative post-order traversal, as the left spine of a leftist
+    // heap can be arbitrarily long. Each visited node is pushed twice,
+    // the second time (marked as expanded) the results for both of
+    // its subtrees are on top of the results stack.
+    final List<Node<State>> nodes = new ArrayList<Node<State>>();
+    final List<Boolean> expanded = new ArrayList<Boolean>();
+    final List<Node<State>> results = new ArrayList<Node<State>>();
+    int removed = 0;
+    nodes.add(root);
+    expanded.add(Boolean.FALSE);
+    while (! nodes.isEmpty()) {
+      final int top = nodes.size() - 1;
+      final Node<State> node = nodes.remove(top);
+      if (expanded.remove(top)) {
+        final Node<State> right = results.remove(results.size() - 1);
+        final Node<State> left = results.remove(results.size() - 1);
+        final Integer count = remaining.get(node.occurrence);
+        if (count != null) {
+          if (count == 1) {
+            remaining.remove(node.occurrence);
+          } else {
+            remaining.put(node.occurrence, count - 1);
+          }
+          ++removed;
+          results.add(merge(left, right));
+        } else if (left == node.left && right == node.right) {
+          results.add(node);
+        } else {
+          results.add(new Node<State>(node.occurrence, left, right));
+        }
+      } else if (node == null
+                 || remaining.isEmpty()
+                 || node.occurrence.time.compareTo(latest) > 0) {
+        results.add(node);
+      } else {
+        nodes.add(node);
+        expanded.add(Boolean.TRUE);
+        nodes.add(node.right);
+        expanded.add(Boolean.FALSE);
+        nodes.add(node.left);
+        expanded.add(Boolean.FALSE);
+      }
+    }
+    assert results.size() == 1;
+    if (removed == 0) {
+      return this;
+    }
+    return new LeftistHeapOccurrences<State>(comparator,
+                                             results.get(0),
+                                             size - removed);
+  }
+
+
+  /**
+   * Remove the next occurrence in O(log n) time.
+   *
+   * @return Occurrences without the next occurrence, or this object
+   * if it is empty.
+   */
+  @Override
+  public LeftistHeapOccurrences<State> withoutNextOccurrence() {
+    if (root == null) {
+      return this;
+    }
+    return new LeftistHeapOccurrences<State>(comparator,
+                                             merge(root.left, root.right),
+                                             size - 1);
+  }
+
+
+  /**
+   * Iterate over all occurrences, in unspecified order.
+   *
+   * @return Iterator over all occurrences, not supporting removal.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    final ArrayDeque<Node<State>> pending = new ArrayDeque<Node<State>>();
+    if (root != null) {
+      pending.push(root);
+    }
+    return new Iterator<Occurrence<State>>() {
+      @Override
+      public boolean hasNext() {
+        return ! pending.isEmpty();
+      }
+
+      @Override
+      public Occurrence<State> next() {
+        if (pending.isEmpty()) {
+          throw new NoSuchElementException();
+        }
+        final Node<State> node = pending.pop();
+        if (node.right != null) {
+          pending.push(node.right);
+        }
+        if (node.left != null) {
+          pending.push(node.left);
+        }
+        return node.occurrence;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException(
+          "occurrences are immutable");
+      }
+    };
+  }
+}
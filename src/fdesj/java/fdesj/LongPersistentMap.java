@@ -0,0 +1,742 @@
+package fdesj;
+
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+
+/**
+ * Map from long keys, such as entity ids, which is never modified,
+ * meant to be used as (part of) the simulation state.
+ *
+ * Unlike {@link PersistentMap}, the keys are neither boxed nor
+ * hashed: they directly index a trie with 32 children per node, in
+ * which only the present children are stored, indexed by a bitmap.
+ * The trie only has as many levels as the largest key needs, so for
+ * dense ids from 0 to n getting, adding and removing an entry take
+ * O(log32 n) time. Negative keys are treated as large unsigned ones,
+ * so int ids should be non-negative. Deriving a new map only copies
+ * the nodes on the path to the changed entry, as does {@link
+ * PersistentMap}, and many changes can be batched through a transient
+ * {@link Editor} in the same way. Entries are iterated in ascending
+ * (unsigned) order of their keys.
+ *
+ * Values may not be null. Maps are compared by their entries.
+ *
+ * @param <Value> Type of the values.
+ */
+public final class LongPersistentMap<Value>
+  implements Iterable<Map.Entry<Long, Value>>,
+             TransientState<LongPersistentMap<Value>> {
+  /**
+   * Number of bits of a key handled by one trie level.
+   */
+  private static final int BITS = 5;
+
+
+  /**
+   * Mask selecting the bits handled by one trie level.
+   */
+  private static final int MASK = (1 << BITS) - 1;
+
+
+  /**
+   * Number of levels needed for any key.
+   */
+  private static final int MAXIMUM_LEVELS = (Long.SIZE + BITS - 1) / BITS;
+
+
+  /**
+   * A trie node.
+   *
+   * The children are values on the lowest level, and nodes on all
+   * others. A node is only changed in place by the editor owning it,
+   * and never after that editor is done.
+   */
+  private static final class Node {
+    /**
+     * Token of the editor owning this node, null if none.
+     */
+    final Object owner;
+
+
+    /**
+     * Bitmap of the present children.
+     */
+    int bitmap;
+
+
+    /**
+     * The present children, in order of their bits.
+     */
+    Object[] children;
+
+
+    /**
+     * Construct a node.
+     *
+     * @param owner Token of the owning editor, may be null.
+     * @param bitmap Bitmap of the present children.
+     * @param children The present children.
+     */
+    Node(final Object owner, final int bitmap, final Object[] children) {
+      this.owner = owner;
+      this.bitmap = bitmap;
+      this.children = children;
+    }
+  }
+
+
+  /**
+   * Transient copy of a map, which is changed in place.
+   *
+   * As with {@link PersistentMap.Editor}, each node is copied at most
+   * once. An editor must only be used by a single thread, and not at
+   * all after {@link #persistent()} has been called.
+   *
+   * @param <Value> Type of the values.
+   */
+  public static final class Editor<Value>
+    implements Transient<LongPersistentMap<Value>> {
+    /**
+     * Token marking the nodes owned by this editor, null when done.
+     */
+    private Object token = new Object();
+
+
+    /**
+     * Root node, null if the map is empty.
+     */
+    private Node root;
+
+
+    /**
+     * Number of trie levels.
+     */
+    private int levels;
+
+
+    /**
+     * Number of entries.
+     */
+    private int size;
+
+
+    /**
+     * Construct an editor starting with the given map.
+     *
+     * @param map Map to start with.
+     */
+    private Editor(final LongPersistentMap<Value> map) {
+      this.root = map.root;
+      this.levels = map.levels;
+      this.size = map.size;
+    }
+
+
+    /**
+     * Get the token of this editor, checking that it is not done.
+     *
+     * @return Token of this editor.
+     * @throws IllegalStateException When the editor is done.
+     */
+    private Object token() {
+      if (token == null) {
+        throw new IllegalStateException("editor has been made persistent");
+      }
+      return token;
+    }
+
+
+    /**
+     * Get the number of entries.
+     *
+     * @return Number of entries.
+     */
+    public int size() {
+      token();
+      return size;
+    }
+
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key Key to look up.
+     * @return Value of the key, or null if there is none.
+     * @throws IllegalStateException When the editor is done.
+     */
+    public Value get(final long key) {
+      token();
+      return LongPersistentMap.<Value>find(root, levels, key);
+    }
+
+
+    /**
+     * Map the given key to the given value.
+     *
+     * @param key Key to map.
+     * @param value Value to map the key to.
+     * @throws NullPointerException When value is null.
+     * @throws IllegalStateException When the editor is done.
+     */
+    public void put(final long key, final Value value) {
+      final Object edit = token();
+      Objects.requireNonNull(value, "value must not be null");
+      final Value previous = LongPersistentMap.<Value>find(root, levels,
+                                                           key);
+      if (previous == value) {
+        return;
+      }
+      while (! fits(key, levels)) {
+        if (root != null) {
+          root = new Node(edit, 1, new Object[] {root});
+        }
+        ++levels;
+      }
+      root = LongPersistentMap.put(edit, root, levels, key, value);
+      if (previous == null) {
+        ++size;
+      }
+    }
+
+
+    /**
+     * Remove the given key.
+     *
+     * @param key Key to remove.
+     * @throws IllegalStateException When the editor is done.
+     */
+    public void remove(final long key) {
+      final Object edit = token();
+      if (LongPersistentMap.<Value>find(root, levels, key) != null) {
+        root = LongPersistentMap.remove(edit, root, levels, key);
+        --size;
+      }
+    }
+
+
+    /**
+     * Get the map with all changes made by this editor, which must not
+     * be used afterwards.
+     *
+     * @return Resulting map.
+     * @throws IllegalStateException When the editor is done.
+     */
+    @Override
+    public LongPersistentMap<Value> persistent() {
+      token();
+      token = null;
+      return new LongPersistentMap<Value>(root, levels, size);
+    }
+  }
+
+
+  /**
+   * Root node, null if the map is empty.
+   */
+  private final Node root;
+
+
+  /**
+   * Number of trie levels, 1 means the root holds the values.
+   */
+  private final int levels;
+
+
+  /**
+   * Number of entries.
+   */
+  private final int size;
+
+
+  /**
+   * Construct an empty map.
+   */
+  public LongPersistentMap() {
+    this(null, 1, 0);
+  }
+
+
+  /**
+   * Construct from the given trie.
+   *
+   * @param root Root node.
+   * @param levels Number of trie levels.
+   * @param size Number of entries.
+   */
+  private LongPersistentMap(final Node root,
+                            final int levels,
+                            final int size) {
+    this.root = root;
+    this.levels = levels;
+    this.size = size;
+  }
+
+
+  /**
+   * Check whether a key fits into a trie with the given number of
+   * levels.
+   *
+   * @param key Key to check.
+   * @param levels Number of trie levels.
+   * @return True if the key fits.
+   */
+  private static boolean fits(final long key, final int levels) {
+    return levels >= MAXIMUM_LEVELS || (key >>> (levels * BITS)) == 0;
+  }
+
+
+  /**
+   * Get the bit of a child in a node.
+   *
+   * @param key Key to look up.
+   * @param level Level of the node, 1 for the lowest.
+   * @return Bit of the child.
+   */
+  private static int bitOf(final long key, final int level) {
+    return 1 << ((int) (key >>> ((level - 1) * BITS)) & MASK);
+  }
+
+
+  /**
+   * Get the number of entries.
+   *
+   * @return Number of entries.
+   */
+  public int size() {
+    return size;
+  }
+
+
+  /**
+   * Get the value of a key.
+   *
+   * @param key Key to look up.
+   * @return Value of the key, or null if there is none.
+   */
+  public Value get(final long key) {
+    return LongPersistentMap.<Value>find(root, levels, key);
+  }
+
+
+  /**
+   * Check whether a key is mapped.
+   *
+   * @param key Key to look up.
+   * @return True if the key is mapped to a value.
+   */
+  public boolean containsKey(final long key) {
+    return get(key) != null;
+  }
+
+
+  /**
+   * Look up the value of a key in a trie.
+   *
+   * @param root Root node of the trie, may be null.
+   * @param levels Number of trie levels.
+   * @param key Key to look up.
+   * @param <Value> Type of the values.
+   * @return Value of the key, or null if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  private static <Value> Value find(final Node root,
+                                    final int levels,
+                                    final long key) {
+    if (root == null || ! fits(key, levels)) {
+      return null;
+    }
+    Node node = root;
+    for (int level = levels; ; --level) {
+      final int bit = bitOf(key, level);
+      if ((node.bitmap & bit) == 0) {
+        return null;
+      }
+      final Object child =
+        node.children[Integer.bitCount(node.bitmap & (bit - 1))];
+      if (level == 1) {
+        return (Value) child;
+      }
+      node = (Node) child;
+    }
+  }
+
+
+  /**
+   * Get a map with the given key mapped to the given value.
+   *
+   * @param key Key to map.
+   * @param value Value to map the key to.
+   * @return New map with the entry added or replaced, or this object
+   * if the key is already mapped to that very value.
+   * @throws NullPointerException When value is null.
+   */
+  public LongPersistentMap<Value> with(final long key, final Value value) {
+    Objects.requireNonNull(value, "value must not be null");
+    final Value previous = get(key);
+    if (previous == value) {
+      return this;
+    }
+    Node grown = root;
+    int grownLevels = levels;
+    while (! fits(key, grownLevels)) {
+      if (grown != null) {
+        grown = new Node(null, 1, new Object[] {grown});
+      }
+      ++grownLevels;
+    }
+    return new LongPersistentMap<Value>(
+      put(null, grown, grownLevels, key, value), grownLevels,
+      previous == null ? size + 1 : size);
+  }
+
+
+  /**
+   * Get a map without the given key.
+   *
+   * @param key Key to remove.
+   * @return New map without the key, or this object if there is no
+   * such key.
+   */
+  public LongPersistentMap<Value> without(final long key) {
+    if (get(key) == null) {
+      return this;
+    }
+    return new LongPersistentMap<Value>(remove(null, root, levels, key),
+                                        levels, size - 1);
+  }
+
+
+  /**
+   * Get a transient copy of this map, to batch many changes.
+   *
+   * This takes constant time, nodes are only copied when they are
+   * changed.
+   *
+   * @return New editor starting with this map.
+   */
+  @Override
+  public Editor<Value> asTransient() {
+    return new Editor<Value>(this);
+  }
+
+
+  /**
+   * Copy an array, inserting or removing an element.
+   *
+   * @param children Array to copy.
+   * @param index Index of the element.
+   * @param child Element to insert, ignored when removing.
+   * @param insert True to insert, false to remove.
+   * @return Copied array.
+   */
+  private static Object[] copy(final Object[] children,
+                               final int index,
+                               final Object child,
+                               final boolean insert) {
+    final Object[] copied =
+      new Object[children.length + (insert ? 1 : -1)];
+    System.arraycopy(children, 0, copied, 0, index);
+    if (insert) {
+      copied[index] = child;
+      System.arraycopy(children, index, copied, index + 1,
+                       children.length - index);
+    } else {
+      System.arraycopy(children, index + 1, copied, index,
+                       children.length - index - 1);
+    }
+    return copied;
+  }
+
+
+  /**
+   * Set a child of a node, in place if the node is owned by the
+   * editor.
+   *
+   * @param node Node to change.
+   * @param edit Token of the editor, null if not editing.
+   * @param index Index of the child.
+   * @param child The new child.
+   * @return Changed node.
+   */
+  private static Node set(final Node node,
+                          final Object edit,
+                          final int index,
+                          final Object child) {
+    if (edit != null && node.owner == edit) {
+      node.children[index] = child;
+      return node;
+    }
+    final Object[] children = node.children.clone();
+    children[index] = child;
+    return new Node(edit, node.bitmap, children);
+  }
+
+
+  /**
+   * Replace the children of a node, in place if the node is owned by
+   * the editor.
+   *
+   * @param node Node to change.
+   * @param edit Token of the editor, null if not editing.
+   * @param bitmap Bitmap of the new children.
+   * @param children The new children.
+   * @return Changed node.
+   */
+  private static Node replace(final Node node,
+                              final Object edit,
+                              final int bitmap,
+                              final Object[] children) {
+    if (edit != null && node.owner == edit) {
+      node.bitmap = bitmap;
+      node.children = children;
+      return node;
+    }
+    return new Node(edit, bitmap, children);
+  }
+
+
+  /**
+   * Add or replace an entry below a node.
+   *
+   * @param edit Token of the editor, null if not editing.
+   * @param node Node to add below, may be null.
+   * @param level Level of the node.
+   * @param key Key to map.
+   * @param value Value to map the key to.
+   * @return New or changed node.
+   */
+  private static Node put(final Object edit,
+                          final Node node,
+                          final int level,
+                          final long key,
+                          final Object value) {
+    final int bit = bitOf(key, level);
+    if (node == null) {
+      return new Node(edit, bit, new Object[] {
+          level == 1 ? value : put(edit, null, level - 1, key, value)});
+    }
+    final int index = Integer.bitCount(node.bitmap & (bit - 1));
+    if ((node.bitmap & bit) == 0) {
+      final Object child =
+        level == 1 ? value : put(edit, null, level - 1, key, value);
+      return replace(node, edit, node.bitmap | bit,
+                     copy(node.children, index, child, true));
+    }
+    return set(node, edit, index, level == 1
+               ? value
+               : put(edit, (Node) node.children[index], level - 1, key,
+                     value));
+  }
+
+
+  /**
+   * Remove an entry below a node.
+   *
+   * @param edit Token of the editor, null if not editing.
+   * @param node Node to remove below, containing the key.
+   * @param level Level of the node.
+   * @param key Key to remove.
+   * @return New or changed node, or null if it became empty.
+   */
+  private static Node remove(final Object edit,
+                             final Node node,
+                             final int level,
+                             final long key) {
+    final int bit = bitOf(key, level);
+    final int index = Integer.bitCount(node.bitmap & (bit - 1));
+    final Node child = level == 1
+      ? null
+      : remove(edit, (Node) node.children[index], level - 1, key);
+    if (child != null) {
+      return set(node, edit, index, child);
+    }
+    return node.bitmap == bit
+      ? null
+      : replace(node, edit, node.bitmap & ~bit,
+                copy(node.children, index, null, false));
+  }
+
+
+  /**
+   * Iterate over all entries, in ascending (unsigned) order of their
+   * keys.
+   *
+   * @return Iterator over all entries, not supporting removal.
+   */
+  @Override
+  public Iterator<Map.Entry<Long, Value>> iterator() {
+    final Node[] nodes = new Node[MAXIMUM_LEVELS + 1];
+    final int[] positions = new int[MAXIMUM_LEVELS + 1];
+    final int[] bits = new int[MAXIMUM_LEVELS + 1];
+    final long[] prefixes = new long[MAXIMUM_LEVELS + 1];
+    nodes[levels] = root;
+    return new Iterator<Map.Entry<Long, Value>>() {
+      /**
+       * Level of the node being iterated, above the root when done.
+       */
+      private int level = root == null ? levels + 1 : levels;
+
+
+      /**
+       * Descend to the next entry, if any.
+       */
+      private void advance() {
+        while (level <= levels) {
+          final Node node = nodes[level];
+          if (positions[level] == node.children.length) {
+            ++level;
+            continue;
+          }
+          // Find the bit of the child at the current position.
+          while ((node.bitmap & (1 << bits[level])) == 0) {
+            ++bits[level];
+          }
+          if (level == 1) {
+            return;
+          }
+          final long prefix = (prefixes[level] << BITS) | bits[level];
+          final Node child = (Node) node.children[positions[level]];
+          ++positions[level];
+          ++bits[level];
+          --level;
+          nodes[level] = child;
+          positions[level] = 0;
+          bits[level] = 0;
+          prefixes[level] = prefix;
+        }
+      }
+
+
+      @Override
+      public boolean hasNext() {
+        advance();
+        return level <= levels;
+      }
+
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public Map.Entry<Long, Value> next() {
+        advance();
+        if (level > levels) {
+          throw new NoSuchElementException();
+        }
+        final long key = (prefixes[1] << BITS) | bits[1];
+        final Value value = (Value) nodes[1].children[positions[1]];
+        ++positions[1];
+        ++bits[1];
+        return new AbstractMap.SimpleImmutableEntry<Long, Value>(key,
+                                                                 value);
+      }
+
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("the map is immutable");
+      }
+    };
+  }
+
+
+  /**
+   * Maps are equal if they have equal entries.
+   *
+   * @param object Object to check for equality to this.
+   * @return True if the object is a LongPersistentMap with equal
+   * entries.
+   */
+  @Override
+  public boolean equals(final Object object) {
+    if (object == this) {
+      return true;
+    }
+    if (! (object instanceof LongPersistentMap)) {
+      return false;
+    }
+    final LongPersistentMap<?> other = (LongPersistentMap<?>) object;
+    if (other.size != size) {
+      return false;
+    }
+    for (final Map.Entry<Long, Value> entry : this) {
+      if (! entry.getValue().equals(other.get(entry.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Compute a hash code from the entries, as {@link Map} does.
+   *
+   * @return hash code for this map.
+   */
+  @Override
+  public int hashCode() {
+    int hash = 0;
+    for (final Map.Entry<Long, Value> entry : this) {
+      hash += entry.hashCode();
+    }
+    return hash;
+  }
+
+
+  /**
+   * Get state changes mapping a key to a value.
+   *
+   * @param key Key to map.
+   * @param value Value to map the key to.
+   * @param <Value> Type of the values.
+   * @return State changes mapping the key, also in place.
+   * @throws NullPointerException When value is null.
+   */
+  public static <Value> TransientStateChanges<LongPersistentMap<Value>>
+    putting(final long key, final Value value) {
+    Objects.requireNonNull(value, "value must not be null");
+    return new TransientStateChanges<LongPersistentMap<Value>>() {
+      @Override
+      public LongPersistentMap<Value> applyTo(
+        final LongPersistentMap<Value> state) {
+        return state.with(key, value);
+      }
+
+
+      @Override
+      public void applyInPlace(
+        final Transient<LongPersistentMap<Value>> state) {
+        ((Editor<Value>) state).put(key, value);
+      }
+    };
+  }
+
+
+  /**
+   * Get state changes removing a key.
+   *
+   * @param key Key to remove.
+   * @param <Value> Type of the values.
+   * @return State changes removing the key, also in place.
+   */
+  public static <Value> TransientStateChanges<LongPersistentMap<Value>>
+    removing(final long key) {
+    return new TransientStateChanges<LongPersistentMap<Value>>() {
+      @Override
+      public LongPersistentMap<Value> applyTo(
+        final LongPersistentMap<Value> state) {
+        return state.without(key);
+      }
+
+
+      @Override
+      public void applyInPlace(
+        final Transient<LongPersistentMap<Value>> state) {
+        ((Editor<Value>) state).remove(key);
+      }
+    };
+  }
+}
@@ -0,0 +1,24 @@
+package fdesj;
+
+
+/**
+ * Guaranteed minimum delays of occurrences sent between the logical
+ * processes of a parallel simulation.
+ *
+ * An event processed by one logical process at some time only adds
+ * occurrences for another process which are at least the minimum
+ * delay of the channel between them later. This is typically the
+ * latency of a link between parts of a modelled system.
+ */
+public interface Lookahead {
+  /**
+   * Get the minimum delay of the channel between two processes.
+   *
+   * @param from Index of the sending process.
+   * @param to Index of the receiving process, different from the
+   * sending process.
+   * @return Positive minimum delay, or null if the sending process
+   * never adds occurrences for the receiving process.
+   */
+  Time.Duration minimumDelay(int from, int to);
+}
@@ -0,0 +1,18 @@
+package fdesj;
+
+
+/**
+ * Numeric quantity of the simulation state, such as the length of a
+ * queue.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface Measure<State> {
+  /**
+   * Measure a state.
+   *
+   * @param state State to measure.
+   * @return Value of the quantity in the state.
+   */
+  double valueOf(State state);
+}
@@ -0,0 +1,65 @@
+package fdesj;
+
+
+/**
+ * Instrumentation doing nothing, the default of the engines.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class NoInstrumentation<State>
+  implements Instrumentation<State> {
+  /**
+   * Take no timestamp.
+   *
+   * @return Always 0.
+   */
+  @Override
+  public long start() {
+    return 0;
+  }
+
+
+  /**
+   * Ignore the evaluation of an event.
+   *
+   * @param event The event.
+   * @param start Timestamp from before the call, ignored.
+   */
+  @Override
+  public void affected(final Event<State> event, final long start) {
+  }
+
+
+  /**
+   * Ignore the application of state changes.
+   *
+   * @param start Timestamp from before the call, ignored.
+   */
+  @Override
+  public void appliedToState(final long start) {
+  }
+
+
+  /**
+   * Ignore the application of occurrences changes.
+   *
+   * @param start Timestamp from before the call, ignored.
+   */
+  @Override
+  public void appliedToOccurrences(final long start) {
+  }
+
+
+  /**
+   * Ignore processed occurrences.
+   *
+   * @param time Current simulation time.
+   * @param count Number of processed occurrences.
+   * @param pending Pending occurrences afterwards.
+   */
+  @Override
+  public void processed(final Time time,
+                        final int count,
+                        final Occurrences<State> pending) {
+  }
+}
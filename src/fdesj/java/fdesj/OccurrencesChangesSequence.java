@@ -0,0 +1,96 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Occurrences changes applying other occurrences changes one after
+ * the other.
+ *
+ * Consecutive {@link OccurrencesUpdate}s are fused into one, so that
+ * they only take a single call to remove and a single call to add
+ * occurrences.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class OccurrencesChangesSequence<State>
+  implements OccurrencesChanges<State> {
+  /**
+   * The changes, in order of application.
+   */
+  private final List<OccurrencesChanges<State>> changes;
+
+
+  /**
+   * Construct a sequence of the given changes.
+   *
+   * Nested sequences are flattened, null changes are skipped.
+   *
+   * @param changes The changes, in order of application.
+   */
+  public OccurrencesChangesSequence(
+    final Iterable<? extends OccurrencesChanges<State>> changes) {
+    final List<OccurrencesChanges<State>> flattened =
+      new ArrayList<OccurrencesChanges<State>>();
+    for (final OccurrencesChanges<State> change : changes) {
+      if (change instanceof OccurrencesChangesSequence) {
+        flattened.addAll(
+          ((OccurrencesChangesSequence<State>) change).changes);
+      } else if (change != null) {
+        flattened.add(change);
+      }
+    }
+    final List<OccurrencesChanges<State>> fused =
+      new ArrayList<OccurrencesChanges<State>>();
+    final List<OccurrencesUpdate<State>> updates =
+      new ArrayList<OccurrencesUpdate<State>>();
+    for (final OccurrencesChanges<State> change : flattened) {
+      if (change instanceof OccurrencesUpdate) {
+        updates.add((OccurrencesUpdate<State>) change);
+        continue;
+      }
+      flush(updates, fused);
+      fused.add(change);
+    }
+    flush(updates, fused);
+    this.changes = fused;
+  }
+
+
+  /**
+   * Append a run of updates as a single fused update.
+   *
+   * @param updates Run of updates, cleared afterwards.
+   * @param fused Changes to append to.
+   * @param <State> Type used to represent the simulation state.
+   */
+  private static <State> void flush(
+    final List<OccurrencesUpdate<State>> updates,
+    final List<OccurrencesChanges<State>> fused) {
+    if (updates.size() == 1) {
+      fused.add(updates.get(0));
+    } else if (! updates.isEmpty()) {
+      fused.add(OccurrencesUpdate.fuse(updates));
+    }
+    updates.clear();
+  }
+
+
+  /**
+   * Apply all changes in order.
+   *
+   * @param occurrences The occurrences to which the changes will be
+   * applied.
+   * @return Occurrences with all changes applied.
+   */
+  @Override
+  public Occurrences<State> applyTo(final Occurrences<State> occurrences) {
+    Occurrences<State> current = occurrences;
+    for (final OccurrencesChanges<State> change : changes) {
+      current = change.applyTo(current);
+    }
+    return current;
+  }
+}
@@ -0,0 +1,208 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+
+/**
+ * Occurrences changes which add and remove given occurrences.
+ *
+ * The given occurrences are first removed, then the other ones are
+ * added, each with a single call. Consecutive updates can be fused
+ * into one with {@link #fuse(List)}, so that applying
+ * them takes a single {@link Occurrences#without(Iterable)} and
+ * {@link Occurrences#withNew(Iterable)} call as well.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class OccurrencesUpdate<State>
+  implements OccurrencesChanges<State> {
+  /**
+   * Occurrences to add.
+   */
+  private final List<Occurrence<State>> added;
+
+
+  /**
+   * Occurrences to remove.
+   */
+  private final List<Occurrence<State>> removed;
+
+
+  /**
+   * Construct an update adding and removing the given occurrences.
+   *
+   * @param added Occurrences to add.
+   * @param removed Occurrences to remove, before adding.
+   * @throws NullPointerException When any occurrence is null.
+   */
+  public OccurrencesUpdate(final Iterable<Occurrence<State>> added,
+                           final Iterable<Occurrence<State>> removed) {
+    this(copy(added), copy(removed));
+  }
+
+
+  /**
+   * Construct from the given lists, which are not copied.
+   *
+   * @param added Occurrences to add.
+   * @param removed Occurrences to remove.
+   */
+  private OccurrencesUpdate(final List<Occurrence<State>> added,
+                            final List<Occurrence<State>> removed) {
+    this.added = added;
+    this.removed = removed;
+  }
+
+
+  /**
+   * Copy occurrences into an unmodifiable list.
+   *
+   * @param occurrences Occurrences to copy.
+   * @param <State> Type used to represent the simulation state.
+   * @return Unmodifiable list of the occurrences.
+   * @throws NullPointerException When any occurrence is null.
+   */
+  private static <State> List<Occurrence<State>> copy(
+    final Iterable<Occurrence<State>> occurrences) {
+    final List<Occurrence<State>> copied =
+      new ArrayList<Occurrence<State>>();
+    for (final Occurrence<State> occurrence : occurrences) {
+      copied.add(Objects.requireNonNull(occurrence,
+                                        "occurrence must not be null"));
+    }
+    return Collections.unmodifiableList(copied);
+  }
+
+
+  /**
+   * Get an update only adding the given occurrences.
+   *
+   * @param added Occurrences to add.
+   * @param <State> Type used to represent the simulation state.
+   * @return Update adding the occurrences.
+   */
+  public static <State> OccurrencesUpdate<State> adding(
+    final Iterable<Occurrence<State>> added) {
+    return new OccurrencesUpdate<State>(
+      added, Collections.<Occurrence<State>>emptyList());
+  }
+
+
+  /**
+   * Get an update only removing the given occurrences.
+   *
+   * @param removed Occurrences to remove.
+   * @param <State> Type used to represent the simulation state.
+   * @return Update removing the occurrences.
+   */
+  public static <State> OccurrencesUpdate<State> removing(
+    final Iterable<Occurrence<State>> removed) {
+    return new OccurrencesUpdate<State>(
+      Collections.<Occurrence<State>>emptyList(), removed);
+  }
+
+
+  /**
+   * Fuse this update with one applied after it.
+   *
+   * @param later Update applied after this one.
+   * @return Update with the same effect as applying both.
+   */
+  public OccurrencesUpdate<State> then(final OccurrencesUpdate<State> later) {
+    return fuse(Arrays.asList(this, later));
+  }
+
+
+  /**
+   * Fuse updates applied one after the other into one.
+   *
+   * An occurrence removed by an update cancels an equal one added by
+   * an earlier update, as removing it from the occurrences instead
+   * gives an equal result. The remaining removals are done together,
+   * before all additions. Fusing takes time linear in the number of
+   * added and removed occurrences.
+   *
+   * @param updates Updates in order of application.
+   * @param <State> Type used to represent the simulation state.
+   * @return Update with the same effect as applying all updates.
+   */
+  public static <State> OccurrencesUpdate<State> fuse(
+    final List<OccurrencesUpdate<State>> updates) {
+    final List<Occurrence<State>> added = new ArrayList<Occurrence<State>>();
+    final List<Occurrence<State>> removed =
+      new ArrayList<Occurrence<State>>();
+    final Map<Occurrence<State>, Integer> cancellable =
+      new HashMap<Occurrence<State>, Integer>();
+    for (final OccurrencesUpdate<State> update : updates) {
+      for (final Occurrence<State> occurrence : update.removed) {
+        if (! take(cancellable, occurrence)) {
+          removed.add(occurrence);
+        }
+      }
+      for (final Occurrence<State> occurrence : update.added) {
+        added.add(occurrence);
+        final Integer count = cancellable.get(occurrence);
+        cancellable.put(occurrence, count == null ? 1 : count + 1);
+      }
+    }
+    // Drop the cancelled additions, which are the ones not left over
+    // in the counts.
+    final List<Occurrence<State>> remaining =
+      new ArrayList<Occurrence<State>>(added.size());
+    for (int i = added.size() - 1; i >= 0; --i) {
+      if (take(cancellable, added.get(i))) {
+        remaining.add(added.get(i));
+      }
+    }
+    Collections.reverse(remaining);
+    return new OccurrencesUpdate<State>(
+      Collections.unmodifiableList(remaining),
+      Collections.unmodifiableList(removed));
+  }
+
+
+  /**
+   * Take one from the count of an occurrence, if it is positive.
+   *
+   * @param counts Counts of occurrences.
+   * @param occurrence Occurrence whose count to take from.
+   * @param <State> Type used to represent the simulation state.
+   * @return True if the count was positive.
+   */
+  private static <State> boolean take(
+    final Map<Occurrence<State>, Integer> counts,
+    final Occurrence<State> occurrence) {
+    final Integer count = counts.get(occurrence);
+    if (count == null) {
+      return false;
+    }
+    if (count == 1) {
+      counts.remove(occurrence);
+    } else {
+      counts.put(occurrence, count - 1);
+    }
+    return true;
+  }
+
+
+  /**
+   * Remove, then add the occurrences.
+   *
+   * @param occurrences The occurrences to which the changes will be
+   * applied.
+   * @return Occurrences with the changes applied.
+   */
+  @Override
+  public Occurrences<State> applyTo(final Occurrences<State> occurrences) {
+    final Occurrences<State> remaining =
+      removed.isEmpty() ? occurrences : occurrences.without(removed);
+    return added.isEmpty() ? remaining : remaining.withNew(added);
+  }
+}
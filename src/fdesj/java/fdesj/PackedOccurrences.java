@@ -0,0 +1,785 @@
+package fdesj;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+
+/**
+ * Occurrences stored as packed, fixed-size binary records instead of
+ * as objects.
+ *
+ * Each occurrence is a record of its raw time, the index of its event
+ * class in an {@link EventRegistry}, and the fixed-size encoding of
+ * its event, without any object header, {@link Time} or {@link Event}
+ * object. Records are kept in immutable runs sorted by time, which
+ * are held in direct (off-heap) buffers once large enough. Adding
+ * occurrences sorts them into a new run, which is merged with the
+ * previous runs while these are not more than twice as large; the
+ * runs thus grow geometrically, there are logarithmically many of
+ * them, and each record is copied a logarithmic number of times.
+ * Runs are shared by all derived occurrences, each of which only
+ * keeps its position within each run. Events are decoded only when
+ * their occurrence is taken with {@link #nextOccurrence()}, iterated
+ * over, or looked up at a time, which uses binary search within the
+ * runs.
+ *
+ * Removing an occurrence adds a tombstone for its encoding, which is
+ * applied when the occurrence would become the next one or its run is
+ * merged. Removed occurrences are looked up first, with the same
+ * binary search within the runs, and ignored if they are not pending,
+ * such as those earlier than the next occurrence, so that the size
+ * stays exact and a tombstone never hides an occurrence added later.
+ * All events have to be of registered classes; others are refused
+ * with an IllegalArgumentException.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class PackedOccurrences<State>
+  implements SizedOccurrences<State> {
+  /**
+   * Size of the time and the event class index of a record.
+   */
+  private static final int HEADER = Long.SIZE / 8 + Integer.SIZE / 8;
+
+
+  /**
+   * Size of runs, in bytes, from which on they are held off-heap;
+   * smaller ones are packed into arrays.
+   */
+  private static final int DIRECT_SIZE = 64 * 1024;
+
+
+  /**
+   * Encoded occurrence, identifying its records.
+   */
+  private static final class Key {
+    /**
+     * Raw time.
+     */
+    private final long time;
+
+
+    /**
+     * Index of the event class.
+     */
+    private final int type;
+
+
+    /**
+     * Encoding of the event.
+     */
+    private final byte[] payload;
+
+
+    /**
+     * Construct an encoded occurrence.
+     *
+     * @param time Raw time.
+     * @param type Index of the event class.
+     * @param payload Encoding of the event.
+     */
+    Key(final long time, final int type, final byte[] payload) {
+      this.time = time;
+      this.type = type;
+      this.payload = payload;
+    }
+
+
+    @Override
+    public boolean equals(final Object object) {
+      if (! (object instanceof Key)) {
+        return false;
+      }
+      final Key other = (Key) object;
+      return time == other.time && type == other.type
+        && Arrays.equals(payload, other.payload);
+    }
+
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * (int) (time ^ (time >>> 32)) + type)
+        + Arrays.hashCode(payload);
+    }
+  }
+
+
+  /**
+   * Immutable run of records, sorted by time.
+   */
+  private static final class Run {
+    /**
+     * The records.
+     */
+    final ByteBuffer records;
+
+
+    /**
+     * Size of each record.
+     */
+    final int recordSize;
+
+
+    /**
+     * Number of records.
+     */
+    final int count;
+
+
+    /**
+     * Construct an empty run to be filled.
+     *
+     * @param count Number of records.
+     * @param recordSize Size of each record.
+     * @throws IllegalStateException When the run would be too large
+     * for a buffer.
+     */
+    Run(final int count, final int recordSize) {
+      final long bytes = (long) count * recordSize;
+      if (bytes > Integer.MAX_VALUE) {
+        throw new IllegalStateException("run exceeds the size of a buffer");
+      }
+      this.records = bytes >= DIRECT_SIZE
+        ? ByteBuffer.allocateDirect((int) bytes)
+        : ByteBuffer.allocate((int) bytes);
+      this.recordSize = recordSize;
+      this.count = count;
+    }
+
+
+    /**
+     * Get the raw time of a record.
+     *
+     * @param index Index of the record.
+     * @return Raw time.
+     */
+    long timeAt(final int index) {
+      return records.getLong(index * recordSize);
+    }
+
+
+    /**
+     * Get the encoded occurrence of a record.
+     *
+     * @param index Index of the record.
+     * @param registry Registry of the event classes.
+     * @return Encoded occurrence.
+     */
+    Key keyAt(final int index, final EventRegistry<?> registry) {
+      final int offset = index * recordSize;
+      final int type = records.getInt(offset + 8);
+      final byte[] payload = new byte[registry.entryOf(type).size];
+      final ByteBuffer view = records.duplicate();
+      view.position(offset + HEADER);
+      view.get(payload);
+      return new Key(records.getLong(offset), type, payload);
+    }
+
+
+    /**
+     * Copy a record of another run to the end of the given records.
+     *
+     * @param index Index of the record to write.
+     * @param from Run to copy from.
+     * @param fromIndex Index of the record in the other run.
+     */
+    void copy(final int index, final Run from, final int fromIndex) {
+      final ByteBuffer source = from.records.duplicate();
+      source.position(fromIndex * from.recordSize);
+      source.limit(source.position() + from.recordSize);
+      final ByteBuffer target = records.duplicate();
+      target.position(index * recordSize);
+      target.put(source);
+    }
+
+
+    /**
+     * Find the first record at or after a time.
+     *
+     * @param from Index of the first record to consider.
+     * @param time Raw time to search for.
+     * @return Index of the first record not earlier than the time, or
+     * the count if there is none.
+     */
+    int search(final int from, final long time) {
+      int low = from;
+      int high = count;
+      while (low < high) {
+        final int middle = (low + high) >>> 1;
+        if (timeAt(middle) < time) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+  }
+
+
+  /**
+   * Registry of the event classes.
+   */
+  private final EventRegistry<State> registry;
+
+
+  /**
+   * Runs which are not exhausted, oldest (and largest) first.
+   */
+  private final Run[] runs;
+
+
+  /**
+   * Position of the first remaining record within each run.
+   */
+  private final int[] positions;
+
+
+  /**
+   * Index of the run holding the next occurrence, -1 if empty.
+   */
+  private final int head;
+
+
+  /**
+   * Number of remaining records, including tombstoned ones.
+   */
+  private final int records;
+
+
+  /**
+   * Number of tombstones for each removed encoded occurrence.
+   */
+  private final PersistentMap<Key, Integer> tombstones;
+
+
+  /**
+   * Total number of tombstones.
+   */
+  private final int tombstoneCount;
+
+
+  /**
+   * Next occurrence, decoded when first asked for, null before.
+   */
+  private Occurrence<State> next;
+
+
+  /**
+   * Construct empty occurrences.
+   *
+   * @param registry Registry of the event classes.
+   * @throws NullPointerException When registry is null.
+   */
+  public PackedOccurrences(final EventRegistry<State> registry) {
+    this(Objects.requireNonNull(registry, "registry must not be null"),
+         new Run[0], new int[0], -1, 0, new PersistentMap<Key, Integer>(), 0);
+  }
+
+
+  /**
+   * Construct from the given parts.
+   *
+   * @param registry Registry of the event classes.
+   * @param runs Runs which are not exhausted.
+   * @param positions Position within each run.
+   * @param head Index of the run holding the next occurrence.
+   * @param records Number of remaining records.
+   * @param tombstones Tombstones of removed occurrences.
+   * @param tombstoneCount Total number of tombstones.
+   */
+  private PackedOccurrences(final EventRegistry<State> registry,
+                            final Run[] runs,
+                            final int[] positions,
+                            final int head,
+                            final int records,
+                            final PersistentMap<Key, Integer> tombstones,
+                            final int tombstoneCount) {
+    this.registry = registry;
+    this.runs = runs;
+    this.positions = positions;
+    this.head = head;
+    this.records = records;
+    this.tombstones = tombstones;
+    this.tombstoneCount = tombstoneCount;
+  }
+
+
+  /**
+   * Encode an occurrence.
+   *
+   * @param occurrence Occurrence to encode.
+   * @param scratch Buffer to encode into, reset before.
+   * @param output Output writing into the buffer.
+   * @return Encoded occurrence.
+   * @throws IllegalArgumentException When the event class is not
+   * registered, or its codec does not write the registered size.
+   * @throws IllegalStateException When encoding fails.
+   */
+  private Key encode(final Occurrence<State> occurrence,
+                     final ByteArrayOutputStream scratch,
+                     final DataOutputStream output) {
+    final EventRegistry.Entry<State, ?> entry =
+      registry.entryOf(occurrence.event);
+    scratch.reset();
+    try {
+      entry.encode(occurrence.event, output);
+      output.flush();
+    } catch (final IOException exception) {
+      throw new IllegalStateException("encoding event failed", exception);
+    }
+    if (scratch.size() != entry.size) {
+      throw new IllegalArgumentException(
+        "codec of " + occurrence.event.getClass().getName() + " wrote "
+        + scratch.size() + " instead of " + entry.size + " bytes");
+    }
+    return new Key(occurrence.time.absoluteValue, entry.id,
+                   scratch.toByteArray());
+  }
+
+
+  /**
+   * Decode the occurrence of a record.
+   *
+   * @param run Run of the record.
+   * @param index Index of the record.
+   * @return Decoded occurrence.
+   * @throws IllegalStateException When decoding fails.
+   */
+  private Occurrence<State> decode(final Run run, final int index) {
+    final int offset = index * run.recordSize;
+    final ByteBuffer payload = run.records.duplicate();
+    payload.position(offset + HEADER);
+    payload.limit(offset + run.recordSize);
+    final EventRegistry.Entry<State, ?> entry =
+      registry.entryOf(run.records.getInt(offset + 8));
+    try {
+      return new Occurrence<State>(
+        Time.of(run.records.getLong(offset)),
+        entry.decode(new DataInputStream(
+                       new ByteBufferInputStream(payload))));
+    } catch (final IOException exception) {
+      throw new IllegalStateException("decoding event failed", exception);
+    }
+  }
+
+
+  /**
+   * Derive occurrences, dropping exhausted runs and skipping
+   * tombstoned next occurrences.
+   *
+   * @param derivedRuns Runs, owned by this method.
+   * @param derivedPositions Positions within the runs, owned by this
+   * method.
+   * @param derivedRecords Number of remaining records.
+   * @param derivedTombstones Tombstones of removed occurrences.
+   * @param derivedTombstoneCount Total number of tombstones.
+   * @return New occurrences.
+   */
+  private PackedOccurrences<State> derive(
+    Run[] derivedRuns,
+    int[] derivedPositions,
+    int derivedRecords,
+    PersistentMap<Key, Integer> derivedTombstones,
+    int derivedTombstoneCount) {
+    while (true) {
+      int remaining = 0;
+      int derivedHead = -1;
+      for (int run = 0; run < derivedRuns.length; ++run) {
+        if (derivedPositions[run] == derivedRuns[run].count) {
+          continue;
+        }
+        derivedRuns[remaining] = derivedRuns[run];
+        derivedPositions[remaining] = derivedPositions[run];
+        if (derivedHead == -1
+            || derivedRuns[remaining].timeAt(derivedPositions[remaining])
+            < derivedRuns[derivedHead].timeAt(
+              derivedPositions[derivedHead])) {
+          derivedHead = remaining;
+        }
+        ++remaining;
+      }
+      if (remaining < derivedRuns.length) {
+        derivedRuns = Arrays.copyOf(derivedRuns, remaining);
+        derivedPositions = Arrays.copyOf(derivedPositions, remaining);
+      }
+      if (derivedTombstoneCount > 0 && derivedHead != -1) {
+        final Key key = derivedRuns[derivedHead].keyAt(
+          derivedPositions[derivedHead], registry);
+        final Integer tombstone = derivedTombstones.get(key);
+        if (tombstone != null) {
+          derivedTombstones = tombstone == 1
+            ? derivedTombstones.without(key)
+            : derivedTombstones.with(key, tombstone - 1);
+          --derivedTombstoneCount;
+          ++derivedPositions[derivedHead];
+          --derivedRecords;
+          continue;
+        }
+      }
+      return new PackedOccurrences<State>(
+        registry, derivedRuns, derivedPositions, derivedHead,
+        derivedRecords, derivedTombstones, derivedTombstoneCount);
+    }
+  }
+
+
+  /**
+   * Get the number of occurrences.
+   *
+   * @return Number of occurrences.
+   */
+  @Override
+  public int size() {
+    return records - tombstoneCount;
+  }
+
+
+  /**
+   * Get the number of runs the records are kept in.
+   *
+   * @return Number of runs.
+   */
+  public int getRunCount() {
+    return runs.length;
+  }
+
+
+  /**
+   * Get the next occurrence, decoding its event the first time.
+   *
+   * @return Next (earliest) occurrence, or null if there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    if (head == -1) {
+      return null;
+    }
+    Occurrence<State> decoded = next;
+    if (decoded == null) {
+      decoded = decode(runs[head], positions[head]);
+      next = decoded;
+    }
+    return decoded;
+  }
+
+
+  /**
+   * Collect the occurrences at the given time, searching each run.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Unmodifiable collection of the occurrences at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    final List<Occurrence<State>> found = new ArrayList<Occurrence<State>>();
+    final Map<Key, Integer> skipped = new HashMap<Key, Integer>();
+    for (int run = 0; run < runs.length; ++run) {
+      for (int index = runs[run].search(positions[run], time.absoluteValue);
+           index < runs[run].count
+             && runs[run].timeAt(index) == time.absoluteValue;
+           ++index) {
+        if (! skip(runs[run], index, skipped)) {
+          found.add(decode(runs[run], index));
+        }
+      }
+    }
+    return Collections.unmodifiableList(found);
+  }
+
+
+  /**
+   * Count the remaining records of an encoded occurrence, including
+   * tombstoned ones, searching each run.
+   *
+   * @param key Encoded occurrence.
+   * @return Number of records.
+   */
+  private int countOf(final Key key) {
+    int found = 0;
+    for (int run = 0; run < runs.length; ++run) {
+      for (int index = runs[run].search(positions[run], key.time);
+           index < runs[run].count && runs[run].timeAt(index) == key.time;
+           ++index) {
+        if (runs[run].keyAt(index, registry).equals(key)) {
+          ++found;
+        }
+      }
+    }
+    return found;
+  }
+
+
+  /**
+   * Check whether a record is tombstoned, counting the tombstones
+   * used up.
+   *
+   * @param run Run of the record.
+   * @param index Index of the record.
+   * @param skipped Number of used up tombstones for each occurrence.
+   * @return True if the record is tombstoned.
+   */
+  private boolean skip(final Run run,
+                       final int index,
+                       final Map<Key, Integer> skipped) {
+    if (tombstoneCount == 0) {
+      return false;
+    }
+    final Key key = run.keyAt(index, registry);
+    final Integer tombstone = tombstones.get(key);
+    if (tombstone == null) {
+      return false;
+    }
+    final Integer used = skipped.get(key);
+    final int count = used == null ? 0 : used;
+    if (count == tombstone) {
+      return false;
+    }
+    skipped.put(key, count + 1);
+    return true;
+  }
+
+
+  /**
+   * Add the given occurrences as a new run, merging it with previous
+   * runs which are not more than twice as large.
+   *
+   * Tombstoned records are dropped while merging.
+   *
+   * @param added Occurrences to add.
+   * @return New Occurrences containing this object's and the given
+   * occurrences.
+   * @throws IllegalArgumentException When an event class is not
+   * registered.
+   */
+  @Override
+  public PackedOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> added) {
+    final List<Occurrence<State>> sorted = new ArrayList<Occurrence<State>>();
+    for (final Occurrence<State> occurrence : added) {
+      sorted.add(occurrence);
+    }
+    if (sorted.isEmpty()) {
+      return this;
+    }
+    Collections.sort(sorted, new OccurrenceByTimeComparator<State>());
+    final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+    final DataOutputStream output = new DataOutputStream(scratch);
+    final List<Key> keys = new ArrayList<Key>(sorted.size());
+    int payload = 0;
+    for (final Occurrence<State> occurrence : sorted) {
+      final Key key = encode(occurrence, scratch, output);
+      keys.add(key);
+      payload = Math.max(payload, key.payload.length);
+    }
+    final Run run = new Run(keys.size(), HEADER + payload);
+    for (int index = 0; index < keys.size(); ++index) {
+      final Key key = keys.get(index);
+      final int offset = index * run.recordSize;
+      run.records.putLong(offset, key.time);
+      run.records.putInt(offset + 8, key.type);
+      final ByteBuffer target = run.records.duplicate();
+      target.position(offset + HEADER);
+      target.put(key.payload);
+    }
+    Run[] derivedRuns = Arrays.copyOf(runs, runs.length + 1);
+    int[] derivedPositions = Arrays.copyOf(positions, positions.length + 1);
+    derivedRuns[runs.length] = run;
+    PersistentMap<Key, Integer> derivedTombstones = tombstones;
+    int derivedTombstoneCount = tombstoneCount;
+    int derivedRecords = records + run.count;
+    int count = derivedRuns.length;
+    while (count >= 2
+           && derivedRuns[count - 2].count - derivedPositions[count - 2]
+           <= 2 * (derivedRuns[count - 1].count
+                   - derivedPositions[count - 1])) {
+      final Run older = derivedRuns[count - 2];
+      final Run newer = derivedRuns[count - 1];
+      int olderIndex = derivedPositions[count - 2];
+      int newerIndex = derivedPositions[count - 1];
+      final Run merged = new Run(
+        older.count - olderIndex + newer.count - newerIndex,
+        Math.max(older.recordSize, newer.recordSize));
+      int index = 0;
+      while (olderIndex < older.count || newerIndex < newer.count) {
+        final boolean fromOlder = newerIndex == newer.count
+          || (olderIndex < older.count
+              && older.timeAt(olderIndex) <= newer.timeAt(newerIndex));
+        final Run from = fromOlder ? older : newer;
+        final int fromIndex = fromOlder ? olderIndex++ : newerIndex++;
+        if (derivedTombstoneCount > 0) {
+          final Key key = from.keyAt(fromIndex, registry);
+          final Integer tombstone = derivedTombstones.get(key);
+          if (tombstone != null) {
+            derivedTombstones = tombstone == 1
+              ? derivedTombstones.without(key)
+              : derivedTombstones.with(key, tombstone - 1);
+            --derivedTombstoneCount;
+            --derivedRecords;
+            continue;
+          }
+        }
+        merged.copy(index++, from, fromIndex);
+      }
+      derivedRuns[count - 2] = index == merged.count
+        ? merged : truncated(merged, index);
+      derivedPositions[count - 2] = 0;
+      --count;
+    }
+    if (count < derivedRuns.length) {
+      derivedRuns = Arrays.copyOf(derivedRuns, count);
+      derivedPositions = Arrays.copyOf(derivedPositions, count);
+    }
+    return derive(derivedRuns, derivedPositions, derivedRecords,
+                  derivedTombstones, derivedTombstoneCount);
+  }
+
+
+  /**
+   * Copy the first records of a run into a run of their own.
+   *
+   * @param run Run to copy from.
+   * @param count Number of records to keep.
+   * @return Run with only the first records.
+   */
+  private static Run truncated(final Run run, final int count) {
+    final Run kept = new Run(count, run.recordSize);
+    for (int index = 0; index < count; ++index) {
+      kept.copy(index, run, index);
+    }
+    return kept;
+  }
+
+
+  /**
+   * Remove the given occurrences by adding tombstones for their
+   * encodings.
+   *
+   * Occurrences which are not pending are ignored; those earlier than
+   * the next occurrence without searching the runs.
+   *
+   * @param removed Occurrences to remove.
+   * @return New Occurrences without the given occurrences.
+   * @throws IllegalArgumentException When an event class is not
+   * registered.
+   */
+  @Override
+  public PackedOccurrences<State> without(
+    final Iterable<Occurrence<State>> removed) {
+    final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+    final DataOutputStream output = new DataOutputStream(scratch);
+    PersistentMap<Key, Integer> added = tombstones;
+    int addedCount = tombstoneCount;
+    for (final Occurrence<State> occurrence : removed) {
+      final Key key = encode(occurrence, scratch, output);
+      if (head == -1 || key.time < runs[head].timeAt(positions[head])) {
+        continue;
+      }
+      final Integer tombstone = added.get(key);
+      final int hidden = tombstone == null ? 0 : tombstone;
+      if (countOf(key) <= hidden) {
+        continue;
+      }
+      added = added.with(key, hidden + 1);
+      ++addedCount;
+    }
+    if (addedCount == tombstoneCount) {
+      return this;
+    }
+    return derive(runs.clone(), positions.clone(), records, added,
+                  addedCount);
+  }
+
+
+  /**
+   * Remove the next occurrence, by advancing within its run.
+   *
+   * @return Occurrences without the next occurrence, or this object
+   * if it is empty.
+   */
+  @Override
+  public PackedOccurrences<State> withoutNextOccurrence() {
+    if (head == -1) {
+      return this;
+    }
+    final int[] advanced = positions.clone();
+    ++advanced[head];
+    return derive(runs.clone(), advanced, records - 1, tombstones,
+                  tombstoneCount);
+  }
+
+
+  /**
+   * Iterate over all occurrences run by run, decoding each event when
+   * it is reached.
+   *
+   * @return Iterator over all occurrences, not supporting removal.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    final Map<Key, Integer> skipped = new HashMap<Key, Integer>();
+    return new Iterator<Occurrence<State>>() {
+      /**
+       * Index of the current run.
+       */
+      private int run;
+
+
+      /**
+       * Index within the current run.
+       */
+      private int index = runs.length == 0 ? 0 : positions[0];
+
+
+      /**
+       * Find the next record which is not tombstoned.
+       *
+       * @return True if there is one.
+       */
+      @Override
+      public boolean hasNext() {
+        while (run < runs.length) {
+          if (index == runs[run].count) {
+            ++run;
+            index = run < runs.length ? positions[run] : 0;
+          } else if (skip(runs[run], index, skipped)) {
+            ++index;
+          } else {
+            return true;
+          }
+        }
+        return false;
+      }
+
+
+      @Override
+      public Occurrence<State> next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return decode(runs[run], index++);
+      }
+
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException(
+          "occurrences are immutable");
+      }
+    };
+  }
+}
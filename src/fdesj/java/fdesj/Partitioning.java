@@ -0,0 +1,24 @@
+package fdesj;
+
+
+/**
+ * Assignment of occurrences to the logical processes of a parallel
+ * simulation.
+ *
+ * Each logical process has a state of its own and processes the
+ * occurrences assigned to it. Calling this function multiple times
+ * with equal occurrences must return the same process.
+ *
+ * @param <State> Type used to represent the state of a logical
+ * process.
+ */
+public interface Partitioning<State> {
+  /**
+   * Get the logical process an occurrence belongs to.
+   *
+   * @param occurrence Occurrence to assign.
+   * @return Index of the logical process, between 0 (inclusive) and
+   * the number of processes (exclusive).
+   */
+  int processOf(Occurrence<State> occurrence);
+}
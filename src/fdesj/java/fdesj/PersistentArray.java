@@ -0,0 +1,188 @@
+package fdesj;
+
+
+/**
+ * Fixed length array which is never modified.
+ *
+ * Elements are stored in a shallow trie with 32 children per node,
+ * so that replacing an element only copies the (at most a handful)
+ * nodes on the path to it, sharing all other nodes with the
+ * original. Subtries which hold only null elements are not stored.
+ */
+/* package-private */ final class PersistentArray {
+  /**
+   * Number of bits of an index handled by one trie level.
+   */
+  private static final int BITS = 5;
+
+
+  /**
+   * Number of children of a trie node.
+   */
+  private static final int WIDTH = 1 << BITS;
+
+
+  /**
+   * Root of the trie, never null.
+   */
+  private final Object[] root;
+
+
+  /**
+   * Number of trie levels, 1 means the root holds the elements.
+   */
+  private final int levels;
+
+
+  /**
+   * Number of elements.
+   */
+  private final int length;
+
+
+  /**
+   * Construct an array of the given length with all elements null.
+   *
+   * @param length Number of elements.
+   */
+  /* package-private */ PersistentArray(final int length) {
+    this(new Object[WIDTH], levelsFor(length), length);
+  }
+
+
+  /**
+   * Construct from the given trie.
+   *
+   * @param root Root of the trie.
+   * @param levels Number of trie levels.
+   * @param length Number of elements.
+   */
+  private PersistentArray(final Object[] root,
+                          final int levels,
+                          final int length) {
+    this.root = root;
+    this.levels = levels;
+    this.length = length;
+  }
+
+
+  /**
+   * Compute the number of trie levels necessary to hold the given
+   * number of elements.
+   *
+   * @param length Number of elements.
+   * @return Number of trie levels, at least 1.
+   */
+  private static int levelsFor(final int length) {
+    int levels = 1;
+    while (levels * BITS < Integer.SIZE - 1
+           && (1 << (levels * BITS)) < length) {
+      ++levels;
+    }
+    return levels;
+  }
+
+
+  /**
+   * Construct an array with the given elements.
+   *
+   * Takes linear time, as opposed to setting the elements one by
+   * one.
+   *
+   * @param elements Elements of the array, not retained.
+   * @return Persistent array with the given elements.
+   */
+  /* package-private */ static PersistentArray of(
+    final Object[] elements) {
+    final int levels = levelsFor(elements.length);
+    Object[] layer = elements;
+    for (int level = 0; level < levels; ++level) {
+      final Object[] parents =
+        new Object[(layer.length + WIDTH - 1) / WIDTH];
+      for (int i = 0; i < layer.length; ++i) {
+        if (layer[i] != null) {
+          if (parents[i / WIDTH] == null) {
+            parents[i / WIDTH] = new Object[WIDTH];
+          }
+          ((Object[]) parents[i / WIDTH])[i % WIDTH] = layer[i];
+        }
+      }
+      layer = parents;
+    }
+    final Object[] root = (layer.length == 0 || layer[0] == null)
+      ? new Object[WIDTH]
+      : (Object[]) layer[0];
+    return new PersistentArray(root, levels, elements.length);
+  }
+
+
+  /**
+   * Get the number of elements.
+   *
+   * @return Number of elements.
+   */
+  /* package-private */ int length() {
+    return length;
+  }
+
+
+  /**
+   * Get the element at the given index.
+   *
+   * @param index Index of the element, not checked against the
+   * length.
+   * @return The element, may be null.
+   */
+  /* package-private */ Object get(final int index) {
+    Object[] node = root;
+    for (int level = levels - 1; level > 0; --level) {
+      node = (Object[]) node[(index >>> (level * BITS)) & (WIDTH - 1)];
+      if (node == null) {
+        return null;
+      }
+    }
+    return node[index & (WIDTH - 1)];
+  }
+
+
+  /**
+   * Get an array with the element at the given index replaced.
+   *
+   * @param index Index of the element, not checked against the
+   * length.
+   * @param element New element, may be null.
+   * @return New array with the element replaced.
+   */
+  /* package-private */ PersistentArray with(final int index,
+                                            final Object element) {
+    return new PersistentArray(replaced(root, levels - 1, index, element),
+                               levels, length);
+  }
+
+
+  /**
+   * Copy the path to the given index, replacing the element.
+   *
+   * @param node Trie node at the given level, may be null.
+   * @param level Level of the node, 0 for the level holding elements.
+   * @param index Index of the element.
+   * @param element New element.
+   * @return New trie node with the element replaced.
+   */
+  private static Object[] replaced(final Object[] node,
+                                   final int level,
+                                   final int index,
+                                   final Object element) {
+    final int slot = (index >>> (level * BITS)) & (WIDTH - 1);
+    final Object[] copy = node == null
+      ? new Object[WIDTH]
+      : node.clone();
+    if (level == 0) {
+      copy[slot] = element;
+    } else {
+      copy[slot] = replaced((Object[]) copy[slot], level - 1,
+                            index, element);
+    }
+    return copy;
+  }
+}
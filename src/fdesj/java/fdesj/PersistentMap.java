@@ -0,0 +1,819 @@
+package fdesj;
+
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+
+/**
+ * Map which is never modified, stored in a hash array mapped trie,
+ * meant to be used as (part of) the simulation state.
+ *
+ * Each trie node handles 5 bits of the hash of a key and only stores
+ * the children which are actually present, indexed by a bitmap.
+ * Keys whose hashes are equal are kept in collision nodes. Getting,
+ * adding and removing an entry thus take O(log32 n) time, deriving a
+ * new map only copies the nodes on the path to the changed entry and
+ * shares all other nodes with the original. {@link #putting(Object,
+ * Object)} and {@link #removing(Object)} describe such single entry
+ * changes as {@link StateChanges}.
+ *
+ * Many changes can be batched through a transient {@link Editor},
+ * which changes the nodes it has copied in place, instead of copying
+ * them again for each change. Consecutive changes from {@link
+ * #putting(Object, Object)} and {@link #removing(Object)} in a {@link
+ * StateChangesSequence} are applied through a single editor.
+ *
+ * Neither keys nor values may be null. Maps are compared by their
+ * entries, as with {@link Map}.
+ *
+ * @param <Key> Type of the keys.
+ * @param <Value> Type of the values.
+ */
+public final class PersistentMap<Key, Value>
+  implements Iterable<Map.Entry<Key, Value>>,
+             TransientState<PersistentMap<Key, Value>> {
+  /**
+   * Number of bits of a hash handled by one trie level.
+   */
+  private static final int BITS = 5;
+
+
+  /**
+   * Mask selecting the bits handled by one trie level.
+   */
+  private static final int MASK = (1 << BITS) - 1;
+
+
+  /**
+   * A trie node.
+   *
+   * The slots hold pairs of a key and its value, or of null and a
+   * child node (either a Node or a Collision). A node is only changed
+   * in place by the editor owning it, and never after that editor is
+   * done.
+   */
+  private static final class Node {
+    /**
+     * Token of the editor owning this node, null if none.
+     */
+    final Object owner;
+
+
+    /**
+     * Bitmap of the present children.
+     */
+    int bitmap;
+
+
+    /**
+     * Pairs of the present children, in order of their bits.
+     */
+    Object[] slots;
+
+
+    /**
+     * Construct a node.
+     *
+     * @param owner Token of the owning editor, may be null.
+     * @param bitmap Bitmap of the present children.
+     * @param slots Pairs of the present children.
+     */
+    Node(final Object owner, final int bitmap, final Object[] slots) {
+      this.owner = owner;
+      this.bitmap = bitmap;
+      this.slots = slots;
+    }
+  }
+
+
+  /**
+   * Node holding entries whose keys have equal hashes, which is never
+   * modified after construction.
+   */
+  private static final class Collision {
+    /**
+     * The common hash of the keys.
+     */
+    final int hash;
+
+
+    /**
+     * Pairs of keys and values.
+     */
+    final Object[] slots;
+
+
+    /**
+     * Construct a collision node.
+     *
+     * @param hash The common hash of the keys.
+     * @param slots Pairs of keys and values.
+     */
+    Collision(final int hash, final Object[] slots) {
+      this.hash = hash;
+      this.slots = slots;
+    }
+  }
+
+
+  /**
+   * Transient copy of a map, which is changed in place.
+   *
+   * An editor copies each node at most once, the first time it
+   * changes it, and changes its copies in place afterwards. It must
+   * only be used by a single thread, and not at all after {@link
+   * #persistent()} has been called. The resulting map needs to be
+   * published safely when it is passed to other threads, as is done
+   * by executors.
+   *
+   * @param <Key> Type of the keys.
+   * @param <Value> Type of the values.
+   */
+  public static final class Editor<Key, Value>
+    implements Transient<PersistentMap<Key, Value>> {
+    /**
+     * Token marking the nodes owned by this editor, null when done.
+     */
+    private Object token = new Object();
+
+
+    /**
+     * Root node, null if the map is empty.
+     */
+    private Object root;
+
+
+    /**
+     * Number of entries.
+     */
+    private int size;
+
+
+    /**
+     * Construct an editor starting with the given map.
+     *
+     * @param map Map to start with.
+     */
+    private Editor(final PersistentMap<Key, Value> map) {
+      this.root = map.root;
+      this.size = map.size;
+    }
+
+
+    /**
+     * Get the token of this editor, checking that it is not done.
+     *
+     * @return Token of this editor.
+     * @throws IllegalStateException When the editor is done.
+     */
+    private Object token() {
+      if (token == null) {
+        throw new IllegalStateException("editor has been made persistent");
+      }
+      return token;
+    }
+
+
+    /**
+     * Get the number of entries.
+     *
+     * @return Number of entries.
+     */
+    public int size() {
+      token();
+      return size;
+    }
+
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key Key to look up.
+     * @return Value of the key, or null if there is none.
+     * @throws IllegalStateException When the editor is done.
+     */
+    public Value get(final Object key) {
+      token();
+      return PersistentMap.<Value>find(root, key);
+    }
+
+
+    /**
+     * Map the given key to the given value.
+     *
+     * @param key Key to map.
+     * @param value Value to map the key to.
+     * @throws NullPointerException When key or value is null.
+     * @throws IllegalStateException When the editor is done.
+     */
+    public void put(final Key key, final Value value) {
+      final Object edit = token();
+      Objects.requireNonNull(key, "key must not be null");
+      Objects.requireNonNull(value, "value must not be null");
+      final Value previous = PersistentMap.<Value>find(root, key);
+      if (previous != value) {
+        root = PersistentMap.put(edit, root, hashOf(key), 0, key, value);
+        if (previous == null) {
+          ++size;
+        }
+      }
+    }
+
+
+    /**
+     * Remove the given key.
+     *
+     * @param key Key to remove.
+     * @throws IllegalStateException When the editor is done.
+     */
+    public void remove(final Object key) {
+      final Object edit = token();
+      if (PersistentMap.<Value>find(root, key) != null) {
+        root = PersistentMap.remove(edit, root, hashOf(key), 0, key);
+        --size;
+      }
+    }
+
+
+    /**
+     * Get the map with all changes made by this editor, which must not
+     * be used afterwards.
+     *
+     * @return Resulting map.
+     * @throws IllegalStateException When the editor is done.
+     */
+    @Override
+    public PersistentMap<Key, Value> persistent() {
+      token();
+      token = null;
+      return new PersistentMap<Key, Value>(root, size);
+    }
+  }
+
+
+  /**
+   * Root node, null if the map is empty.
+   */
+  private final Object root;
+
+
+  /**
+   * Number of entries.
+   */
+  private final int size;
+
+
+  /**
+   * Construct an empty map.
+   */
+  public PersistentMap() {
+    this(null, 0);
+  }
+
+
+  /**
+   * Construct from the given trie.
+   *
+   * @param root Root node.
+   * @param size Number of entries.
+   */
+  private PersistentMap(final Object root, final int size) {
+    this.root = root;
+    this.size = size;
+  }
+
+
+  /**
+   * Compute the hash of a key, spreading the higher bits, which
+   * are otherwise only used deep down the trie.
+   *
+   * @param key Key to hash.
+   * @return Hash of the key.
+   */
+  private static int hashOf(final Object key) {
+    final int hash = key.hashCode();
+    return hash ^ (hash >>> 16);
+  }
+
+
+  /**
+   * Get the bit of a child in a node.
+   *
+   * @param hash Hash of the key.
+   * @param shift Position of the bits handled by the node.
+   * @return Bit of the child.
+   */
+  private static int bitOf(final int hash, final int shift) {
+    return 1 << ((hash >>> shift) & MASK);
+  }
+
+
+  /**
+   * Check whether a node may be changed in place.
+   *
+   * @param node Node to check.
+   * @param edit Token of the editor, null if not editing.
+   * @return True if the node is owned by the editor.
+   */
+  private static boolean editable(final Node node, final Object edit) {
+    return edit != null && node.owner == edit;
+  }
+
+
+  /**
+   * Get the number of entries.
+   *
+   * @return Number of entries.
+   */
+  public int size() {
+    return size;
+  }
+
+
+  /**
+   * Get the value of a key.
+   *
+   * @param key Key to look up.
+   * @return Value of the key, or null if there is none.
+   */
+  public Value get(final Object key) {
+    return PersistentMap.<Value>find(root, key);
+  }
+
+
+  /**
+   * Check whether a key is mapped.
+   *
+   * @param key Key to look up.
+   * @return True if the key is mapped to a value.
+   */
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+
+  /**
+   * Look up the value of a key in a trie.
+   *
+   * @param root Root node of the trie, may be null.
+   * @param key Key to look up.
+   * @param <Value> Type of the values.
+   * @return Value of the key, or null if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  private static <Value> Value find(final Object root, final Object key) {
+    final int hash = hashOf(key);
+    Object node = root;
+    for (int shift = 0; node instanceof Node; shift += BITS) {
+      final Node trie = (Node) node;
+      final int bit = bitOf(hash, shift);
+      if ((trie.bitmap & bit) == 0) {
+        return null;
+      }
+      final int index = 2 * Integer.bitCount(trie.bitmap & (bit - 1));
+      final Object slotKey = trie.slots[index];
+      if (slotKey == null) {
+        node = trie.slots[index + 1];
+      } else {
+        return key.equals(slotKey) ? (Value) trie.slots[index + 1] : null;
+      }
+    }
+    if (node instanceof Collision && ((Collision) node).hash == hash) {
+      final Object[] slots = ((Collision) node).slots;
+      for (int index = 0; index < slots.length; index += 2) {
+        if (key.equals(slots[index])) {
+          return (Value) slots[index + 1];
+        }
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Get a map with the given key mapped to the given value.
+   *
+   * @param key Key to map.
+   * @param value Value to map the key to.
+   * @return New map with the entry added or replaced, or this object
+   * if the key is already mapped to that very value.
+   * @throws NullPointerException When key or value is null.
+   */
+  public PersistentMap<Key, Value> with(final Key key, final Value value) {
+    Objects.requireNonNull(key, "key must not be null");
+    Objects.requireNonNull(value, "value must not be null");
+    final Value previous = get(key);
+    if (previous == value) {
+      return this;
+    }
+    return new PersistentMap<Key, Value>(
+      put(null, root, hashOf(key), 0, key, value),
+      previous == null ? size + 1 : size);
+  }
+
+
+  /**
+   * Get a map without the given key.
+   *
+   * @param key Key to remove.
+   * @return New map without the key, or this object if there is no
+   * such key.
+   */
+  public PersistentMap<Key, Value> without(final Object key) {
+    if (get(key) == null) {
+      return this;
+    }
+    return new PersistentMap<Key, Value>(remove(null, root, hashOf(key),
+                                                0, key),
+                                         size - 1);
+  }
+
+
+  /**
+   * Get a transient copy of this map, to batch many changes.
+   *
+   * This takes constant time, nodes are only copied when they are
+   * changed.
+   *
+   * @return New editor starting with this map.
+   */
+  @Override
+  public Editor<Key, Value> asTransient() {
+    return new Editor<Key, Value>(this);
+  }
+
+
+  /**
+   * Copy an array, replacing or removing a pair, or inserting one.
+   *
+   * @param slots Array to copy.
+   * @param index Index of the pair.
+   * @param key Key of the new pair.
+   * @param value Value of the new pair.
+   * @param change Number of slots added (2), removed (-2) or 0.
+   * @return Copied array.
+   */
+  private static Object[] copy(final Object[] slots,
+                               final int index,
+                               final Object key,
+                               final Object value,
+                               final int change) {
+    final Object[] copied = new Object[slots.length + change];
+    System.arraycopy(slots, 0, copied, 0, index);
+    if (change < 0) {
+      System.arraycopy(slots, index + 2, copied, index,
+                       slots.length - index - 2);
+      return copied;
+    }
+    copied[index] = key;
+    copied[index + 1] = value;
+    System.arraycopy(slots, index + 2 - change, copied, index + 2,
+                     slots.length - index - 2 + change);
+    return copied;
+  }
+
+
+  /**
+   * Set a pair of a node, in place if the node is owned by the editor.
+   *
+   * @param node Node to change.
+   * @param edit Token of the editor, null if not editing.
+   * @param index Index of the pair.
+   * @param key Key of the pair, null for a child node.
+   * @param value Value or child node of the pair.
+   * @return Changed node.
+   */
+  private static Node set(final Node node,
+                          final Object edit,
+                          final int index,
+                          final Object key,
+                          final Object value) {
+    if (editable(node, edit)) {
+      node.slots[index] = key;
+      node.slots[index + 1] = value;
+      return node;
+    }
+    return new Node(edit, node.bitmap,
+                    copy(node.slots, index, key, value, 0));
+  }
+
+
+  /**
+   * Replace the children of a node, in place if the node is owned by
+   * the editor.
+   *
+   * @param node Node to change.
+   * @param edit Token of the editor, null if not editing.
+   * @param bitmap Bitmap of the new children.
+   * @param slots Pairs of the new children.
+   * @return Changed node.
+   */
+  private static Node replace(final Node node,
+                              final Object edit,
+                              final int bitmap,
+                              final Object[] slots) {
+    if (editable(node, edit)) {
+      node.bitmap = bitmap;
+      node.slots = slots;
+      return node;
+    }
+    return new Node(edit, bitmap, slots);
+  }
+
+
+  /**
+   * Add or replace an entry below a node.
+   *
+   * @param edit Token of the editor, null if not editing.
+   * @param node Node to add below, may be null.
+   * @param hash Hash of the key.
+   * @param shift Position of the bits handled by the node.
+   * @param key Key to map.
+   * @param value Value to map the key to.
+   * @return New or changed node.
+   */
+  private static Object put(final Object edit,
+                            final Object node,
+                            final int hash,
+                            final int shift,
+                            final Object key,
+                            final Object value) {
+    if (node == null) {
+      return new Node(edit, bitOf(hash, shift), new Object[] {key, value});
+    }
+    if (node instanceof Collision) {
+      final Collision collision = (Collision) node;
+      if (collision.hash != hash) {
+        final Node parent = new Node(edit, bitOf(collision.hash, shift),
+                                     new Object[] {null, collision});
+        return put(edit, parent, hash, shift, key, value);
+      }
+      final Object[] slots = collision.slots;
+      for (int index = 0; index < slots.length; index += 2) {
+        if (key.equals(slots[index])) {
+          return new Collision(hash, copy(slots, index, key, value, 0));
+        }
+      }
+      return new Collision(hash,
+                           copy(slots, slots.length, key, value, 2));
+    }
+    final Node trie = (Node) node;
+    final int bit = bitOf(hash, shift);
+    final int index = 2 * Integer.bitCount(trie.bitmap & (bit - 1));
+    if ((trie.bitmap & bit) == 0) {
+      return replace(trie, edit, trie.bitmap | bit,
+                     copy(trie.slots, index, key, value, 2));
+    }
+    final Object slotKey = trie.slots[index];
+    final Object slotValue = trie.slots[index + 1];
+    if (slotKey == null) {
+      return set(trie, edit, index, null,
+                 put(edit, slotValue, hash, shift + BITS, key, value));
+    }
+    if (key.equals(slotKey)) {
+      return set(trie, edit, index, key, value);
+    }
+    final int slotHash = hashOf(slotKey);
+    final Object child;
+    if (slotHash == hash) {
+      child = new Collision(hash,
+                            new Object[] {slotKey, slotValue, key, value});
+    } else {
+      child = put(edit,
+                  put(edit, null, slotHash, shift + BITS, slotKey,
+                      slotValue),
+                  hash, shift + BITS, key, value);
+    }
+    return set(trie, edit, index, null, child);
+  }
+
+
+  /**
+   * Remove an entry below a node.
+   *
+   * A child which is left with a single entry is replaced by that
+   * entry, keeping the trie shallow.
+   *
+   * @param edit Token of the editor, null if not editing.
+   * @param node Node to remove below, containing the key.
+   * @param hash Hash of the key.
+   * @param shift Position of the bits handled by the node.
+   * @param key Key to remove.
+   * @return New or changed node, or null if it became empty.
+   */
+  private static Object remove(final Object edit,
+                               final Object node,
+                               final int hash,
+                               final int shift,
+                               final Object key) {
+    if (node instanceof Collision) {
+      final Object[] slots = ((Collision) node).slots;
+      for (int index = 0; index < slots.length; index += 2) {
+        if (key.equals(slots[index])) {
+          return slots.length == 2
+            ? null
+            : new Collision(hash, copy(slots, index, null, null, -2));
+        }
+      }
+      throw new AssertionError("removed key must be present");
+    }
+    final Node trie = (Node) node;
+    final int bit = bitOf(hash, shift);
+    final int index = 2 * Integer.bitCount(trie.bitmap & (bit - 1));
+    final Object child = trie.slots[index] != null
+      ? null
+      : remove(edit, trie.slots[index + 1], hash, shift + BITS, key);
+    if (child == null) {
+      return trie.bitmap == bit
+        ? null
+        : replace(trie, edit, trie.bitmap & ~bit,
+                  copy(trie.slots, index, null, null, -2));
+    }
+    final Object[] childSlots = child instanceof Node
+      ? ((Node) child).slots : ((Collision) child).slots;
+    if (childSlots.length == 2 && childSlots[0] != null) {
+      return set(trie, edit, index, childSlots[0], childSlots[1]);
+    }
+    return set(trie, edit, index, null, child);
+  }
+
+
+  /**
+   * Iterate over all entries, in unspecified order.
+   *
+   * @return Iterator over all entries, not supporting removal.
+   */
+  @Override
+  public Iterator<Map.Entry<Key, Value>> iterator() {
+    // Hashes have 32 bits, so there are at most 8 levels of nodes.
+    final Object[][] arrays = new Object[9][];
+    final int[] positions = new int[9];
+    if (root != null) {
+      arrays[0] = root instanceof Node
+        ? ((Node) root).slots : ((Collision) root).slots;
+    }
+    return new Iterator<Map.Entry<Key, Value>>() {
+      /**
+       * Depth of the array being iterated, -1 when done.
+       */
+      private int depth = root == null ? -1 : 0;
+
+
+      /**
+       * Descend to the next entry, if any.
+       */
+      private void advance() {
+        while (depth >= 0) {
+          final Object[] slots = arrays[depth];
+          final int position = positions[depth];
+          if (position == slots.length) {
+            --depth;
+          } else if (slots[position] != null) {
+            return;
+          } else {
+            positions[depth] = position + 2;
+            final Object child = slots[position + 1];
+            ++depth;
+            arrays[depth] = child instanceof Node
+              ? ((Node) child).slots : ((Collision) child).slots;
+            positions[depth] = 0;
+          }
+        }
+      }
+
+
+      @Override
+      public boolean hasNext() {
+        advance();
+        return depth >= 0;
+      }
+
+
+      @Override
+      @SuppressWarnings("unchecked")
+      public Map.Entry<Key, Value> next() {
+        advance();
+        if (depth < 0) {
+          throw new NoSuchElementException();
+        }
+        final Object[] slots = arrays[depth];
+        final int position = positions[depth];
+        positions[depth] = position + 2;
+        return new AbstractMap.SimpleImmutableEntry<Key, Value>(
+          (Key) slots[position], (Value) slots[position + 1]);
+      }
+
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("the map is immutable");
+      }
+    };
+  }
+
+
+  /**
+   * Maps are equal if they have equal entries.
+   *
+   * @param object Object to check for equality to this.
+   * @return True if the object is a PersistentMap with equal entries.
+   */
+  @Override
+  public boolean equals(final Object object) {
+    if (object == this) {
+      return true;
+    }
+    if (! (object instanceof PersistentMap)) {
+      return false;
+    }
+    final PersistentMap<?, ?> other = (PersistentMap<?, ?>) object;
+    if (other.size != size) {
+      return false;
+    }
+    for (final Map.Entry<Key, Value> entry : this) {
+      if (! entry.getValue().equals(other.get(entry.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+
+  /**
+   * Compute a hash code from the entries, as {@link Map} does.
+   *
+   * @return hash code for this map.
+   */
+  @Override
+  public int hashCode() {
+    int hash = 0;
+    for (final Map.Entry<Key, Value> entry : this) {
+      hash += entry.hashCode();
+    }
+    return hash;
+  }
+
+
+  /**
+   * Get state changes mapping a key to a value.
+   *
+   * @param key Key to map.
+   * @param value Value to map the key to.
+   * @param <Key> Type of the keys.
+   * @param <Value> Type of the values.
+   * @return State changes mapping the key, also in place.
+   * @throws NullPointerException When key or value is null.
+   */
+  public static <Key, Value>
+    TransientStateChanges<PersistentMap<Key, Value>> putting(
+      final Key key, final Value value) {
+    Objects.requireNonNull(key, "key must not be null");
+    Objects.requireNonNull(value, "value must not be null");
+    return new TransientStateChanges<PersistentMap<Key, Value>>() {
+      @Override
+      public PersistentMap<Key, Value> applyTo(
+        final PersistentMap<Key, Value> state) {
+        return state.with(key, value);
+      }
+
+
+      @Override
+      public void applyInPlace(
+        final Transient<PersistentMap<Key, Value>> state) {
+        ((Editor<Key, Value>) state).put(key, value);
+      }
+    };
+  }
+
+
+  /**
+   * Get state changes removing a key.
+   *
+   * @param key Key to remove.
+   * @param <Key> Type of the keys.
+   * @param <Value> Type of the values.
+   * @return State changes removing the key, also in place.
+   */
+  public static <Key, Value>
+    TransientStateChanges<PersistentMap<Key, Value>> removing(
+      final Key key) {
+    return new TransientStateChanges<PersistentMap<Key, Value>>() {
+      @Override
+      public PersistentMap<Key, Value> applyTo(
+        final PersistentMap<Key, Value> state) {
+        return state.without(key);
+      }
+
+
+      @Override
+      public void applyInPlace(
+        final Transient<PersistentMap<Key, Value>> state) {
+        ((Editor<Key, Value>) state).remove(key);
+      }
+    };
+  }
+}
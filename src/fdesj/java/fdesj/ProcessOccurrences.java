@@ -0,0 +1,242 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * The occurrences of a single logical process, as seen by the
+ * {@link OccurrencesChanges} of its events.
+ *
+ * Reading and removing works on the occurrences of the process
+ * itself. Added occurrences which belong to the process are added to
+ * them, too, while added occurrences belonging to other processes are
+ * collected as outgoing occurrences, to be sent to their processes.
+ *
+ * Removing occurrences of other processes is not supported, as they
+ * are not known to this process.
+ *
+ * @param <State> Type used to represent the state of a logical
+ * process.
+ */
+/* package-private */ final class ProcessOccurrences<State>
+  implements Occurrences<State> {
+  /**
+   * Element of an immutable list of outgoing occurrences.
+   */
+  private static final class Outgoing<State> {
+    /**
+     * The outgoing occurrence.
+     */
+    final Occurrence<State> occurrence;
+
+
+    /**
+     * Previously collected outgoing occurrences, may be null.
+     */
+    final Outgoing<State> previous;
+
+
+    /**
+     * Construct by appending an occurrence to a list.
+     *
+     * @param occurrence Occurrence to append.
+     * @param previous List to append to, may be null.
+     */
+    Outgoing(final Occurrence<State> occurrence,
+             final Outgoing<State> previous) {
+      this.occurrence = occurrence;
+      this.previous = previous;
+    }
+  }
+
+
+  /**
+   * Occurrences of the process.
+   */
+  private final Occurrences<State> local;
+
+
+  /**
+   * Assignment of occurrences to processes.
+   */
+  private final Partitioning<State> partitioning;
+
+
+  /**
+   * Index of the process.
+   */
+  private final int process;
+
+
+  /**
+   * Collected outgoing occurrences, latest first, may be null.
+   */
+  private final Outgoing<State> outgoing;
+
+
+  /**
+   * Construct a view on the occurrences of a process, without
+   * outgoing occurrences.
+   *
+   * @param local Occurrences of the process.
+   * @param partitioning Assignment of occurrences to processes.
+   * @param process Index of the process.
+   */
+  /* package-private */ ProcessOccurrences(
+    final Occurrences<State> local,
+    final Partitioning<State> partitioning,
+    final int process) {
+    this(local, partitioning, process, null);
+  }
+
+
+  /**
+   * Construct from the given parts.
+   *
+   * @param local Occurrences of the process.
+   * @param partitioning Assignment of occurrences to processes.
+   * @param process Index of the process.
+   * @param outgoing Collected outgoing occurrences.
+   */
+  private ProcessOccurrences(final Occurrences<State> local,
+                             final Partitioning<State> partitioning,
+                             final int process,
+                             final Outgoing<State> outgoing) {
+    this.local = local;
+    this.partitioning = partitioning;
+    this.process = process;
+    this.outgoing = outgoing;
+  }
+
+
+  /**
+   * Get the occurrences of the process.
+   *
+   * @return Occurrences of the process.
+   */
+  /* package-private */ Occurrences<State> local() {
+    return local;
+  }
+
+
+  /**
+   * Get the outgoing occurrences, in the order they were added.
+   *
+   * @return New list with the outgoing occurrences.
+   */
+  /* package-private */ List<Occurrence<State>> outgoing() {
+    final List<Occurrence<State>> occurrences =
+      new ArrayList<Occurrence<State>>();
+    for (Outgoing<State> link = outgoing;
+         link != null;
+         link = link.previous) {
+      occurrences.add(link.occurrence);
+    }
+    Collections.reverse(occurrences);
+    return occurrences;
+  }
+
+
+  /**
+   * Get the next occurrence of this process.
+   *
+   * @return Next (earliest) occurrence of the process, or null if
+   * there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    return local.nextOccurrence();
+  }
+
+
+  /**
+   * Get the occurrences of this process at the given time.
+   *
+   * Outgoing occurrences are not included.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Occurrences of the process at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    return local.at(time);
+  }
+
+
+  /**
+   * Add the occurrences belonging to this process, collect all others
+   * as outgoing occurrences.
+   *
+   * @param occurrences Occurrences to add.
+   * @return New view with the occurrences added.
+   */
+  @Override
+  public ProcessOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> occurrences) {
+    final List<Occurrence<State>> own = new ArrayList<Occurrence<State>>();
+    Outgoing<State> newOutgoing = outgoing;
+    for (final Occurrence<State> occurrence : occurrences) {
+      if (partitioning.processOf(occurrence) == process) {
+        own.add(occurrence);
+      } else {
+        newOutgoing = new Outgoing<State>(occurrence, newOutgoing);
+      }
+    }
+    return new ProcessOccurrences<State>(
+      own.isEmpty() ? local : local.withNew(own),
+      partitioning, process, newOutgoing);
+  }
+
+
+  /**
+   * Remove occurrences of this process.
+   *
+   * @param occurrences Occurrences to remove.
+   * @return New view with the occurrences removed.
+   * @throws UnsupportedOperationException When an occurrence belongs
+   * to another process.
+   */
+  @Override
+  public ProcessOccurrences<State> without(
+    final Iterable<Occurrence<State>> occurrences) {
+    for (final Occurrence<State> occurrence : occurrences) {
+      if (partitioning.processOf(occurrence) != process) {
+        throw new UnsupportedOperationException(
+          "occurrences of other logical processes cannot be removed");
+      }
+    }
+    return new ProcessOccurrences<State>(local.without(occurrences),
+                                         partitioning, process, outgoing);
+  }
+
+
+  /**
+   * Remove the next occurrence of this process.
+   *
+   * @return New view without the next occurrence, keeping the
+   * outgoing occurrences.
+   */
+  @Override
+  public ProcessOccurrences<State> withoutNextOccurrence() {
+    return new ProcessOccurrences<State>(local.withoutNextOccurrence(),
+                                         partitioning, process, outgoing);
+  }
+
+
+  /**
+   * Iterate over the occurrences of this process.
+   *
+   * Outgoing occurrences are not included.
+   *
+   * @return Iterator over the occurrences of the process.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    return local.iterator();
+  }
+}
@@ -0,0 +1,18 @@
+package fdesj;
+
+
+/**
+ * Observer of the occurrences processed by an engine.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface ProcessingObserver<State> {
+  /**
+   * Called for each processed occurrence, in the order in which their
+   * changes are applied, before applying them.
+   *
+   * @param occurrence The processed occurrence.
+   * @param changes Changes of the occurrence, may be null.
+   */
+  void processed(Occurrence<State> occurrence, Changes<State> changes);
+}
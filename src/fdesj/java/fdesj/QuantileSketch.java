@@ -0,0 +1,248 @@
+package fdesj;
+
+
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Mergeable sketch of the distribution of weighted values, giving
+ * quantiles with a bounded relative error.
+ *
+ * Values are counted, with their weights, in buckets whose bounds
+ * grow geometrically, so that any value in a bucket is within the
+ * relative accuracy of the value representing the bucket. Values
+ * which are nearly zero share a single bucket. The number of buckets
+ * is bounded; when it is exceeded, the buckets closest to zero are
+ * collapsed, losing accuracy for small magnitudes only. Sketches with
+ * equal accuracy can be merged by adding up their buckets, so the
+ * order in which values are added and sketches are merged does not
+ * matter.
+ */
+public final class QuantileSketch {
+  /**
+   * Magnitude below which values count as zero.
+   */
+  private static final double ZERO = 1e-9;
+
+
+  /**
+   * Relative accuracy of the quantiles.
+   */
+  private final double accuracy;
+
+
+  /**
+   * Ratio of the bounds of a bucket.
+   */
+  private final double gamma;
+
+
+  /**
+   * Natural logarithm of gamma.
+   */
+  private final double logGamma;
+
+
+  /**
+   * Maximum number of buckets, for either sign.
+   */
+  private final int maximumBuckets;
+
+
+  /**
+   * Weights of the buckets of positive values, by index.
+   */
+  private final TreeMap<Integer, Double> positive =
+    new TreeMap<Integer, Double>();
+
+
+  /**
+   * Weights of the buckets of negative values, by index of the
+   * magnitude.
+   */
+  private final TreeMap<Integer, Double> negative =
+    new TreeMap<Integer, Double>();
+
+
+  /**
+   * Weight of values which are nearly zero.
+   */
+  private double zero;
+
+
+  /**
+   * Total weight.
+   */
+  private double total;
+
+
+  /**
+   * Construct an empty sketch with 1% accuracy and at most 2048
+   * buckets per sign.
+   */
+  public QuantileSketch() {
+    this(0.01, 2048);
+  }
+
+
+  /**
+   * Construct an empty sketch.
+   *
+   * @param accuracy Relative accuracy of the quantiles, in (0, 1).
+   * @param maximumBuckets Maximum number of buckets, for either sign.
+   * @throws IllegalArgumentException When the accuracy is not in
+   * (0, 1) or the number of buckets is not positive.
+   */
+  public QuantileSketch(final double accuracy, final int maximumBuckets) {
+    if (! (accuracy > 0 && accuracy < 1) || maximumBuckets <= 0) {
+      throw new IllegalArgumentException(
+        "accuracy must be in (0, 1) and there must be buckets");
+    }
+    this.accuracy = accuracy;
+    this.gamma = (1 + accuracy) / (1 - accuracy);
+    this.logGamma = Math.log(gamma);
+    this.maximumBuckets = maximumBuckets;
+  }
+
+
+  /**
+   * Add a value.
+   *
+   * @param value Value to add.
+   * @param weight Weight of the value; values without positive weight
+   * are ignored.
+   */
+  public void add(final double value, final double weight) {
+    if (! (weight > 0)) {
+      return;
+    }
+    total += weight;
+    if (Math.abs(value) < ZERO) {
+      zero += weight;
+    } else if (value > 0) {
+      add(positive, indexOf(value), weight);
+    } else {
+      add(negative, indexOf(-value), weight);
+    }
+  }
+
+
+  /**
+   * Get the index of the bucket of a magnitude.
+   *
+   * @param magnitude Magnitude, not nearly zero.
+   * @return Index of the bucket.
+   */
+  private int indexOf(final double magnitude) {
+    return (int) Math.ceil(Math.log(magnitude) / logGamma);
+  }
+
+
+  /**
+   * Add weight to a bucket, collapsing buckets if there are too many.
+   *
+   * @param buckets Buckets of one sign.
+   * @param index Index of the bucket.
+   * @param weight Weight to add.
+   */
+  private void add(final TreeMap<Integer, Double> buckets,
+                   final int index,
+                   final double weight) {
+    final Double previous = buckets.get(index);
+    buckets.put(index, previous == null ? weight : previous + weight);
+    while (buckets.size() > maximumBuckets) {
+      final Map.Entry<Integer, Double> lowest = buckets.pollFirstEntry();
+      final Map.Entry<Integer, Double> next = buckets.firstEntry();
+      buckets.put(next.getKey(), next.getValue() + lowest.getValue());
+    }
+  }
+
+
+  /**
+   * Add all values of another sketch to this one.
+   *
+   * @param other Sketch to merge, with the same accuracy.
+   * @throws IllegalArgumentException When the accuracies differ.
+   */
+  public void merge(final QuantileSketch other) {
+    if (other.accuracy != accuracy) {
+      throw new IllegalArgumentException(
+        "sketches of different accuracy cannot be merged");
+    }
+    for (final Map.Entry<Integer, Double> bucket
+           : other.positive.entrySet()) {
+      add(positive, bucket.getKey(), bucket.getValue());
+    }
+    for (final Map.Entry<Integer, Double> bucket
+           : other.negative.entrySet()) {
+      add(negative, bucket.getKey(), bucket.getValue());
+    }
+    zero += other.zero;
+    total += other.total;
+  }
+
+
+  /**
+   * Get the total weight of all values.
+   *
+   * @return Total weight.
+   */
+  public double getTotalWeight() {
+    return total;
+  }
+
+
+  /**
+   * Get the value representing a bucket.
+   *
+   * @param index Index of the bucket.
+   * @return Magnitude within the relative accuracy of all magnitudes
+   * in the bucket.
+   */
+  private double valueOf(final int index) {
+    return 2 * Math.pow(gamma, index) / (gamma + 1);
+  }
+
+
+  /**
+   * Get a quantile of the values.
+   *
+   * @param quantile Quantile to get, between 0 and 1.
+   * @return Value within the relative accuracy of the quantile, or
+   * NaN if there are no values.
+   * @throws IllegalArgumentException When the quantile is not between
+   * 0 and 1.
+   */
+  public double getQuantile(final double quantile) {
+    if (! (quantile >= 0 && quantile <= 1)) {
+      throw new IllegalArgumentException(
+        "quantile must be between 0 and 1");
+    }
+    if (total == 0) {
+      return Double.NaN;
+    }
+    final double rank = quantile * total;
+    // Empty buckets must not match a rank of 0.
+    double seen = 0;
+    for (final Map.Entry<Integer, Double> bucket
+           : negative.descendingMap().entrySet()) {
+      seen += bucket.getValue();
+      if (bucket.getValue() > 0 && seen >= rank) {
+        return -valueOf(bucket.getKey());
+      }
+    }
+    seen += zero;
+    if (zero > 0 && seen >= rank) {
+      return 0;
+    }
+    for (final Map.Entry<Integer, Double> bucket : positive.entrySet()) {
+      seen += bucket.getValue();
+      if (bucket.getValue() > 0 && seen >= rank) {
+        return valueOf(bucket.getKey());
+      }
+    }
+    // Only reached due to rounding of the weights.
+    return positive.isEmpty() ? 0 : valueOf(positive.lastKey());
+  }
+}
@@ -0,0 +1,42 @@
+package fdesj;
+
+
+/**
+ * A model run in many independent replications, each with its own
+ * seed.
+ *
+ * As states are immutable, randomness of a replication is usually
+ * part of its initial state, derived from the seed. Replications run
+ * concurrently, so implementations must be safe to call from
+ * multiple threads at once.
+ *
+ * @param <State> Type used to represent the simulation state.
+ * @param <Result> Type of the output of a replication.
+ */
+public interface ReplicationModel<State, Result> {
+  /**
+   * Create the initial state of a replication.
+   *
+   * @param seed Seed of the replication.
+   * @return Initial state.
+   */
+  State initialState(long seed);
+
+
+  /**
+   * Create the initially pending occurrences of a replication.
+   *
+   * @param seed Seed of the replication.
+   * @return Initial occurrences, none earlier than the begin of time.
+   */
+  Occurrences<State> initialOccurrences(long seed);
+
+
+  /**
+   * Reduce the final state of a replication to its output.
+   *
+   * @param state State at the end of the replication.
+   * @return Output of the replication.
+   */
+  Result reduce(State state);
+}
@@ -0,0 +1,112 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Runner of many independent replications of a model, concurrently.
+ *
+ * Each replication is run by its own {@link Simulator} from the begin
+ * of time until a given end, on the given executor. How replications
+ * are spread over threads is thus up to the executor: a fixed pool of
+ * platform threads sized to the number of cores, or, on Java 21 and
+ * later, an executor creating a virtual thread per task. The outputs
+ * are streamed into an {@link Aggregator} as the replications finish,
+ * instead of being collected first.
+ *
+ * @param <State> Type used to represent the simulation state.
+ * @param <Result> Type of the output of a replication.
+ */
+public final class ReplicationRunner<State, Result> {
+  /**
+   * The replicated model.
+   */
+  private final ReplicationModel<State, Result> model;
+
+
+  /**
+   * Time until which each replication runs.
+   */
+  private final Time end;
+
+
+  /**
+   * Executor running the replications.
+   */
+  private final Executor executor;
+
+
+  /**
+   * Construct a runner.
+   *
+   * @param model The model to replicate.
+   * @param end Time until which each replication runs.
+   * @param executor Executor running the replications.
+   * @throws NullPointerException When any argument is null.
+   */
+  public ReplicationRunner(final ReplicationModel<State, Result> model,
+                           final Time end,
+                           final Executor executor) {
+    this.model = Objects.requireNonNull(model, "model must not be null");
+    this.end = Objects.requireNonNull(end, "end must not be null");
+    this.executor = Objects.requireNonNull(executor,
+                                           "executor must not be null");
+  }
+
+
+  /**
+   * Run a single replication.
+   *
+   * @param seed Seed of the replication.
+   * @return Output of the replication.
+   */
+  private Result replicate(final long seed) {
+    final Simulator<State> simulator = new Simulator<State>(
+      model.initialState(seed), model.initialOccurrences(seed),
+      Time.BEGIN);
+    simulator.runUntil(end);
+    return model.reduce(simulator.getState());
+  }
+
+
+  /**
+   * Run replications with consecutive seeds, passing their outputs to
+   * the aggregator as they finish.
+   *
+   * When a replication fails, the remaining ones are cancelled and
+   * the failure is rethrown.
+   *
+   * @param firstSeed Seed of the first replication.
+   * @param count Number of replications.
+   * @param aggregator Aggregator taking the outputs, called from the
+   * calling thread only.
+   * @return Throughput, in replications per second.
+   * @throws InterruptedException When interrupted while waiting for
+   * replications to finish.
+   * @throws IllegalStateException When a replication fails with a
+   * checked exception.
+   */
+  public double run(final long firstSeed,
+                    final int count,
+                    final Aggregator<? super Result> aggregator)
+    throws InterruptedException {
+    Objects.requireNonNull(aggregator, "aggregator must not be null");
+    final List<Callable<Result>> tasks =
+      new ArrayList<Callable<Result>>(count);
+    for (int i = 0; i < count; ++i) {
+      final long seed = firstSeed + i;
+      tasks.add(new Callable<Result>() {
+          @Override
+          public Result call() {
+            return replicate(seed);
+          }
+        });
+    }
+    return TaskStreamer.stream(executor, tasks, firstSeed, aggregator);
+  }
+}
@@ -0,0 +1,551 @@
+package fdesj;
+
+
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * Engine estimating the probability of a rare event by importance
+ * splitting, following the RESTART method.
+ *
+ * The importance of the states, given by an {@link ImportanceModel},
+ * is divided into levels by increasing thresholds; reaching the last
+ * threshold before the end time is the rare event. Whenever a
+ * simulation crosses a threshold upwards, it is split: the state and
+ * the occurrences are shared by a number of retrials, each with
+ * {@linkplain ImportanceModel#resample(Object, long) its own
+ * randomness}. A retrial is discarded when it falls below the
+ * threshold it was created at, while the simulation it was split from
+ * continues. Each path is weighted by the inverse of the number of
+ * retrials of the levels it is in, so that the weighted number of
+ * paths reaching the rare event is an unbiased estimate of its
+ * probability. Simulation effort is thus spent close to the rare
+ * event, instead of on the many trials not getting near it.
+ *
+ * Every path runs as a task of its own on the given executor, so
+ * retrials run in parallel, also to those of other trials.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class RestartSimulator<State> {
+  /**
+   * Estimate of the probability of the rare event.
+   */
+  public static final class Estimate {
+    /**
+     * Number of trials.
+     */
+    private final int trials;
+
+
+    /**
+     * Mean of the weighted hits per trial.
+     */
+    private final double mean;
+
+
+    /**
+     * Sample variance of the weighted hits per trial.
+     */
+    private final double variance;
+
+
+    /**
+     * Number of simulated paths.
+     */
+    private final long paths;
+
+
+    /**
+     * Construct an estimate from the weighted hits of each trial.
+     *
+     * @param hits Weighted hits of each trial.
+     * @param paths Number of simulated paths.
+     */
+    /* package-private */ Estimate(final double[] hits, final long paths) {
+      double sum = 0;
+      for (final double hit : hits) {
+        sum += hit;
+      }
+      this.trials = hits.length;
+      this.mean = hits.length == 0 ? Double.NaN : sum / hits.length;
+      double squares = 0;
+      for (final double hit : hits) {
+        squares += (hit - mean) * (hit - mean);
+      }
+      this.variance =
+        hits.length < 2 ? Double.NaN : squares / (hits.length - 1);
+      this.paths = paths;
+    }
+
+
+    /**
+     * Get the estimated probability of the rare event.
+     *
+     * @return Estimated probability, NaN if there were no trials.
+     */
+    public double getProbability() {
+      return mean;
+    }
+
+
+    /**
+     * Get the relative standard error of the estimate.
+     *
+     * @return Standard error divided by the estimate, infinity if the
+     * rare event has not been reached.
+     */
+    public double getRelativeError() {
+      if (mean == 0) {
+        return Double.POSITIVE_INFINITY;
+      }
+      return Math.sqrt(variance / trials) / mean;
+    }
+
+
+    /**
+     * Get the number of trials.
+     *
+     * @return Number of trials.
+     */
+    public int getTrialCount() {
+      return trials;
+    }
+
+
+    /**
+     * Get the number of simulated paths, trials and retrials, as a
+     * measure of the simulation effort.
+     *
+     * @return Number of simulated paths.
+     */
+    public long getPathCount() {
+      return paths;
+    }
+  }
+
+
+  /**
+   * Shared progress of an estimation.
+   */
+  private final class Run {
+    /**
+     * Time until which the paths run.
+     */
+    final Time end;
+
+
+    /**
+     * Weighted hits of each trial, guarded by itself.
+     */
+    final double[] hits;
+
+
+    /**
+     * Number of submitted paths.
+     */
+    final AtomicLong paths = new AtomicLong();
+
+
+    /**
+     * Number of paths not finished yet, plus one while submitting the
+     * trials.
+     */
+    final AtomicInteger pending = new AtomicInteger(1);
+
+
+    /**
+     * Released when all paths have finished.
+     */
+    final CountDownLatch done = new CountDownLatch(1);
+
+
+    /**
+     * First failure of a path, null if none.
+     */
+    final AtomicReference<Throwable> failure =
+      new AtomicReference<Throwable>();
+
+
+    /**
+     * Whether the paths should stop.
+     */
+    volatile boolean stopped;
+
+
+    /**
+     * Construct the progress of an estimation.
+     *
+     * @param end Time until which the paths run.
+     * @param trials Number of trials.
+     */
+    Run(final Time end, final int trials) {
+      this.end = end;
+      this.hits = new double[trials];
+    }
+
+
+    /**
+     * Submit a path to the executor.
+     *
+     * @param path The path.
+     */
+    void submit(final Path path) {
+      pending.incrementAndGet();
+      paths.incrementAndGet();
+      try {
+        executor.execute(path);
+      } catch (final RuntimeException exception) {
+        finished();
+        throw exception;
+      }
+    }
+
+
+    /**
+     * Note that a path has finished.
+     */
+    void finished() {
+      if (pending.decrementAndGet() == 0) {
+        done.countDown();
+      }
+    }
+
+
+    /**
+     * Note that a path has failed, stopping all others.
+     *
+     * @param cause Cause of the failure.
+     */
+    void fail(final Throwable cause) {
+      failure.compareAndSet(null, cause);
+      stopped = true;
+    }
+
+
+    /**
+     * Count a path reaching the rare event.
+     *
+     * @param trial Index of the trial of the path.
+     * @param weight Weight of the path.
+     */
+    void hit(final int trial, final double weight) {
+      synchronized (hits) {
+        hits[trial] += weight;
+      }
+    }
+  }
+
+
+  /**
+   * Path of a trial, either the trial itself or a retrial.
+   */
+  private final class Path implements Runnable {
+    /**
+     * Progress of the estimation.
+     */
+    private final Run run;
+
+
+    /**
+     * Index of the trial.
+     */
+    private final int trial;
+
+
+    /**
+     * Level at which the path starts.
+     */
+    private final int level;
+
+
+    /**
+     * Level below which the path is discarded.
+     */
+    private final int born;
+
+
+    /**
+     * Seed from which the seeds of retrials are derived.
+     */
+    private final long seed;
+
+
+    /**
+     * Snapshot from which the path starts.
+     */
+    private final Snapshot<State> start;
+
+
+    /**
+     * Number of retrials split from the path so far.
+     */
+    private long spawned;
+
+
+    /**
+     * Construct a path.
+     *
+     * @param run Progress of the estimation.
+     * @param trial Index of the trial.
+     * @param level Level at which the path starts.
+     * @param born Level below which the path is discarded.
+     * @param seed Seed from which the seeds of retrials are derived.
+     * @param start Snapshot from which the path starts.
+     */
+    Path(final Run run,
+         final int trial,
+         final int level,
+         final int born,
+         final long seed,
+         final Snapshot<State> start) {
+      this.run = run;
+      this.trial = trial;
+      this.level = level;
+      this.born = born;
+      this.seed = seed;
+      this.start = start;
+    }
+
+
+    @Override
+    public void run() {
+      try {
+        simulate();
+      } catch (final Throwable throwable) {
+        run.fail(throwable);
+      } finally {
+        run.finished();
+      }
+    }
+
+
+    /**
+     * Simulate the path until it reaches the rare event, is
+     * discarded, or reaches the end time.
+     */
+    private void simulate() {
+      final Simulator<State> simulator = start.resume();
+      int current = level;
+      while (! run.stopped) {
+        final int reached = levelOf(simulator.getState());
+        if (reached == thresholds.length) {
+          run.hit(trial, weights[current]);
+          return;
+        }
+        if (reached < born) {
+          return;
+        }
+        for (int crossed = current + 1; crossed <= reached; ++crossed) {
+          split(simulator.snapshot(), crossed);
+        }
+        current = reached;
+        final Occurrence<State> next =
+          simulator.getOccurrences().nextOccurrence();
+        if (next == null || next.time.absoluteValue > run.end.absoluteValue) {
+          return;
+        }
+        simulator.step();
+      }
+    }
+
+
+    /**
+     * Split retrials from the path, having crossed a threshold.
+     *
+     * @param at Snapshot of the path.
+     * @param crossed Level entered by crossing the threshold.
+     */
+    private void split(final Snapshot<State> at, final int crossed) {
+      for (int retrial = 1; retrial < splits[crossed - 1]; ++retrial) {
+        final long retrialSeed = mix(seed + (++spawned) * GOLDEN);
+        run.submit(new Path(
+                     run, trial, crossed, crossed, retrialSeed,
+                     new Snapshot<State>(
+                       model.resample(at.state, retrialSeed),
+                       at.occurrences, at.time)));
+      }
+    }
+  }
+
+
+  /**
+   * Increment spreading derived seeds.
+   */
+  private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+
+  /**
+   * The model of the rare event.
+   */
+  private final ImportanceModel<State> model;
+
+
+  /**
+   * Increasing thresholds of importance, the last one being the rare
+   * event.
+   */
+  private final double[] thresholds;
+
+
+  /**
+   * Number of retrials at each level but the first and the last.
+   */
+  private final int[] splits;
+
+
+  /**
+   * Weight of the paths in each level but the last.
+   */
+  private final double[] weights;
+
+
+  /**
+   * Executor running the paths.
+   */
+  private final Executor executor;
+
+
+  /**
+   * Construct an engine.
+   *
+   * @param model The model of the rare event.
+   * @param thresholds Strictly increasing thresholds of importance;
+   * the importance reaching the last one is the rare event.
+   * @param splits Number of retrials when crossing each threshold but
+   * the last, including the path crossing it.
+   * @param executor Executor running the paths.
+   * @throws NullPointerException When any argument is null.
+   * @throws IllegalArgumentException When there are no thresholds,
+   * they are not increasing, there is not a number of retrials for
+   * each but the last, or a number is not positive.
+   */
+  public RestartSimulator(final ImportanceModel<State> model,
+                          final double[] thresholds,
+                          final int[] splits,
+                          final Executor executor) {
+    this.model = Objects.requireNonNull(model, "model must not be null");
+    this.thresholds = Objects.requireNonNull(
+      thresholds, "thresholds must not be null").clone();
+    this.splits = Objects.requireNonNull(
+      splits, "splits must not be null").clone();
+    this.executor = Objects.requireNonNull(executor,
+                                           "executor must not be null");
+    if (this.thresholds.length == 0
+        || this.splits.length != this.thresholds.length - 1) {
+      throw new IllegalArgumentException(
+        "there must be thresholds, and retrials for all but the last");
+    }
+    this.weights = new double[this.thresholds.length];
+    this.weights[0] = 1;
+    for (int level = 1; level < this.thresholds.length; ++level) {
+      if (! (this.thresholds[level] > this.thresholds[level - 1])) {
+        throw new IllegalArgumentException(
+          "thresholds must be strictly increasing");
+      }
+      if (this.splits[level - 1] <= 0) {
+        throw new IllegalArgumentException(
+          "number of retrials must be positive");
+      }
+      this.weights[level] = this.weights[level - 1] / this.splits[level - 1];
+    }
+  }
+
+
+  /**
+   * Derive a well-spread seed.
+   *
+   * @param value Value to derive from.
+   * @return Derived seed.
+   */
+  private static long mix(final long value) {
+    long mixed = value;
+    mixed = (mixed ^ (mixed >>> 30)) * 0xBF58476D1CE4E5B9L;
+    mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+    return mixed ^ (mixed >>> 31);
+  }
+
+
+  /**
+   * Get the level of a state.
+   *
+   * @param state The state.
+   * @return Number of thresholds reached by the importance of the
+   * state.
+   */
+  private int levelOf(final State state) {
+    final double importance = model.importanceOf(state);
+    int level = 0;
+    while (level < thresholds.length && importance >= thresholds[level]) {
+      ++level;
+    }
+    return level;
+  }
+
+
+  /**
+   * Estimate the probability of reaching the rare event from a
+   * snapshot until the given end time.
+   *
+   * Each trial starts from the snapshot, resampled with consecutive
+   * seeds. When a path fails, the others are stopped and the failure
+   * is rethrown.
+   *
+   * @param initial Snapshot the trials start from.
+   * @param end Time until which the paths run.
+   * @param firstSeed Seed of the first trial.
+   * @param trials Number of trials.
+   * @return The estimate.
+   * @throws InterruptedException When interrupted while waiting for
+   * paths to finish; the paths are stopped.
+   * @throws IllegalStateException When a path fails with a checked
+   * exception.
+   */
+  public Estimate estimate(final Snapshot<State> initial,
+                           final Time end,
+                           final long firstSeed,
+                           final int trials) throws InterruptedException {
+    Objects.requireNonNull(initial, "initial must not be null");
+    Objects.requireNonNull(end, "end must not be null");
+    final Run run = new Run(end, trials);
+    try {
+      for (int trial = 0; trial < trials; ++trial) {
+        final long seed = firstSeed + trial;
+        run.submit(new Path(
+                     run, trial, 0, 0, seed,
+                     new Snapshot<State>(
+                       model.resample(initial.state, seed),
+                       initial.occurrences, initial.time)));
+      }
+    } catch (final RuntimeException exception) {
+      run.stopped = true;
+      throw exception;
+    } finally {
+      run.finished();
+    }
+    try {
+      run.done.await();
+    } catch (final InterruptedException exception) {
+      run.stopped = true;
+      throw exception;
+    }
+    final Throwable cause = run.failure.get();
+    if (cause instanceof RuntimeException) {
+      throw (RuntimeException) cause;
+    }
+    if (cause instanceof Error) {
+      throw (Error) cause;
+    }
+    if (cause != null) {
+      throw new IllegalStateException(cause);
+    }
+    synchronized (run.hits) {
+      return new Estimate(run.hits.clone(), run.paths.get());
+    }
+  }
+}
@@ -0,0 +1,288 @@
+package fdesj;
+
+
+import java.util.Objects;
+
+
+/**
+ * Engine running a simulation.
+ *
+ * Repeatedly takes the next occurrence, lets its event {@linkplain
+ * Event#affect(Object, Time) describe its changes} and applies these
+ * changes to the simulation state and the pending occurrences. The
+ * occurrence being processed is removed from the pending occurrences
+ * before its changes are applied.
+ *
+ * While state, occurrences and time are immutable values, the
+ * simulator itself is not: it holds the current values and replaces
+ * them with each processed occurrence. Apart from what the events and
+ * the occurrences allocate, processing an occurrence does not
+ * allocate. A simulator must not be used by multiple threads at once.
+ *
+ * Changes which are null, as well as null parts of changes, are
+ * treated as "no changes".
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class Simulator<State> {
+  /**
+   * Current simulation state.
+   */
+  private State state;
+
+
+  /**
+   * Current pending occurrences.
+   */
+  private Occurrences<State> occurrences;
+
+
+  /**
+   * Current time.
+   */
+  private Time time;
+
+
+  /**
+   * Number of occurrences processed so far.
+   */
+  private long processed;
+
+
+  /**
+   * Observer of processed occurrences, may be null.
+   */
+  private ProcessingObserver<State> observer;
+
+
+  /**
+   * Observer of the trajectory, may be null.
+   */
+  private TrajectoryObserver<State> trajectoryObserver;
+
+
+  /**
+   * Instrumentation reporting what the simulator does.
+   */
+  private Instrumentation<State> instrumentation =
+    new NoInstrumentation<State>();
+
+
+  /**
+   * Construct a simulator starting at the given time.
+   *
+   * @param state Initial simulation state.
+   * @param occurrences Initially pending occurrences, none of them
+   * earlier than the given time.
+   * @param time Time at which the simulation starts.
+   * @throws NullPointerException When occurrences or time is null.
+   */
+  public Simulator(final State state,
+                   final Occurrences<State> occurrences,
+                   final Time time) {
+    this.state = state;
+    this.occurrences = Objects.requireNonNull(
+      occurrences, "occurrences must not be null");
+    this.time = Objects.requireNonNull(time, "time must not be null");
+  }
+
+
+  /**
+   * Get the current simulation state.
+   *
+   * @return Current state.
+   */
+  public State getState() {
+    return state;
+  }
+
+
+  /**
+   * Get the currently pending occurrences.
+   *
+   * @return Current occurrences.
+   */
+  public Occurrences<State> getOccurrences() {
+    return occurrences;
+  }
+
+
+  /**
+   * Get the current time, which is the time of the last processed
+   * occurrence or the time the simulation has been run until.
+   *
+   * @return Current time.
+   */
+  public Time getTime() {
+    return time;
+  }
+
+
+  /**
+   * Get the number of occurrences processed so far.
+   *
+   * @return Number of processed occurrences.
+   */
+  public long getProcessedCount() {
+    return processed;
+  }
+
+
+  /**
+   * Take a snapshot of the simulation, from which branches can be
+   * forked while this simulator continues independently.
+   *
+   * @return Snapshot of the current state, occurrences and time.
+   */
+  public Snapshot<State> snapshot() {
+    return new Snapshot<State>(state, occurrences, time);
+  }
+
+
+  /**
+   * Set the observer of processed occurrences.
+   *
+   * @param observer Observer of processed occurrences, null for none.
+   */
+  public void setObserver(final ProcessingObserver<State> observer) {
+    this.observer = observer;
+  }
+
+
+  /**
+   * Set the observer of the trajectory.
+   *
+   * @param trajectoryObserver Observer of the states after each
+   * processed occurrence, null for none.
+   */
+  public void setTrajectoryObserver(
+    final TrajectoryObserver<State> trajectoryObserver) {
+    this.trajectoryObserver = trajectoryObserver;
+  }
+
+
+  /**
+   * Set the instrumentation reporting what the simulator does.
+   *
+   * @param instrumentation Instrumentation to use, null for none.
+   */
+  public void setInstrumentation(
+    final Instrumentation<State> instrumentation) {
+    this.instrumentation = instrumentation == null
+      ? new NoInstrumentation<State>() : instrumentation;
+  }
+
+
+  /**
+   * Process the given (next) occurrence.
+   *
+   * @param next Next occurrence, already removed from the pending
+   * occurrences.
+   * @throws IllegalStateException When the occurrence is earlier than
+   * the current time.
+   */
+  private void process(final Occurrence<State> next) {
+    if (next.time.absoluteValue < time.absoluteValue) {
+      throw new IllegalStateException(
+        "occurrence at " + next.time.absoluteValue
+        + " is earlier than the current time " + time.absoluteValue);
+    }
+    time = next.time;
+    final long start = instrumentation.start();
+    final Changes<State> changes = next.event.affect(state, time);
+    instrumentation.affected(next.event, start);
+    if (observer != null) {
+      observer.processed(next, changes);
+    }
+    if (changes != null) {
+      if (changes.toState != null) {
+        final long stateStart = instrumentation.start();
+        state = changes.toState.applyTo(state);
+        instrumentation.appliedToState(stateStart);
+      }
+      if (changes.toOccurrences != null) {
+        final long occurrencesStart = instrumentation.start();
+        occurrences = changes.toOccurrences.applyTo(occurrences);
+        instrumentation.appliedToOccurrences(occurrencesStart);
+      }
+    }
+    ++processed;
+    instrumentation.processed(time, 1, occurrences);
+    if (trajectoryObserver != null) {
+      trajectoryObserver.committed(time, state, next);
+    }
+  }
+
+
+  /**
+   * Process the next occurrence, if there is one.
+   *
+   * @return True if an occurrence has been processed, false if there
+   * are no pending occurrences.
+   * @throws IllegalStateException When the next occurrence is earlier
+   * than the current time.
+   */
+  public boolean step() {
+    final Occurrence<State> next = occurrences.nextOccurrence();
+    if (next == null) {
+      return false;
+    }
+    occurrences = occurrences.withoutNextOccurrence();
+    process(next);
+    return true;
+  }
+
+
+  /**
+   * Process at most the given number of occurrences.
+   *
+   * @param count Maximum number of occurrences to process.
+   * @return Number of occurrences processed, less than count only if
+   * there are no more pending occurrences.
+   * @throws IllegalStateException When an occurrence is earlier than
+   * the current time.
+   */
+  public long run(final long count) {
+    long done = 0;
+    while (done < count) {
+      final Occurrence<State> next = occurrences.nextOccurrence();
+      if (next == null) {
+        break;
+      }
+      occurrences = occurrences.withoutNextOccurrence();
+      process(next);
+      ++done;
+    }
+    return done;
+  }
+
+
+  /**
+   * Process all occurrences up to (and including) the given time,
+   * then advance the current time to the given time.
+   *
+   * The time is not changed if it is already later than the given
+   * time.
+   *
+   * @param end Time until which to run.
+   * @return Number of occurrences processed.
+   * @throws IllegalStateException When an occurrence is earlier than
+   * the current time.
+   */
+  public long runUntil(final Time end) {
+    long done = 0;
+    while (true) {
+      final Occurrence<State> next = occurrences.nextOccurrence();
+      if (next == null || next.time.absoluteValue > end.absoluteValue) {
+        break;
+      }
+      occurrences = occurrences.withoutNextOccurrence();
+      process(next);
+      ++done;
+    }
+    if (end.absoluteValue > time.absoluteValue) {
+      time = end;
+    }
+    return done;
+  }
+}
@@ -0,0 +1,16 @@
+package fdesj;
+
+
+/**
+ * Occurrences which know their number in constant time.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface SizedOccurrences<State> extends Occurrences<State> {
+  /**
+   * Get the number of occurrences, in constant time.
+   *
+   * @return Number of occurrences in this collection.
+   */
+  int size();
+}
@@ -0,0 +1,88 @@
+package fdesj;
+
+
+import java.util.Objects;
+
+
+/**
+ * Snapshot of a running simulation, from which any number of branches
+ * can be forked.
+ *
+ * As state, occurrences and time are immutable values, taking a
+ * snapshot copies nothing, and branches share all structure with the
+ * snapshot and with each other, up to what each of them changes. The
+ * warm-up of a simulation can thus be run once, and each variant be
+ * continued from its snapshot, possibly in parallel by a {@link
+ * ForkRunner}.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class Snapshot<State> {
+  /**
+   * Simulation state.
+   */
+  public final State state;
+
+
+  /**
+   * Pending occurrences.
+   */
+  public final Occurrences<State> occurrences;
+
+
+  /**
+   * Time of the snapshot.
+   */
+  public final Time time;
+
+
+  /**
+   * Construct a snapshot.
+   *
+   * @param state Simulation state.
+   * @param occurrences Pending occurrences, none of them earlier than
+   * the given time.
+   * @param time Time of the snapshot.
+   * @throws NullPointerException When occurrences or time is null.
+   */
+  public Snapshot(final State state,
+                  final Occurrences<State> occurrences,
+                  final Time time) {
+    this.state = state;
+    this.occurrences = Objects.requireNonNull(
+      occurrences, "occurrences must not be null");
+    this.time = Objects.requireNonNull(time, "time must not be null");
+  }
+
+
+  /**
+   * Fork a branch differing by the given changes, such as a modified
+   * parameter in the state or additional occurrences.
+   *
+   * Occurrences added by the changes must not be earlier than the
+   * time of the snapshot.
+   *
+   * @param changes Changes distinguishing the branch, null for none.
+   * @return Snapshot of the branch, at the same time.
+   */
+  public Snapshot<State> fork(final Changes<State> changes) {
+    if (changes == null) {
+      return this;
+    }
+    return new Snapshot<State>(
+      changes.toState == null ? state : changes.toState.applyTo(state),
+      changes.toOccurrences == null
+      ? occurrences : changes.toOccurrences.applyTo(occurrences),
+      time);
+  }
+
+
+  /**
+   * Construct a simulator continuing from the snapshot.
+   *
+   * @return New simulator, independent of any other.
+   */
+  public Simulator<State> resume() {
+    return new Simulator<State>(state, occurrences, time);
+  }
+}
@@ -0,0 +1,1084 @@
+package fdesj;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+
+/**
+ * Occurrences keeping only the near future in memory, and spilling
+ * the far future to files.
+ *
+ * Occurrences up to a horizon are held by wrapped, in-memory
+ * occurrences. Later ones are collected in a list, which is spilled
+ * to a new segment file once it grows beyond a threshold: sorted by
+ * time, in blocks which are compressed separately, and memory-mapped
+ * for reading. Whenever the near future runs empty, the horizon is
+ * moved a window past the earliest far occurrence, and the far
+ * occurrences up to it are promoted into the near future in a batch,
+ * decoding only the blocks they are in. Heap usage thus depends on the
+ * number of occurrences within a window, the threshold, and the
+ * number of blocks, instead of on all pending occurrences.
+ *
+ * Segment files are immutable and shared by all occurrences derived
+ * from the same empty occurrences; each of them only keeps its
+ * position within each segment. Removing a far occurrence adds a
+ * tombstone for it, which is applied when it would be promoted.
+ * Removed far occurrences are looked up first, as with {@link
+ * #at(Time)}, and ignored if they are not pending, so that a
+ * tombstone never hides an occurrence added later. Iterating decodes
+ * the spilled segments; looking up occurrences at a time later than
+ * the horizon decodes only the blocks which may hold that time.
+ *
+ * Events are written with a {@link Codec}; the decoded events have to
+ * equal the encoded ones. Segment files are created as new temporary
+ * files with the given prefix, so files left over by earlier runs do
+ * not get in the way. A segment file is deleted as soon as all its
+ * occurrences have been promoted; occurrences derived before keep
+ * reading it through its mapping, or, where mapped files cannot be
+ * deleted, it is kept until closing. Closing any of the derived
+ * occurrences deletes the remaining segment files of all of them;
+ * none of them may be used afterwards. Failures to write or read
+ * segment files are thrown as IllegalStateException.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class SpillingOccurrences<State>
+  implements Occurrences<State>, Closeable {
+  /**
+   * Number of occurrences per compressed block.
+   */
+  private static final int BLOCK_SIZE = 1024;
+
+
+  /**
+   * Storage of the segment files, shared by all derived occurrences.
+   */
+  private static final class Storage<State> {
+    /**
+     * Directory of the segment files.
+     */
+    final Path directory;
+
+
+    /**
+     * Prefix of the names of the segment files.
+     */
+    final String prefix;
+
+
+    /**
+     * Codec of events.
+     */
+    final Codec<Event<State>> events;
+
+
+    /**
+     * Created segment files, guarded by the storage.
+     */
+    private final List<Path> files = new ArrayList<Path>();
+
+
+    /**
+     * Whether the storage has been closed, guarded by the storage.
+     */
+    private boolean closed;
+
+
+    /**
+     * Construct a storage.
+     *
+     * @param directory Directory of the segment files.
+     * @param prefix Prefix of the names of the segment files.
+     * @param events Codec of events.
+     */
+    Storage(final Path directory,
+            final String prefix,
+            final Codec<Event<State>> events) {
+      this.directory = directory;
+      this.prefix = prefix;
+      this.events = events;
+    }
+
+
+    /**
+     * Create a new, empty segment file.
+     *
+     * @return Path of the segment file.
+     * @throws IOException When creating the file fails.
+     * @throws IllegalStateException When the storage has been closed.
+     */
+    synchronized Path newFile() throws IOException {
+      if (closed) {
+        throw new IllegalStateException("occurrences have been closed");
+      }
+      final Path file = Files.createTempFile(directory, prefix, ".spill");
+      files.add(file);
+      return file;
+    }
+
+
+    /**
+     * Delete a segment file whose occurrences have all been promoted.
+     *
+     * A file which cannot be deleted while it is mapped is kept, to be
+     * deleted when closing.
+     *
+     * @param file Path of the segment file.
+     */
+    synchronized void release(final Path file) {
+      if (! files.remove(file)) {
+        return;
+      }
+      try {
+        Files.deleteIfExists(file);
+      } catch (final IOException exception) {
+        files.add(file);
+      }
+    }
+
+
+    /**
+     * Delete all segment files.
+     *
+     * @throws IOException When deleting fails.
+     */
+    synchronized void close() throws IOException {
+      closed = true;
+      for (final Path file : files) {
+        Files.deleteIfExists(file);
+      }
+      files.clear();
+    }
+  }
+
+
+  /**
+   * Immutable, sorted segment of spilled occurrences.
+   */
+  private static final class Segment<State> {
+    /**
+     * Storage the segment belongs to.
+     */
+    private final Storage<State> storage;
+
+
+    /**
+     * Path of the segment file.
+     */
+    private final Path file;
+
+
+    /**
+     * Mapping of the segment file.
+     */
+    private final MappedByteBuffer bytes;
+
+
+    /**
+     * Offset of each block in the file.
+     */
+    private final int[] offsets;
+
+
+    /**
+     * Number of occurrences in each block.
+     */
+    private final int[] counts;
+
+
+    /**
+     * Time of the first occurrence in each block.
+     */
+    private final long[] firsts;
+
+
+    /**
+     * Last decoded block, null if none.
+     */
+    private volatile Block<State> last;
+
+
+    /**
+     * Write sorted occurrences to a new segment file.
+     *
+     * @param storage Storage to write to.
+     * @param sorted Occurrences, sorted by time.
+     * @throws IllegalStateException When writing fails.
+     */
+    Segment(final Storage<State> storage,
+            final List<Occurrence<State>> sorted) {
+      this.storage = storage;
+      final int blocks = (sorted.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      this.offsets = new int[blocks + 1];
+      this.counts = new int[blocks];
+      this.firsts = new long[blocks];
+      final ByteArrayOutputStream scratch = new ByteArrayOutputStream();
+      try {
+        this.file = storage.newFile();
+      } catch (final IOException exception) {
+        throw new IllegalStateException(
+          "spilling occurrences failed", exception);
+      }
+      try (FileChannel channel = FileChannel.open(
+             file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        long position = 0;
+        for (int block = 0; block < blocks; ++block) {
+          final int from = block * BLOCK_SIZE;
+          final int to = Math.min(sorted.size(), from + BLOCK_SIZE);
+          scratch.reset();
+          try (DataOutputStream output = new DataOutputStream(
+                 new DeflaterOutputStream(scratch))) {
+            for (final Occurrence<State> occurrence
+                   : sorted.subList(from, to)) {
+              output.writeLong(occurrence.time.absoluteValue);
+              storage.events.encode(occurrence.event, output);
+            }
+          }
+          final ByteBuffer written = ByteBuffer.wrap(scratch.toByteArray());
+          while (written.hasRemaining()) {
+            channel.write(written);
+          }
+          position += scratch.size();
+          if (position > Integer.MAX_VALUE) {
+            throw new IllegalStateException(
+              "segment exceeds the size of a mapping");
+          }
+          offsets[block + 1] = (int) position;
+          counts[block] = to - from;
+          firsts[block] = sorted.get(from).time.absoluteValue;
+        }
+        this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+      } catch (final IOException exception) {
+        throw new IllegalStateException(
+          "spilling occurrences failed", exception);
+      }
+    }
+
+
+    /**
+     * Delete the segment file, once all its occurrences have been
+     * promoted.
+     */
+    void release() {
+      storage.release(file);
+    }
+
+
+    /**
+     * Get the number of blocks.
+     *
+     * @return Number of blocks.
+     */
+    int blockCount() {
+      return counts.length;
+    }
+
+
+    /**
+     * Get the time of the first occurrence in a block.
+     *
+     * @param index Index of the block.
+     * @return Time of the first occurrence.
+     */
+    long first(final int index) {
+      return firsts[index];
+    }
+
+
+    /**
+     * Decode a block.
+     *
+     * @param index Index of the block.
+     * @return Occurrences of the block, sorted by time.
+     * @throws IllegalStateException When reading fails.
+     */
+    List<Occurrence<State>> block(final int index) {
+      final Block<State> cached = last;
+      if (cached != null && cached.index == index) {
+        return cached.occurrences;
+      }
+      final ByteBuffer slice = bytes.duplicate();
+      slice.position(offsets[index]);
+      slice.limit(offsets[index + 1]);
+      final List<Occurrence<State>> occurrences =
+        new ArrayList<Occurrence<State>>(counts[index]);
+      try (DataInputStream input = new DataInputStream(
+             new InflaterInputStream(new ByteBufferInputStream(slice)))) {
+        for (int i = 0; i < counts[index]; ++i) {
+          final Time time = Time.of(input.readLong());
+          occurrences.add(new Occurrence<State>(
+                            time, storage.events.decode(input)));
+        }
+      } catch (final IOException exception) {
+        throw new IllegalStateException(
+          "reading spilled occurrences failed", exception);
+      }
+      last = new Block<State>(index, occurrences);
+      return occurrences;
+    }
+  }
+
+
+  /**
+   * Decoded block of a segment.
+   */
+  private static final class Block<State> {
+    /**
+     * Index of the block.
+     */
+    final int index;
+
+
+    /**
+     * Occurrences of the block.
+     */
+    final List<Occurrence<State>> occurrences;
+
+
+    /**
+     * Construct a decoded block.
+     *
+     * @param index Index of the block.
+     * @param occurrences Occurrences of the block.
+     */
+    Block(final int index, final List<Occurrence<State>> occurrences) {
+      this.index = index;
+      this.occurrences = occurrences;
+    }
+  }
+
+
+  /**
+   * Position within a segment, of the first occurrence not yet
+   * promoted.
+   */
+  private static final class Cursor<State> {
+    /**
+     * The segment.
+     */
+    final Segment<State> segment;
+
+
+    /**
+     * Index of the block.
+     */
+    final int block;
+
+
+    /**
+     * Index within the block.
+     */
+    final int index;
+
+
+    /**
+     * Time of the occurrence at the position.
+     */
+    final long time;
+
+
+    /**
+     * Construct a position.
+     *
+     * @param segment The segment.
+     * @param block Index of the block.
+     * @param index Index within the block.
+     * @param time Time of the occurrence at the position.
+     */
+    Cursor(final Segment<State> segment,
+           final int block,
+           final int index,
+           final long time) {
+      this.segment = segment;
+      this.block = block;
+      this.index = index;
+      this.time = time;
+    }
+
+
+    /**
+     * Collect the occurrences up to a time, advancing the position.
+     *
+     * @param limit Latest time of the collected occurrences.
+     * @param collected List to add the occurrences to.
+     * @return Position after the collected occurrences, null if the
+     * segment is exhausted.
+     */
+    Cursor<State> collect(final long limit,
+                          final List<Occurrence<State>> collected) {
+      if (time > limit) {
+        return this;
+      }
+      int at = index;
+      for (int current = block; current < segment.blockCount(); ++current) {
+        final List<Occurrence<State>> occurrences = segment.block(current);
+        for (; at < occurrences.size(); ++at) {
+          final Occurrence<State> occurrence = occurrences.get(at);
+          if (occurrence.time.absoluteValue > limit) {
+            return new Cursor<State>(segment, current, at,
+                                     occurrence.time.absoluteValue);
+          }
+          collected.add(occurrence);
+        }
+        at = 0;
+      }
+      return null;
+    }
+
+
+    /**
+     * Collect the occurrences at a time, from the position on. Only
+     * the blocks which may hold that time are decoded, found by a
+     * binary search over the times of their first occurrences.
+     *
+     * @param wanted Time of the collected occurrences.
+     * @param collected List to add the occurrences to.
+     */
+    void at(final long wanted, final List<Occurrence<State>> collected) {
+      if (wanted < time) {
+        return;
+      }
+      int low = block;
+      int high = segment.blockCount() - 1;
+      while (low < high) {
+        final int middle = (low + high + 1) >>> 1;
+        if (segment.first(middle) < wanted) {
+          low = middle;
+        } else {
+          high = middle - 1;
+        }
+      }
+      int at = low == block ? index : 0;
+      for (int current = low; current < segment.blockCount(); ++current) {
+        final List<Occurrence<State>> occurrences = segment.block(current);
+        for (; at < occurrences.size(); ++at) {
+          final Occurrence<State> occurrence = occurrences.get(at);
+          final long value = occurrence.time.absoluteValue;
+          if (value > wanted) {
+            return;
+          }
+          if (value == wanted) {
+            collected.add(occurrence);
+          }
+        }
+        at = 0;
+      }
+    }
+
+
+    /**
+     * Iterate over the occurrences from the position on, decoding one
+     * block at a time.
+     *
+     * @return Iterator over the occurrences, not supporting removal.
+     */
+    Iterator<Occurrence<State>> iterator() {
+      return new Iterator<Occurrence<State>>() {
+        /**
+         * Index of the current block.
+         */
+        private int current = block;
+
+
+        /**
+         * Index within the current block.
+         */
+        private int at = index;
+
+
+        @Override
+        public boolean hasNext() {
+          return current < segment.blockCount();
+        }
+
+
+        @Override
+        public Occurrence<State> next() {
+          if (! hasNext()) {
+            throw new NoSuchElementException();
+          }
+          final List<Occurrence<State>> occurrences =
+            segment.block(current);
+          final Occurrence<State> occurrence = occurrences.get(at++);
+          if (at == occurrences.size()) {
+            ++current;
+            at = 0;
+          }
+          return occurrence;
+        }
+
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException(
+            "occurrences are immutable");
+        }
+      };
+    }
+  }
+
+
+  /**
+   * Link of the list of far occurrences which are not spilled yet.
+   */
+  private static final class Link<State> {
+    /**
+     * The occurrence.
+     */
+    final Occurrence<State> occurrence;
+
+
+    /**
+     * Next link, null at the end.
+     */
+    final Link<State> next;
+
+
+    /**
+     * Construct a link.
+     *
+     * @param occurrence The occurrence.
+     * @param next Next link, null at the end.
+     */
+    Link(final Occurrence<State> occurrence, final Link<State> next) {
+      this.occurrence = occurrence;
+      this.next = next;
+    }
+  }
+
+
+  /**
+   * Storage of the segment files.
+   */
+  private final Storage<State> storage;
+
+
+  /**
+   * Width of the window of occurrences promoted at once.
+   */
+  private final long window;
+
+
+  /**
+   * Number of far occurrences above which they are spilled.
+   */
+  private final int spillThreshold;
+
+
+  /**
+   * Occurrences in the near future, which is empty only if there are
+   * no far occurrences.
+   */
+  private final Occurrences<State> near;
+
+
+  /**
+   * Latest time of the near future.
+   */
+  private final long horizon;
+
+
+  /**
+   * Far occurrences which are not spilled yet.
+   */
+  private final Link<State> far;
+
+
+  /**
+   * Number of far occurrences which are not spilled yet.
+   */
+  private final int farCount;
+
+
+  /**
+   * Earliest time of the far occurrences which are not spilled yet.
+   */
+  private final long farEarliest;
+
+
+  /**
+   * Positions within the spilled segments which are not exhausted.
+   */
+  private final List<Cursor<State>> spilled;
+
+
+  /**
+   * Number of tombstones for each removed far occurrence.
+   */
+  private final PersistentMap<Occurrence<State>, Integer> tombstones;
+
+
+  /**
+   * Construct empty occurrences.
+   *
+   * @param empty Empty occurrences to hold the near future.
+   * @param directory Directory of the segment files.
+   * @param prefix Prefix of the names of the segment files.
+   * @param events Codec of events.
+   * @param window Width of the window of occurrences promoted at once.
+   * @param spillThreshold Number of far occurrences above which they
+   * are spilled to a segment file.
+   * @throws NullPointerException When any argument is null.
+   * @throws IllegalArgumentException When the occurrences are not
+   * empty, or the window or the threshold is not positive.
+   */
+  public SpillingOccurrences(final Occurrences<State> empty,
+                             final Path directory,
+                             final String prefix,
+                             final Codec<Event<State>> events,
+                             final long window,
+                             final int spillThreshold) {
+    this(new Storage<State>(
+           Objects.requireNonNull(directory, "directory must not be null"),
+           Objects.requireNonNull(prefix, "prefix must not be null"),
+           Objects.requireNonNull(events, "events must not be null")),
+         window, spillThreshold,
+         Objects.requireNonNull(empty, "empty must not be null"),
+         Long.MIN_VALUE, null, 0, Long.MAX_VALUE,
+         Collections.<Cursor<State>>emptyList(),
+         new PersistentMap<Occurrence<State>, Integer>());
+    if (empty.nextOccurrence() != null) {
+      throw new IllegalArgumentException("occurrences must be empty");
+    }
+    if (window <= 0 || spillThreshold <= 0) {
+      throw new IllegalArgumentException(
+        "window and spill threshold must be positive");
+    }
+  }
+
+
+  /**
+   * Construct from the given parts.
+   *
+   * @param storage Storage of the segment files.
+   * @param window Width of the promotion window.
+   * @param spillThreshold Number of far occurrences to spill at.
+   * @param near Occurrences in the near future.
+   * @param horizon Latest time of the near future.
+   * @param far Far occurrences which are not spilled yet.
+   * @param farCount Number of those.
+   * @param farEarliest Earliest time of those.
+   * @param spilled Positions within the spilled segments.
+   * @param tombstones Tombstones of removed far occurrences.
+   */
+  private SpillingOccurrences(
+    final Storage<State> storage,
+    final long window,
+    final int spillThreshold,
+    final Occurrences<State> near,
+    final long horizon,
+    final Link<State> far,
+    final int farCount,
+    final long farEarliest,
+    final List<Cursor<State>> spilled,
+    final PersistentMap<Occurrence<State>, Integer> tombstones) {
+    this.storage = storage;
+    this.window = window;
+    this.spillThreshold = spillThreshold;
+    this.near = near;
+    this.horizon = horizon;
+    this.far = far;
+    this.farCount = farCount;
+    this.farEarliest = farEarliest;
+    this.spilled = spilled;
+    this.tombstones = tombstones;
+  }
+
+
+  /**
+   * Derive occurrences, spilling the far occurrences if there are too
+   * many, and promoting far occurrences if the near future is empty.
+   *
+   * @param derivedNear Occurrences in the near future.
+   * @param derivedFar Far occurrences which are not spilled yet.
+   * @param derivedFarCount Number of those.
+   * @param derivedFarEarliest Earliest time of those.
+   * @param derivedTombstones Tombstones of removed far occurrences.
+   * @return New occurrences.
+   */
+  private SpillingOccurrences<State> derive(
+    Occurrences<State> derivedNear,
+    Link<State> derivedFar,
+    int derivedFarCount,
+    long derivedFarEarliest,
+    PersistentMap<Occurrence<State>, Integer> derivedTombstones) {
+    List<Cursor<State>> derivedSpilled = spilled;
+    long derivedHorizon = horizon;
+    if (derivedFarCount > spillThreshold) {
+      final List<Occurrence<State>> sorted =
+        new ArrayList<Occurrence<State>>(derivedFarCount);
+      for (Link<State> link = derivedFar; link != null; link = link.next) {
+        sorted.add(link.occurrence);
+      }
+      Collections.sort(sorted, new OccurrenceByTimeComparator<State>());
+      derivedSpilled = new ArrayList<Cursor<State>>(derivedSpilled);
+      derivedSpilled.add(new Cursor<State>(
+                           new Segment<State>(storage, sorted), 0, 0,
+                           sorted.get(0).time.absoluteValue));
+      derivedFar = null;
+      derivedFarCount = 0;
+      derivedFarEarliest = Long.MAX_VALUE;
+    }
+    while (derivedNear.nextOccurrence() == null
+           && (derivedFar != null || ! derivedSpilled.isEmpty())) {
+      long earliest = derivedFarEarliest;
+      for (final Cursor<State> cursor : derivedSpilled) {
+        earliest = Math.min(earliest, cursor.time);
+      }
+      derivedHorizon = earliest > Long.MAX_VALUE - (window - 1)
+        ? Long.MAX_VALUE : earliest + (window - 1);
+      final List<Occurrence<State>> promoted =
+        new ArrayList<Occurrence<State>>();
+      Link<State> remaining = null;
+      int remainingCount = 0;
+      long remainingEarliest = Long.MAX_VALUE;
+      for (Link<State> link = derivedFar; link != null; link = link.next) {
+        final long time = link.occurrence.time.absoluteValue;
+        if (time <= derivedHorizon) {
+          promoted.add(link.occurrence);
+        } else {
+          remaining = new Link<State>(link.occurrence, remaining);
+          ++remainingCount;
+          remainingEarliest = Math.min(remainingEarliest, time);
+        }
+      }
+      derivedFar = remaining;
+      derivedFarCount = remainingCount;
+      derivedFarEarliest = remainingEarliest;
+      final List<Cursor<State>> advanced =
+        new ArrayList<Cursor<State>>(derivedSpilled.size());
+      for (final Cursor<State> cursor : derivedSpilled) {
+        final Cursor<State> next = cursor.collect(derivedHorizon, promoted);
+        if (next != null) {
+          advanced.add(next);
+        } else {
+          cursor.segment.release();
+        }
+      }
+      derivedSpilled = advanced;
+      final List<Occurrence<State>> kept =
+        new ArrayList<Occurrence<State>>(promoted.size());
+      for (final Occurrence<State> occurrence : promoted) {
+        final Integer tombstone = derivedTombstones.get(occurrence);
+        if (tombstone == null) {
+          kept.add(occurrence);
+        } else {
+          derivedTombstones = tombstone == 1
+            ? derivedTombstones.without(occurrence)
+            : derivedTombstones.with(occurrence, tombstone - 1);
+        }
+      }
+      if (! kept.isEmpty()) {
+        derivedNear = derivedNear.withNew(kept);
+      }
+    }
+    return new SpillingOccurrences<State>(
+      storage, window, spillThreshold, derivedNear, derivedHorizon,
+      derivedFar, derivedFarCount, derivedFarEarliest,
+      derivedSpilled == spilled
+      ? spilled : Collections.unmodifiableList(derivedSpilled),
+      derivedTombstones);
+  }
+
+
+  /**
+   * Get the number of segment files with occurrences which have not
+   * yet been promoted.
+   *
+   * @return Number of segments.
+   */
+  public int getSpilledSegmentCount() {
+    return spilled.size();
+  }
+
+
+  /**
+   * Get the next occurrence, which is always in the near future.
+   *
+   * @return Next (earliest) occurrence, or null if there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    return near.nextOccurrence();
+  }
+
+
+  /**
+   * Collect the occurrences at the given time, decoding spilled
+   * segments if the time is beyond the horizon.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Unmodifiable collection of the occurrences at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    if (time.absoluteValue <= horizon) {
+      return near.at(time);
+    }
+    final List<Occurrence<State>> found = new ArrayList<Occurrence<State>>();
+    for (Link<State> link = far; link != null; link = link.next) {
+      if (link.occurrence.time.equals(time)) {
+        found.add(link.occurrence);
+      }
+    }
+    for (final Cursor<State> cursor : spilled) {
+      cursor.at(time.absoluteValue, found);
+    }
+    if (tombstones.size() == 0) {
+      return Collections.unmodifiableList(found);
+    }
+    final Map<Occurrence<State>, Integer> skipped =
+      new HashMap<Occurrence<State>, Integer>();
+    final List<Occurrence<State>> remaining =
+      new ArrayList<Occurrence<State>>(found.size());
+    for (final Occurrence<State> occurrence : found) {
+      if (! skip(occurrence, skipped)) {
+        remaining.add(occurrence);
+      }
+    }
+    return Collections.unmodifiableList(remaining);
+  }
+
+
+  /**
+   * Check whether a far occurrence is tombstoned, counting the
+   * tombstones used up.
+   *
+   * @param occurrence Occurrence to check.
+   * @param skipped Number of used up tombstones for each occurrence.
+   * @return True if the occurrence is tombstoned.
+   */
+  private boolean skip(final Occurrence<State> occurrence,
+                       final Map<Occurrence<State>, Integer> skipped) {
+    final Integer tombstone = tombstones.get(occurrence);
+    if (tombstone == null) {
+      return false;
+    }
+    final Integer used = skipped.get(occurrence);
+    final int count = used == null ? 0 : used;
+    if (count == tombstone) {
+      return false;
+    }
+    skipped.put(occurrence, count + 1);
+    return true;
+  }
+
+
+  /**
+   * Check whether a far occurrence is pending, that is whether there
+   * are more occurrences equal to it than tombstones for it.
+   *
+   * @param occurrence Far occurrence to check.
+   * @param removed Tombstones of removed far occurrences.
+   * @return True if the occurrence is pending.
+   */
+  private boolean isFarPending(
+    final Occurrence<State> occurrence,
+    final PersistentMap<Occurrence<State>, Integer> removed) {
+    final Integer tombstone = removed.get(occurrence);
+    int hidden = tombstone == null ? 0 : tombstone;
+    for (Link<State> link = far; link != null; link = link.next) {
+      if (link.occurrence.equals(occurrence) && hidden-- == 0) {
+        return true;
+      }
+    }
+    final List<Occurrence<State>> found = new ArrayList<Occurrence<State>>();
+    for (final Cursor<State> cursor : spilled) {
+      cursor.at(occurrence.time.absoluteValue, found);
+    }
+    for (final Occurrence<State> candidate : found) {
+      if (candidate.equals(occurrence) && hidden-- == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+
+  /**
+   * Add the given occurrences, to the near future or the far
+   * occurrences depending on their time.
+   *
+   * @param added Occurrences to add.
+   * @return New Occurrences containing this object's and the given
+   * occurrences.
+   * @throws IllegalStateException When spilling fails.
+   */
+  @Override
+  public SpillingOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> added) {
+    final List<Occurrence<State>> nearAdded =
+      new ArrayList<Occurrence<State>>();
+    Link<State> farAdded = far;
+    int farAddedCount = farCount;
+    long farAddedEarliest = farEarliest;
+    for (final Occurrence<State> occurrence : added) {
+      final long time = occurrence.time.absoluteValue;
+      if (time <= horizon) {
+        nearAdded.add(occurrence);
+      } else {
+        farAdded = new Link<State>(occurrence, farAdded);
+        ++farAddedCount;
+        farAddedEarliest = Math.min(farAddedEarliest, time);
+      }
+    }
+    if (nearAdded.isEmpty() && farAdded == far) {
+      return this;
+    }
+    return derive(nearAdded.isEmpty() ? near : near.withNew(nearAdded),
+                  farAdded, farAddedCount, farAddedEarliest, tombstones);
+  }
+
+
+  /**
+   * Remove the given occurrences, from the near future directly, and
+   * from the far occurrences by adding tombstones for them.
+   *
+   * Far occurrences which are not pending are ignored.
+   *
+   * @param removed Occurrences to remove.
+   * @return New Occurrences without the given occurrences.
+   */
+  @Override
+  public SpillingOccurrences<State> without(
+    final Iterable<Occurrence<State>> removed) {
+    final List<Occurrence<State>> nearRemoved =
+      new ArrayList<Occurrence<State>>();
+    PersistentMap<Occurrence<State>, Integer> added = tombstones;
+    for (final Occurrence<State> occurrence : removed) {
+      if (occurrence.time.absoluteValue <= horizon) {
+        nearRemoved.add(occurrence);
+      } else if (isFarPending(occurrence, added)) {
+        final Integer tombstone = added.get(occurrence);
+        added = added.with(occurrence, tombstone == null ? 1 : tombstone + 1);
+      }
+    }
+    if (nearRemoved.isEmpty() && added == tombstones) {
+      return this;
+    }
+    return derive(nearRemoved.isEmpty() ? near : near.without(nearRemoved),
+                  far, farCount, farEarliest, added);
+  }
+
+
+  /**
+   * Remove the next occurrence from the near future, promoting far
+   * occurrences if it runs empty.
+   *
+   * @return Occurrences without the next occurrence, or this object
+   * if it is empty.
+   */
+  @Override
+  public SpillingOccurrences<State> withoutNextOccurrence() {
+    if (near.nextOccurrence() == null) {
+      return this;
+    }
+    return derive(near.withoutNextOccurrence(), far, farCount, farEarliest,
+                  tombstones);
+  }
+
+
+  /**
+   * Iterate over all occurrences, the near future first, decoding the
+   * spilled segments one block at a time.
+   *
+   * @return Iterator over all occurrences, not supporting removal.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    final List<Iterator<Occurrence<State>>> parts =
+      new ArrayList<Iterator<Occurrence<State>>>();
+    final List<Occurrence<State>> unspilled =
+      new ArrayList<Occurrence<State>>(farCount);
+    for (Link<State> link = far; link != null; link = link.next) {
+      unspilled.add(link.occurrence);
+    }
+    parts.add(unspilled.iterator());
+    for (final Cursor<State> cursor : spilled) {
+      parts.add(cursor.iterator());
+    }
+    final Iterator<Iterator<Occurrence<State>>> remaining = parts.iterator();
+    final Map<Occurrence<State>, Integer> skipped =
+      new HashMap<Occurrence<State>, Integer>();
+    return new Iterator<Occurrence<State>>() {
+      /**
+       * Iterator over the current part, the near future first.
+       */
+      private Iterator<Occurrence<State>> current = near.iterator();
+
+
+      /**
+       * Occurrence found ahead, null if none.
+       */
+      private Occurrence<State> next;
+
+
+      @Override
+      public boolean hasNext() {
+        while (next == null) {
+          if (current.hasNext()) {
+            final Occurrence<State> occurrence = current.next();
+            if (! skip(occurrence, skipped)) {
+              next = occurrence;
+            }
+          } else if (remaining.hasNext()) {
+            current = remaining.next();
+          } else {
+            break;
+          }
+        }
+        return next != null;
+      }
+
+
+      @Override
+      public Occurrence<State> next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Occurrence<State> occurrence = next;
+        next = null;
+        return occurrence;
+      }
+
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException(
+          "occurrences are immutable");
+      }
+    };
+  }
+
+
+  /**
+   * Delete the segment files, shared by all derived occurrences.
+   *
+   * @throws IOException When deleting fails.
+   */
+  @Override
+  public void close() throws IOException {
+    storage.close();
+  }
+}
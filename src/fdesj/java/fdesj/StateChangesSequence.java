@@ -0,0 +1,80 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * State changes applying other state changes one after the other.
+ *
+ * If the state is a {@link TransientState}, consecutive {@link
+ * TransientStateChanges} are applied in place to a single transient
+ * copy of it, so no intermediate states are derived for them.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class StateChangesSequence<State>
+  implements StateChanges<State> {
+  /**
+   * The changes, in order of application.
+   */
+  private final List<StateChanges<State>> changes;
+
+
+  /**
+   * Construct a sequence of the given changes.
+   *
+   * Nested sequences are flattened, null changes are skipped.
+   *
+   * @param changes The changes, in order of application.
+   */
+  public StateChangesSequence(
+    final Iterable<? extends StateChanges<State>> changes) {
+    final List<StateChanges<State>> flattened =
+      new ArrayList<StateChanges<State>>();
+    for (final StateChanges<State> change : changes) {
+      if (change instanceof StateChangesSequence) {
+        flattened.addAll(((StateChangesSequence<State>) change).changes);
+      } else if (change != null) {
+        flattened.add(change);
+      }
+    }
+    this.changes = flattened;
+  }
+
+
+  /**
+   * Apply all changes in order.
+   *
+   * @param state State to which the changes will be applied.
+   * @return State with all changes applied.
+   */
+  @Override
+  public State applyTo(final State state) {
+    State current = state;
+    Transient<State> copy = null;
+    for (final StateChanges<State> change : changes) {
+      if (change instanceof TransientStateChanges) {
+        if (copy == null && current instanceof TransientState) {
+          // The state is a TransientState of its own type, as
+          // documented for TransientState.
+          @SuppressWarnings("unchecked")
+          final TransientState<State> persistent =
+            (TransientState<State>) current;
+          copy = persistent.asTransient();
+        }
+        if (copy != null) {
+          ((TransientStateChanges<State>) change).applyInPlace(copy);
+          continue;
+        }
+      }
+      if (copy != null) {
+        current = copy.persistent();
+        copy = null;
+      }
+      current = change.applyTo(current);
+    }
+    return copy == null ? current : copy.persistent();
+  }
+}
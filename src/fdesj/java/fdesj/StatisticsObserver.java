@@ -0,0 +1,75 @@
+package fdesj;
+
+
+import java.util.Objects;
+
+
+/**
+ * Trajectory observer feeding a measure of each committed state into
+ * {@link TimeWeightedStatistics}, so that the statistics are updated
+ * whenever simulated time advances.
+ *
+ * The value of the initial state is not observed; update the
+ * statistics with it before running the simulation, and {@linkplain
+ * TimeWeightedStatistics#advance(Time) advance} them to the end time
+ * afterwards.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class StatisticsObserver<State>
+  implements TrajectoryObserver<State> {
+  /**
+   * Measure of the states.
+   */
+  private final Measure<State> measure;
+
+
+  /**
+   * Statistics to update.
+   */
+  private final TimeWeightedStatistics statistics;
+
+
+  /**
+   * Construct an observer.
+   *
+   * @param measure Measure of the states.
+   * @param statistics Statistics to update.
+   * @throws NullPointerException When any argument is null.
+   */
+  public StatisticsObserver(final Measure<State> measure,
+                            final TimeWeightedStatistics statistics) {
+    this.measure = Objects.requireNonNull(measure,
+                                          "measure must not be null");
+    this.statistics = Objects.requireNonNull(statistics,
+                                             "statistics must not be null");
+  }
+
+
+  /**
+   * Update the statistics with the measure of the state.
+   *
+   * Several occurrences at the same time only leave the value after
+   * the last one, apart from minimum and maximum.
+   *
+   * @param time Time of the occurrence.
+   * @param state State with the changes applied.
+   * @param occurrence The processed occurrence.
+   */
+  @Override
+  public void committed(final Time time,
+                        final State state,
+                        final Occurrence<State> occurrence) {
+    statistics.update(time, measure.valueOf(state));
+  }
+
+
+  /**
+   * Get the updated statistics.
+   *
+   * @return The statistics.
+   */
+  public TimeWeightedStatistics getStatistics() {
+    return statistics;
+  }
+}
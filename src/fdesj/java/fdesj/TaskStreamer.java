@@ -0,0 +1,122 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+
+/**
+ * Runs independent tasks on an executor and streams their results
+ * into an {@link Aggregator} as they finish, as done by {@link
+ * ReplicationRunner} and {@link ForkRunner}.
+ */
+/* package-private */ final class TaskStreamer {
+  /**
+   * Result of a finished task, with its key.
+   */
+  private static final class Output<Result> {
+    /**
+     * Key of the task.
+     */
+    final long key;
+
+
+    /**
+     * Result of the task.
+     */
+    final Result result;
+
+
+    /**
+     * Construct an output.
+     *
+     * @param key Key of the task.
+     * @param result Result of the task.
+     */
+    Output(final long key, final Result result) {
+      this.key = key;
+      this.result = result;
+    }
+  }
+
+
+  /**
+   * Not instantiable.
+   */
+  private TaskStreamer() {
+  }
+
+
+  /**
+   * Run the tasks, passing their results to the aggregator as they
+   * finish.
+   *
+   * When a task fails, the remaining ones are cancelled and the
+   * failure is rethrown.
+   *
+   * @param executor Executor running the tasks.
+   * @param tasks The tasks.
+   * @param firstKey Key of the first task, the following tasks get
+   * consecutive keys.
+   * @param aggregator Aggregator taking the results with the keys of
+   * their tasks, called from the calling thread only.
+   * @param <Result> Type of the result of a task.
+   * @return Throughput, in tasks per second.
+   * @throws InterruptedException When interrupted while waiting for
+   * tasks to finish.
+   * @throws IllegalStateException When a task fails with a checked
+   * exception.
+   */
+  /* package-private */ static <Result> double stream(
+    final Executor executor,
+    final List<? extends Callable<? extends Result>> tasks,
+    final long firstKey,
+    final Aggregator<? super Result> aggregator)
+    throws InterruptedException {
+    final long start = System.nanoTime();
+    final CompletionService<Output<Result>> completion =
+      new ExecutorCompletionService<Output<Result>>(executor);
+    final List<Future<Output<Result>>> futures =
+      new ArrayList<Future<Output<Result>>>(tasks.size());
+    try {
+      for (int i = 0; i < tasks.size(); ++i) {
+        final long key = firstKey + i;
+        final Callable<? extends Result> task = tasks.get(i);
+        futures.add(completion.submit(new Callable<Output<Result>>() {
+            @Override
+            public Output<Result> call() throws Exception {
+              return new Output<Result>(key, task.call());
+            }
+          }));
+      }
+      for (int i = 0; i < tasks.size(); ++i) {
+        final Output<Result> output;
+        try {
+          output = completion.take().get();
+        } catch (final ExecutionException exception) {
+          final Throwable cause = exception.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+        aggregator.accept(output.key, output.result);
+      }
+    } finally {
+      for (final Future<Output<Result>> future : futures) {
+        future.cancel(true);
+      }
+    }
+    final long elapsed = Math.max(1, System.nanoTime() - start);
+    return tasks.size() * 1e9 / elapsed;
+  }
+}
@@ -8,6 +8,36 @@ package fdesj;
  * is a smallest step with which time advances.
  */
 public final class Time implements Comparable<Time> {
+  /**
+   * The begin of the simulation, with an absolute time value of 0.
+   *
+   * Other times are derived from this one using {@link
+   * #after(Duration)}.
+   */
+  public static final Time BEGIN = new Time(0);
+
+
+  /**
+   * Number of small, non-negative times and durations which are
+   * shared instead of allocated anew.
+   */
+  private static final int CACHED = 1024;
+
+
+  /**
+   * Shared times, by absolute value.
+   */
+  private static final Time[] TIMES = new Time[CACHED];
+
+
+  static {
+    TIMES[0] = BEGIN;
+    for (int i = 1; i < CACHED; ++i) {
+      TIMES[i] = new Time(i);
+    }
+  }
+
+
   /**
    * Absolute time value, measured from begin of simulation.
    */
@@ -27,6 +57,22 @@ public final class Time implements Comparable<Time> {
   }
 
 
+  /**
+   * Get a time with the given absolute time value.
+   *
+   * Small, non-negative times are shared instead of allocated.
+   *
+   * @param absoluteValue Absolute time value.
+   * @return Time with the given absolute value.
+   */
+  /* package-private */ static Time of(final long absoluteValue) {
+    if (absoluteValue >= 0 && absoluteValue < CACHED) {
+      return TIMES[(int) absoluteValue];
+    }
+    return new Time(absoluteValue);
+  }
+
+
   /**
    * Get the absolute time as a long value.
    *
@@ -78,15 +124,12 @@ public final class Time implements Comparable<Time> {
    */
   @Override
   public int hashCode() {
-    // Note: This is for backwards compability, in Java 8 this could
-    // be written as Long.hashCode(absoluteValue) and would then not
-    // require an object allocation as the current solution does. The
-    // current solution *might* be optimized properly when compiled
-    // with the -XX:+DoEscapeAnalysis flag, though. As long as this is
-    // not a profiled bottleneck we won't care much about all of that
-    // here, though.
+    // Note: This is what Long.hashCode(absoluteValue) computes in
+    // Java 8, written out for backwards compability. Using
+    // Long.valueOf(absoluteValue).hashCode() instead would allocate,
+    // which showed up in profiles as hashing is done a lot.
     // The same applies to Duration.hashCode().
-    return Long.valueOf(absoluteValue).hashCode();
+    return (int) (absoluteValue ^ (absoluteValue >>> 32));
   }
 
 
@@ -96,6 +139,19 @@ public final class Time implements Comparable<Time> {
    * Used to enforce type safety.
    */
   public static class Duration {
+    /**
+     * Shared durations, by difference value.
+     */
+    private static final Duration[] DURATIONS = new Duration[CACHED];
+
+
+    static {
+      for (int i = 0; i < CACHED; ++i) {
+        DURATIONS[i] = new Duration(i);
+      }
+    }
+
+
     /**
      * The difference of the absolute time of the start and end time
      * of the duration.
@@ -115,6 +171,23 @@ public final class Time implements Comparable<Time> {
     }
 
 
+    /**
+     * Get a duration with the given difference value.
+     *
+     * Small, non-negative durations are shared instead of allocated,
+     * so this is preferable to the constructor on hot paths.
+     *
+     * @param differenceValue Time difference given as long value.
+     * @return Duration with the given difference value.
+     */
+    public static Duration of(final long differenceValue) {
+      if (differenceValue >= 0 && differenceValue < CACHED) {
+        return DURATIONS[(int) differenceValue];
+      }
+      return new Duration(differenceValue);
+    }
+
+
     /**
      * Get the time difference as a long value.
      *
@@ -156,7 +229,7 @@ public final class Time implements Comparable<Time> {
     @Override
     public int hashCode() {
       // Note: see Time.hashCode().
-      return Long.valueOf(differenceValue).hashCode();
+      return (int) (differenceValue ^ (differenceValue >>> 32));
     }
   }
 
@@ -169,6 +242,23 @@ public final class Time implements Comparable<Time> {
    * @return Time after the given duration.
    */
   public Time after(final Duration duration) {
-    return new Time(absoluteValue + duration.getTimeDifference());
+    return after(duration.getTimeDifference());
+  }
+
+
+  /**
+   * Get the time after the given time difference passed.
+   *
+   * This avoids allocating a {@link Duration}; no time is allocated
+   * either if the difference is zero or the resulting time is small.
+   *
+   * @param differenceValue Time difference given as long value.
+   * @return Time after the given difference.
+   */
+  public Time after(final long differenceValue) {
+    if (differenceValue == 0) {
+      return this;
+    }
+    return of(absoluteValue + differenceValue);
   }
 }
@@ -0,0 +1,637 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+
+/**
+ * Engine running a simulation optimistically in parallel, using the
+ * Time Warp mechanism.
+ *
+ * The simulation is partitioned into logical processes, each with a
+ * state and occurrences of its own; a {@link Partitioning} assigns
+ * each occurrence to a process. Processes run in rounds: within a
+ * round all processes run in parallel, each first handling the
+ * messages it received and then speculatively processing up to a
+ * given number of its occurrences, without waiting for the others.
+ * Occurrences added for other processes are sent to them as
+ * messages.
+ *
+ * A message which is earlier than occurrences a process already
+ * processed (a straggler) makes the process roll back: as states and
+ * occurrences are immutable, each processed occurrence simply retains
+ * the state and occurrences from before it was processed, and rolling
+ * back just reinstates these. Messages sent by rolled back
+ * occurrences are cancelled with anti-messages, which may in turn
+ * roll back their receivers.
+ *
+ * Between rounds the global virtual time (GVT), the earliest time of
+ * any unprocessed occurrence or message, is computed. Nothing earlier
+ * than it can be rolled back anymore, so the retained states and
+ * occurrences of earlier processed occurrences are discarded (fossil
+ * collection).
+ *
+ * Events may only remove occurrences of their own process, and must
+ * not add occurrences for other processes earlier than their own
+ * time. The order of processing occurrences of different processes
+ * at the same time is unspecified. Changes which are null, as well as
+ * null parts of changes, are treated as "no changes". A Time Warp
+ * simulator must not be used by multiple threads at once.
+ *
+ * @param <State> Type used to represent the state of a logical
+ * process.
+ */
+public final class TimeWarpSimulator<State> {
+  /**
+   * Message adding (or, as anti-message, removing) an occurrence.
+   */
+  private static final class Message<State> {
+    /**
+     * Occurrence to add or remove.
+     */
+    final Occurrence<State> occurrence;
+
+
+    /**
+     * Whether the occurrence is to be removed.
+     */
+    final boolean anti;
+
+
+    /**
+     * Construct a message.
+     *
+     * @param occurrence Occurrence to add or remove.
+     * @param anti Whether this is an anti-message.
+     */
+    Message(final Occurrence<State> occurrence, final boolean anti) {
+      this.occurrence = occurrence;
+      this.anti = anti;
+    }
+  }
+
+
+  /**
+   * A speculatively processed occurrence, with what is needed to roll
+   * it back.
+   */
+  private static final class Step<State> {
+    /**
+     * The processed occurrence.
+     */
+    final Occurrence<State> processed;
+
+
+    /**
+     * State before processing.
+     */
+    final State stateBefore;
+
+
+    /**
+     * Occurrences before processing, including the processed one.
+     */
+    final Occurrences<State> occurrencesBefore;
+
+
+    /**
+     * Occurrences sent to other processes.
+     */
+    final List<Occurrence<State>> sent;
+
+
+    /**
+     * Messages received after processing, null if there are none.
+     */
+    List<Message<State>> receivedAfter;
+
+
+    /**
+     * Construct a step.
+     *
+     * @param processed The processed occurrence.
+     * @param stateBefore State before processing.
+     * @param occurrencesBefore Occurrences before processing.
+     * @param sent Occurrences sent to other processes.
+     */
+    Step(final Occurrence<State> processed,
+         final State stateBefore,
+         final Occurrences<State> occurrencesBefore,
+         final List<Occurrence<State>> sent) {
+      this.processed = processed;
+      this.stateBefore = stateBefore;
+      this.occurrencesBefore = occurrencesBefore;
+      this.sent = sent;
+    }
+  }
+
+
+  /**
+   * A logical process.
+   *
+   * Only accessed by a single thread during a round, and only by the
+   * simulator's thread between rounds.
+   */
+  private static final class LogicalProcess<State>
+    implements Callable<Void> {
+    /**
+     * Index of this process.
+     */
+    final int index;
+
+
+    /**
+     * All processes, to send messages to.
+     */
+    final List<LogicalProcess<State>> processes;
+
+
+    /**
+     * Assignment of occurrences to processes.
+     */
+    final Partitioning<State> partitioning;
+
+
+    /**
+     * Received messages which have not yet been handled.
+     */
+    final Queue<Message<State>> inbox =
+      new ConcurrentLinkedQueue<Message<State>>();
+
+
+    /**
+     * Speculatively processed occurrences, oldest first.
+     */
+    final List<Step<State>> history = new ArrayList<Step<State>>();
+
+
+    /**
+     * Current (speculative) state.
+     */
+    State state;
+
+
+    /**
+     * Current (speculative) pending occurrences.
+     */
+    Occurrences<State> occurrences;
+
+
+    /**
+     * Number of steps that have been rolled back.
+     */
+    long rolledBack;
+
+
+    /**
+     * Number of steps that have been committed.
+     */
+    long committed;
+
+
+    /**
+     * Occurrences later than this are not processed in a round.
+     */
+    long end;
+
+
+    /**
+     * Maximum number of occurrences processed in a round.
+     */
+    int optimism;
+
+
+    /**
+     * Construct a logical process.
+     *
+     * @param index Index of the process.
+     * @param processes All processes.
+     * @param partitioning Assignment of occurrences to processes.
+     * @param state Initial state.
+     * @param occurrences Initial occurrences.
+     */
+    LogicalProcess(final int index,
+                   final List<LogicalProcess<State>> processes,
+                   final Partitioning<State> partitioning,
+                   final State state,
+                   final Occurrences<State> occurrences) {
+      this.index = index;
+      this.processes = processes;
+      this.partitioning = partitioning;
+      this.state = state;
+      this.occurrences = occurrences;
+    }
+
+
+    /**
+     * Run a round: handle received messages, then process occurrences.
+     *
+     * @return Nothing.
+     */
+    @Override
+    public Void call() {
+      Message<State> message;
+      while ((message = inbox.poll()) != null) {
+        receive(message);
+      }
+      for (int i = 0; i < optimism; ++i) {
+        final Occurrence<State> next = occurrences.nextOccurrence();
+        if (next == null || next.time.absoluteValue > end) {
+          break;
+        }
+        process(next);
+      }
+      return null;
+    }
+
+
+    /**
+     * Send a message to the process of its occurrence.
+     *
+     * @param occurrence Occurrence to send.
+     * @param anti Whether to send an anti-message.
+     */
+    void send(final Occurrence<State> occurrence, final boolean anti) {
+      processes.get(partitioning.processOf(occurrence))
+        .inbox.add(new Message<State>(occurrence, anti));
+    }
+
+
+    /**
+     * Speculatively process the given (next) occurrence.
+     *
+     * @param next Next occurrence.
+     * @throws IllegalStateException When the occurrence is earlier than
+     * the last processed one, when it sends occurrences earlier than
+     * itself, or when its changes replace the occurrences instead of
+     * deriving them.
+     */
+    void process(final Occurrence<State> next) {
+      if (! history.isEmpty()
+          && next.time.absoluteValue
+          < history.get(history.size() - 1).processed.time.absoluteValue) {
+        throw new IllegalStateException(
+          "occurrence at " + next.time.absoluteValue
+          + " is earlier than the current time");
+      }
+      final State stateBefore = state;
+      final Occurrences<State> occurrencesBefore = occurrences;
+      final Changes<State> changes = next.event.affect(state, next.time);
+      occurrences = occurrences.withoutNextOccurrence();
+      List<Occurrence<State>> sent = Collections.emptyList();
+      if (changes != null) {
+        if (changes.toState != null) {
+          state = changes.toState.applyTo(state);
+        }
+        if (changes.toOccurrences != null) {
+          final Occurrences<State> changed = changes.toOccurrences.applyTo(
+            new ProcessOccurrences<State>(occurrences, partitioning, index));
+          if (! (changed instanceof ProcessOccurrences)) {
+            throw new IllegalStateException(
+              "occurrences changes must derive from the given occurrences");
+          }
+          final ProcessOccurrences<State> view =
+            (ProcessOccurrences<State>) changed;
+          occurrences = view.local();
+          sent = view.outgoing();
+        }
+      }
+      for (final Occurrence<State> occurrence : sent) {
+        if (occurrence.time.absoluteValue < next.time.absoluteValue) {
+          throw new IllegalStateException(
+            "occurrence at " + occurrence.time.absoluteValue
+            + " sent to another process is earlier than the sender");
+        }
+        send(occurrence, false);
+      }
+      history.add(new Step<State>(next, stateBefore, occurrencesBefore,
+                                  sent));
+    }
+
+
+    /**
+     * Apply a message to some occurrences.
+     *
+     * @param to Occurrences to apply the message to.
+     * @param message Message to apply.
+     * @return Occurrences with the message applied.
+     */
+    Occurrences<State> applied(final Occurrences<State> to,
+                               final Message<State> message) {
+      final List<Occurrence<State>> occurrence =
+        Collections.singletonList(message.occurrence);
+      return message.anti ? to.without(occurrence) : to.withNew(occurrence);
+    }
+
+
+    /**
+     * Handle a received message, rolling back if necessary.
+     *
+     * @param message Received message.
+     */
+    void receive(final Message<State> message) {
+      final Occurrence<State> occurrence = message.occurrence;
+      int rollbackTo = history.size();
+      if (! message.anti) {
+        while (rollbackTo > 0
+               && history.get(rollbackTo - 1).processed.time.absoluteValue
+               > occurrence.time.absoluteValue) {
+          --rollbackTo;
+        }
+      } else if (! occurrences.at(occurrence.time).contains(occurrence)) {
+        while (rollbackTo > 0
+               && ! history.get(rollbackTo - 1).processed.equals(
+                 occurrence)) {
+          --rollbackTo;
+        }
+        --rollbackTo;
+      }
+      if (rollbackTo >= 0 && rollbackTo < history.size()) {
+        rollback(rollbackTo);
+      }
+      occurrences = applied(occurrences, message);
+      if (! history.isEmpty()) {
+        final Step<State> last = history.get(history.size() - 1);
+        if (last.receivedAfter == null) {
+          last.receivedAfter = new ArrayList<Message<State>>();
+        }
+        last.receivedAfter.add(message);
+      }
+    }
+
+
+    /**
+     * Roll back all steps starting with the given one.
+     *
+     * Reinstates state and occurrences from before that step, sends
+     * anti-messages for everything the rolled back steps sent, and
+     * re-applies all messages received since.
+     *
+     * @param first Index of the first step to roll back.
+     */
+    void rollback(final int first) {
+      final List<Message<State>> received =
+        new ArrayList<Message<State>>();
+      for (int i = history.size() - 1; i >= first; --i) {
+        for (final Occurrence<State> occurrence : history.get(i).sent) {
+          send(occurrence, true);
+        }
+      }
+      for (int i = first; i < history.size(); ++i) {
+        if (history.get(i).receivedAfter != null) {
+          received.addAll(history.get(i).receivedAfter);
+        }
+      }
+      state = history.get(first).stateBefore;
+      occurrences = history.get(first).occurrencesBefore;
+      for (final Message<State> message : received) {
+        occurrences = applied(occurrences, message);
+      }
+      rolledBack += history.size() - first;
+      history.subList(first, history.size()).clear();
+      if (first > 0 && ! received.isEmpty()) {
+        final Step<State> last = history.get(first - 1);
+        if (last.receivedAfter == null) {
+          last.receivedAfter = new ArrayList<Message<State>>();
+        }
+        last.receivedAfter.addAll(received);
+      }
+    }
+
+
+    /**
+     * Get the earliest time of any unprocessed occurrence or message
+     * of this process.
+     *
+     * @return Earliest time, or Long.MAX_VALUE if there is none.
+     */
+    long earliestTime() {
+      long earliest = Long.MAX_VALUE;
+      final Occurrence<State> next = occurrences.nextOccurrence();
+      if (next != null) {
+        earliest = next.time.absoluteValue;
+      }
+      for (final Message<State> message : inbox) {
+        earliest = Math.min(earliest,
+                            message.occurrence.time.absoluteValue);
+      }
+      return earliest;
+    }
+
+
+    /**
+     * Commit all steps earlier than the given time.
+     *
+     * @param globalVirtualTime Time before which nothing can be
+     * rolled back anymore.
+     */
+    void collectFossils(final long globalVirtualTime) {
+      int count = 0;
+      while (count < history.size()
+             && history.get(count).processed.time.absoluteValue
+             < globalVirtualTime) {
+        ++count;
+      }
+      history.subList(0, count).clear();
+      committed += count;
+    }
+  }
+
+
+  /**
+   * The logical processes.
+   */
+  private final List<LogicalProcess<State>> processes;
+
+
+  /**
+   * Executor running the processes.
+   */
+  private final ExecutorService executor;
+
+
+  /**
+   * Maximum number of occurrences a process handles in a round.
+   */
+  private final int optimism;
+
+
+  /**
+   * Current time.
+   */
+  private Time time;
+
+
+  /**
+   * Construct a Time Warp simulator starting at the given time.
+   *
+   * @param states Initial states of the logical processes, one for
+   * each process.
+   * @param empty Empty occurrences, used to hold the occurrences of
+   * each process.
+   * @param occurrences Initially pending occurrences of all
+   * processes, none of them earlier than the given time.
+   * @param partitioning Assignment of occurrences to processes.
+   * @param time Time at which the simulation starts.
+   * @param executor Executor running the processes.
+   * @param optimism Maximum number of occurrences a process handles
+   * in a round, bounding how far it runs ahead of the others.
+   * @throws NullPointerException When any argument but the states is
+   * null.
+   * @throws IllegalArgumentException When optimism is not positive.
+   */
+  public TimeWarpSimulator(final List<State> states,
+                           final Occurrences<State> empty,
+                           final Iterable<Occurrence<State>> occurrences,
+                           final Partitioning<State> partitioning,
+                           final Time time,
+                           final ExecutorService executor,
+                           final int optimism) {
+    Objects.requireNonNull(empty, "empty must not be null");
+    Objects.requireNonNull(partitioning, "partitioning must not be null");
+    if (optimism <= 0) {
+      throw new IllegalArgumentException("optimism must be positive");
+    }
+    final List<List<Occurrence<State>>> initial =
+      new ArrayList<List<Occurrence<State>>>();
+    for (int i = 0; i < states.size(); ++i) {
+      initial.add(new ArrayList<Occurrence<State>>());
+    }
+    for (final Occurrence<State> occurrence : occurrences) {
+      initial.get(partitioning.processOf(occurrence)).add(occurrence);
+    }
+    this.processes = new ArrayList<LogicalProcess<State>>();
+    for (int i = 0; i < states.size(); ++i) {
+      processes.add(new LogicalProcess<State>(
+                      i, processes, partitioning, states.get(i),
+                      empty.withNew(initial.get(i))));
+    }
+    this.executor = Objects.requireNonNull(executor,
+                                           "executor must not be null");
+    this.optimism = optimism;
+    this.time = Objects.requireNonNull(time, "time must not be null");
+  }
+
+
+  /**
+   * Get the states of the logical processes.
+   *
+   * @return Unmodifiable list of the states, by process index.
+   */
+  public List<State> getStates() {
+    final List<State> states = new ArrayList<State>(processes.size());
+    for (final LogicalProcess<State> process : processes) {
+      states.add(process.state);
+    }
+    return Collections.unmodifiableList(states);
+  }
+
+
+  /**
+   * Get the time the simulation has been run until.
+   *
+   * @return Current time.
+   */
+  public Time getTime() {
+    return time;
+  }
+
+
+  /**
+   * Get the number of occurrences processed and committed so far.
+   *
+   * @return Number of committed occurrences.
+   */
+  public long getProcessedCount() {
+    long count = 0;
+    for (final LogicalProcess<State> process : processes) {
+      count += process.committed;
+    }
+    return count;
+  }
+
+
+  /**
+   * Get the number of speculatively processed occurrences that have
+   * been rolled back so far.
+   *
+   * @return Number of rolled back occurrences.
+   */
+  public long getRolledBackCount() {
+    long count = 0;
+    for (final LogicalProcess<State> process : processes) {
+      count += process.rolledBack;
+    }
+    return count;
+  }
+
+
+  /**
+   * Compute the global virtual time and collect fossils.
+   *
+   * Must only be called between rounds.
+   *
+   * @return Global virtual time, Long.MAX_VALUE if nothing is left.
+   */
+  private long collectFossils() {
+    long globalVirtualTime = Long.MAX_VALUE;
+    for (final LogicalProcess<State> process : processes) {
+      globalVirtualTime = Math.min(globalVirtualTime,
+                                   process.earliestTime());
+    }
+    for (final LogicalProcess<State> process : processes) {
+      process.collectFossils(globalVirtualTime);
+    }
+    return globalVirtualTime;
+  }
+
+
+  /**
+   * Process all occurrences up to (and including) the given time,
+   * then advance the current time to the given time.
+   *
+   * When this returns, all processed occurrences are committed and
+   * the states of the processes reflect all occurrences up to the
+   * given time.
+   *
+   * @param end Time until which to run.
+   * @throws InterruptedException When interrupted while waiting for
+   * a round to finish.
+   * @throws IllegalStateException When an event violates the rules
+   * described for this class.
+   */
+  public void runUntil(final Time end) throws InterruptedException {
+    for (final LogicalProcess<State> process : processes) {
+      process.end = end.absoluteValue;
+      process.optimism = optimism;
+    }
+    while (collectFossils() <= end.absoluteValue) {
+      for (final Future<Void> round : executor.invokeAll(processes)) {
+        try {
+          round.get();
+        } catch (final ExecutionException exception) {
+          final Throwable cause = exception.getCause();
+          if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          }
+          if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new IllegalStateException(cause);
+        }
+      }
+    }
+    if (end.absoluteValue > time.absoluteValue) {
+      time = end;
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package fdesj;
+
+
+import java.util.Objects;
+
+
+/**
+ * Online statistics of a piecewise constant quantity over simulated
+ * time, such as a queue length.
+ *
+ * The quantity is updated at the times it changes; each value is
+ * weighted by the duration until the next update. The time-weighted
+ * mean and variance are accumulated with Welford's algorithm, in its
+ * weighted form, alongside minimum, maximum and a {@link
+ * QuantileSketch}, so memory does not grow with the number of
+ * updates. Statistics of separate replications or partitions can be
+ * {@linkplain #merge(TimeWeightedStatistics) merged}, also as an
+ * {@link Aggregator}, giving the statistics over their combined
+ * durations.
+ *
+ * Statistics are not thread-safe.
+ */
+public final class TimeWeightedStatistics
+  implements Aggregator<TimeWeightedStatistics> {
+  /**
+   * Sketch of the distribution of the values.
+   */
+  private final QuantileSketch sketch;
+
+
+  /**
+   * Time of the last update, null if there was none.
+   */
+  private Time time;
+
+
+  /**
+   * Value since the last update.
+   */
+  private double value;
+
+
+  /**
+   * Total duration of the accumulated values.
+   */
+  private double weight;
+
+
+  /**
+   * Time-weighted mean of the accumulated values.
+   */
+  private double mean;
+
+
+  /**
+   * Weighted sum of squared differences from the mean.
+   */
+  private double squares;
+
+
+  /**
+   * Smallest value.
+   */
+  private double minimum = Double.POSITIVE_INFINITY;
+
+
+  /**
+   * Largest value.
+   */
+  private double maximum = Double.NEGATIVE_INFINITY;
+
+
+  /**
+   * Construct empty statistics, with a default quantile sketch.
+   */
+  public TimeWeightedStatistics() {
+    this(new QuantileSketch());
+  }
+
+
+  /**
+   * Construct empty statistics.
+   *
+   * @param sketch Empty quantile sketch to accumulate into.
+   * @throws NullPointerException When sketch is null.
+   */
+  public TimeWeightedStatistics(final QuantileSketch sketch) {
+    this.sketch = Objects.requireNonNull(sketch, "sketch must not be null");
+  }
+
+
+  /**
+   * Accumulate a value held for a duration.
+   *
+   * @param held The value.
+   * @param duration Duration the value was held.
+   */
+  private void accumulate(final double held, final double duration) {
+    if (duration <= 0) {
+      return;
+    }
+    weight += duration;
+    final double delta = held - mean;
+    mean += delta * duration / weight;
+    squares += duration * delta * (held - mean);
+    sketch.add(held, duration);
+  }
+
+
+  /**
+   * Account for the current value until the given time.
+   *
+   * @param until Time until which the current value is held.
+   * @throws IllegalArgumentException When the time is earlier than
+   * the last update.
+   */
+  public void advance(final Time until) {
+    if (time == null) {
+      return;
+    }
+    if (until.absoluteValue < time.absoluteValue) {
+      throw new IllegalArgumentException(
+        "time " + until.absoluteValue + " is earlier than the last update "
+        + time.absoluteValue);
+    }
+    accumulate(value, (double) until.absoluteValue - time.absoluteValue);
+    time = until;
+  }
+
+
+  /**
+   * Update the quantity, accounting for the previous value until the
+   * given time.
+   *
+   * @param at Time from which the value is held.
+   * @param newValue The value.
+   * @throws IllegalArgumentException When the time is earlier than
+   * the last update.
+   */
+  public void update(final Time at, final double newValue) {
+    Objects.requireNonNull(at, "time must not be null");
+    advance(at);
+    time = at;
+    value = newValue;
+    minimum = Math.min(minimum, newValue);
+    maximum = Math.max(maximum, newValue);
+  }
+
+
+  /**
+   * Add the accumulated values of other statistics to these.
+   *
+   * The current value of the other statistics is only accounted for
+   * until its last {@linkplain #advance(Time) advance}, and the
+   * current value of these is kept.
+   *
+   * @param other Statistics to merge.
+   */
+  public void merge(final TimeWeightedStatistics other) {
+    minimum = Math.min(minimum, other.minimum);
+    maximum = Math.max(maximum, other.maximum);
+    sketch.merge(other.sketch);
+    if (other.weight == 0) {
+      return;
+    }
+    final double combined = weight + other.weight;
+    final double delta = other.mean - mean;
+    squares += other.squares + delta * delta * weight * other.weight
+      / combined;
+    mean += delta * other.weight / combined;
+    weight = combined;
+  }
+
+
+  /**
+   * Merge the statistics of a replication.
+   *
+   * @param key Key of the replication, ignored.
+   * @param result Statistics of the replication.
+   */
+  @Override
+  public void accept(final long key, final TimeWeightedStatistics result) {
+    merge(result);
+  }
+
+
+  /**
+   * Get the total duration of the accumulated values.
+   *
+   * @return Total duration, in time units.
+   */
+  public double getDuration() {
+    return weight;
+  }
+
+
+  /**
+   * Get the time-weighted mean.
+   *
+   * @return Mean, NaN if no duration has been accumulated.
+   */
+  public double getMean() {
+    return weight == 0 ? Double.NaN : mean;
+  }
+
+
+  /**
+   * Get the time-weighted variance.
+   *
+   * @return Variance, NaN if no duration has been accumulated.
+   */
+  public double getVariance() {
+    return weight == 0 ? Double.NaN : squares / weight;
+  }
+
+
+  /**
+   * Get the time-weighted standard deviation.
+   *
+   * @return Standard deviation, NaN if no duration has been
+   * accumulated.
+   */
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+
+  /**
+   * Get the smallest value.
+   *
+   * @return Smallest value, infinity if there has been no update.
+   */
+  public double getMinimum() {
+    return minimum;
+  }
+
+
+  /**
+   * Get the largest value.
+   *
+   * @return Largest value, negative infinity if there has been no
+   * update.
+   */
+  public double getMaximum() {
+    return maximum;
+  }
+
+
+  /**
+   * Get a time-weighted quantile, that is the value below which the
+   * quantity was for the given fraction of the time.
+   *
+   * @param quantile Quantile to get, between 0 and 1.
+   * @return Value within the accuracy of the sketch, NaN if no
+   * duration has been accumulated.
+   */
+  public double getQuantile(final double quantile) {
+    return sketch.getQuantile(quantile);
+  }
+}
@@ -0,0 +1,442 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Engine running a simulation one timestep at a time, evaluating the
+ * events of each timestep in parallel.
+ *
+ * Each step takes all occurrences at the time of the next occurrence
+ * (using {@link Occurrences#at(Time)}) and removes them from the
+ * pending occurrences. As {@link Event#affect(Object, Time)} is a
+ * function of state and time only, the events of all these
+ * occurrences are then evaluated in parallel on a {@link
+ * ForkJoinPool}, against the same state. Afterwards their changes
+ * are {@linkplain Changes#merge(Iterable) merged} and applied, with
+ * the same effect as applying them one after the other, in the order
+ * in which the occurrences were returned by {@link
+ * Occurrences#at(Time)}. The result thus does not depend on the number
+ * of threads.
+ *
+ * Occurrences of {@link BatchEvent}s are grouped by the class of
+ * their events, and each group is evaluated with a single call to
+ * {@link BatchEvent#affectAll(Object, Time, List)}. The combined
+ * changes of a group are applied at the position of its first
+ * occurrence, and reported to the observer with that occurrence,
+ * while its other occurrences are reported without changes.
+ *
+ * Note that this differs from {@link Simulator}, where each event
+ * sees the changes of the events processed before it at the same
+ * time. Occurrences added by a timestep at its own time are
+ * processed in a following step at the same time. Removing
+ * occurrences of the current timestep has no effect, as they have
+ * already been removed.
+ *
+ * Changes which are null, as well as null parts of changes, are
+ * treated as "no changes". A timestep simulator must not be used by
+ * multiple threads at once.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class TimestepSimulator<State> {
+  /**
+   * Number of tasks per thread a timestep is split into.
+   */
+  private static final int TASKS_PER_THREAD = 4;
+
+
+  /**
+   * Pool evaluating the events.
+   */
+  private final ForkJoinPool pool;
+
+
+  /**
+   * Current simulation state.
+   */
+  private State state;
+
+
+  /**
+   * Current pending occurrences.
+   */
+  private Occurrences<State> occurrences;
+
+
+  /**
+   * Current time.
+   */
+  private Time time;
+
+
+  /**
+   * Number of occurrences processed so far.
+   */
+  private long processed;
+
+
+  /**
+   * Observer of processed occurrences, may be null.
+   */
+  private ProcessingObserver<State> observer;
+
+
+  /**
+   * Instrumentation reporting what the simulator does.
+   */
+  private Instrumentation<State> instrumentation =
+    new NoInstrumentation<State>();
+
+
+  /**
+   * Construct a timestep simulator starting at the given time.
+   *
+   * @param state Initial simulation state.
+   * @param occurrences Initially pending occurrences, none of them
+   * earlier than the given time.
+   * @param time Time at which the simulation starts.
+   * @param pool Pool used to evaluate the events of a timestep.
+   * @throws NullPointerException When occurrences, time or pool is
+   * null.
+   */
+  public TimestepSimulator(final State state,
+                           final Occurrences<State> occurrences,
+                           final Time time,
+                           final ForkJoinPool pool) {
+    this.state = state;
+    this.occurrences = Objects.requireNonNull(
+      occurrences, "occurrences must not be null");
+    this.time = Objects.requireNonNull(time, "time must not be null");
+    this.pool = Objects.requireNonNull(pool, "pool must not be null");
+  }
+
+
+  /**
+   * Get the current simulation state.
+   *
+   * @return Current state.
+   */
+  public State getState() {
+    return state;
+  }
+
+
+  /**
+   * Get the currently pending occurrences.
+   *
+   * @return Current occurrences.
+   */
+  public Occurrences<State> getOccurrences() {
+    return occurrences;
+  }
+
+
+  /**
+   * Get the current time, which is the time of the last processed
+   * timestep or the time the simulation has been run until.
+   *
+   * @return Current time.
+   */
+  public Time getTime() {
+    return time;
+  }
+
+
+  /**
+   * Get the number of occurrences processed so far.
+   *
+   * @return Number of processed occurrences.
+   */
+  public long getProcessedCount() {
+    return processed;
+  }
+
+
+  /**
+   * Set the observer of processed occurrences.
+   *
+   * @param observer Observer of processed occurrences, null for none.
+   */
+  public void setObserver(final ProcessingObserver<State> observer) {
+    this.observer = observer;
+  }
+
+
+  /**
+   * Set the instrumentation reporting what the simulator does.
+   *
+   * The instrumentation is called from the threads of the pool, too.
+   *
+   * @param instrumentation Instrumentation to use, null for none.
+   */
+  public void setInstrumentation(
+    final Instrumentation<State> instrumentation) {
+    this.instrumentation = instrumentation == null
+      ? new NoInstrumentation<State>() : instrumentation;
+  }
+
+
+  /**
+   * Evaluation of the events of a range of units, each either a
+   * single occurrence or a group of batch events, storing the
+   * resulting changes.
+   */
+  private static final class Evaluation<State> extends RecursiveAction {
+    /**
+     * Serialization version, this is not meant to be serialized.
+     */
+    private static final long serialVersionUID = 1L;
+
+
+    /**
+     * Units of occurrences of the timestep.
+     */
+    private final List<List<Occurrence<State>>> units;
+
+
+    /**
+     * Changes of the units, by index.
+     */
+    private final Changes<State>[] results;
+
+
+    /**
+     * State all events are evaluated against.
+     */
+    private final State state;
+
+
+    /**
+     * First index to evaluate.
+     */
+    private final int from;
+
+
+    /**
+     * Index after the last one to evaluate.
+     */
+    private final int to;
+
+
+    /**
+     * Ranges of at most this size are evaluated sequentially.
+     */
+    private final int granularity;
+
+
+    /**
+     * Instrumentation reporting the evaluations.
+     */
+    private final Instrumentation<State> instrumentation;
+
+
+    /**
+     * Construct an evaluation of the given range.
+     *
+     * @param units Units of occurrences of the timestep.
+     * @param results Array to store the changes in.
+     * @param state State to evaluate against.
+     * @param from First index to evaluate.
+     * @param to Index after the last one to evaluate.
+     * @param granularity Size of sequentially evaluated ranges.
+     * @param instrumentation Instrumentation reporting the evaluations.
+     */
+    Evaluation(final List<List<Occurrence<State>>> units,
+               final Changes<State>[] results,
+               final State state,
+               final int from,
+               final int to,
+               final int granularity,
+               final Instrumentation<State> instrumentation) {
+      this.units = units;
+      this.results = results;
+      this.state = state;
+      this.from = from;
+      this.to = to;
+      this.granularity = granularity;
+      this.instrumentation = instrumentation;
+    }
+
+
+    /**
+     * Evaluate the range, splitting it if it is too large.
+     */
+    @Override
+    protected void compute() {
+      if (to - from <= granularity) {
+        for (int i = from; i < to; ++i) {
+          final List<Occurrence<State>> unit = units.get(i);
+          final Occurrence<State> first = unit.get(0);
+          final long start = instrumentation.start();
+          results[i] = first.event instanceof BatchEvent
+            ? ((BatchEvent<State>) first.event).affectAll(
+              state, first.time, unit)
+            : first.event.affect(state, first.time);
+          instrumentation.affected(first.event, start);
+        }
+      } else {
+        final int middle = (from + to) >>> 1;
+        invokeAll(new Evaluation<State>(units, results, state,
+                                        from, middle, granularity,
+                                        instrumentation),
+                  new Evaluation<State>(units, results, state,
+                                        middle, to, granularity,
+                                        instrumentation));
+      }
+    }
+  }
+
+
+  /**
+   * Split the occurrences of a timestep into units evaluated at once:
+   * groups of batch events of the same class, and single other
+   * occurrences.
+   *
+   * @param batch Occurrences of the timestep.
+   * @param <State> Type used to represent the simulation state.
+   * @return Units, in the order of their first occurrences.
+   */
+  private static <State> List<List<Occurrence<State>>> group(
+    final List<Occurrence<State>> batch) {
+    final List<List<Occurrence<State>>> units =
+      new ArrayList<List<Occurrence<State>>>(batch.size());
+    final Map<Class<?>, List<Occurrence<State>>> groups =
+      new HashMap<Class<?>, List<Occurrence<State>>>();
+    for (final Occurrence<State> occurrence : batch) {
+      if (! (occurrence.event instanceof BatchEvent)) {
+        units.add(Collections.singletonList(occurrence));
+        continue;
+      }
+      List<Occurrence<State>> group = groups.get(occurrence.event.getClass());
+      if (group == null) {
+        group = new ArrayList<Occurrence<State>>();
+        groups.put(occurrence.event.getClass(), group);
+        units.add(group);
+      }
+      group.add(occurrence);
+    }
+    return units;
+  }
+
+
+  /**
+   * Process all occurrences at the time of the next occurrence.
+   *
+   * @return Number of occurrences processed, 0 if there are no
+   * pending occurrences.
+   * @throws IllegalStateException When the next occurrence is earlier
+   * than the current time.
+   */
+  public int step() {
+    final Occurrence<State> next = occurrences.nextOccurrence();
+    if (next == null) {
+      return 0;
+    }
+    if (next.time.absoluteValue < time.absoluteValue) {
+      throw new IllegalStateException(
+        "occurrence at " + next.time.absoluteValue
+        + " is earlier than the current time " + time.absoluteValue);
+    }
+    final List<Occurrence<State>> batch =
+      new ArrayList<Occurrence<State>>(occurrences.at(next.time));
+    occurrences = occurrences.without(batch);
+    time = next.time;
+    final List<List<Occurrence<State>>> units = group(batch);
+    @SuppressWarnings("unchecked")
+    final Changes<State>[] results =
+      (Changes<State>[]) new Changes<?>[units.size()];
+    final int granularity = Math.max(
+      1, units.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+    final Evaluation<State> evaluation = new Evaluation<State>(
+      units, results, state, 0, units.size(), granularity, instrumentation);
+    if (units.size() <= granularity) {
+      evaluation.compute();
+    } else {
+      pool.invoke(evaluation);
+    }
+    if (observer != null) {
+      for (int i = 0; i < results.length; ++i) {
+        final List<Occurrence<State>> unit = units.get(i);
+        observer.processed(unit.get(0), results[i]);
+        for (int j = 1; j < unit.size(); ++j) {
+          observer.processed(unit.get(j), null);
+        }
+      }
+    }
+    final Changes<State> merged = Changes.merge(Arrays.asList(results));
+    if (merged.toState != null) {
+      final long start = instrumentation.start();
+      state = merged.toState.applyTo(state);
+      instrumentation.appliedToState(start);
+    }
+    if (merged.toOccurrences != null) {
+      final long start = instrumentation.start();
+      occurrences = merged.toOccurrences.applyTo(occurrences);
+      instrumentation.appliedToOccurrences(start);
+    }
+    processed += batch.size();
+    instrumentation.processed(time, batch.size(), occurrences);
+    return batch.size();
+  }
+
+
+  /**
+   * Process whole timesteps until at least the given number of
+   * occurrences has been processed.
+   *
+   * @param count Number of occurrences to process.
+   * @return Number of occurrences processed, less than count only if
+   * there are no more pending occurrences.
+   * @throws IllegalStateException When an occurrence is earlier than
+   * the current time.
+   */
+  public long run(final long count) {
+    long done = 0;
+    while (done < count) {
+      final int stepped = step();
+      if (stepped == 0) {
+        break;
+      }
+      done += stepped;
+    }
+    return done;
+  }
+
+
+  /**
+   * Process all timesteps up to (and including) the given time, then
+   * advance the current time to the given time.
+   *
+   * The time is not changed if it is already later than the given
+   * time.
+   *
+   * @param end Time until which to run.
+   * @return Number of occurrences processed.
+   * @throws IllegalStateException When an occurrence is earlier than
+   * the current time.
+   */
+  public long runUntil(final Time end) {
+    long done = 0;
+    while (true) {
+      final Occurrence<State> next = occurrences.nextOccurrence();
+      if (next == null || next.time.absoluteValue > end.absoluteValue) {
+        break;
+      }
+      done += step();
+    }
+    if (end.absoluteValue > time.absoluteValue) {
+      time = end;
+    }
+    return done;
+  }
+}
@@ -0,0 +1,481 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+
+
+/**
+ * Occurrences removing occurrences lazily, by marking them with
+ * tombstones.
+ *
+ * Wraps other occurrences, which hold all occurrences that have not
+ * yet been removed from them. Removing an occurrence with {@link
+ * #without(Iterable)} only adds a tombstone for it to a persistent
+ * hash map, in O(log32 n) time, instead of searching the wrapped
+ * occurrences for it. Tombstoned occurrences are skipped once they
+ * would become the next occurrence, and ignored when iterating or
+ * looking up occurrences at a time. When the tombstones make up more
+ * than a given ratio of the wrapped occurrences, they are removed
+ * from the wrapped occurrences all at once. As that takes at most
+ * linear time, and happens at most once per that ratio times n
+ * removals, removing an occurrence takes amortized constant time
+ * plus the time for looking up its count and its tombstone.
+ *
+ * A tombstone removes one equal occurrence, as with other
+ * occurrences. Removing an occurrence which is not present removes
+ * nothing: it gets no tombstone, which would otherwise remove an
+ * equal occurrence added later, for example a timeout rescheduled
+ * after cancelling it once it already occurred. To tell, the number
+ * of wrapped occurrences equal to each one is kept in a second
+ * persistent hash map, which costs an update in O(log32 n) time for
+ * each added occurrence and each removed next occurrence.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class TombstoneOccurrences<State>
+  implements Occurrences<State> {
+  /**
+   * Default ratio of tombstones to wrapped occurrences above which
+   * tombstones are compacted.
+   */
+  public static final double DEFAULT_COMPACTION_RATIO = 0.5;
+
+
+  /**
+   * Number of tombstones which are kept regardless of the ratio, to
+   * avoid frequent compactions of few occurrences.
+   */
+  private static final int MINIMUM_COMPACTION = 32;
+
+
+  /**
+   * Counts of occurrences, never modified after construction.
+   *
+   * @param <State> Type used to represent the simulation state.
+   */
+  private static final class Counts<State> {
+    /**
+     * Number of occurrences equal to each occurrence.
+     */
+    final PersistentMap<Occurrence<State>, Integer> byOccurrence;
+
+
+    /**
+     * Total number of occurrences.
+     */
+    final int size;
+
+
+    /**
+     * Construct with the given values.
+     *
+     * @param byOccurrence Number of occurrences equal to each
+     * occurrence.
+     * @param size Total number of occurrences.
+     */
+    Counts(final PersistentMap<Occurrence<State>, Integer> byOccurrence,
+           final int size) {
+      this.byOccurrence = byOccurrence;
+      this.size = size;
+    }
+
+
+    /**
+     * Get the number of occurrences equal to the given one.
+     *
+     * @param occurrence Occurrence to look up.
+     * @return Number of equal occurrences.
+     */
+    int of(final Occurrence<State> occurrence) {
+      final Integer count = byOccurrence.get(occurrence);
+      return count == null ? 0 : count;
+    }
+
+
+    /**
+     * Get the counts with the given occurrences added.
+     *
+     * @param added Occurrences to add.
+     * @return New counts.
+     */
+    Counts<State> plus(final Iterable<Occurrence<State>> added) {
+      final PersistentMap.Editor<Occurrence<State>, Integer> editor =
+        byOccurrence.asTransient();
+      int total = size;
+      for (final Occurrence<State> occurrence : added) {
+        final Integer count = editor.get(occurrence);
+        editor.put(occurrence, count == null ? 1 : count + 1);
+        ++total;
+      }
+      return new Counts<State>(editor.persistent(), total);
+    }
+
+
+    /**
+     * Get the counts with occurrences equal to the given one removed.
+     *
+     * @param occurrence Occurrence to remove.
+     * @param removed Number of equal occurrences to remove, at most
+     * their number.
+     * @return New counts.
+     */
+    Counts<State> minus(final Occurrence<State> occurrence,
+                        final int removed) {
+      final int count = of(occurrence) - removed;
+      return new Counts<State>(
+        count == 0
+        ? byOccurrence.without(occurrence)
+        : byOccurrence.with(occurrence, count),
+        size - removed);
+    }
+  }
+
+
+  /**
+   * The wrapped occurrences, whose next one is never tombstoned.
+   */
+  private final Occurrences<State> occurrences;
+
+
+  /**
+   * Number of tombstones for each tombstoned occurrence.
+   */
+  private final PersistentMap<Occurrence<State>, Integer> tombstones;
+
+
+  /**
+   * Total number of tombstones.
+   */
+  private final int tombstoneCount;
+
+
+  /**
+   * Counts of the wrapped occurrences, including tombstoned ones.
+   */
+  private final Counts<State> counts;
+
+
+  /**
+   * Ratio of tombstones to wrapped occurrences above which
+   * tombstones are compacted.
+   */
+  private final double compactionRatio;
+
+
+  /**
+   * Construct wrapping the given occurrences, using the default
+   * compaction ratio.
+   *
+   * @param occurrences Occurrences to wrap.
+   * @throws NullPointerException When occurrences is null.
+   */
+  public TombstoneOccurrences(final Occurrences<State> occurrences) {
+    this(occurrences, DEFAULT_COMPACTION_RATIO);
+  }
+
+
+  /**
+   * Construct wrapping the given occurrences.
+   *
+   * Counting the wrapped occurrences takes a pass over them.
+   *
+   * @param occurrences Occurrences to wrap.
+   * @param compactionRatio Ratio of tombstones to wrapped occurrences
+   * above which tombstones are compacted.
+   * @throws NullPointerException When occurrences is null.
+   * @throws IllegalArgumentException When the compaction ratio is not
+   * positive.
+   */
+  public TombstoneOccurrences(final Occurrences<State> occurrences,
+                              final double compactionRatio) {
+    this(Objects.requireNonNull(occurrences,
+                                "occurrences must not be null"),
+         new PersistentMap<Occurrence<State>, Integer>(), 0,
+         new Counts<State>(new PersistentMap<Occurrence<State>, Integer>(),
+                           0).plus(occurrences),
+         compactionRatio);
+    if (! (compactionRatio > 0)) {
+      throw new IllegalArgumentException(
+        "compaction ratio must be positive");
+    }
+  }
+
+
+  /**
+   * Construct from the given parts.
+   *
+   * @param occurrences The wrapped occurrences, whose next one is
+   * never tombstoned.
+   * @param tombstones Number of tombstones for each occurrence.
+   * @param tombstoneCount Total number of tombstones.
+   * @param counts Counts of the wrapped occurrences.
+   * @param compactionRatio Ratio above which tombstones are compacted.
+   */
+  private TombstoneOccurrences(
+    final Occurrences<State> occurrences,
+    final PersistentMap<Occurrence<State>, Integer> tombstones,
+    final int tombstoneCount,
+    final Counts<State> counts,
+    final double compactionRatio) {
+    this.occurrences = occurrences;
+    this.tombstones = tombstones;
+    this.tombstoneCount = tombstoneCount;
+    this.counts = counts;
+    this.compactionRatio = compactionRatio;
+  }
+
+
+  /**
+   * Derive occurrences, skipping tombstoned next occurrences, and
+   * compacting if there are too many tombstones.
+   *
+   * @param derived The wrapped occurrences.
+   * @param derivedTombstones Number of tombstones for each occurrence.
+   * @param derivedTombstoneCount Total number of tombstones.
+   * @param derivedCounts Counts of the wrapped occurrences.
+   * @return New occurrences.
+   */
+  private TombstoneOccurrences<State> derive(
+    Occurrences<State> derived,
+    PersistentMap<Occurrence<State>, Integer> derivedTombstones,
+    int derivedTombstoneCount,
+    Counts<State> derivedCounts) {
+    if (derivedTombstoneCount > MINIMUM_COMPACTION
+        && derivedTombstoneCount > compactionRatio * derivedCounts.size) {
+      final List<Occurrence<State>> removed =
+        new ArrayList<Occurrence<State>>(derivedTombstoneCount);
+      for (final Map.Entry<Occurrence<State>, Integer> tombstone
+             : derivedTombstones) {
+        for (int i = 0; i < tombstone.getValue(); ++i) {
+          removed.add(tombstone.getKey());
+        }
+        // Only present occurrences are tombstoned, so each tombstone
+        // removes exactly one wrapped occurrence.
+        derivedCounts =
+          derivedCounts.minus(tombstone.getKey(), tombstone.getValue());
+      }
+      derived = derived.without(removed);
+      derivedTombstones = new PersistentMap<Occurrence<State>, Integer>();
+      derivedTombstoneCount = 0;
+    }
+    while (derivedTombstoneCount > 0) {
+      final Occurrence<State> next = derived.nextOccurrence();
+      if (next == null) {
+        break;
+      }
+      final Integer tombstone = derivedTombstones.get(next);
+      if (tombstone == null) {
+        break;
+      }
+      derived = derived.withoutNextOccurrence();
+      derivedTombstones = tombstone == 1
+        ? derivedTombstones.without(next)
+        : derivedTombstones.with(next, tombstone - 1);
+      --derivedTombstoneCount;
+      derivedCounts = derivedCounts.minus(next, 1);
+    }
+    return new TombstoneOccurrences<State>(derived, derivedTombstones,
+                                           derivedTombstoneCount,
+                                           derivedCounts, compactionRatio);
+  }
+
+
+  /**
+   * Get the number of tombstones which have not yet been removed
+   * together with their occurrences.
+   *
+   * @return Number of tombstones.
+   */
+  public int getTombstoneCount() {
+    return tombstoneCount;
+  }
+
+
+  /**
+   * Get the next occurrence, as the wrapped occurrences do.
+   *
+   * @return Next (earliest) occurrence, or null if there is none.
+   */
+  @Override
+  public Occurrence<State> nextOccurrence() {
+    return occurrences.nextOccurrence();
+  }
+
+
+  /**
+   * Collect the occurrences at the given time, without tombstoned
+   * ones.
+   *
+   * @param time Time for which to return occurrences.
+   * @return Unmodifiable collection of the occurrences at that time.
+   */
+  @Override
+  public Collection<Occurrence<State>> at(final Time time) {
+    final Collection<Occurrence<State>> found = occurrences.at(time);
+    if (tombstoneCount == 0) {
+      return found;
+    }
+    final Map<Occurrence<State>, Integer> skipped =
+      new HashMap<Occurrence<State>, Integer>();
+    final List<Occurrence<State>> remaining =
+      new ArrayList<Occurrence<State>>(found.size());
+    for (final Occurrence<State> occurrence : found) {
+      if (! skip(occurrence, skipped)) {
+        remaining.add(occurrence);
+      }
+    }
+    return Collections.unmodifiableList(remaining);
+  }
+
+
+  /**
+   * Check whether an occurrence is tombstoned, counting the
+   * tombstones used up.
+   *
+   * @param occurrence Occurrence to check.
+   * @param skipped Number of used up tombstones for each occurrence.
+   * @return True if the occurrence is tombstoned.
+   */
+  private boolean skip(final Occurrence<State> occurrence,
+                       final Map<Occurrence<State>, Integer> skipped) {
+    final Integer tombstone = tombstones.get(occurrence);
+    if (tombstone == null) {
+      return false;
+    }
+    final Integer used = skipped.get(occurrence);
+    final int count = used == null ? 0 : used;
+    if (count == tombstone) {
+      return false;
+    }
+    skipped.put(occurrence, count + 1);
+    return true;
+  }
+
+
+  /**
+   * Add the given occurrences to the wrapped occurrences.
+   *
+   * @param added Occurrences to add.
+   * @return New Occurrences containing this object's and the given
+   * occurrences.
+   */
+  @Override
+  public TombstoneOccurrences<State> withNew(
+    final Iterable<Occurrence<State>> added) {
+    final List<Occurrence<State>> list = new ArrayList<Occurrence<State>>();
+    for (final Occurrence<State> occurrence : added) {
+      list.add(occurrence);
+    }
+    if (list.isEmpty()) {
+      return this;
+    }
+    return derive(occurrences.withNew(list), tombstones, tombstoneCount,
+                  counts.plus(list));
+  }
+
+
+  /**
+   * Remove the given occurrences by adding tombstones for them.
+   *
+   * Occurrences which are not present are ignored.
+   *
+   * @param removed Occurrences to remove.
+   * @return New Occurrences without the given occurrences.
+   */
+  @Override
+  public TombstoneOccurrences<State> without(
+    final Iterable<Occurrence<State>> removed) {
+    PersistentMap<Occurrence<State>, Integer> added = tombstones;
+    int addedCount = tombstoneCount;
+    for (final Occurrence<State> occurrence : removed) {
+      final Integer tombstone = added.get(occurrence);
+      final int tombstoned = tombstone == null ? 0 : tombstone;
+      if (counts.of(occurrence) > tombstoned) {
+        added = added.with(occurrence, tombstoned + 1);
+        ++addedCount;
+      }
+    }
+    if (addedCount == tombstoneCount) {
+      return this;
+    }
+    return derive(occurrences, added, addedCount, counts);
+  }
+
+
+  /**
+   * Remove the next occurrence from the wrapped occurrences.
+   *
+   * @return Occurrences without the next occurrence, or this object
+   * if it is empty.
+   */
+  @Override
+  public TombstoneOccurrences<State> withoutNextOccurrence() {
+    final Occurrence<State> next = occurrences.nextOccurrence();
+    if (next == null) {
+      return this;
+    }
+    return derive(occurrences.withoutNextOccurrence(), tombstones,
+                  tombstoneCount, counts.minus(next, 1));
+  }
+
+
+  /**
+   * Iterate over all occurrences which are not tombstoned, in the
+   * order of the wrapped occurrences.
+   *
+   * @return Iterator over all occurrences, not supporting removal.
+   */
+  @Override
+  public Iterator<Occurrence<State>> iterator() {
+    final Iterator<Occurrence<State>> wrapped = occurrences.iterator();
+    if (tombstoneCount == 0) {
+      return wrapped;
+    }
+    final Map<Occurrence<State>, Integer> skipped =
+      new HashMap<Occurrence<State>, Integer>();
+    return new Iterator<Occurrence<State>>() {
+      /**
+       * Occurrence found ahead, null if none.
+       */
+      private Occurrence<State> next;
+
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && wrapped.hasNext()) {
+          final Occurrence<State> occurrence = wrapped.next();
+          if (! skip(occurrence, skipped)) {
+            next = occurrence;
+          }
+        }
+        return next != null;
+      }
+
+
+      @Override
+      public Occurrence<State> next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Occurrence<State> occurrence = next;
+        next = null;
+        return occurrence;
+      }
+
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException(
+          "occurrences are immutable");
+      }
+    };
+  }
+}
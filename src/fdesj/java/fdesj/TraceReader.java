@@ -0,0 +1,266 @@
+package fdesj;
+
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+
+
+/**
+ * Reader of a trace written by a {@link TraceWriter}.
+ *
+ * Iterating gives the records of all retained segments, oldest
+ * first. Segment files are mapped into memory one at a time, while
+ * iterating. Only segments of the run which wrote the first segment
+ * file of the ring are read; those left behind by an earlier run are
+ * ignored.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class TraceReader<State>
+  implements Iterable<TraceReader.Record<State>> {
+  /**
+   * A record of a processed occurrence.
+   *
+   * @param <State> Type used to represent the simulation state.
+   */
+  public static final class Record<State> {
+    /**
+     * The processed occurrence.
+     */
+    public final Occurrence<State> occurrence;
+
+
+    /**
+     * State changes of the occurrence, null if there were none.
+     */
+    public final StateChanges<State> toState;
+
+
+    /**
+     * Construct a record.
+     *
+     * @param occurrence The processed occurrence.
+     * @param toState State changes of the occurrence, may be null.
+     */
+    Record(final Occurrence<State> occurrence,
+           final StateChanges<State> toState) {
+      this.occurrence = occurrence;
+      this.toState = toState;
+    }
+  }
+
+
+  /**
+   * Segment files, by sequence number.
+   */
+  private final TreeMap<Long, Path> segments = new TreeMap<Long, Path>();
+
+
+  /**
+   * Codec of events.
+   */
+  private final Codec<Event<State>> events;
+
+
+  /**
+   * Codec of state changes.
+   */
+  private final Codec<StateChanges<State>> changes;
+
+
+  /**
+   * Construct reading the segment files with the given prefix.
+   *
+   * @param directory Directory of the segment files.
+   * @param prefix Prefix of the names of the segment files.
+   * @param events Codec of events.
+   * @param changes Codec of state changes.
+   * @throws IOException When the segment files cannot be read.
+   */
+  public TraceReader(final Path directory,
+                     final String prefix,
+                     final Codec<Event<State>> events,
+                     final Codec<StateChanges<State>> changes)
+    throws IOException {
+    this.events = Objects.requireNonNull(events, "events must not be null");
+    this.changes = Objects.requireNonNull(changes,
+                                          "changes must not be null");
+    final Path first =
+      directory.resolve(TraceWriter.segmentName(prefix, 0));
+    final ByteBuffer firstHeader =
+      Files.exists(first) ? header(first) : null;
+    if (firstHeader == null) {
+      return;
+    }
+    final long run = firstHeader.getLong();
+    try (DirectoryStream<Path> files =
+         Files.newDirectoryStream(directory, prefix + "-*.trace")) {
+      for (final Path file : files) {
+        final ByteBuffer header = header(file);
+        if (header != null && header.getLong() == run) {
+          segments.put(header.getLong(), file);
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Read the header of a segment file.
+   *
+   * @param file Segment file.
+   * @return Header holding run id and sequence number, null if the
+   * file is too short.
+   * @throws IOException When reading fails.
+   */
+  private static ByteBuffer header(final Path file) throws IOException {
+    try (FileChannel channel =
+         FileChannel.open(file, StandardOpenOption.READ)) {
+      return channel.size() < TraceWriter.SEGMENT_HEADER
+        ? null
+        : channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                      TraceWriter.SEGMENT_HEADER);
+    }
+  }
+
+
+  /**
+   * Check whether the trace starts with the first processed
+   * occurrence, so no segment has been overwritten.
+   *
+   * @return True if the trace is complete.
+   */
+  public boolean isComplete() {
+    return segments.isEmpty()
+      || (segments.firstKey() == 0
+          && segments.lastKey() == segments.size() - 1);
+  }
+
+
+  /**
+   * Map a segment file.
+   *
+   * @param file Segment file.
+   * @return Mapping of the records of the segment.
+   */
+  private static ByteBuffer map(final Path file) {
+    try (FileChannel channel =
+         FileChannel.open(file, StandardOpenOption.READ)) {
+      final ByteBuffer mapped = channel.map(
+        FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      mapped.position(TraceWriter.SEGMENT_HEADER);
+      return mapped;
+    } catch (final IOException exception) {
+      throw new IllegalStateException("reading the trace failed",
+                                      exception);
+    }
+  }
+
+
+  /**
+   * Decode a record.
+   *
+   * @param segment Mapped segment, positioned at the record, after
+   * its length.
+   * @param length Length of the record.
+   * @return Decoded record.
+   */
+  private Record<State> decode(final ByteBuffer segment, final int length) {
+    final ByteBuffer record = segment.slice();
+    record.limit(length);
+    segment.position(segment.position() + length);
+    try {
+      final DataInputStream input =
+        new DataInputStream(new ByteBufferInputStream(record));
+      final Time time = Time.of(input.readLong());
+      input.readInt();
+      final Event<State> event = events.decode(input);
+      final StateChanges<State> toState =
+        input.readInt() == TraceWriter.NONE ? null : changes.decode(input);
+      return new Record<State>(new Occurrence<State>(time, event), toState);
+    } catch (final IOException exception) {
+      throw new IllegalStateException("decoding the trace failed",
+                                      exception);
+    }
+  }
+
+
+  /**
+   * Iterate over the records, oldest first.
+   *
+   * @return Iterator over the records, throwing IllegalStateException
+   * when reading fails.
+   */
+  @Override
+  public Iterator<Record<State>> iterator() {
+    final Iterator<Path> files = segments.values().iterator();
+    return new Iterator<Record<State>>() {
+      /**
+       * Mapped segment being read, null before the first one.
+       */
+      private ByteBuffer segment;
+
+
+      /**
+       * Record read ahead, null if none.
+       */
+      private Record<State> next;
+
+
+      /**
+       * Read ahead the next record, if not done yet.
+       */
+      private void advance() {
+        while (next == null) {
+          if (segment != null && segment.remaining() >= 4) {
+            final int length = segment.getInt();
+            if (length > 0 && length <= segment.remaining()) {
+              next = decode(segment, length);
+              return;
+            }
+          }
+          segment = null;
+          if (! files.hasNext()) {
+            return;
+          }
+          segment = map(files.next());
+        }
+      }
+
+
+      @Override
+      public boolean hasNext() {
+        advance();
+        return next != null;
+      }
+
+
+      @Override
+      public Record<State> next() {
+        advance();
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        final Record<State> record = next;
+        next = null;
+        return record;
+      }
+
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("traces are read-only");
+      }
+    };
+  }
+}
@@ -0,0 +1,132 @@
+package fdesj;
+
+
+import java.util.Iterator;
+import java.util.Objects;
+
+
+/**
+ * Engine replaying a recorded trace.
+ *
+ * Instead of affecting events and maintaining pending occurrences,
+ * the recorded state changes are applied in the recorded order, which
+ * gives the same states as the recorded run, just faster.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class TraceReplayer<State> {
+  /**
+   * Records not yet replayed.
+   */
+  private final Iterator<TraceReader.Record<State>> records;
+
+
+  /**
+   * Next record to replay, null if not yet read.
+   */
+  private TraceReader.Record<State> next;
+
+
+  /**
+   * Current simulation state.
+   */
+  private State state;
+
+
+  /**
+   * Current time.
+   */
+  private Time time;
+
+
+  /**
+   * Number of occurrences replayed so far.
+   */
+  private long replayed;
+
+
+  /**
+   * Construct replaying a trace.
+   *
+   * @param trace Complete trace to replay.
+   * @param state Simulation state at the start of the recorded run.
+   * @param time Time at which the recorded run started.
+   * @throws IllegalArgumentException When segments of the trace have
+   * been overwritten.
+   */
+  public TraceReplayer(final TraceReader<State> trace,
+                       final State state,
+                       final Time time) {
+    if (! trace.isComplete()) {
+      throw new IllegalArgumentException(
+        "trace is incomplete, segments have been overwritten");
+    }
+    this.records = trace.iterator();
+    this.state = state;
+    this.time = Objects.requireNonNull(time, "time must not be null");
+  }
+
+
+  /**
+   * Get the current simulation state.
+   *
+   * @return Current state.
+   */
+  public State getState() {
+    return state;
+  }
+
+
+  /**
+   * Get the current time.
+   *
+   * @return Current time.
+   */
+  public Time getTime() {
+    return time;
+  }
+
+
+  /**
+   * Get the number of occurrences replayed so far.
+   *
+   * @return Number of replayed occurrences.
+   */
+  public long getReplayedCount() {
+    return replayed;
+  }
+
+
+  /**
+   * Replay all recorded occurrences up to (and including) the given
+   * time, then advance the current time to the given time.
+   *
+   * @param end Time until which to replay.
+   * @return Number of occurrences replayed.
+   */
+  public long runUntil(final Time end) {
+    long done = 0;
+    while (true) {
+      if (next == null) {
+        if (! records.hasNext()) {
+          break;
+        }
+        next = records.next();
+      }
+      if (next.occurrence.time.absoluteValue > end.absoluteValue) {
+        break;
+      }
+      time = next.occurrence.time;
+      if (next.toState != null) {
+        state = next.toState.applyTo(state);
+      }
+      next = null;
+      ++done;
+    }
+    replayed += done;
+    if (end.absoluteValue > time.absoluteValue) {
+      time = end;
+    }
+    return done;
+  }
+}
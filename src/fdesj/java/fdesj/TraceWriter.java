@@ -0,0 +1,322 @@
+package fdesj;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Objects;
+import java.util.Random;
+
+
+/**
+ * Observer writing a binary trace of all processed occurrences.
+ *
+ * The trace is written to a ring of segment files of fixed size,
+ * through memory mapping; when all segments are used, the oldest one
+ * is overwritten. Each segment starts with a random id of the run
+ * which wrote it and its sequence number, followed by records of the
+ * layout
+ *
+ * <pre>
+ *   int  length of the rest of the record
+ *   long time
+ *   int  length of the encoded event
+ *   ...  encoded event
+ *   int  length of the encoded state changes, -1 if there are none
+ *   ...  encoded state changes
+ * </pre>
+ *
+ * and ends with a length of 0. Events and state changes are encoded
+ * by pluggable {@link Codec}s; recording the state changes allows
+ * replaying the trace with a {@link TraceReplayer}, without affecting
+ * events. Writes are only forced to the files every given number of
+ * records, and when switching segments.
+ *
+ * A new writer deletes the segment files of its ring before writing
+ * the first segment. Segment files an earlier run with a larger ring
+ * left behind are recognized by their run id and ignored by the
+ * {@link TraceReader}.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class TraceWriter<State>
+  implements ProcessingObserver<State>, Closeable {
+  /**
+   * Size of the run id and the sequence number at the start of each
+   * segment.
+   */
+  /* package-private */ static final int SEGMENT_HEADER = 16;
+
+
+  /**
+   * Length marking absent state changes.
+   */
+  /* package-private */ static final int NONE = -1;
+
+
+  /**
+   * Byte array output stream giving access to its buffer, to avoid
+   * copying each record.
+   */
+  private static final class Scratch extends ByteArrayOutputStream {
+    /**
+     * Get the buffer holding the written bytes.
+     *
+     * @return Buffer, valid up to the size.
+     */
+    byte[] bytes() {
+      return buf;
+    }
+  }
+
+
+  /**
+   * Directory of the segment files.
+   */
+  private final Path directory;
+
+
+  /**
+   * Prefix of the names of the segment files.
+   */
+  private final String prefix;
+
+
+  /**
+   * Size of each segment file.
+   */
+  private final int segmentSize;
+
+
+  /**
+   * Number of segment files in the ring.
+   */
+  private final int segmentCount;
+
+
+  /**
+   * Number of records after which writes are forced.
+   */
+  private final int flushEvery;
+
+
+  /**
+   * Codec of events.
+   */
+  private final Codec<Event<State>> events;
+
+
+  /**
+   * Codec of state changes.
+   */
+  private final Codec<StateChanges<State>> changes;
+
+
+  /**
+   * Id of this run, written into each segment.
+   */
+  private final long run = new Random().nextLong();
+
+
+  /**
+   * Buffer records are encoded into.
+   */
+  private final Scratch scratch = new Scratch();
+
+
+  /**
+   * Output encoding into the scratch buffer.
+   */
+  private final DataOutputStream output = new DataOutputStream(scratch);
+
+
+  /**
+   * Sequence number of the next segment.
+   */
+  private long sequence;
+
+
+  /**
+   * Channel of the current segment.
+   */
+  private FileChannel channel;
+
+
+  /**
+   * Mapping of the current segment.
+   */
+  private MappedByteBuffer segment;
+
+
+  /**
+   * Number of records since writes were last forced.
+   */
+  private int unflushed;
+
+
+  /**
+   * Construct writing to a new ring of segment files, deleting the
+   * segment files of an earlier run with the same prefix.
+   *
+   * @param directory Directory of the segment files.
+   * @param prefix Prefix of the names of the segment files.
+   * @param segmentSize Size of each segment file, in bytes.
+   * @param segmentCount Number of segment files in the ring.
+   * @param flushEvery Number of records after which writes are forced.
+   * @param events Codec of events.
+   * @param changes Codec of state changes.
+   * @throws IOException When the old segments cannot be deleted or the
+   * first segment cannot be created.
+   * @throws IllegalArgumentException When a size or count is not
+   * positive.
+   */
+  public TraceWriter(final Path directory,
+                     final String prefix,
+                     final int segmentSize,
+                     final int segmentCount,
+                     final int flushEvery,
+                     final Codec<Event<State>> events,
+                     final Codec<StateChanges<State>> changes)
+    throws IOException {
+    if (segmentSize <= SEGMENT_HEADER || segmentCount <= 0
+        || flushEvery <= 0) {
+      throw new IllegalArgumentException(
+        "segment size, segment count and flush interval must be positive");
+    }
+    this.directory = Objects.requireNonNull(directory,
+                                            "directory must not be null");
+    this.prefix = Objects.requireNonNull(prefix, "prefix must not be null");
+    this.segmentSize = segmentSize;
+    this.segmentCount = segmentCount;
+    this.flushEvery = flushEvery;
+    this.events = Objects.requireNonNull(events, "events must not be null");
+    this.changes = Objects.requireNonNull(changes,
+                                          "changes must not be null");
+    for (int index = 0; index < segmentCount; ++index) {
+      Files.deleteIfExists(directory.resolve(segmentName(prefix, index)));
+    }
+    nextSegment();
+  }
+
+
+  /**
+   * Get the name of a segment file.
+   *
+   * @param prefix Prefix of the names of the segment files.
+   * @param index Index of the segment in the ring.
+   * @return Name of the segment file.
+   */
+  /* package-private */ static String segmentName(final String prefix,
+                                                 final long index) {
+    return prefix + "-" + index + ".trace";
+  }
+
+
+  /**
+   * Finish the current segment, if any, and start the next one.
+   *
+   * @throws IOException When the next segment cannot be created.
+   */
+  private void nextSegment() throws IOException {
+    if (channel != null) {
+      segment.force();
+      channel.close();
+    }
+    // Truncating first clears what an earlier round left in the file.
+    channel = FileChannel.open(
+      directory.resolve(segmentName(prefix, sequence % segmentCount)),
+      StandardOpenOption.CREATE, StandardOpenOption.READ,
+      StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+    segment.putLong(run);
+    segment.putLong(sequence);
+    ++sequence;
+    unflushed = 0;
+  }
+
+
+  /**
+   * Write a record of the processed occurrence.
+   *
+   * @param occurrence The processed occurrence.
+   * @param processedChanges Changes of the occurrence, may be null.
+   * @throws IllegalStateException When writing fails, or a record
+   * does not fit into a segment.
+   */
+  @Override
+  public void processed(final Occurrence<State> occurrence,
+                        final Changes<State> processedChanges) {
+    try {
+      scratch.reset();
+      output.writeLong(occurrence.time.absoluteValue);
+      output.writeInt(0);
+      events.encode(occurrence.event, output);
+      final int eventEnd = scratch.size();
+      final StateChanges<State> toState =
+        processedChanges == null ? null : processedChanges.toState;
+      output.writeInt(NONE);
+      if (toState != null) {
+        changes.encode(toState, output);
+      }
+      output.flush();
+      final byte[] bytes = scratch.bytes();
+      putInt(bytes, 8, eventEnd - 12);
+      if (toState != null) {
+        putInt(bytes, eventEnd, scratch.size() - eventEnd - 4);
+      }
+      // Keep room for the length marking the end of the segment.
+      final int needed = 4 + scratch.size() + 4;
+      if (segment.remaining() < needed) {
+        if (SEGMENT_HEADER + needed > segmentSize) {
+          throw new IllegalStateException(
+            "record of " + scratch.size() + " bytes exceeds a segment");
+        }
+        nextSegment();
+      }
+      segment.putInt(scratch.size());
+      segment.put(bytes, 0, scratch.size());
+      if (++unflushed >= flushEvery) {
+        segment.force();
+        unflushed = 0;
+      }
+    } catch (final IOException exception) {
+      throw new IllegalStateException("writing the trace failed",
+                                      exception);
+    }
+  }
+
+
+  /**
+   * Store an int in big endian byte order into an array.
+   *
+   * @param bytes Array to store into.
+   * @param at Index of the first byte.
+   * @param value Value to store.
+   */
+  private static void putInt(final byte[] bytes,
+                             final int at,
+                             final int value) {
+    bytes[at] = (byte) (value >>> 24);
+    bytes[at + 1] = (byte) (value >>> 16);
+    bytes[at + 2] = (byte) (value >>> 8);
+    bytes[at + 3] = (byte) value;
+  }
+
+
+  /**
+   * Force all writes and close the current segment.
+   *
+   * @throws IOException When closing fails.
+   */
+  @Override
+  public void close() throws IOException {
+    segment.force();
+    channel.close();
+  }
+}
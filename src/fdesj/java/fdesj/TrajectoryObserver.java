@@ -0,0 +1,19 @@
+package fdesj;
+
+
+/**
+ * Observer of the trajectory of a simulation, that is of the states
+ * after each processed occurrence.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface TrajectoryObserver<State> {
+  /**
+   * Called after the changes of an occurrence have been applied.
+   *
+   * @param time Time of the occurrence.
+   * @param state State with the changes applied.
+   * @param occurrence The processed occurrence.
+   */
+  void committed(Time time, State state, Occurrence<State> occurrence);
+}
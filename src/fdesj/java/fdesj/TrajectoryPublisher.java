@@ -0,0 +1,229 @@
+package fdesj;
+
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ * Publisher streaming the trajectory of a simulation to a consumer
+ * running concurrently, through a bounded buffer.
+ *
+ * The simulation thread publishes each committed point into the
+ * buffer; when the buffer is full, it blocks until the consumer has
+ * taken a point. A consumer which is slower than the simulation thus
+ * slows the simulation down instead of letting the buffer grow, so
+ * the trajectory is streamed in constant memory. The consumer iterates
+ * over the points on its own thread, and may {@linkplain #cancel()
+ * cancel} the stream to let the simulation continue unhindered.
+ *
+ * There must only be a single consumer. On Java 8 and later the
+ * iterator can be turned into a {@code Stream}, and on Java 9 and
+ * later adapted to a {@code Flow.Publisher}, where each request
+ * corresponds to taking points from the iterator.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public final class TrajectoryPublisher<State>
+  implements TrajectoryObserver<State>,
+             Iterable<TrajectoryPublisher.Point<State>> {
+  /**
+   * A committed point of the trajectory.
+   *
+   * @param <State> Type used to represent the simulation state.
+   */
+  public static final class Point<State> {
+    /**
+     * Time of the processed occurrence.
+     */
+    public final Time time;
+
+
+    /**
+     * State after processing the occurrence.
+     */
+    public final State state;
+
+
+    /**
+     * The processed occurrence.
+     */
+    public final Occurrence<State> occurrence;
+
+
+    /**
+     * Construct a point.
+     *
+     * @param time Time of the processed occurrence.
+     * @param state State after processing the occurrence.
+     * @param occurrence The processed occurrence.
+     */
+    Point(final Time time,
+          final State state,
+          final Occurrence<State> occurrence) {
+      this.time = time;
+      this.state = state;
+      this.occurrence = occurrence;
+    }
+  }
+
+
+  /**
+   * Buffer of published points.
+   */
+  private final BlockingQueue<Point<State>> buffer;
+
+
+  /**
+   * Point marking the end of the trajectory.
+   */
+  private final Point<State> end = new Point<State>(null, null, null);
+
+
+  /**
+   * Whether the consumer has cancelled the stream.
+   */
+  private volatile boolean cancelled;
+
+
+  /**
+   * Whether the iterator has been handed out.
+   */
+  private boolean consumed;
+
+
+  /**
+   * Construct a publisher buffering at most the given number of
+   * points.
+   *
+   * @param capacity Number of points buffered.
+   * @throws IllegalArgumentException When the capacity is not
+   * positive.
+   */
+  public TrajectoryPublisher(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be positive");
+    }
+    this.buffer = new ArrayBlockingQueue<Point<State>>(capacity);
+  }
+
+
+  /**
+   * Put a point into the buffer, waiting for space.
+   *
+   * @param point Point to put.
+   * @throws IllegalStateException When interrupted while waiting; the
+   * interrupt status is kept.
+   */
+  private void put(final Point<State> point) {
+    if (cancelled) {
+      return;
+    }
+    try {
+      // Cancelling clears the buffer, which also wakes this up.
+      buffer.put(point);
+    } catch (final InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(
+        "interrupted while publishing the trajectory", exception);
+    }
+  }
+
+
+  /**
+   * Publish a committed point, waiting while the buffer is full.
+   *
+   * Does nothing once the stream has been cancelled.
+   *
+   * @param time Time of the occurrence.
+   * @param state State with the changes applied.
+   * @param occurrence The processed occurrence.
+   * @throws IllegalStateException When interrupted while waiting.
+   */
+  @Override
+  public void committed(final Time time,
+                        final State state,
+                        final Occurrence<State> occurrence) {
+    put(new Point<State>(time, state, occurrence));
+  }
+
+
+  /**
+   * Mark the end of the trajectory, waiting while the buffer is full.
+   *
+   * @throws IllegalStateException When interrupted while waiting.
+   */
+  public void complete() {
+    put(end);
+  }
+
+
+  /**
+   * Cancel the stream, so that published points are dropped, and the
+   * simulation is no longer slowed down.
+   *
+   * The consumer must not iterate any further afterwards.
+   */
+  public void cancel() {
+    cancelled = true;
+    buffer.clear();
+  }
+
+
+  /**
+   * Get the iterator over the points, which blocks until the next
+   * point is published or the trajectory is complete.
+   *
+   * @return Iterator over the points, not supporting removal; it
+   * throws IllegalStateException when interrupted while waiting.
+   * @throws IllegalStateException When called more than once.
+   */
+  @Override
+  public synchronized Iterator<Point<State>> iterator() {
+    if (consumed) {
+      throw new IllegalStateException("trajectory has a single consumer");
+    }
+    consumed = true;
+    return new Iterator<Point<State>>() {
+      /**
+       * Point taken ahead, null if none.
+       */
+      private Point<State> next;
+
+
+      @Override
+      public boolean hasNext() {
+        if (next == null) {
+          try {
+            next = buffer.take();
+          } catch (final InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(
+              "interrupted while consuming the trajectory", exception);
+          }
+        }
+        return next != end;
+      }
+
+
+      @Override
+      public Point<State> next() {
+        if (! hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final Point<State> point = next;
+        next = null;
+        return point;
+      }
+
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException(
+          "trajectory is read-only");
+      }
+    };
+  }
+}
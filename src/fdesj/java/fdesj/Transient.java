@@ -0,0 +1,20 @@
+package fdesj;
+
+
+/**
+ * Transient copy of a {@link TransientState}, which is changed in
+ * place.
+ *
+ * A transient copy is only used by a single thread, and not at all
+ * after {@link #persistent()} has been called.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface Transient<State> {
+  /**
+   * Get the state with all changes made to this copy.
+   *
+   * @return Resulting state.
+   */
+  State persistent();
+}
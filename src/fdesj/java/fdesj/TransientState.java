@@ -0,0 +1,25 @@
+package fdesj;
+
+
+/**
+ * Simulation state which can be changed in place, through a transient
+ * copy.
+ *
+ * Implementing this lets a {@link StateChangesSequence} apply
+ * consecutive {@link TransientStateChanges} to a single transient
+ * copy, instead of deriving an intermediate state for each of them.
+ *
+ * @param <State> Type used to represent the simulation state, which
+ * is usually the implementing type itself.
+ */
+public interface TransientState<State> {
+  /**
+   * Get a transient copy of this state.
+   *
+   * This state must not be affected by changes to the copy, and
+   * getting the copy should be cheap.
+   *
+   * @return Transient copy of this state.
+   */
+  Transient<State> asTransient();
+}
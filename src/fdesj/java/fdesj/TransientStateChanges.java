@@ -0,0 +1,19 @@
+package fdesj;
+
+
+/**
+ * State changes which can also be applied in place, to a transient
+ * copy of the state.
+ *
+ * @param <State> Type used to represent the simulation state.
+ */
+public interface TransientStateChanges<State> extends StateChanges<State> {
+  /**
+   * Apply the changes to a transient copy of the state.
+   *
+   * This must have the same result as {@link #applyTo(Object)}.
+   *
+   * @param state Transient copy to change.
+   */
+  void applyInPlace(Transient<State> state);
+}
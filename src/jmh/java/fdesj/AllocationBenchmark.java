@@ -0,0 +1,156 @@
+package fdesj;
+
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Operations on times and occurrences which are on the hot path of a
+ * simulation, to check what they allocate.
+ *
+ * Run with "-prof gc" and read gc.alloc.rate.norm, the bytes
+ * allocated per operation. The compiler may remove allocations by
+ * escape analysis; what is reported is what remains. Allocations of
+ * whole holds are reported by {@link HoldBenchmark} with the same
+ * profiler.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AllocationBenchmark {
+  /**
+   * Event without any effect.
+   */
+  private static final class IdleEvent implements Event<Object> {
+    @Override
+    public Changes<Object> affect(final Object state, final Time at) {
+      return null;
+    }
+  }
+
+
+  /**
+   * A time beyond the shared small times.
+   */
+  private final Time late = Time.BEGIN.after(1L << 40);
+
+
+  /**
+   * A small duration.
+   */
+  private final Time.Duration small = Time.Duration.of(100);
+
+
+  /**
+   * An occurrence at the late time.
+   */
+  private final Occurrence<Object> occurrence =
+    new Occurrence<Object>(late, new IdleEvent());
+
+
+  /**
+   * Counter giving varying small differences.
+   */
+  private int counter;
+
+
+  /**
+   * Hash a time.
+   *
+   * @return The hash.
+   */
+  @Benchmark
+  public int timeHashCode() {
+    return late.hashCode();
+  }
+
+
+  /**
+   * Hash a duration.
+   *
+   * @return The hash.
+   */
+  @Benchmark
+  public int durationHashCode() {
+    return small.hashCode();
+  }
+
+
+  /**
+   * Hash an occurrence.
+   *
+   * @return The hash.
+   */
+  @Benchmark
+  public int occurrenceHashCode() {
+    return occurrence.hashCode();
+  }
+
+
+  /**
+   * Get a small, shared duration.
+   *
+   * @return The duration.
+   */
+  @Benchmark
+  public Time.Duration smallDuration() {
+    return Time.Duration.of(++counter & 511);
+  }
+
+
+  /**
+   * Add a small duration to the begin of time, giving a shared time.
+   *
+   * @return The resulting time.
+   */
+  @Benchmark
+  public Time afterSmallDuration() {
+    return Time.BEGIN.after(Time.Duration.of(++counter & 511));
+  }
+
+
+  /**
+   * Add a small difference to the begin of time, giving a shared
+   * time.
+   *
+   * @return The resulting time.
+   */
+  @Benchmark
+  public Time afterSmallDifference() {
+    return Time.BEGIN.after(++counter & 511);
+  }
+
+
+  /**
+   * Add a zero difference, giving the time itself.
+   *
+   * @return The resulting time.
+   */
+  @Benchmark
+  public Time afterZeroDifference() {
+    return late.after(0);
+  }
+
+
+  /**
+   * Add a difference to a late time, giving a new time which escapes.
+   *
+   * @return The resulting time.
+   */
+  @Benchmark
+  public Time afterLargeDifference() {
+    return late.after(++counter);
+  }
+}
@@ -0,0 +1,31 @@
+package fdesj;
+
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * Counter of processed occurrences, reported by JMH as events per
+ * second next to the benchmark's own score.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class EventCounter {
+  /**
+   * Number of processed occurrences in the current iteration.
+   */
+  public long events;
+
+
+  /**
+   * Reset the counter at the start of each iteration.
+   */
+  @Setup(Level.Iteration)
+  public void reset() {
+    events = 0;
+  }
+}
@@ -0,0 +1,270 @@
+package fdesj;
+
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Classic hold model against every Occurrences implementation.
+ *
+ * Each hold removes the next occurrence and adds a new one at a
+ * random offset after it. The offsets are drawn from distributions of
+ * increasing skew: uniform, exponential, and a mixture of very short
+ * retries and very long timeouts, which degrades structures with
+ * fixed bucket widths. Besides the throughput
+ * of holds, the sampled latencies of holds and of the single
+ * operations give their tail (the percentiles reported by JMH's
+ * sample time mode). Run with "-prof gc" for allocation rates.
+ *
+ * The single operations work on a structure filled once: as
+ * occurrences are persistent, restarting from it is just an
+ * assignment. Adding restarts after as many additions as there are
+ * pending occurrences, removing restarts once it is drained.
+ *
+ * Like all benchmarks of this component, run it through
+ * org.openjdk.jmh.Main with the component's classes and dependencies
+ * on the class path.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HoldBenchmark {
+  /**
+   * Mean offset of new occurrences.
+   */
+  private static final double MEAN_OFFSET = 1000;
+
+
+  /**
+   * Distribution of the offsets of new occurrences.
+   */
+  private abstract static class Offsets {
+    /**
+     * Draw an offset.
+     *
+     * @param random Source of randomness.
+     * @return Offset, not negative.
+     */
+    abstract long draw(Random random);
+  }
+
+
+  /**
+   * Event without any effect, only used to fill the collections.
+   */
+  private static final class IdleEvent implements Event<Object> {
+    @Override
+    public Changes<Object> affect(final Object state, final Time at) {
+      return null;
+    }
+  }
+
+
+  /**
+   * Name of the benchmarked implementation.
+   */
+  @Param({"leftist", "calendar", "ladder", "tombstone", "indexed",
+          "spilling", "packed"})
+  public String implementation;
+
+
+  /**
+   * Name of the distribution of the offsets.
+   */
+  @Param({"uniform", "exponential", "skewed"})
+  public String distribution;
+
+
+  /**
+   * Number of pending occurrences.
+   */
+  @Param({"1000", "100000"})
+  public int pending;
+
+
+  /**
+   * The event of all occurrences.
+   */
+  private final Event<Object> idle = new IdleEvent();
+
+
+  /**
+   * Source of offsets.
+   */
+  private Random random;
+
+
+  /**
+   * Distribution of the offsets.
+   */
+  private Offsets offsets;
+
+
+  /**
+   * Filled occurrences, never changed after setup.
+   */
+  private Occurrences<Object> filled;
+
+
+  /**
+   * Occurrences changed by holds.
+   */
+  private Occurrences<Object> holding;
+
+
+  /**
+   * Occurrences being added to.
+   */
+  private Occurrences<Object> adding;
+
+
+  /**
+   * Number of additions since restarting from the filled occurrences.
+   */
+  private int added;
+
+
+  /**
+   * Occurrences being drained.
+   */
+  private Occurrences<Object> draining;
+
+
+  /**
+   * Fill the occurrences.
+   */
+  @Setup
+  public void fill() {
+    random = new Random(42);
+    offsets = offsets(distribution);
+    Occurrences<Object> occurrences =
+      Workloads.<Object>emptyOccurrences(
+        implementation, Collections.singletonList(idle));
+    for (int i = 0; i < pending; ++i) {
+      occurrences = occurrences.withNew(Collections.singletonList(
+        new Occurrence<Object>(Time.BEGIN.after(offset()), idle)));
+    }
+    filled = occurrences;
+    holding = occurrences;
+    adding = occurrences;
+    draining = occurrences;
+  }
+
+
+  /**
+   * Get a distribution of offsets.
+   *
+   * @param name Name of the distribution.
+   * @return The distribution.
+   * @throws IllegalArgumentException When the name is unknown.
+   */
+  private static Offsets offsets(final String name) {
+    switch (name) {
+    case "uniform":
+      return new Offsets() {
+        @Override
+        long draw(final Random random) {
+          return (long) (random.nextDouble() * 2 * MEAN_OFFSET);
+        }
+      };
+    case "exponential":
+      return new Offsets() {
+        @Override
+        long draw(final Random random) {
+          return Workloads.exponential(random.nextLong(), MEAN_OFFSET);
+        }
+      };
+    case "skewed":
+      // Times in microseconds: retries after about 10us, timeouts
+      // after about an hour.
+      return new Offsets() {
+        @Override
+        long draw(final Random random) {
+          return random.nextDouble() < 0.9
+            ? Workloads.exponential(random.nextLong(), 10)
+            : Workloads.exponential(random.nextLong(), 3600000000.0);
+        }
+      };
+    default:
+      throw new IllegalArgumentException("unknown distribution " + name);
+    }
+  }
+
+
+  /**
+   * Draw the offset of a new occurrence.
+   *
+   * @return Offset.
+   */
+  private long offset() {
+    return offsets.draw(random);
+  }
+
+
+  /**
+   * Hold: remove the next occurrence and add a new one after it.
+   *
+   * @return The removed occurrence.
+   */
+  @Benchmark
+  @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public Occurrence<Object> hold() {
+    final Occurrence<Object> next = holding.nextOccurrence();
+    holding = holding.withoutNextOccurrence().withNew(
+      Collections.singletonList(
+        new Occurrence<Object>(next.time.after(offset()), idle)));
+    return next;
+  }
+
+
+  /**
+   * Add a single occurrence.
+   *
+   * @return Occurrences with the occurrence added.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public Occurrences<Object> withNew() {
+    if (added == pending) {
+      adding = filled;
+      added = 0;
+    }
+    ++added;
+    adding = adding.withNew(Collections.singletonList(
+      new Occurrence<Object>(Time.BEGIN.after(offset()), idle)));
+    return adding;
+  }
+
+
+  /**
+   * Remove the next occurrence.
+   *
+   * @return Occurrences without the next occurrence.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.NANOSECONDS)
+  public Occurrences<Object> withoutNextOccurrence() {
+    if (draining.nextOccurrence() == null) {
+      draining = filled;
+    }
+    draining = draining.withoutNextOccurrence();
+    return draining;
+  }
+}
@@ -0,0 +1,243 @@
+package fdesj;
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * M/M/c queue against every Occurrences implementation and the
+ * engines running a single state.
+ *
+ * Customers arrive with exponentially distributed interarrival times
+ * at a number of servers with exponentially distributed service
+ * times, at a utilization of 90%. Each invocation runs a fresh
+ * simulation up to a fixed end; the processed occurrences are
+ * reported as events per second.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MmcBenchmark {
+  /**
+   * Mean service time.
+   */
+  private static final double MEAN_SERVICE = 900;
+
+
+  /**
+   * Time until which each invocation runs.
+   */
+  private static final long END = 1000000;
+
+
+  /**
+   * State of the queue.
+   */
+  private static final class Queue {
+    /**
+     * Value of the random generator.
+     */
+    final long random;
+
+
+    /**
+     * Number of waiting customers.
+     */
+    final int waiting;
+
+
+    /**
+     * Number of busy servers.
+     */
+    final int busy;
+
+
+    /**
+     * Construct a state.
+     *
+     * @param random Value of the random generator.
+     * @param waiting Number of waiting customers.
+     * @param busy Number of busy servers.
+     */
+    Queue(final long random, final int waiting, final int busy) {
+      this.random = random;
+      this.waiting = waiting;
+      this.busy = busy;
+    }
+  }
+
+
+  /**
+   * Create changes setting the state and adding an occurrence.
+   *
+   * @param queue New state.
+   * @param occurrences Occurrences to add.
+   * @return Changes.
+   */
+  private static Changes<Queue> changes(
+    final Queue queue,
+    final Iterable<Occurrence<Queue>> occurrences) {
+    return new Changes<Queue>(
+      new StateChanges<Queue>() {
+        @Override
+        public Queue applyTo(final Queue state) {
+          return queue;
+        }
+      },
+      new OccurrencesChanges<Queue>() {
+        @Override
+        public Occurrences<Queue> applyTo(
+          final Occurrences<Queue> pending) {
+          return pending.withNew(occurrences);
+        }
+      });
+  }
+
+
+  /**
+   * Departure of a customer from a server.
+   */
+  private static final Event<Queue> DEPARTURE = new Event<Queue>() {
+      @Override
+      public Changes<Queue> affect(final Queue queue, final Time at) {
+        if (queue.waiting == 0) {
+          return changes(
+            new Queue(queue.random, 0, queue.busy - 1),
+            Collections.<Occurrence<Queue>>emptyList());
+        }
+        final long service = Workloads.next(queue.random);
+        return changes(
+          new Queue(service, queue.waiting - 1, queue.busy),
+          Collections.singletonList(new Occurrence<Queue>(
+            at.after(1 + Workloads.exponential(service, MEAN_SERVICE)),
+            this)));
+      }
+    };
+
+
+  /**
+   * Number of servers.
+   */
+  @Param({"1", "16"})
+  public int servers;
+
+
+  /**
+   * Name of the benchmarked implementation.
+   */
+  @Param({"leftist", "calendar", "ladder", "tombstone", "indexed",
+          "spilling", "packed"})
+  public String implementation;
+
+
+  /**
+   * Name of the benchmarked engine.
+   */
+  @Param({"sequential", "timestep"})
+  public String engine;
+
+
+  /**
+   * Pool of the timestep engine.
+   */
+  private ForkJoinPool pool;
+
+
+  /**
+   * Create the threads.
+   */
+  @Setup
+  public void start() {
+    pool = new ForkJoinPool();
+  }
+
+
+  /**
+   * Stop the threads.
+   */
+  @TearDown
+  public void stop() {
+    pool.shutdown();
+  }
+
+
+  /**
+   * Create the arrival event of the benchmarked number of servers.
+   *
+   * @return Arrival event.
+   */
+  private Event<Queue> arrival() {
+    final double meanInterarrival = MEAN_SERVICE / (0.9 * servers);
+    return new Event<Queue>() {
+      @Override
+      public Changes<Queue> affect(final Queue queue, final Time at) {
+        final long interarrival = Workloads.next(queue.random);
+        final Occurrence<Queue> next = new Occurrence<Queue>(
+          at.after(1 + Workloads.exponential(interarrival,
+                                             meanInterarrival)),
+          this);
+        if (queue.busy == servers) {
+          return changes(
+            new Queue(interarrival, queue.waiting + 1, queue.busy),
+            Collections.singletonList(next));
+        }
+        final long service = Workloads.next(interarrival);
+        return changes(
+          new Queue(service, queue.waiting, queue.busy + 1),
+          Arrays.asList(
+            next,
+            new Occurrence<Queue>(
+              at.after(1 + Workloads.exponential(service, MEAN_SERVICE)),
+              DEPARTURE)));
+      }
+    };
+  }
+
+
+  /**
+   * Run a simulation until the end.
+   *
+   * @param counter Counter of the processed occurrences.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void run(final EventCounter counter) {
+    final Queue empty = new Queue(42, 0, 0);
+    final Event<Queue> arrival = arrival();
+    final Occurrences<Queue> occurrences =
+      Workloads.<Queue>emptyOccurrences(
+        implementation, Arrays.asList(arrival, DEPARTURE))
+      .withNew(Collections.singletonList(
+                 new Occurrence<Queue>(Time.BEGIN, arrival)));
+    final Time end = Time.BEGIN.after(END);
+    switch (engine) {
+    case "sequential":
+      counter.events += new Simulator<Queue>(
+        empty, occurrences, Time.BEGIN).runUntil(end);
+      break;
+    case "timestep":
+      counter.events += new TimestepSimulator<Queue>(
+        empty, occurrences, Time.BEGIN, pool).runUntil(end);
+      break;
+    default:
+      throw new IllegalArgumentException("unknown engine " + engine);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * PHOLD against every engine.
+ *
+ * A fixed population of jobs hops between logical processes: each
+ * hop goes to a random process after the lookahead plus an
+ * exponentially distributed delay. The state of a process is the
+ * value of its random generator. The sequential engines treat all
+ * processes as one, with a single generator; the parallel engines run
+ * one state per process. Each invocation runs a fresh simulation up
+ * to a fixed end; the processed occurrences are reported as events
+ * per second.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PholdBenchmark {
+  /**
+   * Minimum delay of a hop.
+   */
+  private static final long LOOKAHEAD = 100;
+
+
+  /**
+   * Mean delay of a hop, on top of the lookahead.
+   */
+  private static final double MEAN_DELAY = 1000;
+
+
+  /**
+   * Time until which each invocation runs.
+   */
+  private static final long END = 100000;
+
+
+  /**
+   * A job hopping to a process.
+   */
+  private static final class Hop implements Event<Long> {
+    /**
+     * Process hopped to.
+     */
+    final int process;
+
+
+    /**
+     * Number of processes.
+     */
+    final int processes;
+
+
+    /**
+     * Construct a hop.
+     *
+     * @param process Process hopped to.
+     * @param processes Number of processes.
+     */
+    Hop(final int process, final int processes) {
+      this.process = process;
+      this.processes = processes;
+    }
+
+
+    @Override
+    public Changes<Long> affect(final Long random, final Time at) {
+      final long destination = Workloads.next(random);
+      final long delay = Workloads.next(destination);
+      final Occurrence<Long> hop = new Occurrence<Long>(
+        at.after(LOOKAHEAD + Workloads.exponential(delay, MEAN_DELAY)),
+        new Hop((int) ((destination >>> 1) % processes), processes));
+      return new Changes<Long>(
+        new StateChanges<Long>() {
+          @Override
+          public Long applyTo(final Long state) {
+            return delay;
+          }
+        },
+        new OccurrencesChanges<Long>() {
+          @Override
+          public Occurrences<Long> applyTo(
+            final Occurrences<Long> occurrences) {
+            return occurrences.withNew(Collections.singletonList(hop));
+          }
+        });
+    }
+  }
+
+
+  /**
+   * Partitioning of hops by process.
+   */
+  private static final Partitioning<Long> BY_PROCESS =
+    new Partitioning<Long>() {
+      @Override
+      public int processOf(final Occurrence<Long> occurrence) {
+        return ((Hop) occurrence.event).process;
+      }
+    };
+
+
+  /**
+   * Lookahead between all processes.
+   */
+  private static final Lookahead LOOKAHEAD_BETWEEN_ALL = new Lookahead() {
+      @Override
+      public Time.Duration minimumDelay(final int from, final int to) {
+        return Time.Duration.of(LOOKAHEAD);
+      }
+    };
+
+
+  /**
+   * Name of the benchmarked engine.
+   */
+  @Param({"sequential", "timestep", "timewarp", "conservative"})
+  public String engine;
+
+
+  /**
+   * Number of logical processes.
+   */
+  @Param({"8"})
+  public int processes;
+
+
+  /**
+   * Number of jobs per process.
+   */
+  @Param({"16"})
+  public int jobs;
+
+
+  /**
+   * Occurrences a process handles in a Time Warp round; higher values
+   * quickly lead to cascades of rollbacks in PHOLD.
+   */
+  @Param({"4"})
+  public int optimism;
+
+
+  /**
+   * Executor of the parallel engines.
+   */
+  private ExecutorService executor;
+
+
+  /**
+   * Pool of the timestep engine.
+   */
+  private ForkJoinPool pool;
+
+
+  /**
+   * Create the threads.
+   */
+  @Setup
+  public void start() {
+    executor = Executors.newFixedThreadPool(processes);
+    pool = new ForkJoinPool(processes);
+  }
+
+
+  /**
+   * Stop the threads.
+   */
+  @TearDown
+  public void stop() {
+    executor.shutdown();
+    pool.shutdown();
+  }
+
+
+  /**
+   * Create the initial jobs.
+   *
+   * @return Occurrences of the first hops of all jobs.
+   */
+  private List<Occurrence<Long>> initialHops() {
+    final List<Occurrence<Long>> hops = new ArrayList<Occurrence<Long>>();
+    for (int i = 0; i < processes * jobs; ++i) {
+      hops.add(new Occurrence<Long>(Time.BEGIN.after(i),
+                                    new Hop(i % processes, processes)));
+    }
+    return hops;
+  }
+
+
+  /**
+   * Run a simulation until the end.
+   *
+   * @param counter Counter of the processed occurrences.
+   * @throws InterruptedException When interrupted.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void run(final EventCounter counter) throws InterruptedException {
+    final Time end = Time.BEGIN.after(END);
+    final Occurrences<Long> empty = new LadderQueueOccurrences<Long>();
+    switch (engine) {
+    case "sequential": {
+      final Simulator<Long> simulator = new Simulator<Long>(
+        0L, empty.withNew(initialHops()), Time.BEGIN);
+      counter.events += simulator.runUntil(end);
+      break;
+    }
+    case "timestep": {
+      final TimestepSimulator<Long> simulator = new TimestepSimulator<Long>(
+        0L, empty.withNew(initialHops()), Time.BEGIN, pool);
+      counter.events += simulator.runUntil(end);
+      break;
+    }
+    case "timewarp": {
+      final TimeWarpSimulator<Long> simulator = new TimeWarpSimulator<Long>(
+        seeds(), empty, initialHops(), BY_PROCESS, Time.BEGIN, executor,
+        optimism);
+      simulator.runUntil(end);
+      counter.events += simulator.getProcessedCount();
+      break;
+    }
+    case "conservative": {
+      final ConservativeSimulator<Long> simulator =
+        new ConservativeSimulator<Long>(
+          seeds(), empty, initialHops(), BY_PROCESS, LOOKAHEAD_BETWEEN_ALL,
+          Time.BEGIN, executor);
+      simulator.runUntil(end);
+      counter.events += simulator.getProcessedCount();
+      break;
+    }
+    default:
+      throw new IllegalArgumentException("unknown engine " + engine);
+    }
+  }
+
+
+  /**
+   * Create the initial states of the processes.
+   *
+   * @return Seeds, one per process.
+   */
+  private List<Long> seeds() {
+    final List<Long> seeds = new ArrayList<Long>();
+    for (long i = 0; i < processes; ++i) {
+      seeds.add(i);
+    }
+    return seeds;
+  }
+}
@@ -0,0 +1,238 @@
+package fdesj;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Helpers shared by the benchmark workloads.
+ */
+/* package-private */ final class Workloads {
+  /**
+   * Width of the promotion window of spilling occurrences, about the
+   * mean offset of new occurrences in the workloads.
+   */
+  private static final long SPILL_WINDOW = 1000;
+
+
+  /**
+   * Number of far occurrences above which spilling occurrences spill.
+   */
+  private static final int SPILL_THRESHOLD = 4096;
+
+
+  /**
+   * Codec encoding events by their index in a fixed list of instances,
+   * so that decoding gives the very same events. Every encoding has 4
+   * bytes.
+   *
+   * @param <State> Type used to represent the simulation state.
+   */
+  private static final class InstanceCodec<State>
+    implements Codec<Event<State>> {
+    /**
+     * The instances, by index.
+     */
+    private final List<? extends Event<State>> instances;
+
+
+    /**
+     * Index of each instance.
+     */
+    private final Map<Event<State>, Integer> indices =
+      new IdentityHashMap<Event<State>, Integer>();
+
+
+    /**
+     * Construct a codec of the given instances.
+     *
+     * @param instances The instances.
+     */
+    InstanceCodec(final List<? extends Event<State>> instances) {
+      this.instances = instances;
+      for (int index = 0; index < instances.size(); ++index) {
+        indices.put(instances.get(index), index);
+      }
+    }
+
+
+    @Override
+    public void encode(final Event<State> event, final DataOutput output)
+      throws IOException {
+      final Integer index = indices.get(event);
+      if (index == null) {
+        throw new IllegalArgumentException(
+          "event is not one of the workload's instances");
+      }
+      output.writeInt(index);
+    }
+
+
+    @Override
+    public Event<State> decode(final DataInput input) throws IOException {
+      return instances.get(input.readInt());
+    }
+  }
+
+
+  /**
+   * Directory of the segment files of spilling occurrences, created
+   * when first needed, null before.
+   */
+  private static Path spillDirectory;
+
+
+  /**
+   * Not meant to be instantiated.
+   */
+  private Workloads() {
+  }
+
+
+  /**
+   * Create empty occurrences of the given implementation.
+   *
+   * The wrapping implementations wrap a leftist heap: "tombstone"
+   * directly, and "indexed" through tombstones. The "spilling" and
+   * "packed" implementations encode events by their index in the
+   * given instances, which thus have to include every event the
+   * workload schedules.
+   *
+   * @param implementation Name of the implementation.
+   * @param events Every event the workload schedules.
+   * @return Empty occurrences.
+   * @throws IllegalArgumentException When the name is unknown.
+   * @throws IllegalStateException When creating the directory of
+   * segment files fails.
+   */
+  /* package-private */ static <State> Occurrences<State> emptyOccurrences(
+    final String implementation,
+    final List<? extends Event<State>> events) {
+    switch (implementation) {
+    case "leftist":
+      return new LeftistHeapOccurrences<State>();
+    case "calendar":
+      return new CalendarQueueOccurrences<State>();
+    case "ladder":
+      return new LadderQueueOccurrences<State>();
+    case "tombstone":
+      return new TombstoneOccurrences<State>(
+        new LeftistHeapOccurrences<State>());
+    case "indexed":
+      return new IndexedOccurrences<State>(
+        new TombstoneOccurrences<State>(
+          new LeftistHeapOccurrences<State>()));
+    case "spilling":
+      return new SpillingOccurrences<State>(
+        new LeftistHeapOccurrences<State>(), spillDirectory(), "workload",
+        new InstanceCodec<State>(events), SPILL_WINDOW, SPILL_THRESHOLD);
+    case "packed":
+      return new PackedOccurrences<State>(registry(events));
+    default:
+      throw new IllegalArgumentException(
+        "unknown implementation " + implementation);
+    }
+  }
+
+
+  /**
+   * Register the classes of the given events, with a codec encoding
+   * each event by its index.
+   *
+   * @param events The events.
+   * @param <State> Type used to represent the simulation state.
+   * @return Registry of the classes of the events.
+   */
+  @SuppressWarnings("unchecked")
+  private static <State> EventRegistry<State> registry(
+    final List<? extends Event<State>> events) {
+    final InstanceCodec<State> codec = new InstanceCodec<State>(events);
+    final EventRegistry<State> registry = new EventRegistry<State>();
+    final Map<Class<?>, Boolean> registered =
+      new IdentityHashMap<Class<?>, Boolean>();
+    for (final Event<State> event : events) {
+      if (registered.put(event.getClass(), Boolean.TRUE) == null) {
+        // Every class shares the codec of all the instances.
+        registry.register(
+          (Class<Event<State>>) (Class<?>) event.getClass(), 4, codec);
+      }
+    }
+    return registry;
+  }
+
+
+  /**
+   * Get the directory of the segment files of spilling occurrences,
+   * creating it with a hook deleting it on exit when first asked for.
+   *
+   * @return The directory.
+   * @throws IllegalStateException When creating the directory fails.
+   */
+  private static synchronized Path spillDirectory() {
+    if (spillDirectory == null) {
+      try {
+        spillDirectory = Files.createTempDirectory("fdesj-jmh");
+      } catch (final IOException exception) {
+        throw new IllegalStateException(
+          "creating the spill directory failed", exception);
+      }
+      final Path directory = spillDirectory;
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+          @Override
+          public void run() {
+            try {
+              try (DirectoryStream<Path> files =
+                   Files.newDirectoryStream(directory)) {
+                for (final Path file : files) {
+                  Files.deleteIfExists(file);
+                }
+              }
+              Files.deleteIfExists(directory);
+            } catch (final IOException exception) {
+              // Left for the operating system to clean up.
+            }
+          }
+        });
+    }
+    return spillDirectory;
+  }
+
+
+  /**
+   * Derive the next pseudo random value from the previous one.
+   *
+   * This is the SplitMix64 generator, as its whole state is a single
+   * long it fits into immutable simulation states.
+   *
+   * @param previous Previous value, or a seed.
+   * @return Next value.
+   */
+  /* package-private */ static long next(final long previous) {
+    long z = previous + 0x9E3779B97F4A7C15L;
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+
+  /**
+   * Draw from an exponential distribution.
+   *
+   * @param random Pseudo random value.
+   * @param mean Mean of the distribution.
+   * @return Drawn value, rounded down.
+   */
+  /* package-private */ static long exponential(final long random,
+                                                final double mean) {
+    final double uniform = (random >>> 11) * 0x1.0p-53;
+    return (long) (-mean * Math.log(1 - uniform));
+  }
+}
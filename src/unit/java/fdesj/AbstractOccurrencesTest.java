@@ -0,0 +1,248 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test whether an Occurrences implementation behaves like an
+ * immutable collection ordered by time.
+ */
+public abstract class AbstractOccurrencesTest {
+  /**
+   * Create an empty instance of the Occurrences under test.
+   *
+   * @return Empty occurrences.
+   */
+  public abstract Occurrences<Object> createEmptyOccurrences();
+
+
+  /**
+   * Create an occurrence of a new dummy event at the given time.
+   *
+   * @param time Absolute time of the occurrence.
+   * @return New occurrence.
+   */
+  public static Occurrence<Object> occurrenceAt(final long time) {
+    return new Occurrence<Object>(new Time(time), new DummyEvent());
+  }
+
+
+  /**
+   * Create occurrences at pseudo random times.
+   *
+   * @param count Number of occurrences.
+   * @param range Times are taken from [0, range).
+   * @return List of new occurrences.
+   */
+  public static List<Occurrence<Object>> randomOccurrences(
+    final int count,
+    final long range) {
+    final Random random = new Random(42);
+    final List<Occurrence<Object>> occurrences =
+      new ArrayList<Occurrence<Object>>();
+    for (int i = 0; i < count; ++i) {
+      occurrences.add(
+        occurrenceAt((long) (random.nextDouble() * range)));
+    }
+    return occurrences;
+  }
+
+
+  /**
+   * Remove all occurrences, one after the other, in order.
+   *
+   * @param occurrences Occurrences to drain.
+   * @return Occurrences in the order they were returned as next
+   * occurrence.
+   */
+  public static List<Occurrence<Object>> drain(
+    Occurrences<Object> occurrences) {
+    final List<Occurrence<Object>> drained =
+      new ArrayList<Occurrence<Object>>();
+    while (occurrences.nextOccurrence() != null) {
+      drained.add(occurrences.nextOccurrence());
+      occurrences = occurrences.withoutNextOccurrence();
+    }
+    return drained;
+  }
+
+
+  /**
+   * Count the occurrences by iterating over them.
+   *
+   * @param occurrences Occurrences to count.
+   * @return Number of occurrences.
+   */
+  public static int count(final Occurrences<Object> occurrences) {
+    int count = 0;
+    for (final Occurrence<Object> occurrence : occurrences) {
+      ++count;
+    }
+    return count;
+  }
+
+
+  /**
+   * Empty occurrences should have no next occurrence.
+   */
+  @Test
+  public void EmptyShouldHaveNoNextOccurrence() {
+    final Occurrences<Object> empty = createEmptyOccurrences();
+    assertNull("Empty occurrences should have no next occurrence.",
+               empty.nextOccurrence());
+    assertNull("Removing from empty occurrences should keep them empty.",
+               empty.withoutNextOccurrence().nextOccurrence());
+    assertEquals("Empty occurrences should iterate over nothing.",
+                 0, count(empty));
+  }
+
+
+  /**
+   * Occurrences should be returned in order of their time.
+   */
+  @Test
+  public void DrainingShouldYieldAscendingTimes() {
+    final List<Occurrence<Object>> added =
+      randomOccurrences(5000, 1000);
+    final List<Occurrence<Object>> drained =
+      drain(createEmptyOccurrences().withNew(added));
+    assertEquals("All added occurrences should be drained.",
+                 added.size(), drained.size());
+    for (int i = 1; i < drained.size(); ++i) {
+      assertTrue("Drained occurrences should be in order.",
+                 drained.get(i - 1).time.compareTo(drained.get(i).time)
+                 <= 0);
+    }
+    assertTrue("Drained occurrences should be the added ones.",
+               drained.containsAll(added) && added.containsAll(drained));
+  }
+
+
+  /**
+   * Adding one occurrence after the other should order them, too.
+   */
+  @Test
+  public void AddingOneByOneShouldYieldAscendingTimes() {
+    Occurrences<Object> occurrences = createEmptyOccurrences();
+    for (final Occurrence<Object> occurrence
+           : randomOccurrences(2000, 1000000)) {
+      occurrences =
+        occurrences.withNew(Collections.singletonList(occurrence));
+    }
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("All added occurrences should be drained.",
+                 2000, drained.size());
+    for (int i = 1; i < drained.size(); ++i) {
+      assertTrue("Drained occurrences should be in order.",
+                 drained.get(i - 1).time.compareTo(drained.get(i).time)
+                 <= 0);
+    }
+  }
+
+
+  /**
+   * Deriving new occurrences must not change the original ones.
+   */
+  @Test
+  public void DerivingShouldNotChangeOriginal() {
+    final Occurrences<Object> original =
+      createEmptyOccurrences().withNew(randomOccurrences(100, 50));
+    final List<Occurrence<Object>> before = drain(original);
+    original.withNew(randomOccurrences(100, 50));
+    original.withoutNextOccurrence();
+    original.without(before.subList(10, 20));
+    assertEquals("Original occurrences should remain unchanged.",
+                 before, drain(original));
+  }
+
+
+  /**
+   * All occurrences at a time, and only those, should be returned.
+   */
+  @Test
+  public void AtShouldReturnOccurrencesAtTime() {
+    final Occurrence<Object> one = occurrenceAt(7);
+    final Occurrence<Object> two = occurrenceAt(7);
+    final Occurrences<Object> occurrences = createEmptyOccurrences()
+      .withNew(randomOccurrences(200, 1000))
+      .withNew(Arrays.asList(one, occurrenceAt(3), occurrenceAt(9), two));
+    final Collection<Occurrence<Object>> found =
+      occurrences.at(new Time(7));
+    assertTrue("Occurrences at the time should be found.",
+               found.contains(one) && found.contains(two));
+    for (final Occurrence<Object> occurrence : found) {
+      assertEquals("Only occurrences at the time should be found.",
+                   new Time(7), occurrence.time);
+    }
+    assertTrue("Nothing should be found where nothing occurs.",
+               occurrences.at(new Time(-1)).isEmpty());
+  }
+
+
+  /**
+   * Removed occurrences should no longer be present.
+   */
+  @Test
+  public void WithoutShouldRemoveGivenOccurrences() {
+    final List<Occurrence<Object>> added =
+      randomOccurrences(1000, 100);
+    final List<Occurrence<Object>> removed = added.subList(100, 600);
+    final Occurrences<Object> occurrences =
+      createEmptyOccurrences().withNew(added).without(removed);
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("Only the removed occurrences should be gone.",
+                 500, drained.size());
+    for (final Occurrence<Object> occurrence : removed) {
+      assertTrue("Removed occurrences should no longer be present.",
+                 ! drained.contains(occurrence));
+    }
+  }
+
+
+  /**
+   * Each occurrence passed to without should remove only one equal
+   * occurrence.
+   */
+  @Test
+  public void WithoutShouldRemoveOnlyOneOfEqualOccurrences() {
+    final Occurrence<Object> occurrence = occurrenceAt(5);
+    final Occurrences<Object> occurrences = createEmptyOccurrences()
+      .withNew(Arrays.asList(occurrence, occurrence, occurrenceAt(1)))
+      .without(Collections.singletonList(occurrence));
+    assertEquals("One of the equal occurrences should remain.",
+                 2, count(occurrences));
+    assertEquals("The remaining occurrence should be found.",
+                 1, occurrences.at(new Time(5)).size());
+  }
+
+
+  /**
+   * Iteration should visit each occurrence once.
+   */
+  @Test
+  public void IterationShouldVisitAllOccurrences() {
+    final List<Occurrence<Object>> added =
+      randomOccurrences(300, 30);
+    final Occurrences<Object> occurrences =
+      createEmptyOccurrences().withNew(added);
+    final List<Occurrence<Object>> visited =
+      new ArrayList<Occurrence<Object>>();
+    for (final Occurrence<Object> occurrence : occurrences) {
+      visited.add(occurrence);
+    }
+    assertEquals("Each occurrence should be visited once.",
+                 added.size(), visited.size());
+    assertTrue("All occurrences should be visited.",
+               visited.containsAll(added));
+  }
+}
@@ -0,0 +1,93 @@
+package fdesj;
+
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test AffectCache.
+ */
+public class AffectCacheTest {
+  /**
+   * Event counting how often it is affected.
+   */
+  private static final class CountingEvent implements Event<Integer> {
+    /**
+     * Number of affects so far.
+     */
+    int count;
+
+
+    @Override
+    public Changes<Integer> affect(final Integer state, final Time at) {
+      ++count;
+      return new Changes<Integer>(null, null);
+    }
+  }
+
+
+  /**
+   * Affecting with equal arguments should be answered from the cache.
+   */
+  @Test
+  public void EqualArgumentsShouldHitTheCache() {
+    final AffectCache<Integer> cache = new AffectCache<Integer>(16);
+    final CountingEvent counting = new CountingEvent();
+    final Event<Integer> event = cache.memoizing(counting);
+    final Changes<Integer> first = event.affect(1, new Time(5));
+    assertSame("Equal arguments should give the cached result.",
+               first, event.affect(Integer.valueOf(1), new Time(5)));
+    event.affect(2, new Time(5));
+    event.affect(1, new Time(6));
+    assertEquals("Only different arguments should be evaluated.",
+                 3, counting.count);
+    assertEquals("Hits should be counted.", 1, cache.getHitCount());
+    assertEquals("Misses should be counted.", 3, cache.getMissCount());
+    assertEquals("Hit ratio should be computed.",
+                 0.25, cache.getHitRatio(), 0.0);
+  }
+
+
+  /**
+   * The least recently used results should be evicted.
+   */
+  @Test
+  public void LeastRecentlyUsedShouldBeEvicted() {
+    final AffectCache<Integer> cache = new AffectCache<Integer>(2);
+    final CountingEvent counting = new CountingEvent();
+    final Event<Integer> event = cache.memoizing(counting);
+    event.affect(1, Time.BEGIN);
+    event.affect(2, Time.BEGIN);
+    event.affect(1, Time.BEGIN);
+    event.affect(3, Time.BEGIN);
+    assertEquals("Size should be bounded.", 2, cache.size());
+    assertEquals("Evictions should be counted.",
+                 1, cache.getEvictionCount());
+    event.affect(1, Time.BEGIN);
+    assertEquals("Recently used result should be kept.",
+                 3, counting.count);
+    event.affect(2, Time.BEGIN);
+    assertEquals("Least recently used result should be evicted.",
+                 4, counting.count);
+  }
+
+
+  /**
+   * Different events should not share results.
+   */
+  @Test
+  public void DifferentEventsShouldNotShareResults() {
+    final AffectCache<Integer> cache = new AffectCache<Integer>(16);
+    final CountingEvent first = new CountingEvent();
+    final CountingEvent second = new CountingEvent();
+    cache.memoizing(first).affect(1, Time.BEGIN);
+    cache.memoizing(second).affect(1, Time.BEGIN);
+    assertEquals("Each event should be evaluated.",
+                 1, second.count);
+    assertTrue("Wrapping equal events should give equal events.",
+               cache.memoizing(first).equals(cache.memoizing(first)));
+  }
+}
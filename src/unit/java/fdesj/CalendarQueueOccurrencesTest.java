@@ -0,0 +1,13 @@
+package fdesj;
+
+
+/**
+ * Test CalendarQueueOccurrences.
+ */
+public class CalendarQueueOccurrencesTest
+  extends AbstractOccurrencesTest {
+  @Override
+  public Occurrences<Object> createEmptyOccurrences() {
+    return new CalendarQueueOccurrences<Object>();
+  }
+}
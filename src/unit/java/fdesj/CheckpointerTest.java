@@ -0,0 +1,280 @@
+package fdesj;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test Checkpointer.
+ */
+public class CheckpointerTest {
+  /**
+   * Event counting its occurrences, occurring again after a period.
+   */
+  private static final class PeriodicEvent implements Event<Integer> {
+    /**
+     * Duration until the next occurrence.
+     */
+    final long period;
+
+
+    /**
+     * Construct with the given period.
+     *
+     * @param period Duration until the next occurrence.
+     */
+    PeriodicEvent(final long period) {
+      this.period = period;
+    }
+
+
+    @Override
+    public Changes<Integer> affect(final Integer state, final Time at) {
+      final Event<Integer> self = this;
+      return new Changes<Integer>(
+        new StateChanges<Integer>() {
+          @Override
+          public Integer applyTo(final Integer state) {
+            return state + 1;
+          }
+        },
+        new OccurrencesChanges<Integer>() {
+          @Override
+          public Occurrences<Integer> applyTo(
+            final Occurrences<Integer> occurrences) {
+            return occurrences.withNew(Collections.singletonList(
+              new Occurrence<Integer>(at.after(period), self)));
+          }
+        });
+    }
+
+
+    @Override
+    public boolean equals(final Object object) {
+      return object instanceof PeriodicEvent
+        && ((PeriodicEvent) object).period == period;
+    }
+
+
+    @Override
+    public int hashCode() {
+      return (int) period;
+    }
+  }
+
+
+  /**
+   * Codec of integer states.
+   */
+  private static final Codec<Integer> STATES = new Codec<Integer>() {
+      @Override
+      public void encode(final Integer value, final DataOutput output)
+        throws IOException {
+        output.writeInt(value);
+      }
+
+
+      @Override
+      public Integer decode(final DataInput input) throws IOException {
+        return input.readInt();
+      }
+    };
+
+
+  /**
+   * Codec of periodic events.
+   */
+  private static final Codec<Event<Integer>> EVENTS =
+    new Codec<Event<Integer>>() {
+      @Override
+      public void encode(final Event<Integer> value,
+                         final DataOutput output) throws IOException {
+        output.writeLong(((PeriodicEvent) value).period);
+      }
+
+
+      @Override
+      public Event<Integer> decode(final DataInput input)
+        throws IOException {
+        return new PeriodicEvent(input.readLong());
+      }
+    };
+
+
+  /**
+   * Create a simulator with many periodic events.
+   *
+   * @return New simulator.
+   */
+  private static Simulator<Integer> createSimulator() {
+    Occurrences<Integer> occurrences = new LadderQueueOccurrences<Integer>();
+    for (int i = 1; i <= 200; ++i) {
+      occurrences = occurrences.withNew(Collections.singletonList(
+        new Occurrence<Integer>(new Time(i), new PeriodicEvent(50 + i))));
+    }
+    return new Simulator<Integer>(0, occurrences, Time.BEGIN);
+  }
+
+
+  /**
+   * Describe occurrences, independent of the order of occurrences at
+   * equal times.
+   *
+   * @param occurrences Occurrences to describe.
+   * @return Sorted descriptions of the occurrences.
+   */
+  private static List<String> describe(
+    final Occurrences<Integer> occurrences) {
+    final List<String> descriptions = new ArrayList<String>();
+    for (final Occurrence<Integer> occurrence : occurrences) {
+      descriptions.add(occurrence.time.absoluteValue + "/"
+                       + ((PeriodicEvent) occurrence.event).period);
+    }
+    Collections.sort(descriptions);
+    return descriptions;
+  }
+
+
+  /**
+   * Restoring should resume from the last checkpoint.
+   */
+  @Test
+  public void RestoreShouldResumeFromLastCheckpoint() throws IOException {
+    final Path file = Files.createTempFile("checkpoint", ".bin");
+    try {
+      final Simulator<Integer> simulator = createSimulator();
+      try (Checkpointer<Integer> checkpointer =
+           new Checkpointer<Integer>(file, STATES, EVENTS)) {
+        for (int i = 0; i < 5; ++i) {
+          simulator.run(37);
+          checkpointer.checkpoint(simulator);
+        }
+      }
+      final Simulator<Integer> restored = Checkpointer.restore(
+        file, STATES, EVENTS, new LeftistHeapOccurrences<Integer>());
+      assertEquals("State should be restored.",
+                   simulator.getState(), restored.getState());
+      assertEquals("Time should be restored.",
+                   simulator.getTime(), restored.getTime());
+      simulator.runUntil(new Time(2000));
+      restored.runUntil(new Time(2000));
+      assertEquals("Continuing should give the same state.",
+                   simulator.getState(), restored.getState());
+      assertEquals("Continuing should give the same occurrences.",
+                   describe(simulator.getOccurrences()),
+                   describe(restored.getOccurrences()));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+
+  /**
+   * Checkpoints should only write what changed.
+   */
+  @Test
+  public void CheckpointsShouldOnlyWriteChanges() throws IOException {
+    final Path file = Files.createTempFile("checkpoint", ".bin");
+    try (Checkpointer<Integer> checkpointer =
+         new Checkpointer<Integer>(file, STATES, EVENTS)) {
+      final Simulator<Integer> simulator = createSimulator();
+      checkpointer.checkpoint(simulator);
+      final long full = checkpointer.getWrittenBytes();
+      checkpointer.checkpoint(simulator);
+      final long unchanged = checkpointer.getWrittenBytes() - full;
+      simulator.run(1);
+      checkpointer.checkpoint(simulator);
+      final long changed =
+        checkpointer.getWrittenBytes() - full - unchanged;
+      assertTrue("An unchanged checkpoint should be tiny.",
+                 unchanged < 32);
+      assertTrue("A changed checkpoint should be small.",
+                 changed < 64);
+      assertTrue("A full checkpoint should encode everything.",
+                 full > 200 * 8);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+
+  /**
+   * An incompletely written checkpoint should be ignored.
+   */
+  @Test
+  public void IncompleteCheckpointShouldBeIgnored() throws IOException {
+    final Path file = Files.createTempFile("checkpoint", ".bin");
+    try {
+      final Simulator<Integer> simulator = createSimulator();
+      final long complete;
+      try (Checkpointer<Integer> checkpointer =
+           new Checkpointer<Integer>(file, STATES, EVENTS)) {
+        simulator.run(10);
+        checkpointer.checkpoint(simulator);
+        complete = checkpointer.getWrittenBytes();
+        simulator.run(10);
+        checkpointer.checkpoint(simulator);
+      }
+      try (FileChannel channel =
+           FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.truncate(complete + 10);
+      }
+      final Simulator<Integer> restored = Checkpointer.restore(
+        file, STATES, EVENTS, new LeftistHeapOccurrences<Integer>());
+      assertEquals("First checkpoint should be restored.",
+                   Integer.valueOf(10), restored.getState());
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+
+  /**
+   * Many checkpoints should be compacted, without losing the last
+   * one.
+   */
+  @Test
+  public void CheckpointsShouldBeCompacted() throws IOException {
+    final Path file = Files.createTempFile("checkpoint", ".bin");
+    try {
+      final Simulator<Integer> simulator = createSimulator();
+      final long full;
+      final long written;
+      try (Checkpointer<Integer> checkpointer =
+           new Checkpointer<Integer>(file, STATES, EVENTS)) {
+        checkpointer.checkpoint(simulator);
+        full = checkpointer.getWrittenBytes();
+        for (int i = 0; i < 1000; ++i) {
+          simulator.run(3);
+          checkpointer.checkpoint(simulator);
+        }
+        written = checkpointer.getWrittenBytes();
+      }
+      assertTrue("Many more bytes should have been written than a full"
+                 + " checkpoint.", written > 10 * full);
+      assertTrue("The file should stay small.",
+                 Files.size(file) < 3 * full);
+      final Simulator<Integer> restored = Checkpointer.restore(
+        file, STATES, EVENTS, new LeftistHeapOccurrences<Integer>());
+      assertEquals("State should be restored.",
+                   simulator.getState(), restored.getState());
+      assertEquals("Occurrences should be restored.",
+                   describe(simulator.getOccurrences()),
+                   describe(restored.getOccurrences()));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package fdesj;
+
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test ConservativeSimulator, using the hop chains of {@link
+ * TimeWarpSimulatorTest}.
+ */
+public class ConservativeSimulatorTest {
+  /**
+   * Lookahead of the hop chains: every hop takes at least this long.
+   */
+  private static final Lookahead HOP_LOOKAHEAD = new Lookahead() {
+      @Override
+      public Time.Duration minimumDelay(final int from, final int to) {
+        return new Time.Duration(TimeWarpSimulatorTest.CHAINS);
+      }
+    };
+
+
+  /**
+   * Create a simulator of the hop chains.
+   *
+   * @param executor Executor running the processes.
+   * @param lookahead Lookahead of the simulation.
+   * @return New simulator.
+   */
+  private static ConservativeSimulator<String> createSimulator(
+    final ExecutorService executor,
+    final Lookahead lookahead) {
+    return new ConservativeSimulator<String>(
+      Collections.nCopies(TimeWarpSimulatorTest.PROCESSES, ""),
+      new LadderQueueOccurrences<String>(),
+      TimeWarpSimulatorTest.firstHops(),
+      TimeWarpSimulatorTest.BY_NODE,
+      lookahead, Time.BEGIN, executor);
+  }
+
+
+  /**
+   * Running in parallel should give the same states as running
+   * sequentially.
+   */
+  @Test
+  public void ParallelRunShouldMatchSequentialRun()
+    throws InterruptedException {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final ConservativeSimulator<String> simulator =
+        createSimulator(executor, HOP_LOOKAHEAD);
+      simulator.runUntil(new Time(TimeWarpSimulatorTest.END / 2));
+      simulator.runUntil(new Time(TimeWarpSimulatorTest.END));
+      assertEquals("States should match a sequential run.",
+                   TimeWarpSimulatorTest.expectedStates(),
+                   simulator.getStates());
+      assertEquals("Time should be advanced to the end.",
+                   new Time(TimeWarpSimulatorTest.END), simulator.getTime());
+      assertTrue("Windows should span multiple occurrences.",
+                 simulator.getWindowCount()
+                 < simulator.getProcessedCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+
+  /**
+   * Sending occurrences earlier than allowed by the lookahead should
+   * be rejected.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void ViolatingTheLookaheadShouldFail()
+    throws InterruptedException {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      createSimulator(
+        executor,
+        new Lookahead() {
+          @Override
+          public Time.Duration minimumDelay(final int from, final int to) {
+            return new Time.Duration(100);
+          }
+        }).runUntil(new Time(TimeWarpSimulatorTest.END));
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+
+  /**
+   * Lookahead must be positive.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void ZeroLookaheadShouldBeRejected() {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      createSimulator(
+        executor,
+        new Lookahead() {
+          @Override
+          public Time.Duration minimumDelay(final int from, final int to) {
+            return new Time.Duration(0);
+          }
+        });
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
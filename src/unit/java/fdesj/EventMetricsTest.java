@@ -0,0 +1,88 @@
+package fdesj;
+
+
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test EventMetrics and LatencyHistogram.
+ */
+public class EventMetricsTest {
+  /**
+   * Metrics of a simulation should count the processed occurrences,
+   * per event class, and track the pending occurrences.
+   */
+  @Test
+  public void MetricsShouldReflectSimulation() {
+    final Simulator<Integer> simulator = new Simulator<Integer>(
+      0,
+      new LeftistHeapOccurrences<Integer>().withNew(Arrays.asList(
+        new Occurrence<Integer>(Time.BEGIN, new SimulatorTest.TickEvent(2)),
+        new Occurrence<Integer>(Time.BEGIN,
+                                new SimulatorTest.TickEvent(5)))),
+      Time.BEGIN);
+    final EventMetrics<Integer> metrics = new EventMetrics<Integer>();
+    simulator.setInstrumentation(metrics);
+    simulator.runUntil(new Time(100));
+    assertEquals("All processed occurrences should be counted.",
+                 simulator.getProcessedCount(), metrics.getProcessedCount());
+    final Map<Class<?>, LatencyHistogram> latencies =
+      metrics.getAffectLatencies();
+    assertEquals("Latencies should be recorded per event class.",
+                 1, latencies.size());
+    assertEquals("Each affect should be recorded.",
+                 simulator.getProcessedCount(),
+                 latencies.get(SimulatorTest.TickEvent.class).getCount());
+    assertEquals("Each application of state changes should be recorded.",
+                 simulator.getProcessedCount(),
+                 metrics.getStateLatency().getCount());
+    assertEquals("The pending occurrences should be tracked.",
+                 2, metrics.getPendingCount());
+    assertTrue("Simulated time should pass.",
+               metrics.getSimulatedPerWallSecond() > 0);
+  }
+
+
+  /**
+   * Percentiles should be accurate to the bucket resolution.
+   */
+  @Test
+  public void PercentilesShouldBeWithinBucketResolution() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (long nanos = 1; nanos <= 1000; ++nanos) {
+      histogram.record(nanos * 1000);
+    }
+    assertEquals("All latencies should be counted.",
+                 1000, histogram.getCount());
+    assertEquals("The mean should be exact.",
+                 500500.0, histogram.getMeanNanos(), 1e-6);
+    final long median = histogram.getPercentileNanos(50);
+    assertTrue("The median should be within 25%.",
+               median >= 500000 && median <= 625000);
+    assertTrue("The maximum should be covered.",
+               histogram.getPercentileNanos(100) >= 1000000);
+  }
+
+
+  /**
+   * Each latency should lie within the bounds of its bucket.
+   */
+  @Test
+  public void BucketsShouldContainTheirLatencies() {
+    for (long nanos = 0; nanos < 100000; nanos = nanos * 3 / 2 + 1) {
+      final int bucket = LatencyHistogram.bucketOf(nanos);
+      assertTrue("A latency should not exceed its bucket.",
+                 nanos <= LatencyHistogram.upperBoundOf(bucket));
+      assertTrue("A latency should exceed the preceding bucket.",
+                 bucket == 0
+                 || nanos > LatencyHistogram.upperBoundOf(bucket - 1));
+    }
+    assertEquals("The largest latency should fit the last bucket.",
+                 Long.MAX_VALUE, LatencyHistogram.upperBoundOf(
+                   LatencyHistogram.bucketOf(Long.MAX_VALUE)));
+  }
+}
@@ -0,0 +1,115 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Test ForkRunner and Snapshot.
+ */
+public class ForkRunnerTest {
+  /**
+   * Simulate a warm-up of 100 ticks.
+   *
+   * @return Simulator after the warm-up.
+   */
+  private static Simulator<Integer> warmUp() {
+    final Simulator<Integer> simulator = new Simulator<Integer>(
+      0,
+      new LeftistHeapOccurrences<Integer>().withNew(
+        Collections.singletonList(new Occurrence<Integer>(
+          Time.BEGIN, new SimulatorTest.TickEvent(1)))),
+      Time.BEGIN);
+    simulator.runUntil(new Time(99));
+    return simulator;
+  }
+
+
+  /**
+   * Forking without changes should share the whole snapshot.
+   */
+  @Test
+  public void UnchangedForkShouldShareSnapshot() {
+    final Snapshot<Integer> snapshot = warmUp().snapshot();
+    assertSame("Forking without changes should share the snapshot.",
+               snapshot, snapshot.fork(null));
+    final Snapshot<Integer> fork = snapshot.fork(new Changes<Integer>(
+      new StateChanges<Integer>() {
+        @Override
+        public Integer applyTo(final Integer state) {
+          return -state;
+        }
+      }, null));
+    assertSame("Unchanged occurrences should be shared.",
+               snapshot.occurrences, fork.occurrences);
+    assertEquals("Changed state should be forked.",
+                 (Integer) (-100), fork.state);
+    assertEquals("Original state should be kept.",
+                 (Integer) 100, snapshot.state);
+  }
+
+
+  /**
+   * Each branch should continue from the snapshot with its own
+   * changes, independent of the other branches and the original.
+   */
+  @Test
+  public void BranchesShouldDivergeFromSnapshot()
+    throws InterruptedException {
+    final Simulator<Integer> original = warmUp();
+    final Snapshot<Integer> snapshot = original.snapshot();
+    final List<Changes<Integer>> branches =
+      new ArrayList<Changes<Integer>>();
+    branches.add(null);
+    branches.add(new Changes<Integer>(
+      new StateChanges<Integer>() {
+        @Override
+        public Integer applyTo(final Integer state) {
+          return 1000;
+        }
+      }, null));
+    branches.add(new Changes<Integer>(
+      null,
+      OccurrencesUpdate.adding(Collections.singletonList(
+        new Occurrence<Integer>(
+          new Time(150), new SimulatorTest.TickEvent(1))))));
+    final ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      final Map<Long, Snapshot<Integer>> results =
+        new HashMap<Long, Snapshot<Integer>>();
+      new ForkRunner<Integer>(snapshot, new Time(199), executor).run(
+        branches,
+        new Aggregator<Snapshot<Integer>>() {
+          @Override
+          public void accept(final long index,
+                             final Snapshot<Integer> result) {
+            results.put(index, result);
+          }
+        });
+      assertEquals("Unchanged branch should continue the ticks.",
+                   (Integer) 200, results.get(0L).state);
+      assertEquals("Changed state should carry on in its branch.",
+                   (Integer) 1100, results.get(1L).state);
+      assertEquals("Added occurrences should tick in their branch.",
+                   (Integer) 250, results.get(2L).state);
+      assertEquals("Branches should run until the end.",
+                   199, results.get(2L).time.absoluteValue);
+    } finally {
+      executor.shutdown();
+    }
+    assertEquals("The original should be unaffected by branches.",
+                 (Integer) 100, original.getState());
+    original.runUntil(new Time(199));
+    assertEquals("The original should continue on its own.",
+                 (Integer) 200, original.getState());
+  }
+}
@@ -0,0 +1,117 @@
+package fdesj;
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test IndexedOccurrences.
+ */
+public class IndexedOccurrencesTest extends AbstractOccurrencesTest {
+  @Override
+  public Occurrences<Object> createEmptyOccurrences() {
+    return new IndexedOccurrences<Object>(
+      new TombstoneOccurrences<Object>(new LeftistHeapOccurrences<Object>()));
+  }
+
+
+  /**
+   * Pending occurrences should be found by their event.
+   */
+  @Test
+  public void OccurrencesShouldBeFoundByEvent() {
+    final Event<Object> event = new DummyEvent();
+    final Occurrence<Object> one = new Occurrence<Object>(new Time(3), event);
+    final Occurrence<Object> two = new Occurrence<Object>(new Time(8), event);
+    final IndexedOccurrences<Object> occurrences =
+      new IndexedOccurrences<Object>(new LeftistHeapOccurrences<Object>())
+      .withNew(randomOccurrences(100, 10))
+      .withNew(Arrays.asList(one, two));
+    assertEquals("Both occurrences of the event should be found.",
+                 2, occurrences.occurrencesOf(event).size());
+    assertTrue("A pending occurrence should be contained.",
+               occurrences.contains(one));
+    final IndexedOccurrences<Object> rest =
+      occurrences.without(Collections.singletonList(one));
+    assertFalse("A removed occurrence should not be contained.",
+                rest.contains(one));
+    assertEquals("Only the other occurrence of the event should remain.",
+                 Collections.singletonList(two), rest.occurrencesOf(event));
+  }
+
+
+  /**
+   * Removing by event should remove all of its occurrences, with and
+   * without an index.
+   */
+  @Test
+  public void RemovingEventShouldRemoveItsOccurrences() {
+    final Event<Object> event = new DummyEvent();
+    final List<Occurrence<Object>> others = randomOccurrences(200, 50);
+    final OccurrencesChanges<Object> changes =
+      IndexedOccurrences.removingEvent(event);
+    for (final Occurrences<Object> empty
+           : Arrays.asList(createEmptyOccurrences(),
+                           new LeftistHeapOccurrences<Object>())) {
+      final Occurrences<Object> occurrences = changes.applyTo(
+        empty.withNew(others).withNew(Arrays.asList(
+          new Occurrence<Object>(new Time(1), event),
+          new Occurrence<Object>(new Time(20), event))));
+      final List<Occurrence<Object>> drained = drain(occurrences);
+      assertEquals("Only the occurrences of the event should be removed.",
+                   others.size(), drained.size());
+      assertTrue("The other occurrences should remain.",
+                 drained.containsAll(others));
+    }
+  }
+
+
+  /**
+   * Removing an occurrence which is not pending should not affect an
+   * equal occurrence added later.
+   */
+  @Test
+  public void RemovingAbsentShouldNotAffectLaterOccurrences() {
+    final Occurrence<Object> occurrence = occurrenceAt(4);
+    final Occurrences<Object> occurrences = createEmptyOccurrences()
+      .without(Collections.singletonList(occurrence))
+      .withNew(Collections.singletonList(occurrence));
+    assertEquals("The added occurrence should remain.",
+                 occurrence, occurrences.nextOccurrence());
+  }
+
+
+  /**
+   * Many occurrences of a single event, some of them equal, should be
+   * counted and removed one at a time.
+   */
+  @Test
+  public void ManyOccurrencesOfOneEventShouldBeIndexed() {
+    final Event<Object> event = new DummyEvent();
+    IndexedOccurrences<Object> occurrences = new IndexedOccurrences<Object>(
+      new TombstoneOccurrences<Object>(new LeftistHeapOccurrences<Object>()));
+    for (int i = 0; i < 100000; ++i) {
+      occurrences = occurrences.withNew(Collections.singletonList(
+        new Occurrence<Object>(new Time(i / 2), event)));
+    }
+    assertEquals("All occurrences of the event should be found.",
+                 100000, occurrences.occurrencesOf(event).size());
+    for (int i = 0; i < 99999; ++i) {
+      occurrences = occurrences.withoutNextOccurrence();
+    }
+    final Occurrence<Object> last =
+      new Occurrence<Object>(new Time(49999), event);
+    assertEquals("Only the last occurrence should remain.",
+                 Collections.singletonList(last),
+                 occurrences.occurrencesOf(event));
+    assertFalse("A removed equal occurrence should not be contained.",
+                occurrences.without(Collections.singletonList(last))
+                .contains(last));
+  }
+}
@@ -0,0 +1,109 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test LadderQueueOccurrences.
+ */
+public class LadderQueueOccurrencesTest extends AbstractOccurrencesTest {
+  @Override
+  public Occurrences<Object> createEmptyOccurrences() {
+    return new LadderQueueOccurrences<Object>();
+  }
+
+
+  /**
+   * Occurrences clustered at a few very different times force the
+   * ladder to spawn finer rungs, which must keep the order.
+   */
+  @Test
+  public void SkewedTimesShouldYieldAscendingTimes() {
+    Occurrences<Object> occurrences = createEmptyOccurrences()
+      .withNew(randomOccurrences(3000, 100));
+    for (final Occurrence<Object> occurrence
+           : randomOccurrences(300, 1000000000)) {
+      occurrences = occurrences.withNew(Collections.singleton(
+        occurrenceAt(1000000000 + occurrence.time.absoluteValue)));
+    }
+    occurrences = occurrences.withoutNextOccurrence()
+      .withNew(randomOccurrences(1000, 10));
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("All occurrences should be drained.",
+                 4299, drained.size());
+    for (int i = 1; i < drained.size(); ++i) {
+      assertTrue("Drained occurrences should be in order.",
+                 drained.get(i - 1).time.compareTo(drained.get(i).time)
+                 <= 0);
+    }
+  }
+
+
+  /**
+   * Occurrences at the latest representable time must come out last,
+   * in the order in which they were added.
+   */
+  @Test
+  public void LatestTimeShouldYieldAscendingTimes() {
+    final List<Occurrence<Object>> latest =
+      new ArrayList<Occurrence<Object>>();
+    for (int i = 0; i < 200; ++i) {
+      latest.add(occurrenceAt(Long.MAX_VALUE));
+    }
+    Occurrences<Object> occurrences = createEmptyOccurrences()
+      .withNew(latest.subList(0, 100))
+      .withNew(randomOccurrences(200, 100));
+    occurrences = occurrences.withoutNextOccurrence()
+      .withNew(latest.subList(100, 200))
+      .withNew(randomOccurrences(100, 100));
+    assertEquals("All occurrences at the latest time should be found.",
+                 200, occurrences.at(new Time(Long.MAX_VALUE)).size());
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("All occurrences should be drained.",
+                 499, drained.size());
+    assertEquals("Occurrences at the latest time should be drained last,"
+                 + " in the order they were added.",
+                 latest, drained.subList(299, 499));
+  }
+
+
+  /**
+   * Times spread over the whole range of long values must neither
+   * overflow the bucket widths nor mess up the order.
+   */
+  @Test
+  public void ExtremeTimesShouldYieldAscendingTimes() {
+    final Random random = new Random(42);
+    Occurrences<Object> occurrences = createEmptyOccurrences()
+      .withNew(Collections.singleton(occurrenceAt(Long.MIN_VALUE)));
+    for (int i = 0; i < 500; ++i) {
+      occurrences = occurrences.withNew(Collections.singleton(
+        occurrenceAt(random.nextLong())));
+    }
+    occurrences = occurrences.withoutNextOccurrence();
+    final List<Occurrence<Object>> extremes =
+      new ArrayList<Occurrence<Object>>();
+    for (int i = 0; i < 100; ++i) {
+      extremes.add(occurrenceAt(Long.MIN_VALUE + 1));
+      extremes.add(occurrenceAt(Long.MAX_VALUE));
+      extremes.add(occurrenceAt(random.nextLong()));
+    }
+    occurrences = occurrences.withNew(extremes)
+      .without(Collections.singleton(extremes.get(1)));
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("All occurrences should be drained.",
+                 799, drained.size());
+    for (int i = 1; i < drained.size(); ++i) {
+      assertTrue("Drained occurrences should be in order.",
+                 drained.get(i - 1).time.compareTo(drained.get(i).time)
+                 <= 0);
+    }
+  }
+}
@@ -0,0 +1,12 @@
+package fdesj;
+
+
+/**
+ * Test LeftistHeapOccurrences.
+ */
+public class LeftistHeapOccurrencesTest extends AbstractOccurrencesTest {
+  @Override
+  public Occurrences<Object> createEmptyOccurrences() {
+    return new LeftistHeapOccurrences<Object>();
+  }
+}
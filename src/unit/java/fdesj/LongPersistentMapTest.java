@@ -0,0 +1,102 @@
+package fdesj;
+
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Test LongPersistentMap.
+ */
+public class LongPersistentMapTest {
+  /**
+   * Collect the entries of a map by iterating over it, checking the
+   * order of the keys.
+   *
+   * @param map Map to collect.
+   * @return Entries of the map.
+   */
+  private static Map<Long, Integer> entries(
+    final LongPersistentMap<Integer> map) {
+    final Map<Long, Integer> entries = new TreeMap<Long, Integer>();
+    Long previous = null;
+    for (final Map.Entry<Long, Integer> entry : map) {
+      if (previous != null) {
+        assertEquals("Keys should be iterated in ascending order.",
+                     -1, Long.compare(previous + Long.MIN_VALUE,
+                                  entry.getKey() + Long.MIN_VALUE));
+      }
+      previous = entry.getKey();
+      entries.put(entry.getKey(), entry.getValue());
+    }
+    return entries;
+  }
+
+
+  /**
+   * Random changes, persistent and through an editor, should give the
+   * entries of a mutable map.
+   */
+  @Test
+  public void ChangesShouldMatchTreeMap() {
+    final Random random = new Random(5);
+    LongPersistentMap<Integer> map = new LongPersistentMap<Integer>();
+    final Map<Long, Integer> expected = new TreeMap<Long, Integer>();
+    for (int round = 0; round < 20; ++round) {
+      final LongPersistentMap<Integer> before = map;
+      final Map<Long, Integer> expectedBefore =
+        new TreeMap<Long, Integer>(expected);
+      final LongPersistentMap.Editor<Integer> editor =
+        round % 2 == 0 ? map.asTransient() : null;
+      for (int i = 0; i < 500; ++i) {
+        // Mostly dense ids, with some large and negative keys.
+        final long key = random.nextInt(10) == 0
+          ? random.nextLong() : random.nextInt(2000);
+        final boolean remove = random.nextInt(3) == 0;
+        if (remove) {
+          expected.remove(key);
+        } else {
+          expected.put(key, i);
+        }
+        if (editor != null) {
+          if (remove) {
+            editor.remove(key);
+          } else {
+            editor.put(key, i);
+          }
+        } else {
+          map = remove ? map.without(key) : map.with(key, i);
+        }
+      }
+      if (editor != null) {
+        map = editor.persistent();
+      }
+      assertEquals("Maps should have the expected size.",
+                   expected.size(), map.size());
+      assertEquals("Maps should have the expected entries.",
+                   expected, entries(map));
+      assertEquals("Earlier maps should remain unchanged.",
+                   expectedBefore, entries(before));
+    }
+  }
+
+
+  /**
+   * Maps with equal entries should be equal, regardless of how they
+   * were built.
+   */
+  @Test
+  public void EqualEntriesShouldGiveEqualMaps() {
+    final LongPersistentMap<String> one = new LongPersistentMap<String>()
+      .with(1, "a").with(1L << 40, "b").with(3, "c");
+    final LongPersistentMap<String> two = new LongPersistentMap<String>()
+      .with(3, "c").with(1, "a").with(7, "x").with(1L << 40, "b")
+      .without(7);
+    assertEquals("Maps with equal entries should be equal.", one, two);
+    assertEquals("Equal maps should have equal hash codes.",
+                 one.hashCode(), two.hashCode());
+  }
+}
@@ -0,0 +1,86 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Test OccurrencesUpdate and its fusion by OccurrencesChangesSequence.
+ */
+public class OccurrencesUpdateTest {
+  /**
+   * Drain occurrences and sort them by a description, to compare them
+   * regardless of the order of equal times.
+   *
+   * @param occurrences Occurrences to drain.
+   * @return Sorted descriptions of the occurrences.
+   */
+  private static List<String> sorted(final Occurrences<Object> occurrences) {
+    final List<String> described = new ArrayList<String>();
+    for (final Occurrence<Object> occurrence
+           : AbstractOccurrencesTest.drain(occurrences)) {
+      described.add(occurrence.time.absoluteValue + " "
+                    + System.identityHashCode(occurrence.event));
+    }
+    Collections.sort(described);
+    return described;
+  }
+
+
+  /**
+   * Fused updates should have the effect of applying them in order,
+   * including removals of occurrences added by earlier updates.
+   */
+  @Test
+  public void FusedUpdatesShouldMatchSequentialUpdates() {
+    final Random random = new Random(7);
+    final List<Occurrence<Object>> pool =
+      AbstractOccurrencesTest.randomOccurrences(60, 20);
+    final Occurrences<Object> initial =
+      new LeftistHeapOccurrences<Object>().withNew(pool.subList(0, 30));
+    final List<OccurrencesChanges<Object>> updates =
+      new ArrayList<OccurrencesChanges<Object>>();
+    Occurrences<Object> expected = initial;
+    for (int i = 0; i < 200; ++i) {
+      final OccurrencesUpdate<Object> update = new OccurrencesUpdate<Object>(
+        Collections.singletonList(pool.get(random.nextInt(pool.size()))),
+        Collections.singletonList(pool.get(random.nextInt(pool.size()))));
+      updates.add(update);
+      expected = update.applyTo(expected);
+    }
+    assertEquals("Fused updates should give the same occurrences.",
+                 sorted(expected),
+                 sorted(new OccurrencesChangesSequence<Object>(updates)
+                        .applyTo(initial)));
+  }
+
+
+  /**
+   * Merged changes should apply each part of the given changes.
+   */
+  @Test
+  public void MergedChangesShouldApplyAllParts() {
+    final Occurrence<Object> one = AbstractOccurrencesTest.occurrenceAt(1);
+    final Occurrence<Object> two = AbstractOccurrencesTest.occurrenceAt(2);
+    final List<Changes<Object>> changes = new ArrayList<Changes<Object>>();
+    changes.add(new Changes<Object>(
+      null, OccurrencesUpdate.adding(Collections.singletonList(one))));
+    changes.add(null);
+    changes.add(new Changes<Object>(
+      null, OccurrencesUpdate.adding(Collections.singletonList(two))));
+    changes.add(new Changes<Object>(
+      null, OccurrencesUpdate.removing(Collections.singletonList(one))));
+    final Changes<Object> merged = Changes.merge(changes);
+    assertEquals("Merged changes without state changes should have none.",
+                 null, merged.toState);
+    assertEquals("Merged changes should add and remove occurrences.",
+                 Collections.singletonList(two),
+                 AbstractOccurrencesTest.drain(merged.toOccurrences.applyTo(
+                   new LeftistHeapOccurrences<Object>())));
+  }
+}
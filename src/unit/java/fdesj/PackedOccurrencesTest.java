@@ -0,0 +1,217 @@
+package fdesj;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test PackedOccurrences.
+ */
+public class PackedOccurrencesTest extends AbstractOccurrencesTest {
+  /**
+   * Event carrying a value, equal to events with the same value.
+   */
+  private static final class ValueEvent implements Event<Object> {
+    /**
+     * The value.
+     */
+    final long value;
+
+
+    /**
+     * Construct with the given value.
+     *
+     * @param value The value.
+     */
+    ValueEvent(final long value) {
+      this.value = value;
+    }
+
+
+    @Override
+    public Changes<Object> affect(final Object state, final Time at) {
+      return null;
+    }
+
+
+    @Override
+    public boolean equals(final Object object) {
+      return object instanceof ValueEvent
+        && ((ValueEvent) object).value == value;
+    }
+
+
+    @Override
+    public int hashCode() {
+      return (int) (value ^ (value >>> 32));
+    }
+  }
+
+
+  /**
+   * Codec of value events, writing 8 bytes.
+   */
+  private static final Codec<ValueEvent> VALUES = new Codec<ValueEvent>() {
+      @Override
+      public void encode(final ValueEvent event, final DataOutput output)
+        throws IOException {
+        output.writeLong(event.value);
+      }
+
+
+      @Override
+      public ValueEvent decode(final DataInput input) throws IOException {
+        return new ValueEvent(input.readLong());
+      }
+    };
+
+
+  /**
+   * Create a registry of dummy and value events.
+   *
+   * @return The registry.
+   */
+  private static EventRegistry<Object> registry() {
+    final EventRegistry<Object> registry = new EventRegistry<Object>();
+    registry.register(DummyEvent.class, 4,
+                      new RegistryCodec<DummyEvent>());
+    registry.register(ValueEvent.class, 8, VALUES);
+    return registry;
+  }
+
+
+  @Override
+  public Occurrences<Object> createEmptyOccurrences() {
+    return new PackedOccurrences<Object>(registry());
+  }
+
+
+  /**
+   * Adding one by one should keep logarithmically many runs, and
+   * decode the events of different sizes equal to the added ones.
+   */
+  @Test
+  public void RunsShouldStayFewAndDecodeEqualEvents() {
+    final List<Occurrence<Object>> added =
+      new ArrayList<Occurrence<Object>>();
+    PackedOccurrences<Object> occurrences =
+      new PackedOccurrences<Object>(registry());
+    int largest = 0;
+    for (int i = 0; i < 4096; ++i) {
+      final Occurrence<Object> occurrence = new Occurrence<Object>(
+        new Time((i * 7919L) % 1000),
+        i % 3 == 0 ? new DummyEvent() : new ValueEvent(i));
+      added.add(occurrence);
+      occurrences =
+        occurrences.withNew(Collections.singletonList(occurrence));
+      largest = Math.max(largest, occurrences.getRunCount());
+    }
+    assertTrue("Runs should stay logarithmically many, were " + largest,
+               largest <= 2 * 12 + 1);
+    assertEquals("Size should count all occurrences.",
+                 added.size(), occurrences.size());
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("All occurrences should be drained.",
+                 added.size(), drained.size());
+    assertTrue("Decoded occurrences should equal the added ones.",
+               drained.containsAll(added));
+  }
+
+
+  /**
+   * Removing occurrences by their encoding should also drop them when
+   * runs are merged.
+   */
+  @Test
+  public void RemovedOccurrencesShouldBeDropped() {
+    final List<Occurrence<Object>> added =
+      new ArrayList<Occurrence<Object>>();
+    for (int i = 0; i < 1000; ++i) {
+      added.add(new Occurrence<Object>(new Time(i % 97),
+                                       new ValueEvent(i)));
+    }
+    PackedOccurrences<Object> occurrences =
+      new PackedOccurrences<Object>(registry()).withNew(added);
+    final List<Occurrence<Object>> removed =
+      new ArrayList<Occurrence<Object>>();
+    for (int i = 0; i < 1000; i += 2) {
+      removed.add(new Occurrence<Object>(new Time(i % 97),
+                                         new ValueEvent(i)));
+    }
+    occurrences = occurrences.without(removed);
+    assertEquals("Size should not count removed occurrences.",
+                 500, occurrences.size());
+    occurrences = occurrences.withNew(added.subList(0, 600));
+    assertEquals("Size should count added occurrences.",
+                 1100, occurrences.size());
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("Removed occurrences should not be drained.",
+                 1100, drained.size());
+    for (int i = 0; i < 1000; ++i) {
+      final int expected = (i % 2 == 0 ? 0 : 1) + (i < 600 ? 1 : 0);
+      assertEquals("Each occurrence should be drained as often as kept.",
+                   expected,
+                   Collections.frequency(drained, added.get(i)));
+    }
+  }
+
+
+  /**
+   * Removing occurrences which are not pending, whether already taken
+   * or never added, should be ignored, instead of hiding occurrences
+   * added later.
+   */
+  @Test
+  public void RemovingAbsentOccurrencesShouldBeIgnored() {
+    final List<Occurrence<Object>> taken = Collections.singletonList(
+      new Occurrence<Object>(new Time(5), new ValueEvent(5)));
+    final List<Occurrence<Object>> absent = Collections.singletonList(
+      new Occurrence<Object>(new Time(7), new ValueEvent(7)));
+    PackedOccurrences<Object> occurrences =
+      new PackedOccurrences<Object>(registry()).withNew(taken)
+      .withoutNextOccurrence().without(taken);
+    assertEquals("Removing a taken occurrence should be ignored.",
+                 0, occurrences.size());
+    occurrences = occurrences.withNew(absent).withNew(absent)
+      .without(taken).without(absent).without(absent).without(absent);
+    assertEquals("Removing more than pending should be ignored.",
+                 0, occurrences.size());
+    occurrences = occurrences.withNew(taken).withNew(absent);
+    assertEquals("Added again occurrences should be counted.",
+                 2, occurrences.size());
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertTrue("Added again occurrences should be drained.",
+               drained.containsAll(taken) && drained.containsAll(absent));
+  }
+
+
+  /**
+   * Unregistered event classes should be refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void UnregisteredEventsShouldBeRefused() {
+    new PackedOccurrences<Object>(new EventRegistry<Object>()).withNew(
+      Collections.singletonList(occurrenceAt(1)));
+  }
+
+
+  /**
+   * Codecs not writing the registered size should be refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void WrongSizeShouldBeRefused() {
+    final EventRegistry<Object> registry = new EventRegistry<Object>();
+    registry.register(ValueEvent.class, 4, VALUES);
+    new PackedOccurrences<Object>(registry).withNew(
+      Collections.singletonList(new Occurrence<Object>(
+        new Time(1), new ValueEvent(1))));
+  }
+}
@@ -0,0 +1,171 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test PersistentMap.
+ */
+public class PersistentMapTest {
+  /**
+   * Key with a given hash code, to force collisions.
+   */
+  private static final class Key {
+    /**
+     * Hash code of the key.
+     */
+    final int hash;
+
+
+    /**
+     * Identifier of the key, determining equality.
+     */
+    final int id;
+
+
+    /**
+     * Construct a key.
+     *
+     * @param hash Hash code of the key.
+     * @param id Identifier of the key.
+     */
+    Key(final int hash, final int id) {
+      this.hash = hash;
+      this.id = id;
+    }
+
+
+    @Override
+    public boolean equals(final Object object) {
+      return object instanceof Key && ((Key) object).id == id;
+    }
+
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+
+
+  /**
+   * Collect the entries of a map by iterating over it.
+   *
+   * @param map Map to collect.
+   * @return Entries of the map.
+   */
+  private static Map<Key, Integer> entries(
+    final PersistentMap<Key, Integer> map) {
+    final Map<Key, Integer> entries = new HashMap<Key, Integer>();
+    for (final Map.Entry<Key, Integer> entry : map) {
+      assertEquals("Each key should be iterated once.",
+                   null, entries.put(entry.getKey(), entry.getValue()));
+    }
+    return entries;
+  }
+
+
+  /**
+   * Random changes should give the entries of a mutable map, also
+   * with colliding hashes, while earlier maps remain unchanged.
+   */
+  @Test
+  public void ChangesShouldMatchHashMap() {
+    for (final int range : new int[] {Integer.MAX_VALUE, 100, 1}) {
+      final Random random = new Random(range);
+      PersistentMap<Key, Integer> map = new PersistentMap<Key, Integer>();
+      final Map<Key, Integer> expected = new HashMap<Key, Integer>();
+      final List<PersistentMap<Key, Integer>> maps =
+        new ArrayList<PersistentMap<Key, Integer>>();
+      final List<Map<Key, Integer>> expectedMaps =
+        new ArrayList<Map<Key, Integer>>();
+      for (int i = 0; i < 5000; ++i) {
+        final int id = random.nextInt(1000);
+        final Key key = new Key((id * 0x9E3779B9) % range, id);
+        if (random.nextInt(3) == 0) {
+          map = map.without(key);
+          expected.remove(key);
+        } else {
+          map = map.with(key, i);
+          expected.put(key, i);
+        }
+        if (i % 500 == 0) {
+          maps.add(map);
+          expectedMaps.add(new HashMap<Key, Integer>(expected));
+        }
+      }
+      maps.add(map);
+      expectedMaps.add(expected);
+      for (int i = 0; i < maps.size(); ++i) {
+        assertEquals("Maps should have the expected size.",
+                     expectedMaps.get(i).size(), maps.get(i).size());
+        assertEquals("Maps should have the expected entries.",
+                     expectedMaps.get(i), entries(maps.get(i)));
+      }
+    }
+  }
+
+
+  /**
+   * Changes through an editor should equal persistent changes, and
+   * leave the original map unchanged.
+   */
+  @Test
+  public void EditorShouldMatchPersistentChanges() {
+    final Random random = new Random(3);
+    PersistentMap<Key, Integer> original = new PersistentMap<Key, Integer>();
+    for (int id = 0; id < 300; ++id) {
+      original = original.with(new Key(id % 40, id), id);
+    }
+    final Map<Key, Integer> before = entries(original);
+    PersistentMap<Key, Integer> expected = original;
+    final PersistentMap.Editor<Key, Integer> editor = original.asTransient();
+    for (int i = 0; i < 2000; ++i) {
+      final int id = random.nextInt(600);
+      final Key key = new Key(id % 40, id);
+      if (random.nextBoolean()) {
+        expected = expected.without(key);
+        editor.remove(key);
+      } else {
+        expected = expected.with(key, i);
+        editor.put(key, i);
+      }
+    }
+    final PersistentMap<Key, Integer> edited = editor.persistent();
+    assertEquals("Edited map should equal the persistently changed one.",
+                 expected, edited);
+    assertEquals("Equal maps should have equal hash codes.",
+                 expected.hashCode(), edited.hashCode());
+    assertEquals("The original map should remain unchanged.",
+                 before, entries(original));
+  }
+
+
+  /**
+   * A sequence of single entry changes should be applied in place.
+   */
+  @Test
+  public void SequenceShouldApplyEntryChanges() {
+    final List<StateChanges<PersistentMap<String, Integer>>> changes =
+      new ArrayList<StateChanges<PersistentMap<String, Integer>>>();
+    for (int i = 0; i < 100; ++i) {
+      changes.add(PersistentMap.<String, Integer>putting("k" + i, i));
+    }
+    changes.add(PersistentMap.<String, Integer>removing("k7"));
+    final PersistentMap<String, Integer> map =
+      new StateChangesSequence<PersistentMap<String, Integer>>(changes)
+      .applyTo(new PersistentMap<String, Integer>());
+    assertEquals("All but the removed entry should be present.",
+                 99, map.size());
+    assertTrue("Entries should be mapped.",
+               map.get("k42") == 42 && ! map.containsKey("k7"));
+  }
+}
@@ -0,0 +1,53 @@
+package fdesj;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Codec encoding values by their index in a registry, so that
+ * decoding gives the very same (identity-equal) values, such as dummy
+ * events. Every encoding has 4 bytes.
+ *
+ * @param <Value> Type of the encoded values.
+ */
+public final class RegistryCodec<Value> implements Codec<Value> {
+  /**
+   * Registered values, by index.
+   */
+  private final List<Value> values = new ArrayList<Value>();
+
+
+  /**
+   * Index of each registered value.
+   */
+  private final Map<Value, Integer> indices =
+    new IdentityHashMap<Value, Integer>();
+
+
+  @Override
+  public synchronized void encode(final Value value,
+                                  final DataOutput output)
+    throws IOException {
+    Integer index = indices.get(value);
+    if (index == null) {
+      index = values.size();
+      values.add(value);
+      indices.put(value, index);
+    }
+    output.writeInt(index);
+  }
+
+
+  @Override
+  public synchronized Value decode(final DataInput input)
+    throws IOException {
+    return values.get(input.readInt());
+  }
+}
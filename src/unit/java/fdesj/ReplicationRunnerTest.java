@@ -0,0 +1,118 @@
+package fdesj;
+
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test ReplicationRunner.
+ */
+public class ReplicationRunnerTest {
+  /**
+   * Model ticking with a period depending on the seed, its output
+   * being the number of ticks.
+   */
+  private static final ReplicationModel<Integer, Integer> TICKING =
+    new ReplicationModel<Integer, Integer>() {
+      @Override
+      public Integer initialState(final long seed) {
+        return 0;
+      }
+
+
+      @Override
+      public Occurrences<Integer> initialOccurrences(final long seed) {
+        return new LadderQueueOccurrences<Integer>().withNew(
+          Collections.singletonList(new Occurrence<Integer>(
+            Time.BEGIN, new SimulatorTest.TickEvent(1 + seed % 4))));
+      }
+
+
+      @Override
+      public Integer reduce(final Integer state) {
+        return state;
+      }
+    };
+
+
+  /**
+   * Every replication should be run once, with its seed.
+   */
+  @Test
+  public void AllReplicationsShouldBeAggregated()
+    throws InterruptedException {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final Map<Long, Integer> results = new HashMap<Long, Integer>();
+      final double throughput =
+        new ReplicationRunner<Integer, Integer>(
+          TICKING, new Time(119), executor).run(
+            10, 100,
+            new Aggregator<Integer>() {
+              @Override
+              public void accept(final long seed, final Integer result) {
+                results.put(seed, result);
+              }
+            });
+      assertEquals("All replications should be aggregated.",
+                   100, results.size());
+      for (long seed = 10; seed < 110; ++seed) {
+        assertEquals("Output should depend on the seed.",
+                     Integer.valueOf((int) (120 / (1 + seed % 4))),
+                     results.get(seed));
+      }
+      assertTrue("Throughput should be positive.", throughput > 0);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+
+  /**
+   * A failing replication should fail the run.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void FailingReplicationShouldFailTheRun()
+    throws InterruptedException {
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      new ReplicationRunner<Integer, Integer>(
+        new ReplicationModel<Integer, Integer>() {
+          @Override
+          public Integer initialState(final long seed) {
+            return 0;
+          }
+
+
+          @Override
+          public Occurrences<Integer> initialOccurrences(final long seed) {
+            return new LeftistHeapOccurrences<Integer>().withNew(
+              Collections.singletonList(new Occurrence<Integer>(
+                Time.BEGIN, new SimulatorTest.TickEvent(-1))));
+          }
+
+
+          @Override
+          public Integer reduce(final Integer state) {
+            return state;
+          }
+        },
+        new Time(10), executor).run(
+          0, 10,
+          new Aggregator<Integer>() {
+            @Override
+            public void accept(final long seed, final Integer result) {
+            }
+          });
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package fdesj;
+
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test RestartSimulator.
+ */
+public class RestartSimulatorTest {
+  /**
+   * Probability of a step up.
+   */
+  private static final double UP = 0.3;
+
+
+  /**
+   * Position of the rare event.
+   */
+  private static final int TARGET = 10;
+
+
+  /**
+   * Random walk, with its own generator state.
+   */
+  private static final class Walk {
+    /**
+     * Current position.
+     */
+    final int position;
+
+
+    /**
+     * State of the random number generator.
+     */
+    final long random;
+
+
+    /**
+     * Construct a walk.
+     *
+     * @param position Current position.
+     * @param random State of the random number generator.
+     */
+    Walk(final int position, final long random) {
+      this.position = position;
+      this.random = random;
+    }
+
+
+    /**
+     * Take a random step.
+     *
+     * @return Walk after the step.
+     */
+    Walk step() {
+      final long next = random * 6364136223846793005L + 1442695040888963407L;
+      final double uniform = (next >>> 11) * 0x1.0p-53;
+      return new Walk(position + (uniform < UP ? 1 : -1), next);
+    }
+  }
+
+
+  /**
+   * Event stepping the walk each time unit, until it is absorbed at 0.
+   */
+  private static final class StepEvent implements Event<Walk> {
+    @Override
+    public Changes<Walk> affect(final Walk state, final Time at) {
+      final Walk next = state.step();
+      return new Changes<Walk>(
+        new StateChanges<Walk>() {
+          @Override
+          public Walk applyTo(final Walk walk) {
+            return next;
+          }
+        },
+        next.position <= 0 ? null : OccurrencesUpdate.adding(
+          Collections.singletonList(new Occurrence<Walk>(
+            new Time(at.absoluteValue + 1), this))));
+    }
+  }
+
+
+  /**
+   * Importance being the position, resampling the generator state.
+   */
+  private static final ImportanceModel<Walk> MODEL =
+    new ImportanceModel<Walk>() {
+      @Override
+      public double importanceOf(final Walk state) {
+        return state.position;
+      }
+
+
+      @Override
+      public Walk resample(final Walk state, final long seed) {
+        return new Walk(state.position, seed);
+      }
+    };
+
+
+  /**
+   * The estimate of reaching the target before being absorbed should
+   * agree with the gambler's ruin probability.
+   */
+  @Test
+  public void EstimateShouldMatchGamblersRuin()
+    throws InterruptedException {
+    final double ratio = (1 - UP) / UP;
+    final double exact = (1 - ratio) / (1 - Math.pow(ratio, TARGET));
+    final double[] thresholds = new double[TARGET - 1];
+    final int[] splits = new int[TARGET - 2];
+    for (int level = 0; level < thresholds.length; ++level) {
+      thresholds[level] = level + 2;
+    }
+    Arrays.fill(splits, 3);
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final RestartSimulator.Estimate estimate =
+        new RestartSimulator<Walk>(MODEL, thresholds, splits, executor)
+        .estimate(new Snapshot<Walk>(
+                    new Walk(1, 0),
+                    new LeftistHeapOccurrences<Walk>().withNew(
+                      Collections.singletonList(new Occurrence<Walk>(
+                        Time.BEGIN, new StepEvent()))),
+                    Time.BEGIN),
+                  new Time(100000), 1, 4000);
+      assertEquals("All trials should be counted.",
+                   4000, estimate.getTrialCount());
+      assertTrue("Retrials should be split, " + estimate.getPathCount(),
+                 estimate.getPathCount() > 4000);
+      assertTrue("Relative error should be small, was "
+                 + estimate.getRelativeError(),
+                 estimate.getRelativeError() < 0.15);
+      assertEquals("Estimate should agree with the exact probability.",
+                   exact, estimate.getProbability(),
+                   4 * estimate.getRelativeError()
+                   * estimate.getProbability());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+
+  /**
+   * Thresholds which are not increasing should be refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void DecreasingThresholdsShouldBeRefused() {
+    new RestartSimulator<Walk>(MODEL, new double[] {2, 1}, new int[] {2},
+                               new Executor() {
+                                 @Override
+                                 public void execute(final Runnable task) {
+                                   task.run();
+                                 }
+                               });
+  }
+}
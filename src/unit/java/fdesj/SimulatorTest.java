@@ -0,0 +1,154 @@
+package fdesj;
+
+
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test Simulator.
+ */
+public class SimulatorTest {
+  /**
+   * Event counting its occurrences in the state, occurring again
+   * after a fixed period.
+   */
+  public static final class TickEvent implements Event<Integer> {
+    /**
+     * Duration until the next occurrence.
+     */
+    private final Time.Duration period;
+
+
+    /**
+     * Construct with the given period.
+     *
+     * @param period Duration until the next occurrence, may be
+     * negative for testing.
+     */
+    public TickEvent(final long period) {
+      this.period = new Time.Duration(period);
+    }
+
+
+    @Override
+    public Changes<Integer> affect(final Integer state, final Time at) {
+      final Event<Integer> self = this;
+      return new Changes<Integer>(
+        new StateChanges<Integer>() {
+          @Override
+          public Integer applyTo(final Integer state) {
+            return state + 1;
+          }
+        },
+        new OccurrencesChanges<Integer>() {
+          @Override
+          public Occurrences<Integer> applyTo(
+            final Occurrences<Integer> occurrences) {
+            return occurrences.withNew(Collections.singletonList(
+              new Occurrence<Integer>(at.after(period), self)));
+          }
+        });
+    }
+  }
+
+
+  /**
+   * Create a simulator with a single tick event.
+   *
+   * @param period Period of the tick event.
+   * @return New simulator starting at the begin of time.
+   */
+  private static Simulator<Integer> createTicking(final long period) {
+    final Occurrences<Integer> occurrences =
+      new LeftistHeapOccurrences<Integer>().withNew(
+        Collections.singletonList(
+          new Occurrence<Integer>(Time.BEGIN, new TickEvent(period))));
+    return new Simulator<Integer>(0, occurrences, Time.BEGIN);
+  }
+
+
+  /**
+   * Running a number of occurrences should process exactly that many.
+   */
+  @Test
+  public void RunShouldProcessGivenNumberOfOccurrences() {
+    final Simulator<Integer> simulator = createTicking(3);
+    assertEquals("All requested occurrences should be processed.",
+                 1000, simulator.run(1000));
+    assertEquals("Each occurrence should change the state.",
+                 Integer.valueOf(1000), simulator.getState());
+    assertEquals("Time should be that of the last occurrence.",
+                 new Time(2997), simulator.getTime());
+    assertEquals("Processed occurrences should be counted.",
+                 1000, simulator.getProcessedCount());
+  }
+
+
+  /**
+   * Running until a time should process the occurrences up to that
+   * time, and then advance the time.
+   */
+  @Test
+  public void RunUntilShouldProcessOccurrencesUpToTime() {
+    final Simulator<Integer> simulator = createTicking(10);
+    assertEquals("Occurrences at 0, 10, ..., 90 should be processed.",
+                 10, simulator.runUntil(new Time(95)));
+    assertEquals("Time should be advanced to the end.",
+                 new Time(95), simulator.getTime());
+    assertEquals("Occurrences at the end should be processed, too.",
+                 1, simulator.runUntil(new Time(100)));
+    assertEquals("Running until an earlier time should do nothing.",
+                 0, simulator.runUntil(new Time(50)));
+    assertEquals("Running until an earlier time keeps the time.",
+                 new Time(100), simulator.getTime());
+  }
+
+
+  /**
+   * Without pending occurrences nothing should be processed.
+   */
+  @Test
+  public void StepShouldReturnFalseWithoutOccurrences() {
+    final Simulator<Object> simulator =
+      new Simulator<Object>(null, new LeftistHeapOccurrences<Object>(),
+                            Time.BEGIN);
+    assertFalse("Stepping without occurrences should do nothing.",
+                simulator.step());
+    assertEquals("Running without occurrences should do nothing.",
+                 0, simulator.run(10));
+  }
+
+
+  /**
+   * Null changes should be treated as no changes.
+   */
+  @Test
+  public void NullChangesShouldChangeNothing() {
+    final Object state = new Object();
+    final Simulator<Object> simulator = new Simulator<Object>(
+      state,
+      new LeftistHeapOccurrences<Object>().withNew(
+        Collections.singletonList(
+          new Occurrence<Object>(new Time(5), new DummyEvent()))),
+      Time.BEGIN);
+    assertTrue("The occurrence should be processed.", simulator.step());
+    assertEquals("The state should not change.",
+                 state, simulator.getState());
+    assertEquals("The time should be that of the occurrence.",
+                 new Time(5), simulator.getTime());
+  }
+
+
+  /**
+   * Occurrences earlier than the current time must not be processed.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void OccurrenceInThePastShouldThrow() {
+    final Simulator<Integer> simulator = createTicking(-1);
+    simulator.run(2);
+  }
+}
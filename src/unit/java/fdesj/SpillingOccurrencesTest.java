@@ -0,0 +1,246 @@
+package fdesj;
+
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test SpillingOccurrences.
+ */
+public class SpillingOccurrencesTest extends AbstractOccurrencesTest {
+  /**
+   * Directory of the segment files of all tests.
+   */
+  private static final Path DIRECTORY;
+
+
+  /**
+   * Occurrences created for the tests, to be closed on exit.
+   */
+  private static final List<SpillingOccurrences<Object>> CREATED =
+    new ArrayList<SpillingOccurrences<Object>>();
+
+
+  static {
+    try {
+      DIRECTORY = Files.createTempDirectory("spilling");
+    } catch (final IOException exception) {
+      throw new IllegalStateException(exception);
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          try {
+            synchronized (CREATED) {
+              for (final SpillingOccurrences<Object> created : CREATED) {
+                created.close();
+              }
+            }
+            Files.deleteIfExists(DIRECTORY);
+          } catch (final IOException exception) {
+            // Left for the operating system to clean up.
+          }
+        }
+      });
+  }
+
+
+  /**
+   * Create empty occurrences with a small window and threshold, so
+   * that they spill and promote often.
+   *
+   * @param window Width of the promotion window.
+   * @param spillThreshold Number of far occurrences to spill at.
+   * @return Empty occurrences.
+   */
+  private static SpillingOccurrences<Object> create(
+    final long window,
+    final int spillThreshold) {
+    synchronized (CREATED) {
+      final SpillingOccurrences<Object> created =
+        new SpillingOccurrences<Object>(
+          new LeftistHeapOccurrences<Object>(), DIRECTORY,
+          "test" + CREATED.size(), new RegistryCodec<Event<Object>>(),
+          window, spillThreshold);
+      CREATED.add(created);
+      return created;
+    }
+  }
+
+
+  @Override
+  public Occurrences<Object> createEmptyOccurrences() {
+    return create(10, 16);
+  }
+
+
+  /**
+   * Many far occurrences should be spilled, and drained in order.
+   */
+  @Test
+  public void SpilledOccurrencesShouldDrainInOrder() {
+    final List<Occurrence<Object>> added = randomOccurrences(20000, 100000);
+    final SpillingOccurrences<Object> occurrences =
+      create(50, 500).withNew(added.subList(0, 10000))
+      .withNew(added.subList(10000, 20000));
+    assertTrue("Far occurrences should be spilled.",
+               occurrences.getSpilledSegmentCount() > 0);
+    assertEquals("Iteration should visit the spilled occurrences.",
+                 added.size(), count(occurrences));
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("All occurrences should be drained.",
+                 added.size(), drained.size());
+    for (int i = 1; i < drained.size(); ++i) {
+      assertTrue("Drained occurrences should be ascending.",
+                 drained.get(i - 1).time.absoluteValue
+                 <= drained.get(i).time.absoluteValue);
+    }
+    assertTrue("All occurrences should be drained.",
+               drained.containsAll(added));
+  }
+
+
+  /**
+   * Removing spilled occurrences should drop them when promoted, and
+   * leave the occurrences they were removed from unchanged.
+   */
+  @Test
+  public void RemovedSpilledOccurrencesShouldNotBePromoted() {
+    final List<Occurrence<Object>> added = randomOccurrences(5000, 50000);
+    final SpillingOccurrences<Object> occurrences =
+      create(100, 200).withNew(added);
+    final List<Occurrence<Object>> removed =
+      new ArrayList<Occurrence<Object>>();
+    final List<Occurrence<Object>> kept = new ArrayList<Occurrence<Object>>();
+    for (int i = 0; i < added.size(); ++i) {
+      (i % 3 == 0 ? removed : kept).add(added.get(i));
+    }
+    final List<Occurrence<Object>> drained =
+      drain(occurrences.without(removed));
+    assertEquals("Removed occurrences should not be drained.",
+                 kept.size(), drained.size());
+    assertTrue("Kept occurrences should be drained.",
+               drained.containsAll(kept));
+    for (final Occurrence<Object> occurrence : removed) {
+      assertFalse("Removed occurrences should not be drained.",
+                  drained.contains(occurrence));
+    }
+    assertEquals("Original occurrences should be unchanged.",
+                 added.size(), drain(occurrences).size());
+  }
+
+
+  /**
+   * Removing a far occurrence which is no longer pending should be
+   * ignored, instead of hiding the occurrence when it is added again.
+   */
+  @Test
+  public void RemovingAbsentFarOccurrenceShouldBeIgnored() {
+    final List<Occurrence<Object>> added = randomOccurrences(100, 1000);
+    final Occurrence<Object> far = occurrenceAt(5000);
+    final List<Occurrence<Object>> once = new ArrayList<Occurrence<Object>>();
+    once.add(far);
+    final SpillingOccurrences<Object> occurrences =
+      create(10, 16).withNew(added).withNew(once).without(once)
+      .without(once).withNew(once);
+    assertEquals("Added again occurrence should be pending.",
+                 1, occurrences.at(far.time).size());
+    assertTrue("Added again occurrence should be drained.",
+               drain(occurrences).contains(far));
+  }
+
+
+  /**
+   * Closing should delete the segment files.
+   */
+  @Test
+  public void ClosingShouldDeleteSegments() throws IOException {
+    final Path directory = Files.createTempDirectory("spilling");
+    try {
+      final SpillingOccurrences<Object> occurrences =
+        new SpillingOccurrences<Object>(
+          new LeftistHeapOccurrences<Object>(), directory, "closed",
+          new RegistryCodec<Event<Object>>(), 10, 10)
+        .withNew(randomOccurrences(100, 1000));
+      assertTrue("Far occurrences should be spilled.",
+                 occurrences.getSpilledSegmentCount() > 0);
+      occurrences.close();
+      try (DirectoryStream<Path> files =
+           Files.newDirectoryStream(directory)) {
+        assertFalse("Segment files should be deleted.",
+                    files.iterator().hasNext());
+      }
+    } finally {
+      Files.delete(directory);
+    }
+  }
+
+
+  /**
+   * Segment files left over by an earlier run should neither get in
+   * the way nor be deleted.
+   */
+  @Test
+  public void LeftoverSegmentsShouldBeKept() throws IOException {
+    final Path directory = Files.createTempDirectory("spilling");
+    final Path leftover = directory.resolve("leftover-0.spill");
+    Files.createFile(leftover);
+    try {
+      final SpillingOccurrences<Object> occurrences =
+        new SpillingOccurrences<Object>(
+          new LeftistHeapOccurrences<Object>(), directory, "leftover-",
+          new RegistryCodec<Event<Object>>(), 10, 10)
+        .withNew(randomOccurrences(100, 1000));
+      assertTrue("Far occurrences should be spilled.",
+                 occurrences.getSpilledSegmentCount() > 0);
+      assertEquals("All occurrences should be drained.",
+                   100, drain(occurrences).size());
+      occurrences.close();
+      assertTrue("Leftover segment files should be kept.",
+                 Files.exists(leftover));
+    } finally {
+      Files.deleteIfExists(leftover);
+      Files.delete(directory);
+    }
+  }
+
+
+  /**
+   * Segment files should be deleted once all their occurrences have
+   * been promoted, before closing.
+   */
+  @Test
+  public void DrainedSegmentsShouldBeDeleted() throws IOException {
+    final Path directory = Files.createTempDirectory("spilling");
+    try {
+      final SpillingOccurrences<Object> occurrences =
+        new SpillingOccurrences<Object>(
+          new LeftistHeapOccurrences<Object>(), directory, "drained",
+          new RegistryCodec<Event<Object>>(), 10, 10)
+        .withNew(randomOccurrences(100, 1000));
+      assertTrue("Far occurrences should be spilled.",
+                 occurrences.getSpilledSegmentCount() > 0);
+      assertEquals("All occurrences should be drained.",
+                   100, drain(occurrences).size());
+      try (DirectoryStream<Path> files =
+           Files.newDirectoryStream(directory)) {
+        assertFalse("Drained segment files should be deleted.",
+                    files.iterator().hasNext());
+      }
+      assertEquals("Occurrences derived before should stay readable.",
+                   100, drain(occurrences).size());
+      occurrences.close();
+    } finally {
+      Files.delete(directory);
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Test StateChangesSequence.
+ */
+public class StateChangesSequenceTest
+  extends AbstractStateChangesTest<StateChangesSequenceTest.Counts> {
+  /**
+   * State of counters, which can be changed through a transient copy.
+   */
+  static final class Counts implements TransientState<Counts> {
+    /**
+     * Number of transient copies made of any counts.
+     */
+    static int copies;
+
+
+    /**
+     * The counters.
+     */
+    final int[] counters;
+
+
+    /**
+     * Construct from the given counters, which are not copied.
+     *
+     * @param counters The counters.
+     */
+    Counts(final int... counters) {
+      this.counters = counters;
+    }
+
+
+    @Override
+    public Transient<Counts> asTransient() {
+      ++copies;
+      return new CountsCopy(counters.clone());
+    }
+
+
+    @Override
+    public boolean equals(final Object object) {
+      return object instanceof Counts
+        && Arrays.equals(counters, ((Counts) object).counters);
+    }
+
+
+    @Override
+    public int hashCode() {
+      return Arrays.hashCode(counters);
+    }
+  }
+
+
+  /**
+   * Transient copy of counts.
+   */
+  static final class CountsCopy implements Transient<Counts> {
+    /**
+     * The copied counters, changed in place.
+     */
+    final int[] counters;
+
+
+    /**
+     * Construct from the given counters, which are not copied.
+     *
+     * @param counters The copied counters.
+     */
+    CountsCopy(final int[] counters) {
+      this.counters = counters;
+    }
+
+
+    @Override
+    public Counts persistent() {
+      return new Counts(counters);
+    }
+  }
+
+
+  /**
+   * Changes incrementing a counter, also in place.
+   */
+  static final class Increment implements TransientStateChanges<Counts> {
+    /**
+     * Index of the counter.
+     */
+    final int index;
+
+
+    /**
+     * Construct incrementing the given counter.
+     *
+     * @param index Index of the counter.
+     */
+    Increment(final int index) {
+      this.index = index;
+    }
+
+
+    @Override
+    public Counts applyTo(final Counts state) {
+      final int[] counters = state.counters.clone();
+      ++counters[index];
+      return new Counts(counters);
+    }
+
+
+    @Override
+    public void applyInPlace(final Transient<Counts> state) {
+      ++((CountsCopy) state).counters[index];
+    }
+  }
+
+
+  /**
+   * Changes doubling all counters, only by deriving new counts.
+   */
+  static final class Double implements StateChanges<Counts> {
+    @Override
+    public Counts applyTo(final Counts state) {
+      final int[] counters = state.counters.clone();
+      for (int i = 0; i < counters.length; ++i) {
+        counters[i] *= 2;
+      }
+      return new Counts(counters);
+    }
+  }
+
+
+  @Override
+  public Counts createSomeState() {
+    return new Counts(1, 2, 3);
+  }
+
+
+  @Override
+  public StateChanges<Counts> createStateChanges() {
+    return new StateChangesSequence<Counts>(Arrays.asList(
+      new Increment(0), new Double(), new Increment(2), new Increment(2)));
+  }
+
+
+  /**
+   * Consecutive transient changes should share a single copy, and give
+   * the result of applying them one after the other.
+   */
+  @Test
+  public void TransientChangesShouldShareCopy() {
+    final List<StateChanges<Counts>> changes =
+      new ArrayList<StateChanges<Counts>>();
+    for (int i = 0; i < 100; ++i) {
+      changes.add(new Increment(i % 3));
+    }
+    changes.add(new Double());
+    changes.add(new Increment(1));
+    Counts expected = createSomeState();
+    for (final StateChanges<Counts> change : changes) {
+      expected = change.applyTo(expected);
+    }
+    Counts.copies = 0;
+    final Counts result =
+      new StateChangesSequence<Counts>(changes).applyTo(createSomeState());
+    assertEquals("The sequence should apply all changes in order.",
+                 expected, result);
+    assertEquals("Each run of transient changes should use one copy.",
+                 2, Counts.copies);
+  }
+}
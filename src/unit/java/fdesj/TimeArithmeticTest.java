@@ -0,0 +1,63 @@
+package fdesj;
+
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * Test the arithmetic and hashing of Time and Time.Duration.
+ */
+public class TimeArithmeticTest {
+  /**
+   * Differences to test with, including ones beyond the shared values.
+   */
+  private static final long[] DIFFERENCES = {
+    0, 1, 1023, 1024, -1, 1L << 40, Long.MIN_VALUE};
+
+
+  /**
+   * Passing a difference should equal passing a duration.
+   */
+  @Test
+  public void AfterDifferenceShouldEqualAfterDuration() {
+    final Time start = new Time(17);
+    for (final long difference : DIFFERENCES) {
+      assertEquals("Results should be equal.",
+                   start.after(new Time.Duration(difference)),
+                   start.after(difference));
+    }
+  }
+
+
+  /**
+   * Shared durations should equal constructed ones.
+   */
+  @Test
+  public void DurationOfShouldEqualConstructedDuration() {
+    for (final long difference : DIFFERENCES) {
+      assertEquals("Durations should be equal.",
+                   new Time.Duration(difference),
+                   Time.Duration.of(difference));
+    }
+    assertSame("Small durations should be shared.",
+               Time.Duration.of(5), Time.Duration.of(5));
+  }
+
+
+  /**
+   * Hash codes should be those of the absolute or difference values.
+   */
+  @Test
+  public void HashCodesShouldMatchThoseOfLongs() {
+    for (final long difference : DIFFERENCES) {
+      assertEquals("Time hash code should match.",
+                   Long.valueOf(difference).hashCode(),
+                   new Time(difference).hashCode());
+      assertEquals("Duration hash code should match.",
+                   Long.valueOf(difference).hashCode(),
+                   new Time.Duration(difference).hashCode());
+    }
+  }
+}
@@ -0,0 +1,302 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test TimeWarpSimulator.
+ */
+public class TimeWarpSimulatorTest {
+  /**
+   * Number of nodes hops travel between.
+   */
+  /* package-private */ static final int NODES = 16;
+
+
+  /**
+   * Number of hop chains, each starting at its own time.
+   */
+  /* package-private */ static final int CHAINS = 8;
+
+
+  /**
+   * Number of logical processes.
+   */
+  /* package-private */ static final int PROCESSES = 4;
+
+
+  /**
+   * Time until which to run.
+   */
+  /* package-private */ static final long END = 2000;
+
+
+  /**
+   * Get the node following the given one in a chain.
+   *
+   * @param node Current node.
+   * @param hops Number of hops so far.
+   * @return Next node.
+   */
+  /* package-private */ static int nextNode(final int node,
+                                            final int hops) {
+    return (node * 31 + hops * 7 + 3) % NODES;
+  }
+
+
+  /**
+   * Get the time until the next hop of a chain.
+   *
+   * As this is a multiple of the number of chains, and each chain
+   * starts at its own time, no two hops happen at the same time.
+   *
+   * @param node Current node.
+   * @param hops Number of hops so far.
+   * @return Time until the next hop.
+   */
+  /* package-private */ static long delay(final int node,
+                                         final int hops) {
+    return CHAINS * (1 + (node + hops) % 5);
+  }
+
+
+  /**
+   * Event of a chain hopping to a node, appending itself to the state
+   * of the process of that node and scheduling the next hop.
+   */
+  /* package-private */ static final class HopEvent
+    implements Event<String> {
+    /**
+     * Chain hopping.
+     */
+    final int chain;
+
+
+    /**
+     * Node hopped to.
+     */
+    final int node;
+
+
+    /**
+     * Number of hops so far.
+     */
+    final int hops;
+
+
+    /**
+     * Construct a hop.
+     *
+     * @param chain Chain hopping.
+     * @param node Node hopped to.
+     * @param hops Number of hops so far.
+     */
+    HopEvent(final int chain, final int node, final int hops) {
+      this.chain = chain;
+      this.node = node;
+      this.hops = hops;
+    }
+
+
+    @Override
+    public Changes<String> affect(final String state, final Time at) {
+      return new Changes<String>(
+        new StateChanges<String>() {
+          @Override
+          public String applyTo(final String current) {
+            return current + chain + ":" + hops + " ";
+          }
+        },
+        new OccurrencesChanges<String>() {
+          @Override
+          public Occurrences<String> applyTo(
+            final Occurrences<String> occurrences) {
+            return occurrences.withNew(Collections.singletonList(
+              new Occurrence<String>(
+                at.after(new Time.Duration(delay(node, hops))),
+                new HopEvent(chain, nextNode(node, hops), hops + 1))));
+          }
+        });
+    }
+  }
+
+
+  /**
+   * Partitioning assigning hops by node.
+   */
+  /* package-private */ static final Partitioning<String> BY_NODE =
+    new Partitioning<String>() {
+      @Override
+      public int processOf(final Occurrence<String> occurrence) {
+        return ((HopEvent) occurrence.event).node % PROCESSES;
+      }
+    };
+
+
+  /**
+   * Create the first hops of all chains.
+   *
+   * @return Occurrences of the first hops.
+   */
+  /* package-private */ static List<Occurrence<String>> firstHops() {
+    final List<Occurrence<String>> initial =
+      new ArrayList<Occurrence<String>>();
+    for (int chain = 0; chain < CHAINS; ++chain) {
+      initial.add(new Occurrence<String>(
+                    new Time(chain), new HopEvent(chain, chain, 0)));
+    }
+    return initial;
+  }
+
+
+  /**
+   * Create a simulator of the hop chains.
+   *
+   * @param executor Executor running the processes.
+   * @param optimism Maximum number of occurrences per round.
+   * @return New simulator.
+   */
+  private static TimeWarpSimulator<String> createSimulator(
+    final ExecutorService executor,
+    final int optimism) {
+    return new TimeWarpSimulator<String>(
+      Collections.nCopies(PROCESSES, ""),
+      new LadderQueueOccurrences<String>(), firstHops(), BY_NODE,
+      Time.BEGIN, executor, optimism);
+  }
+
+
+  /**
+   * Compute the expected states by following each chain sequentially.
+   *
+   * @return Expected states, by process index.
+   */
+  /* package-private */ static List<String> expectedStates() {
+    final List<TreeMap<Long, String>> hops =
+      new ArrayList<TreeMap<Long, String>>();
+    for (int i = 0; i < PROCESSES; ++i) {
+      hops.add(new TreeMap<Long, String>());
+    }
+    for (int chain = 0; chain < CHAINS; ++chain) {
+      int node = chain;
+      long time = chain;
+      for (int hop = 0; time <= END; ++hop) {
+        hops.get(node % PROCESSES).put(time, chain + ":" + hop + " ");
+        time += delay(node, hop);
+        node = nextNode(node, hop);
+      }
+    }
+    final List<String> states = new ArrayList<String>();
+    for (final TreeMap<Long, String> process : hops) {
+      final StringBuilder state = new StringBuilder();
+      for (final String hop : process.values()) {
+        state.append(hop);
+      }
+      states.add(state.toString());
+    }
+    return states;
+  }
+
+
+  /**
+   * Running in parallel should give the same states as running
+   * sequentially.
+   */
+  @Test
+  public void ParallelRunShouldMatchSequentialRun()
+    throws InterruptedException {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final TimeWarpSimulator<String> simulator =
+        createSimulator(executor, 64);
+      simulator.runUntil(new Time(END));
+      assertEquals("States should match a sequential run.",
+                   expectedStates(), simulator.getStates());
+      assertEquals("Time should be advanced to the end.",
+                   new Time(END), simulator.getTime());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+
+  /**
+   * Processes running far ahead of each other should be rolled back,
+   * without affecting the result.
+   */
+  @Test
+  public void RollbacksShouldNotAffectResult()
+    throws InterruptedException {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final TimeWarpSimulator<String> simulator =
+        createSimulator(executor, 1000);
+      simulator.runUntil(new Time(END / 2));
+      simulator.runUntil(new Time(END));
+      assertTrue("Some occurrences should have been rolled back.",
+                 simulator.getRolledBackCount() > 0);
+      assertEquals("States should match a sequential run.",
+                   expectedStates(), simulator.getStates());
+      long hops = 0;
+      for (final String state : expectedStates()) {
+        hops += state.split(" ").length;
+      }
+      assertEquals("All hops should be committed.",
+                   hops, simulator.getProcessedCount());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+
+  /**
+   * Sending occurrences earlier than the sender should be rejected.
+   */
+  @Test(expected = IllegalStateException.class)
+  public void SendingIntoThePastShouldFail() throws InterruptedException {
+    final Event<String> sendingBack = new Event<String>() {
+      @Override
+      public Changes<String> affect(final String state, final Time at) {
+        return new Changes<String>(
+          null,
+          new OccurrencesChanges<String>() {
+            @Override
+            public Occurrences<String> applyTo(
+              final Occurrences<String> occurrences) {
+              return occurrences.withNew(Collections.singletonList(
+                new Occurrence<String>(Time.BEGIN,
+                                       new HopEvent(0, 1, 0))));
+            }
+          });
+      }
+    };
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final TimeWarpSimulator<String> simulator =
+        new TimeWarpSimulator<String>(
+          Collections.nCopies(PROCESSES, ""),
+          new LeftistHeapOccurrences<String>(),
+          Collections.singletonList(
+            new Occurrence<String>(new Time(5), sendingBack)),
+          new Partitioning<String>() {
+            @Override
+            public int processOf(final Occurrence<String> occurrence) {
+              return occurrence.event == sendingBack ? 0 : 1;
+            }
+          },
+          Time.BEGIN, executor, 1);
+      simulator.runUntil(new Time(10));
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
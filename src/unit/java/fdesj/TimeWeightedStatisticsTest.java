@@ -0,0 +1,186 @@
+package fdesj;
+
+
+import java.util.Collections;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test TimeWeightedStatistics.
+ */
+public class TimeWeightedStatisticsTest {
+  /**
+   * Tolerance of floating point comparisons.
+   */
+  private static final double DELTA = 1e-6;
+
+
+  /**
+   * Values should be weighted by the duration they are held.
+   */
+  @Test
+  public void ValuesShouldBeWeightedByDuration() {
+    final TimeWeightedStatistics statistics = new TimeWeightedStatistics();
+    statistics.update(new Time(0), 1);
+    statistics.update(new Time(3), 5);
+    statistics.update(new Time(3), 2);
+    statistics.advance(new Time(4));
+    assertEquals("Duration should span all updates.",
+                 4, statistics.getDuration(), DELTA);
+    assertEquals("Mean should be weighted by duration.",
+                 1.25, statistics.getMean(), DELTA);
+    assertEquals("Variance should be weighted by duration.",
+                 0.1875, statistics.getVariance(), DELTA);
+    assertEquals("Minimum should be the smallest value.",
+                 1, statistics.getMinimum(), DELTA);
+    assertEquals("Maximum should include values held for no time.",
+                 5, statistics.getMaximum(), DELTA);
+  }
+
+
+  /**
+   * Updating at an earlier time should be refused.
+   */
+  @Test(expected = IllegalArgumentException.class)
+  public void EarlierUpdateShouldBeRefused() {
+    final TimeWeightedStatistics statistics = new TimeWeightedStatistics();
+    statistics.update(new Time(5), 1);
+    statistics.update(new Time(4), 1);
+  }
+
+
+  /**
+   * Merging statistics of parts should give the statistics of the
+   * whole.
+   */
+  @Test
+  public void MergedPartsShouldEqualWhole() {
+    final Random random = new Random(42);
+    final TimeWeightedStatistics whole = new TimeWeightedStatistics();
+    final TimeWeightedStatistics first = new TimeWeightedStatistics();
+    final TimeWeightedStatistics second = new TimeWeightedStatistics();
+    long time = 0;
+    for (int update = 0; update < 2000; ++update) {
+      final double value = random.nextGaussian() * 10 + 3;
+      final TimeWeightedStatistics part = update < 700 ? first : second;
+      whole.update(new Time(time), value);
+      part.update(new Time(time), value);
+      time += 1 + random.nextInt(20);
+      part.advance(new Time(time));
+    }
+    whole.advance(new Time(time));
+    final TimeWeightedStatistics merged = new TimeWeightedStatistics();
+    merged.accept(1, second);
+    merged.accept(0, first);
+    assertEquals("Durations should add up.",
+                 whole.getDuration(), merged.getDuration(), DELTA);
+    assertEquals("Means should agree.",
+                 whole.getMean(), merged.getMean(), DELTA);
+    assertEquals("Variances should agree.",
+                 whole.getVariance(), merged.getVariance(), DELTA);
+    assertEquals("Minima should agree.",
+                 whole.getMinimum(), merged.getMinimum(), 0);
+    assertEquals("Maxima should agree.",
+                 whole.getMaximum(), merged.getMaximum(), 0);
+    for (double quantile = 0; quantile <= 1; quantile += 0.125) {
+      assertEquals("Quantiles should agree.",
+                   whole.getQuantile(quantile),
+                   merged.getQuantile(quantile), DELTA);
+    }
+  }
+
+
+  /**
+   * Quantiles should be within the relative accuracy of the sketch,
+   * also for negative values and zero.
+   */
+  @Test
+  public void QuantilesShouldBeAccurate() {
+    final QuantileSketch sketch = new QuantileSketch(0.01, 2048);
+    for (int value = -1000; value <= 1000; ++value) {
+      sketch.add(value, 1);
+    }
+    sketch.add(12345, 0);
+    assertEquals("Total weight should count weighted values.",
+                 2001, sketch.getTotalWeight(), DELTA);
+    final double[] quantiles = {0, 0.1, 0.25, 0.5, 0.75, 0.9, 1};
+    for (final double quantile : quantiles) {
+      final double exact = Math.ceil(quantile * 2001) - 1001;
+      final double estimate = sketch.getQuantile(quantile);
+      assertTrue("Quantile " + quantile + " should be accurate, was "
+                 + estimate + " instead of " + exact,
+                 Math.abs(estimate - exact)
+                 <= 0.01 * Math.abs(exact) + DELTA);
+    }
+  }
+
+
+  /**
+   * The quantile 0 should be the smallest value, not a zero which
+   * was never added.
+   */
+  @Test
+  public void MinimumQuantileShouldBeSmallestValue() {
+    final QuantileSketch sketch = new QuantileSketch(0.01, 2048);
+    sketch.add(3, 1);
+    sketch.add(5, 1);
+    assertEquals("Quantile 0 should be the smallest value.",
+                 3, sketch.getQuantile(0), 0.03);
+    assertEquals("Quantile 1 should be the largest value.",
+                 5, sketch.getQuantile(1), 0.05);
+  }
+
+
+  /**
+   * Collapsing buckets should keep the large quantiles accurate.
+   */
+  @Test
+  public void CollapsingShouldKeepLargeQuantiles() {
+    final QuantileSketch sketch = new QuantileSketch(0.01, 16);
+    for (int value = 1; value <= 100000; ++value) {
+      sketch.add(value, 1);
+    }
+    assertEquals("Largest value should stay accurate.",
+                 100000, sketch.getQuantile(1), 1000);
+    assertEquals("Total weight should be kept.",
+                 100000, sketch.getTotalWeight(), DELTA);
+  }
+
+
+  /**
+   * The observer should feed the trajectory of a simulation into the
+   * statistics.
+   */
+  @Test
+  public void ObserverShouldFeedTrajectory() {
+    final Simulator<Integer> simulator = new Simulator<Integer>(
+      0,
+      new LeftistHeapOccurrences<Integer>().withNew(
+        Collections.singletonList(new Occurrence<Integer>(
+          Time.BEGIN, new SimulatorTest.TickEvent(1)))),
+      Time.BEGIN);
+    final StatisticsObserver<Integer> observer =
+      new StatisticsObserver<Integer>(new Measure<Integer>() {
+          @Override
+          public double valueOf(final Integer state) {
+            return state;
+          }
+        }, new TimeWeightedStatistics());
+    final TimeWeightedStatistics statistics = observer.getStatistics();
+    statistics.update(Time.BEGIN, 0);
+    simulator.setTrajectoryObserver(observer);
+    simulator.runUntil(new Time(1000));
+    statistics.advance(new Time(1000));
+    assertEquals("Statistics should span the simulated time.",
+                 1000, statistics.getDuration(), DELTA);
+    assertEquals("Mean should be that of the ticks.",
+                 500.5, statistics.getMean(), DELTA);
+    assertEquals("Variance should be that of the ticks.",
+                 (1000.0 * 1000 - 1) / 12, statistics.getVariance(), DELTA);
+    assertEquals("Median should be within the accuracy.",
+                 500, statistics.getQuantile(0.5), 5);
+  }
+}
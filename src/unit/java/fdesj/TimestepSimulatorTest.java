@@ -0,0 +1,260 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Test TimestepSimulator.
+ */
+public class TimestepSimulatorTest {
+  /**
+   * Event appending the value of the state it saw to the state.
+   */
+  private static final class AppendEvent implements Event<String> {
+    /**
+     * Name of the event.
+     */
+    private final String name;
+
+
+    /**
+     * Construct with the given name.
+     *
+     * @param name Name of the event.
+     */
+    AppendEvent(final String name) {
+      this.name = name;
+    }
+
+
+    @Override
+    public Changes<String> affect(final String seen, final Time at) {
+      return new Changes<String>(
+        new StateChanges<String>() {
+          @Override
+          public String applyTo(final String state) {
+            return state + name + "@" + at.absoluteValue
+              + "[" + seen.length() + "] ";
+          }
+        },
+        null);
+    }
+  }
+
+
+  /**
+   * Batch event adding one to the state, counting its batch calls.
+   */
+  private static final class AddEvent implements BatchEvent<Integer> {
+    /**
+     * Number of calls of affectAll.
+     */
+    private final AtomicInteger batches;
+
+
+    /**
+     * Construct counting batch calls with the given counter.
+     *
+     * @param batches Number of calls of affectAll.
+     */
+    AddEvent(final AtomicInteger batches) {
+      this.batches = batches;
+    }
+
+
+    /**
+     * Get changes adding to the state.
+     *
+     * @param amount Amount to add.
+     * @return Changes adding the amount.
+     */
+    private static Changes<Integer> adding(final int amount) {
+      return new Changes<Integer>(
+        new StateChanges<Integer>() {
+          @Override
+          public Integer applyTo(final Integer state) {
+            return state + amount;
+          }
+        },
+        null);
+    }
+
+
+    @Override
+    public Changes<Integer> affect(final Integer state, final Time at) {
+      return adding(1);
+    }
+
+
+    @Override
+    public Changes<Integer> affectAll(
+      final Integer state,
+      final Time at,
+      final List<Occurrence<Integer>> occurrences) {
+      batches.incrementAndGet();
+      return adding(occurrences.size());
+    }
+  }
+
+
+  /**
+   * Create occurrences of many append events at a few times.
+   *
+   * @return Occurrences of the append events.
+   */
+  private static Occurrences<String> createOccurrences() {
+    final List<Occurrence<String>> added =
+      new ArrayList<Occurrence<String>>();
+    for (int i = 0; i < 300; ++i) {
+      added.add(new Occurrence<String>(new Time(i % 3),
+                                       new AppendEvent("e" + i)));
+    }
+    return new LadderQueueOccurrences<String>().withNew(added);
+  }
+
+
+  /**
+   * All events of a timestep should see the same state.
+   */
+  @Test
+  public void EventsOfATimestepShouldSeeTheSameState() {
+    final TimestepSimulator<String> simulator =
+      new TimestepSimulator<String>(
+        "", createOccurrences(), Time.BEGIN, new ForkJoinPool(4));
+    assertEquals("All occurrences at time 0 should be processed.",
+                 100, simulator.step());
+    final String state = simulator.getState();
+    final String seenEmpty = "[0]";
+    assertEquals("All events should have seen the empty state.",
+                 100,
+                 (state.length() - state.replace(seenEmpty, "").length())
+                 / seenEmpty.length());
+    assertEquals("Time should be that of the timestep.",
+                 Time.BEGIN, simulator.getTime());
+  }
+
+
+  /**
+   * The result should not depend on the number of threads.
+   */
+  @Test
+  public void ResultShouldNotDependOnParallelism() {
+    final TimestepSimulator<String> sequential =
+      new TimestepSimulator<String>(
+        "", createOccurrences(), Time.BEGIN, new ForkJoinPool(1));
+    final TimestepSimulator<String> parallel =
+      new TimestepSimulator<String>(
+        "", createOccurrences(), Time.BEGIN, new ForkJoinPool(8));
+    assertEquals("All occurrences should be processed.",
+                 300, sequential.run(1000));
+    assertEquals("All occurrences should be processed.",
+                 300, parallel.run(1000));
+    assertEquals("Results should be equal.",
+                 sequential.getState(), parallel.getState());
+  }
+
+
+  /**
+   * Running until a time should process the timesteps up to it.
+   */
+  @Test
+  public void RunUntilShouldProcessTimestepsUpToTime() {
+    final TimestepSimulator<String> simulator =
+      new TimestepSimulator<String>(
+        "", createOccurrences(), Time.BEGIN, new ForkJoinPool(2));
+    assertEquals("Timesteps 0 and 1 should be processed.",
+                 200, simulator.runUntil(new Time(1)));
+    assertEquals("Processed occurrences should be counted.",
+                 200, simulator.getProcessedCount());
+    simulator.runUntil(new Time(10));
+    assertEquals("Time should be advanced to the end.",
+                 new Time(10), simulator.getTime());
+    assertEquals("No occurrences should be left.",
+                 null, simulator.getOccurrences().nextOccurrence());
+  }
+
+
+  /**
+   * Occurrences added at the current time should be processed in a
+   * following step.
+   */
+  @Test
+  public void OccurrencesAtCurrentTimeShouldBeProcessedLater() {
+    final Event<String> follower = new AppendEvent("follower");
+    final Event<String> leader = new Event<String>() {
+      @Override
+      public Changes<String> affect(final String state, final Time at) {
+        return new Changes<String>(
+          null,
+          new OccurrencesChanges<String>() {
+            @Override
+            public Occurrences<String> applyTo(
+              final Occurrences<String> occurrences) {
+              return occurrences.withNew(Collections.singletonList(
+                new Occurrence<String>(at, follower)));
+            }
+          });
+      }
+    };
+    final TimestepSimulator<String> simulator =
+      new TimestepSimulator<String>(
+        "",
+        new LeftistHeapOccurrences<String>().withNew(
+          Collections.singletonList(
+            new Occurrence<String>(Time.BEGIN, leader))),
+        Time.BEGIN,
+        new ForkJoinPool(2));
+    assertEquals("The leader should be processed alone.",
+                 1, simulator.step());
+    assertEquals("The follower should be processed next.",
+                 1, simulator.step());
+    assertEquals("The follower should have changed the state.",
+                 "follower@0[0] ", simulator.getState());
+  }
+
+
+  /**
+   * Batch events of a timestep should be evaluated in a single call,
+   * besides the other events.
+   */
+  @Test
+  public void BatchEventsShouldBeEvaluatedTogether() {
+    final AtomicInteger batches = new AtomicInteger();
+    final List<Occurrence<Integer>> added =
+      new ArrayList<Occurrence<Integer>>();
+    for (int i = 0; i < 1000; ++i) {
+      added.add(new Occurrence<Integer>(Time.BEGIN, new AddEvent(batches)));
+      if (i % 100 == 0) {
+        added.add(new Occurrence<Integer>(Time.BEGIN,
+                                          new SimulatorTest.TickEvent(5)));
+      }
+    }
+    final TimestepSimulator<Integer> simulator =
+      new TimestepSimulator<Integer>(
+        0, new LeftistHeapOccurrences<Integer>().withNew(added),
+        Time.BEGIN, new ForkJoinPool(4));
+    final AtomicInteger observed = new AtomicInteger();
+    simulator.setObserver(new ProcessingObserver<Integer>() {
+        @Override
+        public void processed(final Occurrence<Integer> occurrence,
+                              final Changes<Integer> changes) {
+          observed.incrementAndGet();
+        }
+      });
+    assertEquals("All occurrences of the timestep should be processed.",
+                 1010, simulator.step());
+    assertEquals("Batch events should be evaluated in a single call.",
+                 1, batches.get());
+    assertEquals("All events should have their effect.",
+                 (Integer) 1010, simulator.getState());
+    assertEquals("Every occurrence should be observed.",
+                 1010, observed.get());
+  }
+}
@@ -0,0 +1,99 @@
+package fdesj;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test TombstoneOccurrences.
+ */
+public class TombstoneOccurrencesTest extends AbstractOccurrencesTest {
+  @Override
+  public Occurrences<Object> createEmptyOccurrences() {
+    return new TombstoneOccurrences<Object>(
+      new LeftistHeapOccurrences<Object>());
+  }
+
+
+  /**
+   * Cancelling most occurrences one by one should compact the
+   * tombstones, while still removing exactly the cancelled ones.
+   */
+  @Test
+  public void CancellingShouldCompactTombstones() {
+    final List<Occurrence<Object>> added = randomOccurrences(4000, 1000);
+    TombstoneOccurrences<Object> occurrences =
+      new TombstoneOccurrences<Object>(
+        new LeftistHeapOccurrences<Object>()).withNew(added);
+    int largest = 0;
+    final List<Occurrence<Object>> kept = new ArrayList<Occurrence<Object>>();
+    for (int i = 0; i < added.size(); ++i) {
+      if (i % 10 == 0) {
+        kept.add(added.get(i));
+      } else {
+        occurrences = occurrences.without(
+          Collections.singletonList(added.get(i)));
+        largest = Math.max(largest, occurrences.getTombstoneCount());
+      }
+    }
+    assertTrue("Tombstones should be compacted.",
+               largest < added.size() / 2);
+    final List<Occurrence<Object>> drained = drain(occurrences);
+    assertEquals("Only the kept occurrences should remain.",
+                 kept.size(), drained.size());
+    assertTrue("The kept occurrences should remain.",
+               drained.containsAll(kept));
+  }
+
+
+  /**
+   * A cancelled next occurrence should be skipped immediately.
+   */
+  @Test
+  public void CancellingNextShouldSkipIt() {
+    final Occurrence<Object> first = occurrenceAt(1);
+    final Occurrence<Object> second = occurrenceAt(2);
+    final TombstoneOccurrences<Object> occurrences =
+      new TombstoneOccurrences<Object>(new LeftistHeapOccurrences<Object>())
+      .withNew(Arrays.asList(first, second))
+      .without(Collections.singletonList(first));
+    assertEquals("The cancelled occurrence should be skipped.",
+                 second, occurrences.nextOccurrence());
+    assertEquals("The used up tombstone should be dropped.",
+                 0, occurrences.getTombstoneCount());
+  }
+
+
+  /**
+   * Cancelling an occurrence which already occurred should not remove
+   * an equal occurrence added later.
+   */
+  @Test
+  public void CancellingAbsentOccurrenceShouldNotRemoveLaterOne() {
+    final Occurrence<Object> timeout = occurrenceAt(3);
+    final Occurrence<Object> other = occurrenceAt(5);
+    TombstoneOccurrences<Object> occurrences =
+      new TombstoneOccurrences<Object>(new LeftistHeapOccurrences<Object>())
+      .withNew(Arrays.asList(timeout, other))
+      .withoutNextOccurrence()
+      .without(Collections.singletonList(timeout))
+      .withNew(Collections.singletonList(timeout));
+    assertEquals("An earlier occurrence should not be tombstoned.",
+                 0, occurrences.getTombstoneCount());
+    final Occurrence<Object> sameTime = occurrenceAt(5);
+    occurrences = occurrences
+      .without(Arrays.asList(sameTime, other, other))
+      .withNew(Arrays.asList(sameTime, other));
+    assertEquals("Only the present occurrence should be tombstoned.",
+                 1, occurrences.getTombstoneCount());
+    assertEquals("Rescheduled occurrences should remain.",
+                 Arrays.asList(timeout, sameTime, other),
+                 drain(occurrences));
+  }
+}
@@ -0,0 +1,272 @@
+package fdesj;
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test TraceWriter, together with TraceReader and TraceReplayer.
+ */
+public class TraceWriterTest {
+  /**
+   * State changes adding to the state.
+   */
+  private static final class Add implements StateChanges<Integer> {
+    /**
+     * Amount to add.
+     */
+    final int amount;
+
+
+    /**
+     * Construct adding the given amount.
+     *
+     * @param amount Amount to add.
+     */
+    Add(final int amount) {
+      this.amount = amount;
+    }
+
+
+    @Override
+    public Integer applyTo(final Integer state) {
+      return state + amount;
+    }
+  }
+
+
+  /**
+   * Event adding its amount to the state, occurring again after a
+   * period equal to its amount.
+   */
+  private static final class AddEvent implements Event<Integer> {
+    /**
+     * Amount to add.
+     */
+    final int amount;
+
+
+    /**
+     * Construct adding the given amount.
+     *
+     * @param amount Amount to add.
+     */
+    AddEvent(final int amount) {
+      this.amount = amount;
+    }
+
+
+    @Override
+    public Changes<Integer> affect(final Integer state, final Time at) {
+      final Event<Integer> self = this;
+      return new Changes<Integer>(
+        new Add(amount),
+        new OccurrencesChanges<Integer>() {
+          @Override
+          public Occurrences<Integer> applyTo(
+            final Occurrences<Integer> occurrences) {
+            return occurrences.withNew(Collections.singletonList(
+              new Occurrence<Integer>(at.after(amount), self)));
+          }
+        });
+    }
+  }
+
+
+  /**
+   * Codec of add events.
+   */
+  private static final Codec<Event<Integer>> EVENTS =
+    new Codec<Event<Integer>>() {
+      @Override
+      public void encode(final Event<Integer> value,
+                         final DataOutput output) throws IOException {
+        output.writeInt(((AddEvent) value).amount);
+      }
+
+
+      @Override
+      public Event<Integer> decode(final DataInput input)
+        throws IOException {
+        return new AddEvent(input.readInt());
+      }
+    };
+
+
+  /**
+   * Codec of add state changes.
+   */
+  private static final Codec<StateChanges<Integer>> CHANGES =
+    new Codec<StateChanges<Integer>>() {
+      @Override
+      public void encode(final StateChanges<Integer> value,
+                         final DataOutput output) throws IOException {
+        output.writeInt(((Add) value).amount);
+      }
+
+
+      @Override
+      public StateChanges<Integer> decode(final DataInput input)
+        throws IOException {
+        return new Add(input.readInt());
+      }
+    };
+
+
+  /**
+   * Run a simulation while tracing it.
+   *
+   * @param directory Directory of the trace.
+   * @param segmentCount Number of segments in the ring.
+   * @param end Time until which to run.
+   * @return Simulator after the run.
+   * @throws IOException When tracing fails.
+   */
+  private static Simulator<Integer> runTraced(final Path directory,
+                                              final int segmentCount,
+                                              final long end)
+    throws IOException {
+    Occurrences<Integer> occurrences = new LadderQueueOccurrences<Integer>();
+    for (int amount = 1; amount <= 5; ++amount) {
+      occurrences = occurrences.withNew(Collections.singletonList(
+        new Occurrence<Integer>(Time.BEGIN, new AddEvent(amount))));
+    }
+    final Simulator<Integer> simulator =
+      new Simulator<Integer>(0, occurrences, Time.BEGIN);
+    try (TraceWriter<Integer> writer = new TraceWriter<Integer>(
+           directory, "run", 1024, segmentCount, 16, EVENTS, CHANGES)) {
+      simulator.setObserver(writer);
+      simulator.runUntil(new Time(end));
+    }
+    return simulator;
+  }
+
+
+  /**
+   * Delete a directory with all its files.
+   *
+   * @param directory Directory to delete.
+   * @throws IOException When deleting fails.
+   */
+  private static void delete(final Path directory) throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (final Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(directory);
+  }
+
+
+  /**
+   * The trace should contain all processed occurrences in order.
+   */
+  @Test
+  public void TraceShouldContainAllProcessedOccurrences()
+    throws IOException {
+    final Path directory = Files.createTempDirectory("trace");
+    try {
+      final Simulator<Integer> simulator = runTraced(directory, 1000, 1000);
+      long count = 0;
+      long time = 0;
+      for (final TraceReader.Record<Integer> record
+             : new TraceReader<Integer>(directory, "run", EVENTS, CHANGES)) {
+        assertTrue("Records should be in order of time.",
+                   record.occurrence.time.absoluteValue >= time);
+        time = record.occurrence.time.absoluteValue;
+        ++count;
+      }
+      assertEquals("All processed occurrences should be recorded.",
+                   simulator.getProcessedCount(), count);
+    } finally {
+      delete(directory);
+    }
+  }
+
+
+  /**
+   * Replaying should give the states of the recorded run.
+   */
+  @Test
+  public void ReplayShouldGiveRecordedStates() throws IOException {
+    final Path directory = Files.createTempDirectory("trace");
+    try {
+      final Simulator<Integer> simulator = runTraced(directory, 1000, 1000);
+      final TraceReplayer<Integer> replayer = new TraceReplayer<Integer>(
+        new TraceReader<Integer>(directory, "run", EVENTS, CHANGES),
+        0, Time.BEGIN);
+      replayer.runUntil(new Time(500));
+      assertTrue("Replaying should stop at the given time.",
+                 replayer.getState() < simulator.getState());
+      replayer.runUntil(new Time(1000));
+      assertEquals("Replaying should give the recorded state.",
+                   simulator.getState(), replayer.getState());
+      assertEquals("All occurrences should be replayed.",
+                   simulator.getProcessedCount(),
+                   replayer.getReplayedCount());
+    } finally {
+      delete(directory);
+    }
+  }
+
+
+  /**
+   * A ring of few segments should retain only the latest records.
+   */
+  @Test
+  public void RingShouldOverwriteOldestSegments() throws IOException {
+    final Path directory = Files.createTempDirectory("trace");
+    try {
+      runTraced(directory, 3, 1000);
+      final TraceReader<Integer> reader =
+        new TraceReader<Integer>(directory, "run", EVENTS, CHANGES);
+      assertFalse("Trace should be incomplete.", reader.isComplete());
+      long last = 0;
+      for (final TraceReader.Record<Integer> record : reader) {
+        last = record.occurrence.time.absoluteValue;
+      }
+      assertEquals("Latest records should be retained.", 1000, last);
+    } finally {
+      delete(directory);
+    }
+  }
+
+
+  /**
+   * Segments left behind by an earlier run with a larger ring should
+   * not be read.
+   */
+  @Test
+  public void TraceShouldOnlyContainLatestRun() throws IOException {
+    final Path directory = Files.createTempDirectory("trace");
+    try {
+      runTraced(directory, 1000, 1000);
+      final Simulator<Integer> simulator = runTraced(directory, 16, 100);
+      final TraceReader<Integer> reader =
+        new TraceReader<Integer>(directory, "run", EVENTS, CHANGES);
+      assertTrue("Trace of the latest run should be complete.",
+                 reader.isComplete());
+      final TraceReplayer<Integer> replayer =
+        new TraceReplayer<Integer>(reader, 0, Time.BEGIN);
+      replayer.runUntil(new Time(1000));
+      assertEquals("Replaying should give the state of the latest run.",
+                   simulator.getState(), replayer.getState());
+      assertEquals("Only occurrences of the latest run should be"
+                   + " replayed.",
+                   simulator.getProcessedCount(),
+                   replayer.getReplayedCount());
+    } finally {
+      delete(directory);
+    }
+  }
+}
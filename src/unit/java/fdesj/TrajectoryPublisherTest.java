@@ -0,0 +1,98 @@
+package fdesj;
+
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Test TrajectoryPublisher.
+ */
+public class TrajectoryPublisherTest {
+  /**
+   * Run a simulation of ticks publishing its trajectory, on another
+   * thread.
+   *
+   * @param executor Executor to run the simulation on.
+   * @param publisher Publisher of the trajectory.
+   * @return Future of the simulator, after the run.
+   */
+  private static Future<Simulator<Integer>> publish(
+    final ExecutorService executor,
+    final TrajectoryPublisher<Integer> publisher) {
+    return executor.submit(new Callable<Simulator<Integer>>() {
+        @Override
+        public Simulator<Integer> call() {
+          final Simulator<Integer> simulator = new Simulator<Integer>(
+            0,
+            new LeftistHeapOccurrences<Integer>().withNew(
+              Collections.singletonList(new Occurrence<Integer>(
+                Time.BEGIN, new SimulatorTest.TickEvent(1)))),
+            Time.BEGIN);
+          simulator.setTrajectoryObserver(publisher);
+          simulator.runUntil(new Time(1000));
+          publisher.complete();
+          return simulator;
+        }
+      });
+  }
+
+
+  /**
+   * The consumer should see every committed point, in order, through
+   * a small buffer.
+   */
+  @Test
+  public void ConsumerShouldSeeWholeTrajectory() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final TrajectoryPublisher<Integer> publisher =
+        new TrajectoryPublisher<Integer>(4);
+      final Future<Simulator<Integer>> run = publish(executor, publisher);
+      long count = 0;
+      int state = 0;
+      for (final TrajectoryPublisher.Point<Integer> point : publisher) {
+        assertEquals("Points should be in order of time.",
+                     count, point.time.absoluteValue);
+        assertEquals("Points should carry the state after the change.",
+                     (Integer) (state + 1), point.state);
+        state = point.state;
+        ++count;
+      }
+      final Simulator<Integer> simulator = run.get(10, TimeUnit.SECONDS);
+      assertEquals("Each processed occurrence should be published.",
+                   simulator.getProcessedCount(), count);
+      assertEquals("The last point should have the final state.",
+                   simulator.getState(), (Integer) state);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+
+  /**
+   * Cancelling should let the simulation finish without a consumer.
+   */
+  @Test
+  public void CancellingShouldReleaseSimulation() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      final TrajectoryPublisher<Integer> publisher =
+        new TrajectoryPublisher<Integer>(2);
+      final Future<Simulator<Integer>> run = publish(executor, publisher);
+      publisher.iterator().next();
+      publisher.cancel();
+      assertTrue("The simulation should finish.",
+                 run.get(10, TimeUnit.SECONDS).getProcessedCount() > 2);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}